@@ -0,0 +1,45 @@
+package asmble.compile.jvm
+
+import asmble.ast.Node
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+
+// Builds a single large function like the one in LargeFuncTest. The build time should grow linearly with the number
+// of insns, where it used to grow quadratically from copying the insn list on every append.
+@State(Scope.Thread)
+open class FuncBuilderBenchmark {
+    @Param("1000", "10000", "50000")
+    @JvmField
+    var numInsnChunks = 0
+
+    lateinit var ctx: ClsContext
+
+    @Setup
+    fun init() {
+        ctx = ClsContext(
+            packageName = "asmble.temp",
+            className = "Temp",
+            mod = Node.Module(
+                memories = listOf(Node.Type.Memory(Node.ResizableLimits(initial = 4, maximum = 4))),
+                funcs = listOf(Node.Func(
+                    type = Node.Type.Func(params = emptyList(), ret = null),
+                    locals = emptyList(),
+                    instructions = (0 until numInsnChunks).flatMap {
+                        listOf<Node.Instr>(
+                            Node.Instr.I32Const(it * 4),
+                            Node.Instr.I32Const(it),
+                            Node.Instr.I32Const(it - 1),
+                            Node.Instr.I32Mul,
+                            Node.Instr.I32Store(0, 0)
+                        )
+                    }
+                ))
+            )
+        )
+    }
+
+    @Benchmark
+    fun buildLargeFunc(bh: Blackhole) {
+        bh.consume(ctx.funcBuilder.fromFunc(ctx, ctx.mod.funcs.single(), 0).toMethodNode())
+    }
+}
@@ -0,0 +1,169 @@
+package asmble.compile.jvm;
+
+import asmble.runtime.AtomicWaiters;
+
+/**
+ * Static helpers for the atomic instructions of {@link ByteBufferMem} and {@link ByteArrayMem} that are copied into
+ * the compiled class. The memory is just an object here. The native methods at the top are supplied by the mem when
+ * copied, as calls of a var handle view over its memory type which can't be referenced from Java 8 source. Accesses
+ * narrower than an int are done with a compare and swap loop on the aligned int that holds them. Waiters are kept in
+ * {@link AtomicWaiters} so they meet anything else using the same memory. See
+ * {@link SyntheticFuncBuilder#buildHelperCopy} for restrictions.
+ */
+class AtomicMemHelpers {
+    private static final int OP_ADD = 0;
+    private static final int OP_SUB = 1;
+    private static final int OP_AND = 2;
+    private static final int OP_OR = 3;
+    private static final int OP_XOR = 4;
+    private static final int OP_XCHG = 5;
+
+    static native int limit(Object mem);
+    static native int intGetVolatile(Object mem, int index);
+    static native void intSetVolatile(Object mem, int index, int value);
+    static native int intGetAndAdd(Object mem, int index, int value);
+    static native int intGetAndBitwiseAnd(Object mem, int index, int value);
+    static native int intGetAndBitwiseOr(Object mem, int index, int value);
+    static native int intGetAndBitwiseXor(Object mem, int index, int value);
+    static native int intGetAndSet(Object mem, int index, int value);
+    static native int intCompareAndExchange(Object mem, int index, int expected, int value);
+    static native long longGetVolatile(Object mem, int index);
+    static native void longSetVolatile(Object mem, int index, long value);
+    static native long longGetAndAdd(Object mem, int index, long value);
+    static native long longGetAndBitwiseAnd(Object mem, int index, long value);
+    static native long longGetAndBitwiseOr(Object mem, int index, long value);
+    static native long longGetAndBitwiseXor(Object mem, int index, long value);
+    static native long longGetAndSet(Object mem, int index, long value);
+    static native long longCompareAndExchange(Object mem, int index, long expected, long value);
+
+    static int address(Object mem, int addr, long offset, int size) {
+        long index = (addr & 0xFFFFFFFFL) + offset;
+        // Unlike regular accesses, alignment is required and checked first
+        if ((index & (size - 1)) != 0) throw new ArithmeticException("Unaligned atomic");
+        if (index + size > limit(mem)) throw new IndexOutOfBoundsException("Memory access out of bounds");
+        return (int) index;
+    }
+
+    static int subWordMask(int size) {
+        return size == 1 ? 0xFF : 0xFFFF;
+    }
+
+    static int apply(int op, int current, int value) {
+        switch (op) {
+            case OP_ADD: return current + value;
+            case OP_SUB: return current - value;
+            case OP_AND: return current & value;
+            case OP_OR: return current | value;
+            case OP_XOR: return current ^ value;
+            default: return value;
+        }
+    }
+
+    static int rmwSubWord(Object mem, int index, int size, int op, int value) {
+        int aligned = index & ~3;
+        int shift = (index & 3) << 3;
+        int mask = subWordMask(size);
+        while (true) {
+            int word = intGetVolatile(mem, aligned);
+            int old = (word >>> shift) & mask;
+            int replaced = (word & ~(mask << shift)) | ((apply(op, old, value) & mask) << shift);
+            if (intCompareAndExchange(mem, aligned, word, replaced) == word) return old;
+        }
+    }
+
+    static int loadInt(Object mem, int addr, long offset, int size) {
+        int index = address(mem, addr, offset, size);
+        if (size == 4) return intGetVolatile(mem, index);
+        return (intGetVolatile(mem, index & ~3) >>> ((index & 3) << 3)) & subWordMask(size);
+    }
+
+    static long loadLong(Object mem, int addr, long offset, int size) {
+        if (size == 8) return longGetVolatile(mem, address(mem, addr, offset, size));
+        return loadInt(mem, addr, offset, size) & 0xFFFFFFFFL;
+    }
+
+    static void storeInt(Object mem, int addr, int value, long offset, int size) {
+        int index = address(mem, addr, offset, size);
+        if (size == 4) intSetVolatile(mem, index, value);
+        else rmwSubWord(mem, index, size, OP_XCHG, value);
+    }
+
+    static void storeLong(Object mem, int addr, long value, long offset, int size) {
+        if (size == 8) longSetVolatile(mem, address(mem, addr, offset, size), value);
+        else storeInt(mem, addr, (int) value, offset, size);
+    }
+
+    static int rmwInt(Object mem, int addr, int value, long offset, int size, int op) {
+        int index = address(mem, addr, offset, size);
+        if (size != 4) return rmwSubWord(mem, index, size, op, value);
+        switch (op) {
+            case OP_ADD: return intGetAndAdd(mem, index, value);
+            case OP_SUB: return intGetAndAdd(mem, index, -value);
+            case OP_AND: return intGetAndBitwiseAnd(mem, index, value);
+            case OP_OR: return intGetAndBitwiseOr(mem, index, value);
+            case OP_XOR: return intGetAndBitwiseXor(mem, index, value);
+            default: return intGetAndSet(mem, index, value);
+        }
+    }
+
+    static long rmwLong(Object mem, int addr, long value, long offset, int size, int op) {
+        if (size != 8) return rmwInt(mem, addr, (int) value, offset, size, op) & 0xFFFFFFFFL;
+        int index = address(mem, addr, offset, size);
+        switch (op) {
+            case OP_ADD: return longGetAndAdd(mem, index, value);
+            case OP_SUB: return longGetAndAdd(mem, index, -value);
+            case OP_AND: return longGetAndBitwiseAnd(mem, index, value);
+            case OP_OR: return longGetAndBitwiseOr(mem, index, value);
+            case OP_XOR: return longGetAndBitwiseXor(mem, index, value);
+            default: return longGetAndSet(mem, index, value);
+        }
+    }
+
+    static int cmpxchgInt(Object mem, int addr, int expected, int replacement, long offset, int size) {
+        int index = address(mem, addr, offset, size);
+        if (size == 4) return intCompareAndExchange(mem, index, expected, replacement);
+        // Both are wrapped to the access size
+        int aligned = index & ~3;
+        int shift = (index & 3) << 3;
+        int mask = subWordMask(size);
+        while (true) {
+            int word = intGetVolatile(mem, aligned);
+            int old = (word >>> shift) & mask;
+            if (old != (expected & mask)) return old;
+            int replaced = (word & ~(mask << shift)) | ((replacement & mask) << shift);
+            if (intCompareAndExchange(mem, aligned, word, replaced) == word) return old;
+        }
+    }
+
+    static long cmpxchgLong(Object mem, int addr, long expected, long replacement, long offset, int size) {
+        if (size != 8) return cmpxchgInt(mem, addr, (int) expected, (int) replacement, offset, size) & 0xFFFFFFFFL;
+        return longCompareAndExchange(mem, address(mem, addr, offset, size), expected, replacement);
+    }
+
+    static int notify(Object mem, int addr, int count, long offset) {
+        return AtomicWaiters.notify(mem, address(mem, addr, offset, 4), count);
+    }
+
+    static int wait32(Object mem, int addr, int expected, long timeout, long offset, boolean shared) {
+        int index = address(mem, addr, offset, 4);
+        if (!shared) throw new ArithmeticException("Expected shared memory");
+        // Queued before the check so a notify between the check and the park isn't lost
+        Object waiter = AtomicWaiters.enqueue(mem, index);
+        if (intGetVolatile(mem, index) != expected) {
+            AtomicWaiters.cancel(mem, index, waiter);
+            return AtomicWaiters.NOT_EQUAL;
+        }
+        return AtomicWaiters.park(mem, index, waiter, timeout);
+    }
+
+    static int wait64(Object mem, int addr, long expected, long timeout, long offset, boolean shared) {
+        int index = address(mem, addr, offset, 8);
+        if (!shared) throw new ArithmeticException("Expected shared memory");
+        Object waiter = AtomicWaiters.enqueue(mem, index);
+        if (longGetVolatile(mem, index) != expected) {
+            AtomicWaiters.cancel(mem, index, waiter);
+            return AtomicWaiters.NOT_EQUAL;
+        }
+        return AtomicWaiters.park(mem, index, waiter, timeout);
+    }
+}
@@ -0,0 +1,88 @@
+package asmble.compile.jvm;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Static helpers for the bulk memory instructions of {@link ByteBufferMem} and {@link ByteArrayMem} that are copied
+ * into the compiled class. Indices and lengths are unsigned and both ranges are checked before anything is written.
+ * See {@link SyntheticFuncBuilder#buildHelperCopy} for restrictions.
+ */
+class BulkMemoryHelpers {
+    private static final int FILL_CHUNK_SIZE = 4096;
+    private static final int LIMIT_SIZE = 4;
+
+    static void checkBounds(int index, int length, int limit) {
+        if ((index & 0xFFFFFFFFL) + (length & 0xFFFFFFFFL) > limit)
+            throw new IndexOutOfBoundsException("Memory access out of bounds");
+    }
+
+    static void copy(ByteBuffer mem, int dest, int src, int length) {
+        checkBounds(dest, length, mem.limit());
+        checkBounds(src, length, mem.limit());
+        if (length == 0) return;
+        // A single put between two views is one native copy that handles overlap. Casts are for Java 8 compat.
+        ByteBuffer from = mem.duplicate();
+        ((Buffer) from).limit(src + length);
+        ((Buffer) from).position(src);
+        ByteBuffer to = mem.duplicate();
+        ((Buffer) to).position(dest);
+        to.put(from);
+    }
+
+    static void fill(ByteBuffer mem, int dest, int value, int length) {
+        checkBounds(dest, length, mem.limit());
+        if (length == 0) return;
+        if (mem.hasArray()) {
+            Arrays.fill(mem.array(), mem.arrayOffset() + dest, mem.arrayOffset() + dest + length, (byte) value);
+            return;
+        }
+        // No native fill for direct buffers, so put a filled chunk as many times as needed
+        byte[] chunk = new byte[Math.min(length, FILL_CHUNK_SIZE)];
+        Arrays.fill(chunk, (byte) value);
+        ByteBuffer to = mem.duplicate();
+        ((Buffer) to).position(dest);
+        while (length > 0) {
+            int amount = Math.min(length, chunk.length);
+            to.put(chunk, 0, amount);
+            length -= amount;
+        }
+    }
+
+    static void init(ByteBuffer mem, int dest, int src, int length, byte[] data) {
+        checkBounds(dest, length, mem.limit());
+        // Dropped data is null and acts as empty
+        checkBounds(src, length, data == null ? 0 : data.length);
+        if (length == 0) return;
+        ByteBuffer to = mem.duplicate();
+        ((Buffer) to).position(dest);
+        to.put(data, src, length);
+    }
+
+    static int arrayLimit(byte[] mem) {
+        // Same trailing little endian limit as ByteArrayMem
+        int index = mem.length - LIMIT_SIZE;
+        return (mem[index] & 0xFF) | (mem[index + 1] & 0xFF) << 8 |
+            (mem[index + 2] & 0xFF) << 16 | (mem[index + 3] & 0xFF) << 24;
+    }
+
+    static void copyArray(byte[] mem, int dest, int src, int length) {
+        int limit = arrayLimit(mem);
+        checkBounds(dest, length, limit);
+        checkBounds(src, length, limit);
+        System.arraycopy(mem, src, mem, dest, length);
+    }
+
+    static void fillArray(byte[] mem, int dest, int value, int length) {
+        checkBounds(dest, length, arrayLimit(mem));
+        Arrays.fill(mem, dest, dest + length, (byte) value);
+    }
+
+    static void initArray(byte[] mem, int dest, int src, int length, byte[] data) {
+        checkBounds(dest, length, arrayLimit(mem));
+        checkBounds(src, length, data == null ? 0 : data.length);
+        if (length == 0) return;
+        System.arraycopy(data, src, mem, dest, length);
+    }
+}
@@ -0,0 +1,29 @@
+package asmble.compile.jvm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Static helpers for reading the data resource built by {@link AstToAsm#dataResourceBytes} that are copied into the
+ * compiled class. See {@link SyntheticFuncBuilder#buildHelperCopy} for restrictions.
+ */
+class DataResourceHelpers {
+    static byte[] read(Class<?> cls, String name, int length, boolean deflated) throws IOException {
+        // No try/finally allowed, but failing here fails the class init anyways
+        InputStream in = cls.getResourceAsStream(name);
+        if (in == null) throw new IOException("Missing data resource ".concat(name));
+        if (deflated) in = new InflaterInputStream(in);
+        // We know the size, so just read it all into place
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int amount = in.read(bytes, read, length - read);
+            if (amount < 0) throw new EOFException("Truncated data resource ".concat(name));
+            read += amount;
+        }
+        in.close();
+        return bytes;
+    }
+}
@@ -0,0 +1,84 @@
+package asmble.compile.jvm;
+
+import asmble.runtime.MappedMemFiles;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Static helpers for {@link MappedMem} that are copied into the compiled class. The buffer mapped by
+ * {@link MappedMemFiles} has a trailer after the usable capacity that persists the limit, the init state, and a magic
+ * value. See {@link SyntheticFuncBuilder#buildHelperCopy} for restrictions.
+ */
+class MappedMemHelpers {
+    private static final int PAGE_SIZE = 65536;
+    // Limit, then state, then magic
+    private static final int TRAILER_SIZE = 12;
+    private static final int MAGIC = 0x6D656D61;
+    private static final int STATE_INITIALIZING = 1;
+    private static final int STATE_INITIALIZED = 2;
+
+    static ByteBuffer create(int capacity, String dir, String name) throws IOException {
+        return MappedMemFiles.open(MappedMemFiles.path(dir, name), capacity);
+    }
+
+    static int trailer(ByteBuffer mem) {
+        return mem.capacity() - TRAILER_SIZE;
+    }
+
+    static ByteBuffer trailerView(ByteBuffer mem) {
+        // The trailer is past the limit so we need a view that can see it
+        ByteBuffer view = mem.duplicate();
+        ((Buffer) view).limit(view.capacity());
+        return view.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static ByteBuffer init(ByteBuffer mem, int initial, boolean hasData) {
+        // Only reset if it hasn't been fully initialized before
+        ByteBuffer view = trailerView(mem);
+        int trailer = trailer(mem);
+        if (view.getInt(trailer + 8) != MAGIC || view.getInt(trailer + 4) != STATE_INITIALIZED) {
+            view.putInt(trailer, initial);
+            view.putInt(trailer + 4, hasData ? STATE_INITIALIZING : STATE_INITIALIZED);
+            view.putInt(trailer + 8, MAGIC);
+        }
+        // A persisted limit past the capacity can only be from a corrupt file
+        int limit = view.getInt(trailer);
+        if (limit < 0 || limit > trailer) throw new IllegalStateException("Mapped memory limit " + limit +
+            " not within capacity " + trailer);
+        // Cast is for Java 8 compat
+        ((Buffer) mem).limit(limit);
+        return mem.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static ByteBuffer data(ByteBuffer mem, int index, String str, boolean last) {
+        byte[] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+        return dataBytes(mem, index, bytes, 0, bytes.length, last);
+    }
+
+    static ByteBuffer dataBytes(ByteBuffer mem, int index, byte[] bytes, int offset, int length, boolean last) {
+        // Only apply data if we're in the middle of initializing
+        ByteBuffer view = trailerView(mem);
+        int trailer = trailer(mem);
+        if (view.getInt(trailer + 4) != STATE_INITIALIZING) return mem;
+        ByteBuffer dup = mem.duplicate();
+        ((Buffer) dup).position(index);
+        dup.put(bytes, offset, length);
+        if (last) view.putInt(trailer + 4, STATE_INITIALIZED);
+        return mem;
+    }
+
+    static int grow(ByteBuffer mem, int delta, int maxPages) {
+        int limit = mem.limit();
+        long newLimit = (long) limit + (long) delta * PAGE_SIZE;
+        // Reused files can be larger than the max
+        if (delta < 0 || newLimit > Math.min((long) maxPages * PAGE_SIZE, trailer(mem))) return -1;
+        // Persist before we set it
+        trailerView(mem).putInt(trailer(mem), (int) newLimit);
+        ((Buffer) mem).limit((int) newLimit);
+        return limit / PAGE_SIZE;
+    }
+}
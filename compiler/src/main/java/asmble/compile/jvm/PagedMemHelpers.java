@@ -0,0 +1,358 @@
+package asmble.compile.jvm;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Static helpers for {@link PagedMem} that are copied into the compiled class. The memory instance is a table of
+ * page buffers where only the first committed pages are non-null. These should only call each other and the JDK
+ * (calls to each other are rewritten to the compiled class) and cannot use fields or try/catch.
+ */
+class PagedMemHelpers {
+    private static final int PAGE_SIZE = 65536;
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    static ByteBuffer page(ByteBuffer[] table, int index) {
+        int pageIndex = index >>> PAGE_SHIFT;
+        if (pageIndex >= table.length || table[pageIndex] == null)
+            throw new IndexOutOfBoundsException("Memory access out of bounds");
+        return table[pageIndex];
+    }
+
+    static ByteBuffer writablePage(ByteBuffer[] table, int index) {
+        // Pages shared by a fork are read-only and copied on first write
+        ByteBuffer page = page(table, index);
+        if (!page.isReadOnly()) return page;
+        ByteBuffer copy = newPage(page.isDirect());
+        copy.put(page.duplicate());
+        ((Buffer) copy).position(0);
+        table[index >>> PAGE_SHIFT] = copy;
+        return copy;
+    }
+
+    static ByteBuffer[] fork(ByteBuffer[] table) {
+        // Read-only views share the contents, and read-only views of read-only views are not needed
+        for (int i = 0; i < table.length && table[i] != null; i++) {
+            if (!table[i].isReadOnly()) table[i] = table[i].asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return table.clone();
+    }
+
+    static ByteBuffer newPage(boolean direct) {
+        return (direct ? ByteBuffer.allocateDirect(PAGE_SIZE) : ByteBuffer.allocate(PAGE_SIZE)).
+            order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static int pages(ByteBuffer[] table) {
+        // Committed pages are always a prefix, so binary search for the first null
+        int low = 0;
+        int high = table.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (table[mid] == null) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+
+    static ByteBuffer[] commit(ByteBuffer[] table, int pages, boolean direct) {
+        if (pages > table.length) throw new IndexOutOfBoundsException("Memory pages exceed max");
+        for (int i = pages(table); i < pages; i++) table[i] = newPage(direct);
+        return table;
+    }
+
+    static int grow(ByteBuffer[] table, int delta, boolean direct) {
+        int pages = pages(table);
+        if (delta < 0 || (long) pages + delta > table.length) return -1;
+        commit(table, pages + delta, direct);
+        return pages;
+    }
+
+    static int limit(ByteBuffer[] table) {
+        return pages(table) * PAGE_SIZE;
+    }
+
+    static void checkNoWrap(int index, int size) {
+        // Values that cross a page at the very end of a 32-bit address space must not wrap to the start
+        if (Integer.compareUnsigned(index + size - 1, index) < 0)
+            throw new IndexOutOfBoundsException("Memory access out of bounds");
+    }
+
+    static long getSlow(ByteBuffer[] table, int index, int size) {
+        checkNoWrap(index, size);
+        long ret = 0;
+        for (int i = size - 1; i >= 0; i--)
+            ret = (ret << 8) | (page(table, index + i).get((index + i) & PAGE_MASK) & 0xFF);
+        return ret;
+    }
+
+    static void putSlow(ByteBuffer[] table, int index, int size, long value) {
+        checkNoWrap(index, size);
+        // Check the last page before writing anything so we don't partially write
+        page(table, index + size - 1);
+        for (int i = 0; i < size; i++)
+            writablePage(table, index + i).put((index + i) & PAGE_MASK, (byte) (value >>> (i * 8)));
+    }
+
+    static byte get(ByteBuffer[] table, int index) {
+        return page(table, index).get(index & PAGE_MASK);
+    }
+
+    static short getShort(ByteBuffer[] table, int index) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2) return page(table, index).getShort(offset);
+        return (short) getSlow(table, index, 2);
+    }
+
+    static int getInt(ByteBuffer[] table, int index) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4) return page(table, index).getInt(offset);
+        return (int) getSlow(table, index, 4);
+    }
+
+    static long getLong(ByteBuffer[] table, int index) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 8) return page(table, index).getLong(offset);
+        return getSlow(table, index, 8);
+    }
+
+    static float getFloat(ByteBuffer[] table, int index) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4) return page(table, index).getFloat(offset);
+        return Float.intBitsToFloat((int) getSlow(table, index, 4));
+    }
+
+    static double getDouble(ByteBuffer[] table, int index) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 8) return page(table, index).getDouble(offset);
+        return Double.longBitsToDouble(getSlow(table, index, 8));
+    }
+
+    static ByteBuffer[] put(ByteBuffer[] table, int index, byte value) {
+        writablePage(table, index).put(index & PAGE_MASK, value);
+        return table;
+    }
+
+    static ByteBuffer[] putShort(ByteBuffer[] table, int index, short value) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 2) writablePage(table, index).putShort(offset, value);
+        else putSlow(table, index, 2, value);
+        return table;
+    }
+
+    static ByteBuffer[] putInt(ByteBuffer[] table, int index, int value) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4) writablePage(table, index).putInt(offset, value);
+        else putSlow(table, index, 4, value);
+        return table;
+    }
+
+    static ByteBuffer[] putLong(ByteBuffer[] table, int index, long value) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 8) writablePage(table, index).putLong(offset, value);
+        else putSlow(table, index, 8, value);
+        return table;
+    }
+
+    static ByteBuffer[] putFloat(ByteBuffer[] table, int index, float value) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 4) writablePage(table, index).putFloat(offset, value);
+        else putSlow(table, index, 4, Float.floatToRawIntBits(value));
+        return table;
+    }
+
+    static ByteBuffer[] putDouble(ByteBuffer[] table, int index, double value) {
+        int offset = index & PAGE_MASK;
+        if (offset <= PAGE_SIZE - 8) writablePage(table, index).putDouble(offset, value);
+        else putSlow(table, index, 8, Double.doubleToRawLongBits(value));
+        return table;
+    }
+
+    static ByteBuffer[] dataBytes(ByteBuffer[] table, int index, byte[] bytes, int offset, int length) {
+        if (length == 0) return table;
+        checkNoWrap(index, length);
+        page(table, index + length - 1);
+        // Copy a page at a time
+        while (length > 0) {
+            int pageOffset = index & PAGE_MASK;
+            int amount = Math.min(length, PAGE_SIZE - pageOffset);
+            ByteBuffer dup = writablePage(table, index).duplicate();
+            ((Buffer) dup).position(pageOffset);
+            dup.put(bytes, offset, amount);
+            index += amount;
+            offset += amount;
+            length -= amount;
+        }
+        return table;
+    }
+
+    static void checkBulk(ByteBuffer[] table, int index, int length) {
+        // Unlike single accesses, a zero length is fine anywhere up to the limit
+        if ((index & 0xFFFFFFFFL) + (length & 0xFFFFFFFFL) > (long) pages(table) * PAGE_SIZE)
+            throw new IndexOutOfBoundsException("Memory access out of bounds");
+    }
+
+    static void copy(ByteBuffer[] table, int dest, int src, int length) {
+        checkBulk(table, dest, length);
+        checkBulk(table, src, length);
+        // Copy chunks that fit in both the source and dest page, going backwards if the dest is after the source so
+        // overlapping copies are correct. Each chunk is a single put between two views.
+        boolean backwards = Integer.compareUnsigned(dest, src) > 0;
+        while (length > 0) {
+            int amount;
+            int from;
+            int to;
+            if (backwards) {
+                amount = Math.min(length, Math.min(((src + length - 1) & PAGE_MASK) + 1,
+                    ((dest + length - 1) & PAGE_MASK) + 1));
+                from = src + length - amount;
+                to = dest + length - amount;
+            } else {
+                amount = Math.min(length, Math.min(PAGE_SIZE - (src & PAGE_MASK), PAGE_SIZE - (dest & PAGE_MASK)));
+                from = src;
+                to = dest;
+                src += amount;
+                dest += amount;
+            }
+            ByteBuffer toBuf = writablePage(table, to).duplicate();
+            ByteBuffer fromBuf = page(table, from).duplicate();
+            ((Buffer) fromBuf).limit((from & PAGE_MASK) + amount);
+            ((Buffer) fromBuf).position(from & PAGE_MASK);
+            ((Buffer) toBuf).position(to & PAGE_MASK);
+            toBuf.put(fromBuf);
+            length -= amount;
+        }
+    }
+
+    static void fill(ByteBuffer[] table, int dest, int value, int length) {
+        checkBulk(table, dest, length);
+        if (length == 0) return;
+        byte[] chunk = new byte[Math.min(length, PAGE_SIZE)];
+        Arrays.fill(chunk, (byte) value);
+        while (length > 0) {
+            int pageOffset = dest & PAGE_MASK;
+            int amount = Math.min(length, PAGE_SIZE - pageOffset);
+            ByteBuffer dup = writablePage(table, dest).duplicate();
+            ((Buffer) dup).position(pageOffset);
+            dup.put(chunk, 0, amount);
+            dest += amount;
+            length -= amount;
+        }
+    }
+
+    static void init(ByteBuffer[] table, int dest, int src, int length, byte[] data) {
+        checkBulk(table, dest, length);
+        // Dropped data is null and acts as empty
+        if ((src & 0xFFFFFFFFL) + (length & 0xFFFFFFFFL) > (data == null ? 0 : data.length))
+            throw new IndexOutOfBoundsException("Memory access out of bounds");
+        dataBytes(table, dest, data, src, length);
+    }
+
+    static ByteBuffer[] data(ByteBuffer[] table, int index, String str) {
+        // Data is given as an ISO-8859-1 string chunk like the other mems
+        if (str.isEmpty()) return table;
+        checkNoWrap(index, str.length());
+        page(table, index + str.length() - 1);
+        for (int i = 0; i < str.length(); i++)
+            writablePage(table, index + i).put((index + i) & PAGE_MASK, (byte) str.charAt(i));
+        return table;
+    }
+
+    // The native methods of AtomicMemHelpers. Paged memory is never shared, so nothing else can see between the get
+    // and the put of each of these.
+
+    static int atomicLimit(Object table) {
+        return limit((ByteBuffer[]) table);
+    }
+
+    static int atomicIntGetVolatile(Object table, int index) {
+        return getInt((ByteBuffer[]) table, index);
+    }
+
+    static void atomicIntSetVolatile(Object table, int index, int value) {
+        putInt((ByteBuffer[]) table, index, value);
+    }
+
+    static int atomicIntGetAndAdd(Object table, int index, int value) {
+        int old = getInt((ByteBuffer[]) table, index);
+        putInt((ByteBuffer[]) table, index, old + value);
+        return old;
+    }
+
+    static int atomicIntGetAndBitwiseAnd(Object table, int index, int value) {
+        int old = getInt((ByteBuffer[]) table, index);
+        putInt((ByteBuffer[]) table, index, old & value);
+        return old;
+    }
+
+    static int atomicIntGetAndBitwiseOr(Object table, int index, int value) {
+        int old = getInt((ByteBuffer[]) table, index);
+        putInt((ByteBuffer[]) table, index, old | value);
+        return old;
+    }
+
+    static int atomicIntGetAndBitwiseXor(Object table, int index, int value) {
+        int old = getInt((ByteBuffer[]) table, index);
+        putInt((ByteBuffer[]) table, index, old ^ value);
+        return old;
+    }
+
+    static int atomicIntGetAndSet(Object table, int index, int value) {
+        int old = getInt((ByteBuffer[]) table, index);
+        putInt((ByteBuffer[]) table, index, value);
+        return old;
+    }
+
+    static int atomicIntCompareAndExchange(Object table, int index, int expected, int value) {
+        int old = getInt((ByteBuffer[]) table, index);
+        if (old == expected) putInt((ByteBuffer[]) table, index, value);
+        return old;
+    }
+
+    static long atomicLongGetVolatile(Object table, int index) {
+        return getLong((ByteBuffer[]) table, index);
+    }
+
+    static void atomicLongSetVolatile(Object table, int index, long value) {
+        putLong((ByteBuffer[]) table, index, value);
+    }
+
+    static long atomicLongGetAndAdd(Object table, int index, long value) {
+        long old = getLong((ByteBuffer[]) table, index);
+        putLong((ByteBuffer[]) table, index, old + value);
+        return old;
+    }
+
+    static long atomicLongGetAndBitwiseAnd(Object table, int index, long value) {
+        long old = getLong((ByteBuffer[]) table, index);
+        putLong((ByteBuffer[]) table, index, old & value);
+        return old;
+    }
+
+    static long atomicLongGetAndBitwiseOr(Object table, int index, long value) {
+        long old = getLong((ByteBuffer[]) table, index);
+        putLong((ByteBuffer[]) table, index, old | value);
+        return old;
+    }
+
+    static long atomicLongGetAndBitwiseXor(Object table, int index, long value) {
+        long old = getLong((ByteBuffer[]) table, index);
+        putLong((ByteBuffer[]) table, index, old ^ value);
+        return old;
+    }
+
+    static long atomicLongGetAndSet(Object table, int index, long value) {
+        long old = getLong((ByteBuffer[]) table, index);
+        putLong((ByteBuffer[]) table, index, value);
+        return old;
+    }
+
+    static long atomicLongCompareAndExchange(Object table, int index, long expected, long value) {
+        long old = getLong((ByteBuffer[]) table, index);
+        if (old == expected) putLong((ByteBuffer[]) table, index, value);
+        return old;
+    }
+}
@@ -0,0 +1,31 @@
+package asmble.compile.jvm;
+
+/**
+ * Static helpers for range checks hoisted out of loops by {@link InsnReworker#hoistLoopRangeChecks} that are copied
+ * into the compiled class. See {@link SyntheticFuncBuilder#buildHelperCopy} for restrictions.
+ */
+class RangeCheckHelpers {
+    private static final int PAGE_SIZE = 65536;
+    static final int COMPARISON_LT_U = 0;
+    static final int COMPARISON_LT_S = 1;
+    static final int COMPARISON_NE = 2;
+
+    static boolean loopInRange(int start, int end, int step, int comparison, int accessEnd, int pages) {
+        long uStart = start & 0xFFFFFFFFL;
+        long uEnd = end & 0xFFFFFFFFL;
+        // The body always runs once with the start, so it has to be below the end
+        if (uStart >= uEnd) return false;
+        if (comparison == COMPARISON_LT_U) {
+            // Incrementing past the end can't wrap
+            if (uEnd + step - 1 > 0xFFFFFFFFL) return false;
+        } else if (comparison == COMPARISON_LT_S) {
+            // Same as unsigned if both are non-negative and incrementing can't go negative
+            if (end < 0 || uEnd + step - 1 > Integer.MAX_VALUE) return false;
+        } else if ((uEnd - uStart) % step != 0) {
+            // Not equal has to land on the end exactly
+            return false;
+        }
+        // Now every index in the body is in [start, end), so we just check the highest access
+        return uEnd - 1 + accessEnd <= (long) pages * PAGE_SIZE;
+    }
+}
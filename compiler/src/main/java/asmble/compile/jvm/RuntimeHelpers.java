@@ -1,11 +1,31 @@
 package asmble.compile.jvm;
 
 import java.lang.invoke.*;
+import java.util.Objects;
 
 class RuntimeHelpers {
 
-    /** Gets a call site that accepts params THEN this THEN index of the table */
-    static CallSite bootstrapIndirect(MethodHandles.Lookup caller, String name, MethodType type) throws Exception {
+    /**
+     * Gets a call site that accepts params THEN this THEN index of the table. If cacheSize is more than 0, the call
+     * site caches up to that many of the handles it has called and falls back to the table lookup after. This is
+     * copied into the module with the other helpers named "$$indirect" + the capitalized name. The module is the type of
+     * the "this" param, which is not the caller for funcs that are in their own class.
+     */
+    static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, int cacheSize)
+            throws Throwable {
+        MethodHandle lookup = lookup(caller, type);
+        if (cacheSize <= 0) return new ConstantCallSite(lookup);
+        MutableCallSite site = new MutableCallSite(type);
+        MethodHandle miss = caller.findStatic(module(type), "$$indirectCacheMiss",
+                MethodType.methodType(Object.class, MutableCallSite.class, MethodHandle.class,
+                        MethodHandle.class, int[].class, Object[].class));
+        site.setTarget(MethodHandles.insertArguments(miss, 0, site, tableElem(caller, module(type)), lookup, new int[] { cacheSize }).
+                asCollector(Object[].class, type.parameterCount()).asType(type));
+        return site;
+    }
+
+    /** Gets a handle that accepts params THEN this THEN index of the table and invokes what is at the index */
+    static MethodHandle lookup(MethodHandles.Lookup caller, MethodType type) throws Throwable {
         MethodType withoutIndexOrThis = type.dropParameterTypes(type.parameterCount() - 2, type.parameterCount());
         // Handle with mh at the beginning
         MethodHandle mhFirst = MethodHandles.exactInvoker(withoutIndexOrThis);
@@ -18,13 +38,50 @@ class RuntimeHelpers {
         // Method handle that moves the method handle to the end
         MethodHandle mhAtEnd = MethodHandles.permuteArguments(mhFirst,
                 mhFirst.type().dropParameterTypes(0, 1).appendParameterTypes(MethodHandle.class), reorder );
-        // Method handle that changes an ending table + index to a method handle using the table
-        MethodHandle tableAndIndexAtEnd = MethodHandles.collectArguments(mhAtEnd, mhAtEnd.type().parameterCount() - 1,
-                MethodHandles.arrayElementGetter(MethodHandle[].class));
-        // Method handle that changes second-to-last this to table
-        MethodHandle thisAndIndexAtEnd = MethodHandles.filterArguments(tableAndIndexAtEnd,
-                tableAndIndexAtEnd.type().parameterCount() - 2,
-                caller.findGetter(caller.lookupClass(), "table", MethodHandle[].class));
-        return new ConstantCallSite(thisAndIndexAtEnd);
+        // Method handle that changes an ending this + index to a method handle using the table
+        return MethodHandles.collectArguments(mhAtEnd, mhAtEnd.type().parameterCount() - 1,
+                tableElem(caller, module(type)));
+    }
+
+    /** Gets the module class from a call site type that accepts params THEN this THEN index of the table */
+    static Class<?> module(MethodType type) {
+        return type.parameterType(type.parameterCount() - 2);
+    }
+
+    /** Gets a handle that accepts this THEN index of the table and returns the handle at the index */
+    static MethodHandle tableElem(MethodHandles.Lookup caller, Class<?> module) throws Throwable {
+        return MethodHandles.filterArguments(MethodHandles.arrayElementGetter(MethodHandle[].class), 0,
+                caller.findGetter(module, "table", MethodHandle[].class));
+    }
+
+    /**
+     * Called with all call site args when none of the cached handles are at the index. Adds what's there to the cache
+     * if it has the right type and there is room, or makes the site always do the lookup if there is not. Then does
+     * the lookup which will fail like the uncached call would if the handle is null or of the wrong type. Races only
+     * mean a few more cache entries, so there is no locking.
+     */
+    static Object cacheMiss(MutableCallSite site, MethodHandle tableElem, MethodHandle lookup,
+            int[] remaining, Object[] args) throws Throwable {
+        MethodHandle target = (MethodHandle) tableElem.invoke(args[args.length - 2], args[args.length - 1]);
+        MethodType type = site.type();
+        MethodType targetType = type.dropParameterTypes(type.parameterCount() - 2, type.parameterCount());
+        if (target != null && target.type().equals(targetType)) {
+            if (remaining[0] > 0) {
+                remaining[0]--;
+                // Test is whether the handle at the index is the cached one (no matter the index)
+                MethodHandle test = MethodHandles.dropArguments(MethodHandles.collectArguments(
+                        MethodHandles.insertArguments(MethodHandles.publicLookup().findStatic(Objects.class, "equals",
+                                MethodType.methodType(boolean.class, Object.class, Object.class)), 1, target).
+                                asType(MethodType.methodType(boolean.class, MethodHandle.class)),
+                        0, tableElem), 0, targetType.parameterList());
+                site.setTarget(MethodHandles.guardWithTest(test,
+                        MethodHandles.dropArguments(target, targetType.parameterCount(),
+                                type.parameterList().subList(targetType.parameterCount(), type.parameterCount())),
+                        site.getTarget()));
+            } else {
+                site.setTarget(lookup);
+            }
+        }
+        return lookup.invokeWithArguments(args);
     }
 }
@@ -21,7 +21,7 @@ public class SplitMethod {
   /**
    * Calls {@link #split(String, MethodNode, int, int, int)} with minSize as 20% + 1 of the original, maxSize as
    * 70% + 1 of the original, and firstAtLeast as maxSize. The original method is never modified and the result can
-   * be null if no split points are found.
+   * be null if no split points are found. Any frames in the method must be expanded.
    */
   public Result split(String owner, MethodNode method) {
     // Between 20% + 1 and 70% + 1 of size
@@ -34,7 +34,9 @@ public class SplitMethod {
   /**
    * Splits the given method into two. This uses a {@link Splitter} to consistently create
    * {@link asmble.compile.jvm.msplit.Splitter.SplitPoint}s until one reaches firstAtLeast or the largest otherwise, and then calls
-   * {@link #fromSplitPoint(String, MethodNode, Splitter.SplitPoint)}.
+   * {@link #fromSplitPoint(String, MethodNode, Splitter.SplitPoint)}. Split points that start at a block outside of
+   * loops are used if there are any, then ones that start at any block, then ones that start anywhere (see
+   * {@link Splitter.Starts}).
    *
    * @param owner The internal name of the owning class. Needed when splitting to call the split off method.
    * @param method The method to split, never modified
@@ -47,17 +49,24 @@ public class SplitMethod {
    * @return The resulting split method or null if there were no split points found
    */
   public Result split(String owner, MethodNode method, int minSize, int maxSize, int firstAtLeast) {
-    // Get the largest split point
+    // Get the largest split point, keeping blocks and loops whole if we can
+    for (Splitter.Starts starts : Splitter.Starts.values()) {
+      Splitter.SplitPoint largest = largest(new Splitter(api, owner, method, minSize, maxSize, starts), firstAtLeast);
+      if (largest != null) return fromSplitPoint(owner, method, largest);
+    }
+    return null;
+  }
+
+  protected Splitter.SplitPoint largest(Splitter splitter, int firstAtLeast) {
     Splitter.SplitPoint largest = null;
-    for (Splitter.SplitPoint point : new Splitter(api, owner, method, minSize, maxSize)) {
+    for (Splitter.SplitPoint point : splitter) {
       if (largest == null || point.length > largest.length) {
         largest = point;
         // Early exit?
         if (firstAtLeast > 0 && largest.length >= firstAtLeast) break;
       }
     }
-    if (largest == null) return null;
-    return fromSplitPoint(owner, method, largest);
+    return largest;
   }
 
   /**
@@ -65,45 +74,77 @@ public class SplitMethod {
    * original method is never modified.
    */
   public Result fromSplitPoint(String owner, MethodNode orig, Splitter.SplitPoint splitPoint) {
-    MethodNode splitOff = createSplitOffMethod(orig, splitPoint);
-    MethodNode trimmed = createTrimmedMethod(owner, orig, splitOff, splitPoint);
-    return new Result(trimmed, splitOff);
+    // Each is made from its own copy so the label nodes aren't shared with the original or each other
+    MethodNode splitOff = createSplitOffMethod(copyWithNewLabels(orig), splitPoint);
+    MethodNode trimmed = createTrimmedMethod(owner, copyWithNewLabels(orig), splitOff, splitPoint);
+    // All insns before the split point are kept, so the call is the first one to the split off method after it
+    MethodInsnNode splitOffCall = null;
+    for (int i = splitPoint.start; splitOffCall == null; i++) {
+      AbstractInsnNode insn = trimmed.instructions.get(i);
+      if (insn instanceof MethodInsnNode && ((MethodInsnNode) insn).owner.equals(owner) &&
+          ((MethodInsnNode) insn).name.equals(splitOff.name) && ((MethodInsnNode) insn).desc.equals(splitOff.desc)) {
+        splitOffCall = (MethodInsnNode) insn;
+      }
+    }
+    return new Result(trimmed, splitOff, splitOffCall);
   }
 
   protected MethodNode createSplitOffMethod(MethodNode orig, Splitter.SplitPoint splitPoint) {
     // The new method is a static synthetic method named method.name + "$split" that returns an object array
     // Key is previous local index, value is new local index
     Map<Integer, Integer> localsMap = new HashMap<>();
-    // The new method's parameters are all stack items + all read locals
+    // The new method's parameters are all stack items + all read locals. Longs and doubles take two locals.
     List<Type> args = new ArrayList<>(splitPoint.neededFromStackAtStart);
-    splitPoint.localsRead.forEach((index, type) -> {
-      args.add(type);
-      localsMap.put(index, args.size() - 1);
-    });
+    int newLocalIndex = 0;
+    for (Type item : splitPoint.neededFromStackAtStart) newLocalIndex += item.getSize();
+    // The locals of every frame, the stack item params are no longer used
+    List<Object> frameLocals = new ArrayList<>(Collections.nCopies(newLocalIndex, Opcodes.TOP));
+    for (Map.Entry<Integer, Type> read : splitPoint.localsRead.entrySet()) {
+      args.add(read.getValue());
+      localsMap.put(read.getKey(), newLocalIndex);
+      newLocalIndex += read.getValue().getSize();
+      frameLocals.add(frameTypeFromType(read.getValue()));
+    }
+    // Only split points from the splitter are known to fit
+    if (newLocalIndex > Splitter.MAX_PARAM_SLOTS) {
+      throw new IllegalArgumentException("Split off method would need " + newLocalIndex + " param slots, max is " +
+          Splitter.MAX_PARAM_SLOTS);
+    }
     // Create the new method
     String name = orig.name.replace("<", "__").replace(">", "__") + "$split";
     MethodNode newMethod = new MethodNode(api,
         Opcodes.ACC_STATIC + Opcodes.ACC_PRIVATE + Opcodes.ACC_SYNTHETIC, name,
         Type.getMethodDescriptor(Type.getType(Object[].class), args.toArray(new Type[0])), null, null);
-    // Add the written locals to the map that are not already there
-    int newLocalIndex = args.size();
-    for (Integer key : splitPoint.localsWritten.keySet()) {
-      if (!localsMap.containsKey(key)) {
-        localsMap.put(key, newLocalIndex);
-        newLocalIndex++;
+    // Add the written locals to the map that are not already there, starting them at zero so they're always set
+    for (Map.Entry<Integer, Type> written : splitPoint.localsWritten.entrySet()) {
+      if (!localsMap.containsKey(written.getKey())) {
+        zeroVal(written.getValue()).accept(newMethod);
+        newMethod.visitVarInsn(storeOpFromType(written.getValue()), newLocalIndex);
+        localsMap.put(written.getKey(), newLocalIndex);
+        newLocalIndex += written.getValue().getSize();
+        frameLocals.add(frameTypeFromType(written.getValue()));
       }
     }
-    // First set of instructions is pushing the new stack from the params
-    for (int i = 0; i < splitPoint.neededFromStackAtStart.size(); i++) {
-      Type item = splitPoint.neededFromStackAtStart.get(i);
-      newMethod.visitVarInsn(loadOpFromType(item), i);
+    // Next set of instructions is pushing the new stack from the params
+    int paramLocalIndex = 0;
+    for (Type item : splitPoint.neededFromStackAtStart) {
+      newMethod.visitVarInsn(loadOpFromType(item), paramLocalIndex);
+      paramLocalIndex += item.getSize();
     }
     // Next set of instructions comes verbatim from the original, but we have to change the local indexes
     Set<Label> seenLabels = new HashSet<>();
     for (int i = 0; i < splitPoint.length; i++) {
       AbstractInsnNode insn = orig.instructions.get(i + splitPoint.start);
-      // Skip frames
-      if (insn instanceof FrameNode) continue;
+      // Frames have the new locals and only the stack above what's untouched
+      if (insn instanceof FrameNode) {
+        FrameNode frame = (FrameNode) insn;
+        if (frame.type != Opcodes.F_NEW) throw new IllegalArgumentException("Frames must be expanded");
+        List<Object> frameStack = frame.stack.subList(splitPoint.untouchedStackSize, frame.stack.size());
+        newMethod.visitFrame(Opcodes.F_NEW, frameLocals.size(), frameLocals.toArray(),
+            frameStack.size(), frameStack.stream().map(item ->
+                item instanceof LabelNode ? ((LabelNode) item).getLabel() : item).toArray());
+        continue;
+      }
       // Store the label
       if (insn instanceof LabelNode) seenLabels.add(((LabelNode) insn).getLabel());
       // Change the local if needed
@@ -112,7 +153,7 @@ public class SplitMethod {
         ((VarInsnNode) insn).var = localsMap.get(((VarInsnNode) insn).var);
       } else if (insn instanceof IincInsnNode) {
         insn = insn.clone(Collections.emptyMap());
-        ((VarInsnNode) insn).var = localsMap.get(((VarInsnNode) insn).var);
+        ((IincInsnNode) insn).var = localsMap.get(((IincInsnNode) insn).var);
       }
       insn.accept(newMethod);
     }
@@ -177,8 +218,9 @@ public class SplitMethod {
     MethodNode newMethod = new MethodNode(api, orig.access, orig.name, orig.desc,
         orig.signature, orig.exceptions.toArray(new String[0]));
     orig.accept(newMethod);
-    // Remove all insns, we'll re-add the ones outside the split range
-    newMethod.instructions.clear();
+    // Remove all insns, we'll re-add the ones outside the split range. They're removed one at a time to unlink them
+    // since the labels are re-added.
+    for (AbstractInsnNode insn : newMethod.instructions.toArray()) newMethod.instructions.remove(insn);
     // Remove all try catch blocks and keep track of seen labels, we'll re-add them at the end
     newMethod.tryCatchBlocks.clear();
     Set<Label> seenLabels = new HashSet<>();
@@ -196,9 +238,7 @@ public class SplitMethod {
     // Add the insns before split
     for (int i = 0; i < splitPoint.start; i++) {
       AbstractInsnNode insn = orig.instructions.get(i);
-      // Skip frames
-      if (insn instanceof FrameNode) continue;
-      // Record label
+      // Record label (frames are kept, the stack and locals outside the split range don't change)
       if (insn instanceof LabelNode) seenLabels.add(((LabelNode) insn).getLabel());
       // Check a local store has happened
       if (insn instanceof VarInsnNode && isStoreOp(insn.getOpcode())) seenStoredLocals.add(((VarInsnNode) insn).var);
@@ -234,7 +274,8 @@ public class SplitMethod {
       // Store in the local
       newMethod.visitVarInsn(storeOpFromType(item), index);
     }
-    // Now just load up the stack
+    // Now just load up the stack, or drop the array if there's nothing for the stack
+    if (splitPoint.putOnStackAtEnd.isEmpty()) newMethod.visitInsn(Opcodes.POP);
     for (int i = 0; i < splitPoint.putOnStackAtEnd.size(); i++) {
       boolean last = i == splitPoint.putOnStackAtEnd.size() - 1;
       // Since the loop started with the array, we only dupe the array every time but the last
@@ -264,9 +305,7 @@ public class SplitMethod {
     // Now we have restored all locals and all stack...add the rest of the insns after the split
     for (int i = splitPoint.start + splitPoint.length; i < orig.instructions.size(); i++) {
       AbstractInsnNode insn = orig.instructions.get(i);
-      // Skip frames
-      if (insn instanceof FrameNode) continue;
-      // Record label
+      // Record label (frames are kept, the stack and locals outside the split range don't change)
       if (insn instanceof LabelNode) seenLabels.add(((LabelNode) insn).getLabel());
       insn.accept(newMethod);
     }
@@ -279,16 +318,82 @@ public class SplitMethod {
     return newMethod;
   }
 
+  /**
+   * Copies the method with new label nodes everywhere they're referenced. Visiting the copy into another method sets
+   * up its labels, so this is what's given to {@link #createSplitOffMethod} and {@link #createTrimmedMethod} instead
+   * of the original, which is left untouched. Everything without labels is shared.
+   */
+  protected MethodNode copyWithNewLabels(MethodNode orig) {
+    MethodNode copy = new MethodNode(api, orig.access, orig.name, orig.desc,
+        orig.signature, orig.exceptions.toArray(new String[0]));
+    Map<LabelNode, LabelNode> labels = new HashMap<>();
+    for (AbstractInsnNode insn : orig.instructions.toArray()) {
+      if (insn instanceof LabelNode) labels.put((LabelNode) insn, new LabelNode());
+    }
+    for (AbstractInsnNode insn : orig.instructions.toArray()) copy.instructions.add(insn.clone(labels));
+    for (TryCatchBlockNode tryCatch : orig.tryCatchBlocks) {
+      TryCatchBlockNode newTryCatch = new TryCatchBlockNode(labels.get(tryCatch.start), labels.get(tryCatch.end),
+          labels.get(tryCatch.handler), tryCatch.type);
+      newTryCatch.visibleTypeAnnotations = tryCatch.visibleTypeAnnotations;
+      newTryCatch.invisibleTypeAnnotations = tryCatch.invisibleTypeAnnotations;
+      copy.tryCatchBlocks.add(newTryCatch);
+    }
+    if (orig.localVariables != null) {
+      copy.localVariables = new ArrayList<>();
+      for (LocalVariableNode local : orig.localVariables) {
+        copy.localVariables.add(new LocalVariableNode(local.name, local.desc, local.signature,
+            labels.get(local.start), labels.get(local.end), local.index));
+      }
+    }
+    copy.visibleLocalVariableAnnotations = copyWithNewLabels(orig.visibleLocalVariableAnnotations, labels);
+    copy.invisibleLocalVariableAnnotations = copyWithNewLabels(orig.invisibleLocalVariableAnnotations, labels);
+    copy.parameters = orig.parameters;
+    copy.visibleAnnotations = orig.visibleAnnotations;
+    copy.invisibleAnnotations = orig.invisibleAnnotations;
+    copy.visibleTypeAnnotations = orig.visibleTypeAnnotations;
+    copy.invisibleTypeAnnotations = orig.invisibleTypeAnnotations;
+    copy.attrs = orig.attrs;
+    copy.annotationDefault = orig.annotationDefault;
+    copy.visibleAnnotableParameterCount = orig.visibleAnnotableParameterCount;
+    copy.visibleParameterAnnotations = orig.visibleParameterAnnotations;
+    copy.invisibleAnnotableParameterCount = orig.invisibleAnnotableParameterCount;
+    copy.invisibleParameterAnnotations = orig.invisibleParameterAnnotations;
+    copy.maxStack = orig.maxStack;
+    copy.maxLocals = orig.maxLocals;
+    return copy;
+  }
+
+  private List<LocalVariableAnnotationNode> copyWithNewLabels(List<LocalVariableAnnotationNode> annotations,
+      Map<LabelNode, LabelNode> labels) {
+    if (annotations == null) return null;
+    List<LocalVariableAnnotationNode> copy = new ArrayList<>();
+    for (LocalVariableAnnotationNode annotation : annotations) {
+      LocalVariableAnnotationNode newAnnotation = new LocalVariableAnnotationNode(api, annotation.typeRef,
+          annotation.typePath, annotation.start.stream().map(labels::get).toArray(LabelNode[]::new),
+          annotation.end.stream().map(labels::get).toArray(LabelNode[]::new),
+          annotation.index.stream().mapToInt(Integer::intValue).toArray(), annotation.desc);
+      newAnnotation.values = annotation.values;
+      copy.add(newAnnotation);
+    }
+    return copy;
+  }
+
   /** Result of a split method */
   public static class Result {
-    /** A copy of the original method, but changed to invoke {@link #splitOffMethod} */
+    /** A copy of the original method, but changed to invoke {@link #splitOffMethod}. Frames are kept. */
     public final MethodNode trimmedMethod;
-    /** The new method that was split off the original and is called by {@link #splitOffMethod} */
+    /**
+     * The new method that was split off the original and is called by {@link #trimmedMethod}. Frames are changed to
+     * its locals and stack.
+     */
     public final MethodNode splitOffMethod;
+    /** The call in {@link #trimmedMethod} to {@link #splitOffMethod}, to be changed if the latter is renamed */
+    public final MethodInsnNode splitOffCall;
 
-    public Result(MethodNode trimmedMethod, MethodNode splitOffMethod) {
+    public Result(MethodNode trimmedMethod, MethodNode splitOffMethod, MethodInsnNode splitOffCall) {
       this.trimmedMethod = trimmedMethod;
       this.splitOffMethod = splitOffMethod;
+      this.splitOffCall = splitOffCall;
     }
   }
 }
@@ -17,22 +17,49 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
   protected final MethodNode method;
   protected final int minSize;
   protected final int maxSize;
+  protected final Starts starts;
+
+  /** Calls {@link #Splitter(int, String, MethodNode, int, int, Starts)} with {@link Starts#ANYWHERE} */
+  public Splitter(int api, String owner, MethodNode method, int minSize, int maxSize) {
+    this(api, owner, method, minSize, maxSize, Starts.ANYWHERE);
+  }
 
   /**
    * @param api Same as for {@link org.objectweb.asm.MethodVisitor#MethodVisitor(int)} or any other ASM class
    * @param owner Internal name of the method's owner
-   * @param method The method to find split points for
+   * @param method The method to find split points for. Any frames in it must be expanded.
    * @param minSize The minimum number of instructions required for the split point to be valid
    * @param maxSize The maximum number of instructions that split points cannot exceeed
+   * @param starts Where split points can start
    */
-  public Splitter(int api, String owner, MethodNode method, int minSize, int maxSize) {
+  public Splitter(int api, String owner, MethodNode method, int minSize, int maxSize, Starts starts) {
     this.api = api;
     this.owner = owner;
     this.method = method;
     this.minSize = minSize;
     this.maxSize = maxSize;
+    this.starts = starts;
+  }
+
+  /** Where split points can start, from the most to the least preferred */
+  public enum Starts {
+    /**
+     * Same as {@link #BLOCKS} but not inside a loop (i.e. after a label that's jumped back to), so loops are never
+     * split across methods
+     */
+    BLOCKS_OUTSIDE_LOOPS,
+    /**
+     * At a label with a frame or right after a frame. In methods built from funcs, that's where a block ends or a loop
+     * or else starts, so the split off code is whole blocks.
+     */
+    BLOCKS,
+    /** At any instruction */
+    ANYWHERE
   }
 
+  /** The most param slots a static method can have, longs and doubles taking two */
+  public static final int MAX_PARAM_SLOTS = 255;
+
   @Override
   public Iterator<SplitPoint> iterator() { return new Iter(); }
 
@@ -57,6 +84,10 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
      * int, float, long, double, or object.
      */
     public final List<Type> putOnStackAtEnd;
+    /**
+     * The number of values at the bottom of the stack at the start of this split area that it doesn't touch.
+     */
+    public final int untouchedStackSize;
     /**
      * The instruction index this split area begins at.
      */
@@ -67,11 +98,12 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
     public final int length;
 
     public SplitPoint(SortedMap<Integer, Type> localsRead, SortedMap<Integer, Type>localsWritten,
-        List<Type> neededFromStackAtStart, List<Type> putOnStackAtEnd, int start, int length) {
+        List<Type> neededFromStackAtStart, List<Type> putOnStackAtEnd, int untouchedStackSize, int start, int length) {
       this.localsRead = localsRead;
       this.localsWritten = localsWritten;
       this.neededFromStackAtStart = neededFromStackAtStart;
       this.putOnStackAtEnd = putOnStackAtEnd;
+      this.untouchedStackSize = untouchedStackSize;
       this.start = start;
       this.length = length;
     }
@@ -84,12 +116,53 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
   protected class Iter implements Iterator<SplitPoint> {
     protected final AbstractInsnNode[] insns;
     protected final List<TryCatchBlockNode> tryCatchBlocks;
+    // Each jump as its insn index and its target's insn index
+    protected final List<int[]> jumps = new ArrayList<>();
+    // For each insn index, the index of the next insn that can't be split off (see constrainEndByDisallowedInsns)
+    protected final int[] nextDisallowedIndex;
+    // For each insn index, how many loops it's inside of (i.e. after the label and up to the jump back to it)
+    protected final int[] loopDepth;
+    // Visited every insn before the current index, so each split point only has to visit its own
+    protected final StackAndLocalTrackingAdapter adapterAtIndex = new StackAndLocalTrackingAdapter(Splitter.this);
+    protected int adapterIndex;
     protected int currIndex = -1;
     protected boolean peeked;
     protected SplitPoint peekedValue;
 
     protected Iter() {
       insns = method.instructions.toArray();
+      nextDisallowedIndex = new int[insns.length + 1];
+      nextDisallowedIndex[insns.length] = insns.length;
+      for (int i = insns.length - 1; i >= 0; i--) {
+        int opcode = insns[i].getOpcode();
+        boolean disallowed = (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) ||
+            (opcode == Opcodes.INVOKESPECIAL && ((MethodInsnNode) insns[i]).name.equals("<init>"));
+        nextDisallowedIndex[i] = disallowed ? i : nextDisallowedIndex[i + 1];
+      }
+      for (int i = 0; i < insns.length; i++) {
+        AbstractInsnNode node = insns[i];
+        if (node instanceof JumpInsnNode) {
+          jumps.add(new int[] { i, method.instructions.indexOf(((JumpInsnNode) node).label) });
+        } else if (node instanceof TableSwitchInsnNode) {
+          jumps.add(new int[] { i, method.instructions.indexOf(((TableSwitchInsnNode) node).dflt) });
+          for (LabelNode label : ((TableSwitchInsnNode) node).labels) {
+            jumps.add(new int[] { i, method.instructions.indexOf(label) });
+          }
+        } else if (node instanceof LookupSwitchInsnNode) {
+          jumps.add(new int[] { i, method.instructions.indexOf(((LookupSwitchInsnNode) node).dflt) });
+          for (LabelNode label : ((LookupSwitchInsnNode) node).labels) {
+            jumps.add(new int[] { i, method.instructions.indexOf(label) });
+          }
+        }
+      }
+      loopDepth = new int[insns.length + 1];
+      for (int[] jump : jumps) {
+        if (jump[1] <= jump[0]) {
+          loopDepth[jump[1] + 1]++;
+          loopDepth[jump[0] + 1]--;
+        }
+      }
+      for (int i = 1; i < loopDepth.length; i++) loopDepth[i] += loopDepth[i - 1];
       tryCatchBlocks = new ArrayList<>(method.tryCatchBlocks);
       // Must be sorted by earliest starting index then earliest end index then earliest handler
       tryCatchBlocks.sort((o1, o2) -> {
@@ -126,12 +199,19 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
     protected SplitPoint nextOrNull() {
       // Try for each index
       while (++currIndex + minSize <= insns.length) {
+        if (starts != Starts.ANYWHERE && !isBlockStart(currIndex)) continue;
+        if (starts == Starts.BLOCKS_OUTSIDE_LOOPS && loopDepth[currIndex] > 0) continue;
         SplitPoint longest = longestForCurrIndex();
         if (longest != null) return longest;
       }
       return null;
     }
 
+    protected boolean isBlockStart(int index) {
+      if (index > 0 && insns[index - 1] instanceof FrameNode) return true;
+      return insns[index] instanceof LabelNode && index + 1 < insns.length && insns[index + 1] instanceof FrameNode;
+    }
+
     protected SplitPoint longestForCurrIndex() {
       // As a special case, if the previous insn was a line number, that was good enough
       if (currIndex - 1 >- 0 && insns[currIndex - 1] instanceof LineNumberNode) return null;
@@ -139,8 +219,11 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
       InsnTraverseInfo info = new InsnTraverseInfo();
       info.startIndex = currIndex;
       info.endIndex = Math.min(currIndex + maxSize - 1, insns.length - 1);
-      // Reduce the end by special calls
-      constrainEndByInvokeSpecial(info);
+      // Reduce the end by special calls and returns
+      constrainEndByDisallowedInsns(info);
+      // Reduce the end so the split off method doesn't need too many params. This has to be before the others since
+      // they make sure what's left is whole.
+      constrainEndByParamSlots(info);
       // Reduce the end based on try/catch blocks the start is in or that jump to
       constrainEndByTryCatchBlocks(info);
       // Reduce the end based on any jumps within
@@ -154,12 +237,22 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
       return splitPointFromInfo(info);
     }
 
-    protected void constrainEndByInvokeSpecial(InsnTraverseInfo info) {
-      // Can't have an invoke special of <init>
+    protected void constrainEndByDisallowedInsns(InsnTraverseInfo info) {
+      // Can't have an invoke special of <init> or a return, the split off method returns the stack and locals instead
+      if (nextDisallowedIndex[info.startIndex] <= info.endIndex) {
+        info.endIndex = Math.max(info.startIndex, nextDisallowedIndex[info.startIndex] - 1);
+      }
+    }
+
+    protected void constrainEndByParamSlots(InsnTraverseInfo info) {
+      // The params are the stack needed at the start and the locals read, which only grow as the end does
+      StackAndLocalTrackingAdapter adapter = adapterAtStart(info.startIndex);
+      if (adapter == null) return;
+      int stackSizeAtStart = adapter.stack.size();
       for (int i = info.startIndex; i <= info.endIndex; i++) {
-        AbstractInsnNode node = insns[i];
-        if (node.getOpcode() == Opcodes.INVOKESPECIAL && ((MethodInsnNode) node).name.equals("<init>")) {
-          info.endIndex = Math.max(info.startIndex, i - 1);
+        insns[i].accept(adapter);
+        if (adapter.paramSlots(stackSizeAtStart) > MAX_PARAM_SLOTS) {
+          info.endIndex = i - 1;
           return;
         }
       }
@@ -240,50 +333,43 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
 
     protected void constrainEndByExternalJumps(InsnTraverseInfo info) {
       // Basically, if any external jumps jump into our range, that can't be included in the range
-      for (int i = 0; i < insns.length; i++) {
-        if (i >= info.startIndex && i <= info.endIndex) continue;
-        AbstractInsnNode node = insns[i];
-        if (node instanceof JumpInsnNode) {
-          int index = method.instructions.indexOf(((JumpInsnNode) node).label);
-          if (index >= info.startIndex) info.endIndex = Math.min(info.endIndex, index - 1);
-        } else if (node instanceof TableSwitchInsnNode) {
-          int index = method.instructions.indexOf(((TableSwitchInsnNode) node).dflt);
-          if (index >= info.startIndex) info.endIndex = Math.min(info.endIndex, index - 1);
-          for (LabelNode label : ((TableSwitchInsnNode) node).labels) {
-            index = method.instructions.indexOf(label);
-            if (index >= info.startIndex) info.endIndex = Math.min(info.endIndex, index - 1);
-          }
-        } else if (node instanceof LookupSwitchInsnNode) {
-          int index = method.instructions.indexOf(((LookupSwitchInsnNode) node).dflt);
-          if (index >= info.startIndex) info.endIndex = Math.min(info.endIndex, index - 1);
-          for (LabelNode label : ((LookupSwitchInsnNode) node).labels) {
-            index = method.instructions.indexOf(label);
-            if (index >= info.startIndex) info.endIndex = Math.min(info.endIndex, index - 1);
-          }
-        }
+      for (int[] jump : jumps) {
+        if (jump[0] >= info.startIndex && jump[0] <= info.endIndex) continue;
+        if (jump[1] >= info.startIndex) info.endIndex = Math.min(info.endIndex, jump[1] - 1);
       }
     }
 
-    protected SplitPoint splitPointFromInfo(InsnTraverseInfo info) {
-      // We're going to use the analyzer adapter and run it for the up until the end, a step at a time
-      StackAndLocalTrackingAdapter adapter = new StackAndLocalTrackingAdapter(Splitter.this);
-      // Visit all of the insns up our start.
+    /**
+     * A copy of the adapter at the start index that hasn't read or written any locals, or null if the types aren't
+     * known there
+     */
+    protected StackAndLocalTrackingAdapter adapterAtStart(int startIndex) {
+      // We're going to use the analyzer adapter and run it up until the start, a step at a time
       // XXX: I checked the source of AnalyzerAdapter to confirm I don't need any of the surrounding stuff
-      for (int i = 0; i < info.startIndex; i++) insns[i].accept(adapter);
+      while (adapterIndex < startIndex) insns[adapterIndex++].accept(adapterAtIndex);
+      // Without a frame after a jump or return, the types aren't known here
+      if (adapterAtIndex.locals == null) return null;
+      StackAndLocalTrackingAdapter adapter = adapterAtIndex.copy();
+      adapter.lowestStackSize = adapter.stack.size();
+      return adapter;
+    }
+
+    protected SplitPoint splitPointFromInfo(InsnTraverseInfo info) {
+      StackAndLocalTrackingAdapter adapter = adapterAtStart(info.startIndex);
+      if (adapter == null) return null;
       // Take the stack at the start and copy it off
       List<Object> stackAtStart = new ArrayList<>(adapter.stack);
-      // Reset some adapter state
-      adapter.lowestStackSize = stackAtStart.size();
-      adapter.localsRead.clear();
-      adapter.localsWritten.clear();
       // Now go over the remaining range
       for (int i = info.startIndex; i <= info.endIndex; i++) insns[i].accept(adapter);
+      // Can't end after a jump or throw, there'd be nothing to continue with after the call
+      if (adapter.locals == null) return null;
       // Build the split point
       return new SplitPoint(
           localMapFromAdapterLocalMap(adapter.localsRead, adapter.uninitializedTypes),
           localMapFromAdapterLocalMap(adapter.localsWritten, adapter.uninitializedTypes),
           typesFromAdapterStackRange(stackAtStart, adapter.lowestStackSize, adapter.uninitializedTypes),
           typesFromAdapterStackRange(adapter.stack, adapter.lowestStackSize, adapter.uninitializedTypes),
+          valueCountFromAdapterStack(stackAtStart, adapter.lowestStackSize),
           info.startIndex,
           info.getSize()
       );
@@ -310,6 +396,17 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
       return ret;
     }
 
+    protected int valueCountFromAdapterStack(List<Object> stack, int end) {
+      int count = 0;
+      for (int i = 0; i < end; i++) {
+        count++;
+        // Skip the extra spot for longs and doubles
+        Object item = stack.get(i);
+        if (item == Opcodes.LONG || item == Opcodes.DOUBLE) i++;
+      }
+      return count;
+    }
+
     protected Type typeFromAdapterStackItem(Object item, Map<Object, Object> uninitializedTypes) {
       if (item == Opcodes.INTEGER) return Type.INT_TYPE;
       else if (item == Opcodes.FLOAT) return Type.FLOAT_TYPE;
@@ -326,25 +423,72 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
   protected static class StackAndLocalTrackingAdapter extends AnalyzerAdapter {
     public int lowestStackSize;
     public final SortedMap<Integer, Object> localsRead = new TreeMap<>();
+    // How many slots the read locals take
+    public int localsReadSlots;
     public final SortedMap<Integer, Object> localsWritten = new TreeMap<>();
 
+    protected final Splitter splitter;
+
     protected StackAndLocalTrackingAdapter(Splitter splitter) {
       super(splitter.api, splitter.owner, splitter.method.access, splitter.method.name, splitter.method.desc, null);
-      stack = new SizeChangeNotifyList<Object>() {
+      this.splitter = splitter;
+      stack = newStack();
+    }
+
+    protected List<Object> newStack() {
+      return new SizeChangeNotifyList<Object>() {
         @Override
         protected void onSizeChanged() { lowestStackSize = Math.min(lowestStackSize, size()); }
       };
     }
 
+    /** A new adapter with this one's locals and stack, not having read or written any locals */
+    protected StackAndLocalTrackingAdapter copy() {
+      StackAndLocalTrackingAdapter ret = new StackAndLocalTrackingAdapter(splitter);
+      ret.locals = new ArrayList<>(locals);
+      ret.stack.addAll(stack);
+      ret.uninitializedTypes = new HashMap<>(uninitializedTypes);
+      return ret;
+    }
+
+    /** The param slots a method for what's been visited needs, given the stack size at the start */
+    public int paramSlots(int stackSizeAtStart) {
+      // Longs and doubles are already two items on the stack
+      return stackSizeAtStart - lowestStackSize + localsReadSlots;
+    }
+
+    protected void addLocalRead(int var, Object type) {
+      Object prev = localsRead.put(var, type);
+      if (prev != null) localsReadSlots -= slotSize(prev);
+      localsReadSlots += slotSize(type);
+    }
+
+    protected static int slotSize(Object type) { return type == Opcodes.LONG || type == Opcodes.DOUBLE ? 2 : 1; }
+
+    @Override
+    public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+      int lowest = lowestStackSize;
+      super.visitFrame(type, numLocal, local, numStack, stack);
+      // After a jump or return, the frame's stack is a new list that has to be tracked too
+      if (!(this.stack instanceof SizeChangeNotifyList)) {
+        List<Object> frameStack = this.stack;
+        this.stack = newStack();
+        this.stack.addAll(frameStack);
+      }
+      // The stack is cleared before the frame's is added, but it only goes as low as the frame's
+      lowestStackSize = Math.min(lowest, this.stack.size());
+    }
+
     @Override
     public void visitVarInsn(int opcode, int var) {
-      switch (opcode) {
+      // Nothing is known after a jump or return until a frame
+      if (locals != null) switch (opcode) {
         case Opcodes.ILOAD:
         case Opcodes.LLOAD:
         case Opcodes.FLOAD:
         case Opcodes.DLOAD:
         case Opcodes.ALOAD:
-          localsRead.put(var, locals.get(var));
+          addLocalRead(var, locals.get(var));
           break;
         case Opcodes.ISTORE:
         case Opcodes.FSTORE:
@@ -361,8 +505,8 @@ public class Splitter implements Iterable<Splitter.SplitPoint> {
 
     @Override
     public void visitIincInsn(int var, int increment) {
-      localsRead.put(var, Type.INT_TYPE);
-      localsWritten.put(var, Type.INT_TYPE);
+      addLocalRead(var, Opcodes.INTEGER);
+      localsWritten.put(var, Opcodes.INTEGER);
       super.visitIincInsn(var, increment);
     }
   }
@@ -81,4 +81,12 @@ class Util {
     return new MethodInsnNode(Opcodes.INVOKESTATIC, Type.getInternalName(boxType),
         "valueOf", Type.getMethodDescriptor(Type.getType(boxType), primType), false);
   }
+
+  static Object frameTypeFromType(Type type) {
+    if (type == Type.INT_TYPE) return Opcodes.INTEGER;
+    else if (type == Type.LONG_TYPE) return Opcodes.LONG;
+    else if (type == Type.FLOAT_TYPE) return Opcodes.FLOAT;
+    else if (type == Type.DOUBLE_TYPE) return Opcodes.DOUBLE;
+    else return type.getInternalName();
+  }
 }
@@ -60,7 +60,8 @@ sealed class Node {
         ) : Type()
 
         data class Memory(
-            val limits: ResizableLimits
+            val limits: ResizableLimits,
+            val shared: Boolean = false
         ) : Type()
     }
 
@@ -108,7 +109,9 @@ sealed class Node {
     data class Data(
         val index: Int,
         val offset: List<Instr>,
-        val data: ByteArray
+        val data: ByteArray,
+        // Passive data has no offset and is only written via memory.init
+        val passive: Boolean = false
     ) : Node() {
         override fun equals(other: Any?): Boolean {
             // Generated by IntelliJ/Kotlin by removing "data" from the class
@@ -118,6 +121,7 @@ sealed class Node {
             if (index != other.index) return false
             if (offset != other.offset) return false
             if (!Arrays.equals(data, other.data)) return false
+            if (passive != other.passive) return false
             return true
         }
 
@@ -126,6 +130,7 @@ sealed class Node {
             var result = index
             result = 31 * result + offset.hashCode()
             result = 31 * result + Arrays.hashCode(data)
+            result = 31 * result + passive.hashCode()
             return result
         }
     }
@@ -240,6 +245,82 @@ sealed class Node {
         data class I64Store32(override val align: Int, override val offset: Long) : Instr(), Args.AlignOffset
         data class MemorySize(override val reserved: Boolean) : Instr(), Args.Reserved
         data class MemoryGrow(override val reserved: Boolean) : Instr(), Args.Reserved
+        data class MemoryInit(override val index: Int) : Instr(), Args.Index
+        data class DataDrop(override val index: Int) : Instr(), Args.Index
+        object MemoryCopy : Instr(), Args.None
+        object MemoryFill : Instr(), Args.None
+
+        // Atomic memory operators (threads proposal)
+        abstract class AtomicAccess : Instr(), Args.AlignOffset {
+            val accessOp get() = op() as InstrOp.MemOp.AtomicAlignOffsetArg
+        }
+        data class MemoryAtomicNotify(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class MemoryAtomicWait32(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class MemoryAtomicWait64(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicLoad(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicLoad(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicLoad8U(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicLoad16U(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicLoad8U(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicLoad16U(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicLoad32U(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicStore(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicStore(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicStore8(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicStore16(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicStore8(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicStore16(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicStore32(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmwAdd(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmwAdd(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw8AddU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw16AddU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw8AddU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw16AddU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw32AddU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmwSub(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmwSub(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw8SubU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw16SubU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw8SubU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw16SubU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw32SubU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmwAnd(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmwAnd(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw8AndU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw16AndU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw8AndU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw16AndU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw32AndU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmwOr(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmwOr(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw8OrU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw16OrU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw8OrU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw16OrU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw32OrU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmwXor(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmwXor(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw8XorU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw16XorU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw8XorU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw16XorU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw32XorU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmwXchg(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmwXchg(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw8XchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw16XchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw8XchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw16XchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw32XchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmwCmpxchg(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmwCmpxchg(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw8CmpxchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I32AtomicRmw16CmpxchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw8CmpxchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw16CmpxchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        data class I64AtomicRmw32CmpxchgU(override val align: Int, override val offset: Long) : AtomicAccess()
+        object AtomicFence : Instr(), Args.None
 
         // Constants
         data class I32Const(override val value: Int) : Instr(), Args.Const<Int>
@@ -421,6 +502,32 @@ sealed class Node {
                 }
             }
             data class ReservedArg(override val name: String, val create: (Boolean) -> Instr) : MemOp<Instr.Args.Reserved>()
+            // Bulk memory ops have a prefixed opcode and zero-byte memory indices after the args in the binary format
+            data class BulkIndexArg(override val name: String, val create: (Int) -> Instr) : MemOp<Instr.Args.Index>() {
+                val reservedBytes = if (name == "memory.init") 1 else 0
+            }
+            data class BulkNoArg(override val name: String, val create: Instr) : MemOp<Instr.Args.None>() {
+                val reservedBytes = if (name == "memory.copy") 2 else 1
+            }
+            // Atomic ops have a prefixed opcode and names like i32.atomic.rmw8.add_u or memory.atomic.wait64
+            data class AtomicAlignOffsetArg(
+                override val name: String,
+                val create: (Int, Long) -> Instr
+            ) : MemOp<Instr.Args.AlignOffset>() {
+                private val parts = name.split('.')
+                private val accessPart = parts[2]
+                val argBits = Regex("\\d+").find(accessPart)?.value?.toInt() ?: if (name.startsWith("i64.")) 64 else 32
+                // One of load, store, add, sub, and, or, xor, xchg, cmpxchg, notify, or wait
+                val kind = (if (accessPart.startsWith("rmw")) parts[3] else accessPart).
+                    removeSuffix("_u").filter(Char::isLetter)
+                val valueType = if (name.startsWith("i64.") || name == "memory.atomic.wait64") Type.Value.I64
+                    else Type.Value.I32
+                // Including the address
+                val paramCount = when (kind) { "load" -> 1; "cmpxchg", "wait" -> 3; else -> 2 }
+                val hasResult = kind != "store"
+            }
+            // The fence has a prefixed opcode and a single zero byte after
+            data class AtomicNoArg(override val name: String, val create: Instr) : MemOp<Instr.Args.None>()
         }
 
         sealed class ConstOp<out T : Number> : InstrOp<Instr.Args.Const<T>>() {
@@ -528,6 +635,79 @@ sealed class Node {
                 opMapEntry("i64.store32", 0x3e, ::MemOpAlignOffsetArg, Instr::I64Store32, Instr.I64Store32::class)
                 opMapEntry("memory.size", 0x3f, ::MemOpReservedArg, Instr::MemorySize, Instr.MemorySize::class)
                 opMapEntry("memory.grow", 0x40, ::MemOpReservedArg, Instr::MemoryGrow, Instr.MemoryGrow::class)
+                // Prefixed opcodes are the prefix byte then the sub opcode
+                opMapEntry("memory.init", 0xfc08.toShort(), ::MemOpBulkIndexArg, Instr::MemoryInit,
+                    Instr.MemoryInit::class)
+                opMapEntry("data.drop", 0xfc09.toShort(), ::MemOpBulkIndexArg, Instr::DataDrop, Instr.DataDrop::class)
+                opMapEntry("memory.copy", 0xfc0a.toShort(), ::MemOpBulkNoArg, Instr.MemoryCopy, Instr.MemoryCopy::class)
+                opMapEntry("memory.fill", 0xfc0b.toShort(), ::MemOpBulkNoArg, Instr.MemoryFill, Instr.MemoryFill::class)
+                opMapEntry("memory.atomic.notify", 0xfe00.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::MemoryAtomicNotify, Instr.MemoryAtomicNotify::class)
+                opMapEntry("memory.atomic.wait32", 0xfe01.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::MemoryAtomicWait32, Instr.MemoryAtomicWait32::class)
+                opMapEntry("memory.atomic.wait64", 0xfe02.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::MemoryAtomicWait64, Instr.MemoryAtomicWait64::class)
+                opMapEntry("i32.atomic.load", 0xfe10.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicLoad, Instr.I32AtomicLoad::class)
+                opMapEntry("i64.atomic.load", 0xfe11.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicLoad, Instr.I64AtomicLoad::class)
+                opMapEntry("i32.atomic.load8_u", 0xfe12.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicLoad8U, Instr.I32AtomicLoad8U::class)
+                opMapEntry("i32.atomic.load16_u", 0xfe13.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicLoad16U, Instr.I32AtomicLoad16U::class)
+                opMapEntry("i64.atomic.load8_u", 0xfe14.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicLoad8U, Instr.I64AtomicLoad8U::class)
+                opMapEntry("i64.atomic.load16_u", 0xfe15.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicLoad16U, Instr.I64AtomicLoad16U::class)
+                opMapEntry("i64.atomic.load32_u", 0xfe16.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicLoad32U, Instr.I64AtomicLoad32U::class)
+                opMapEntry("i32.atomic.store", 0xfe17.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicStore, Instr.I32AtomicStore::class)
+                opMapEntry("i64.atomic.store", 0xfe18.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicStore, Instr.I64AtomicStore::class)
+                opMapEntry("i32.atomic.store8", 0xfe19.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicStore8, Instr.I32AtomicStore8::class)
+                opMapEntry("i32.atomic.store16", 0xfe1a.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicStore16, Instr.I32AtomicStore16::class)
+                opMapEntry("i64.atomic.store8", 0xfe1b.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicStore8, Instr.I64AtomicStore8::class)
+                opMapEntry("i64.atomic.store16", 0xfe1c.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicStore16, Instr.I64AtomicStore16::class)
+                opMapEntry("i64.atomic.store32", 0xfe1d.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicStore32, Instr.I64AtomicStore32::class)
+                opMapEntry("i32.atomic.rmw.add", 0xfe1e.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmwAdd, Instr.I32AtomicRmwAdd::class)
+                opMapEntry("i64.atomic.rmw.add", 0xfe1f.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmwAdd, Instr.I64AtomicRmwAdd::class)
+                opMapEntry("i32.atomic.rmw8.add_u", 0xfe20.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw8AddU, Instr.I32AtomicRmw8AddU::class)
+                opMapEntry("i32.atomic.rmw16.add_u", 0xfe21.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw16AddU, Instr.I32AtomicRmw16AddU::class)
+                opMapEntry("i64.atomic.rmw8.add_u", 0xfe22.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw8AddU, Instr.I64AtomicRmw8AddU::class)
+                opMapEntry("i64.atomic.rmw16.add_u", 0xfe23.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw16AddU, Instr.I64AtomicRmw16AddU::class)
+                opMapEntry("i64.atomic.rmw32.add_u", 0xfe24.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw32AddU, Instr.I64AtomicRmw32AddU::class)
+                opMapEntry("i32.atomic.rmw.sub", 0xfe25.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmwSub, Instr.I32AtomicRmwSub::class)
+                opMapEntry("i64.atomic.rmw.sub", 0xfe26.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmwSub, Instr.I64AtomicRmwSub::class)
+                opMapEntry("i32.atomic.rmw8.sub_u", 0xfe27.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw8SubU, Instr.I32AtomicRmw8SubU::class)
+                opMapEntry("i32.atomic.rmw16.sub_u", 0xfe28.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw16SubU, Instr.I32AtomicRmw16SubU::class)
+                opMapEntry("i64.atomic.rmw8.sub_u", 0xfe29.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw8SubU, Instr.I64AtomicRmw8SubU::class)
+                opMapEntry("i64.atomic.rmw16.sub_u", 0xfe2a.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw16SubU, Instr.I64AtomicRmw16SubU::class)
+                opMapEntry("i64.atomic.rmw32.sub_u", 0xfe2b.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw32SubU, Instr.I64AtomicRmw32SubU::class)
+                opMapEntry("i32.atomic.rmw.and", 0xfe2c.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmwAnd, Instr.I32AtomicRmwAnd::class)
+                opMapEntry("i64.atomic.rmw.and", 0xfe2d.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmwAnd, Instr.I64AtomicRmwAnd::class)
+                opMapEntry("i32.atomic.rmw8.and_u", 0xfe2e.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw8AndU, Instr.I32AtomicRmw8AndU::class)
+                opMapEntry("i32.atomic.rmw16.and_u", 0xfe2f.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw16AndU, Instr.I32AtomicRmw16AndU::class)
+                opMapEntry("i64.atomic.rmw8.and_u", 0xfe30.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw8AndU, Instr.I64AtomicRmw8AndU::class)
+                opMapEntry("i64.atomic.rmw16.and_u", 0xfe31.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw16AndU, Instr.I64AtomicRmw16AndU::class)
+                opMapEntry("i64.atomic.rmw32.and_u", 0xfe32.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw32AndU, Instr.I64AtomicRmw32AndU::class)
+                opMapEntry("i32.atomic.rmw.or", 0xfe33.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmwOr, Instr.I32AtomicRmwOr::class)
+                opMapEntry("i64.atomic.rmw.or", 0xfe34.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmwOr, Instr.I64AtomicRmwOr::class)
+                opMapEntry("i32.atomic.rmw8.or_u", 0xfe35.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw8OrU, Instr.I32AtomicRmw8OrU::class)
+                opMapEntry("i32.atomic.rmw16.or_u", 0xfe36.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw16OrU, Instr.I32AtomicRmw16OrU::class)
+                opMapEntry("i64.atomic.rmw8.or_u", 0xfe37.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw8OrU, Instr.I64AtomicRmw8OrU::class)
+                opMapEntry("i64.atomic.rmw16.or_u", 0xfe38.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw16OrU, Instr.I64AtomicRmw16OrU::class)
+                opMapEntry("i64.atomic.rmw32.or_u", 0xfe39.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw32OrU, Instr.I64AtomicRmw32OrU::class)
+                opMapEntry("i32.atomic.rmw.xor", 0xfe3a.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmwXor, Instr.I32AtomicRmwXor::class)
+                opMapEntry("i64.atomic.rmw.xor", 0xfe3b.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmwXor, Instr.I64AtomicRmwXor::class)
+                opMapEntry("i32.atomic.rmw8.xor_u", 0xfe3c.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw8XorU, Instr.I32AtomicRmw8XorU::class)
+                opMapEntry("i32.atomic.rmw16.xor_u", 0xfe3d.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw16XorU, Instr.I32AtomicRmw16XorU::class)
+                opMapEntry("i64.atomic.rmw8.xor_u", 0xfe3e.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw8XorU, Instr.I64AtomicRmw8XorU::class)
+                opMapEntry("i64.atomic.rmw16.xor_u", 0xfe3f.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw16XorU, Instr.I64AtomicRmw16XorU::class)
+                opMapEntry("i64.atomic.rmw32.xor_u", 0xfe40.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw32XorU, Instr.I64AtomicRmw32XorU::class)
+                opMapEntry("i32.atomic.rmw.xchg", 0xfe41.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmwXchg, Instr.I32AtomicRmwXchg::class)
+                opMapEntry("i64.atomic.rmw.xchg", 0xfe42.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmwXchg, Instr.I64AtomicRmwXchg::class)
+                opMapEntry("i32.atomic.rmw8.xchg_u", 0xfe43.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw8XchgU, Instr.I32AtomicRmw8XchgU::class)
+                opMapEntry("i32.atomic.rmw16.xchg_u", 0xfe44.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw16XchgU, Instr.I32AtomicRmw16XchgU::class)
+                opMapEntry("i64.atomic.rmw8.xchg_u", 0xfe45.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw8XchgU, Instr.I64AtomicRmw8XchgU::class)
+                opMapEntry("i64.atomic.rmw16.xchg_u", 0xfe46.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw16XchgU, Instr.I64AtomicRmw16XchgU::class)
+                opMapEntry("i64.atomic.rmw32.xchg_u", 0xfe47.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw32XchgU, Instr.I64AtomicRmw32XchgU::class)
+                opMapEntry("i32.atomic.rmw.cmpxchg", 0xfe48.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmwCmpxchg, Instr.I32AtomicRmwCmpxchg::class)
+                opMapEntry("i64.atomic.rmw.cmpxchg", 0xfe49.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmwCmpxchg, Instr.I64AtomicRmwCmpxchg::class)
+                opMapEntry("i32.atomic.rmw8.cmpxchg_u", 0xfe4a.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw8CmpxchgU, Instr.I32AtomicRmw8CmpxchgU::class)
+                opMapEntry("i32.atomic.rmw16.cmpxchg_u", 0xfe4b.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I32AtomicRmw16CmpxchgU, Instr.I32AtomicRmw16CmpxchgU::class)
+                opMapEntry("i64.atomic.rmw8.cmpxchg_u", 0xfe4c.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw8CmpxchgU, Instr.I64AtomicRmw8CmpxchgU::class)
+                opMapEntry("i64.atomic.rmw16.cmpxchg_u", 0xfe4d.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw16CmpxchgU, Instr.I64AtomicRmw16CmpxchgU::class)
+                opMapEntry("i64.atomic.rmw32.cmpxchg_u", 0xfe4e.toShort(), ::MemOpAtomicAlignOffsetArg, Instr::I64AtomicRmw32CmpxchgU, Instr.I64AtomicRmw32CmpxchgU::class)
+                opMapEntry("atomic.fence", 0xfe03.toShort(), ::MemOpAtomicNoArg, Instr.AtomicFence, Instr.AtomicFence::class)
 
                 opMapEntry("i32.const", 0x41, ::ConstOpIntArg, Instr::I32Const, Instr.I32Const::class)
                 opMapEntry("i64.const", 0x42, ::ConstOpLongArg, Instr::I64Const, Instr.I64Const::class)
@@ -679,6 +859,10 @@ typealias CallOpIndexArg = Node.InstrOp.CallOp.IndexArg
 typealias CallOpIndexReservedArg = Node.InstrOp.CallOp.IndexReservedArg
 typealias MemOpAlignOffsetArg = Node.InstrOp.MemOp.AlignOffsetArg
 typealias MemOpReservedArg = Node.InstrOp.MemOp.ReservedArg
+typealias MemOpBulkIndexArg = Node.InstrOp.MemOp.BulkIndexArg
+typealias MemOpBulkNoArg = Node.InstrOp.MemOp.BulkNoArg
+typealias MemOpAtomicAlignOffsetArg = Node.InstrOp.MemOp.AtomicAlignOffsetArg
+typealias MemOpAtomicNoArg = Node.InstrOp.MemOp.AtomicNoArg
 typealias ConstOpIntArg = Node.InstrOp.ConstOp.IntArg
 typealias ConstOpLongArg = Node.InstrOp.ConstOp.LongArg
 typealias ConstOpFloatArg = Node.InstrOp.ConstOp.FloatArg
@@ -90,6 +90,20 @@ data class Stack(
             is Node.Instr.F64Store -> popF64() + popI32()
             is Node.Instr.MemorySize -> pushI32()
             is Node.Instr.MemoryGrow -> popI32() + pushI32()
+            is Node.Instr.MemoryInit, is Node.Instr.MemoryCopy,
+                is Node.Instr.MemoryFill -> popI32() + popI32() + popI32()
+            is Node.Instr.DataDrop -> nop()
+            is Node.Instr.AtomicAccess -> v.accessOp.let { op ->
+                when (op.kind) {
+                    "load" -> popI32() + push(op.valueType)
+                    "store" -> pop(op.valueType) + popI32()
+                    "cmpxchg" -> pop(op.valueType) + pop(op.valueType) + popI32() + push(op.valueType)
+                    "notify" -> popI32() + popI32() + pushI32()
+                    "wait" -> popI64() + pop(op.valueType) + popI32() + pushI32()
+                    else -> pop(op.valueType) + popI32() + push(op.valueType)
+                }
+            }
+            is Node.Instr.AtomicFence -> nop()
             is Node.Instr.I32Const -> pushI32()
             is Node.Instr.I64Const -> pushI64()
             is Node.Instr.F32Const -> pushF32()
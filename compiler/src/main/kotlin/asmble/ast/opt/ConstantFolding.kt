@@ -0,0 +1,126 @@
+package asmble.ast.opt
+
+import asmble.ast.Node
+import asmble.util.toUnsignedLong
+
+// Replaces integer ops whose operands are constants with the constant result. Since insns that push one value and pop
+// none have to be the operands of an op right after them, this only has to look at the insns just emitted, and
+// chains fold as it goes. Ops that would trap are left alone, as are float ops so we don't have to match NaN bits
+// here. Dropped constants are removed and br_ifs on constants become either nothing or a br.
+open class ConstantFolding : FuncPass {
+    override fun apply(mod: Node.Module, func: Node.Func) = func.copy(
+        instructions = func.instructions.fold(ArrayList<Node.Instr>(func.instructions.size)) { insns, insn ->
+            insns.also { fold(it, insn) }
+        }
+    )
+
+    fun fold(insns: MutableList<Node.Instr>, insn: Node.Instr) {
+        val last = insns.lastOrNull()
+        val secondLast = insns.getOrNull(insns.size - 2)
+        val (replacedCount, replacement) =
+            foldUnary(last, insn)?.let { 1 to it } ?:
+            foldBinary(secondLast, last, insn)?.let { 2 to it } ?:
+            (0 to listOf(insn))
+        repeat(replacedCount) { insns.removeAt(insns.size - 1) }
+        insns.addAll(replacement)
+    }
+
+    fun foldUnary(operand: Node.Instr?, insn: Node.Instr): List<Node.Instr>? = when (operand) {
+        is Node.Instr.I32Const -> operand.value.let { v ->
+            when (insn) {
+                is Node.Instr.I32Eqz -> i32(v == 0)
+                is Node.Instr.I32Clz -> i32(Integer.numberOfLeadingZeros(v))
+                is Node.Instr.I32Ctz -> i32(Integer.numberOfTrailingZeros(v))
+                is Node.Instr.I32Popcnt -> i32(Integer.bitCount(v))
+                is Node.Instr.I64ExtendSI32 -> i64(v.toLong())
+                is Node.Instr.I64ExtendUI32 -> i64(v.toUnsignedLong())
+                is Node.Instr.BrIf -> if (v == 0) emptyList() else listOf(Node.Instr.Br(insn.relativeDepth))
+                is Node.Instr.Drop -> emptyList()
+                else -> null
+            }
+        }
+        is Node.Instr.I64Const -> operand.value.let { v ->
+            when (insn) {
+                is Node.Instr.I64Eqz -> i32(v == 0L)
+                is Node.Instr.I64Clz -> i64(java.lang.Long.numberOfLeadingZeros(v).toLong())
+                is Node.Instr.I64Ctz -> i64(java.lang.Long.numberOfTrailingZeros(v).toLong())
+                is Node.Instr.I64Popcnt -> i64(java.lang.Long.bitCount(v).toLong())
+                is Node.Instr.I32WrapI64 -> i32(v.toInt())
+                is Node.Instr.Drop -> emptyList()
+                else -> null
+            }
+        }
+        is Node.Instr.F32Const, is Node.Instr.F64Const -> if (insn is Node.Instr.Drop) emptyList() else null
+        else -> null
+    }
+
+    fun foldBinary(lhs: Node.Instr?, rhs: Node.Instr?, insn: Node.Instr): List<Node.Instr>? = when {
+        lhs is Node.Instr.I32Const && rhs is Node.Instr.I32Const -> foldI32(lhs.value, rhs.value, insn)
+        lhs is Node.Instr.I64Const && rhs is Node.Instr.I64Const -> foldI64(lhs.value, rhs.value, insn)
+        else -> null
+    }
+
+    fun foldI32(a: Int, b: Int, insn: Node.Instr) = when (insn) {
+        is Node.Instr.I32Add -> i32(a + b)
+        is Node.Instr.I32Sub -> i32(a - b)
+        is Node.Instr.I32Mul -> i32(a * b)
+        is Node.Instr.I32DivS -> if (b == 0 || (a == Int.MIN_VALUE && b == -1)) null else i32(a / b)
+        is Node.Instr.I32DivU -> if (b == 0) null else i32(Integer.divideUnsigned(a, b))
+        is Node.Instr.I32RemS -> if (b == 0) null else i32(a % b)
+        is Node.Instr.I32RemU -> if (b == 0) null else i32(Integer.remainderUnsigned(a, b))
+        is Node.Instr.I32And -> i32(a and b)
+        is Node.Instr.I32Or -> i32(a or b)
+        is Node.Instr.I32Xor -> i32(a xor b)
+        is Node.Instr.I32Shl -> i32(a shl b)
+        is Node.Instr.I32ShrS -> i32(a shr b)
+        is Node.Instr.I32ShrU -> i32(a ushr b)
+        is Node.Instr.I32Rotl -> i32(Integer.rotateLeft(a, b))
+        is Node.Instr.I32Rotr -> i32(Integer.rotateRight(a, b))
+        is Node.Instr.I32Eq -> i32(a == b)
+        is Node.Instr.I32Ne -> i32(a != b)
+        is Node.Instr.I32LtS -> i32(a < b)
+        is Node.Instr.I32LtU -> i32(Integer.compareUnsigned(a, b) < 0)
+        is Node.Instr.I32GtS -> i32(a > b)
+        is Node.Instr.I32GtU -> i32(Integer.compareUnsigned(a, b) > 0)
+        is Node.Instr.I32LeS -> i32(a <= b)
+        is Node.Instr.I32LeU -> i32(Integer.compareUnsigned(a, b) <= 0)
+        is Node.Instr.I32GeS -> i32(a >= b)
+        is Node.Instr.I32GeU -> i32(Integer.compareUnsigned(a, b) >= 0)
+        else -> null
+    }
+
+    fun foldI64(a: Long, b: Long, insn: Node.Instr) = when (insn) {
+        is Node.Instr.I64Add -> i64(a + b)
+        is Node.Instr.I64Sub -> i64(a - b)
+        is Node.Instr.I64Mul -> i64(a * b)
+        is Node.Instr.I64DivS -> if (b == 0L || (a == Long.MIN_VALUE && b == -1L)) null else i64(a / b)
+        is Node.Instr.I64DivU -> if (b == 0L) null else i64(java.lang.Long.divideUnsigned(a, b))
+        is Node.Instr.I64RemS -> if (b == 0L) null else i64(a % b)
+        is Node.Instr.I64RemU -> if (b == 0L) null else i64(java.lang.Long.remainderUnsigned(a, b))
+        is Node.Instr.I64And -> i64(a and b)
+        is Node.Instr.I64Or -> i64(a or b)
+        is Node.Instr.I64Xor -> i64(a xor b)
+        is Node.Instr.I64Shl -> i64(a shl b.toInt())
+        is Node.Instr.I64ShrS -> i64(a shr b.toInt())
+        is Node.Instr.I64ShrU -> i64(a ushr b.toInt())
+        is Node.Instr.I64Rotl -> i64(java.lang.Long.rotateLeft(a, b.toInt()))
+        is Node.Instr.I64Rotr -> i64(java.lang.Long.rotateRight(a, b.toInt()))
+        is Node.Instr.I64Eq -> i32(a == b)
+        is Node.Instr.I64Ne -> i32(a != b)
+        is Node.Instr.I64LtS -> i32(a < b)
+        is Node.Instr.I64LtU -> i32(java.lang.Long.compareUnsigned(a, b) < 0)
+        is Node.Instr.I64GtS -> i32(a > b)
+        is Node.Instr.I64GtU -> i32(java.lang.Long.compareUnsigned(a, b) > 0)
+        is Node.Instr.I64LeS -> i32(a <= b)
+        is Node.Instr.I64LeU -> i32(java.lang.Long.compareUnsigned(a, b) <= 0)
+        is Node.Instr.I64GeS -> i32(a >= b)
+        is Node.Instr.I64GeU -> i32(java.lang.Long.compareUnsigned(a, b) >= 0)
+        else -> null
+    }
+
+    protected fun i32(v: Int): List<Node.Instr> = listOf(Node.Instr.I32Const(v))
+    protected fun i32(v: Boolean) = i32(if (v) 1 else 0)
+    protected fun i64(v: Long): List<Node.Instr> = listOf(Node.Instr.I64Const(v))
+
+    companion object : ConstantFolding()
+}
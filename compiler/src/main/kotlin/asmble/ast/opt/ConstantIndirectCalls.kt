@@ -0,0 +1,52 @@
+package asmble.ast.opt
+
+import asmble.ast.Node
+
+// Replaces indirect calls with a constant table index with direct calls when the table is private and only set by
+// elems at constant offsets, so what's at each index is known. Calls to indices that are out of bounds, empty, or of
+// the wrong type are left alone to fail at runtime. This finds the table on every apply, use forTable to find it once
+// per module.
+open class ConstantIndirectCalls : FuncPass {
+    override fun apply(mod: Node.Module, func: Node.Func) = apply(mod, func, staticTable(mod))
+
+    // A pass for funcs of a module whose staticTable is the given one
+    fun forTable(table: List<Int?>?): FuncPass = object : FuncPass {
+        override fun apply(mod: Node.Module, func: Node.Func) = this@ConstantIndirectCalls.apply(mod, func, table)
+    }
+
+    fun apply(mod: Node.Module, func: Node.Func, table: List<Int?>?): Node.Func {
+        if (table == null) return func
+        val importFuncTypes = mod.imports.mapNotNull { (it.kind as? Node.Import.Kind.Func)?.typeIndex }
+        fun funcType(index: Int) =
+            if (index < importFuncTypes.size) mod.types.getOrNull(importFuncTypes[index])
+            else mod.funcs.getOrNull(index - importFuncTypes.size)?.type
+        val insns = ArrayList<Node.Instr>(func.instructions.size)
+        func.instructions.forEach { insn ->
+            val tableIndex = (insns.lastOrNull() as? Node.Instr.I32Const)?.value
+            val funcIndex = tableIndex?.let { table.getOrNull(it) }
+            if (insn !is Node.Instr.CallIndirect || funcIndex == null) insns += insn else {
+                val expectedType = mod.types.getOrNull(insn.index)
+                if (expectedType == null || expectedType != funcType(funcIndex)) insns += insn
+                else insns[insns.size - 1] = Node.Instr.Call(funcIndex)
+            }
+        }
+        return func.copy(instructions = insns)
+    }
+
+    // The func index at each table index, or null if the table is not private or not only set at constant offsets
+    fun staticTable(mod: Node.Module): List<Int?>? {
+        val table = mod.tables.singleOrNull() ?: return null
+        if (mod.exports.any { it.kind == Node.ExternalKind.TABLE }) return null
+        val funcIndices = arrayOfNulls<Int>(table.limits.initial)
+        mod.elems.forEach { elem ->
+            val offset = (elem.offset.singleOrNull() as? Node.Instr.I32Const)?.value ?: return null
+            // Ones that don't fit fail instantiation, so no reason to do anything
+            if (elem.index != 0 || offset < 0) return null
+            if (offset.toLong() + elem.funcIndices.size > funcIndices.size) return null
+            elem.funcIndices.forEachIndexed { index, funcIndex -> funcIndices[offset + index] = funcIndex }
+        }
+        return funcIndices.toList()
+    }
+
+    companion object : ConstantIndirectCalls()
+}
@@ -0,0 +1,65 @@
+package asmble.ast.opt
+
+import asmble.ast.Node
+
+// Local copy propagation within straight-line code. After "get_local a, set_local b", later gets of b are replaced
+// with gets of a until either is set again or control flow is reached. Also replaces set/get pairs of the same
+// local with a tee, tee/drop pairs with a set, and removes sets of a local to itself.
+open class CopyPropagation : FuncPass {
+    override fun apply(mod: Node.Module, func: Node.Func): Node.Func {
+        val insns = ArrayList<Node.Instr>(func.instructions.size)
+        // Keyed by the copy, valued by the local it is a copy of
+        val copies = HashMap<Int, Int>()
+        val localTypes = func.type.params + func.locals
+        fun invalidate(index: Int) {
+            copies.remove(index)
+            copies.values.removeAll { it == index }
+        }
+        func.instructions.forEach { insn ->
+            val last = insns.lastOrNull()
+            when (insn) {
+                is Node.Instr.GetLocal -> {
+                    val index = copies[insn.index] ?: insn.index
+                    if (last !is Node.Instr.SetLocal || last.index != index) insns += Node.Instr.GetLocal(index)
+                    else insns[insns.size - 1] = Node.Instr.TeeLocal(index)
+                }
+                is Node.Instr.SetLocal -> {
+                    // A set of what was just gotten is a copy, or nothing at all if it's the same local. Only for
+                    // known locals of the same type so an invalid func doesn't become valid.
+                    val type = localTypes.getOrNull(insn.index)
+                    val copyOf = (last as? Node.Instr.GetLocal)?.index?.takeIf {
+                        type != null && type == localTypes.getOrNull(it)
+                    }
+                    if (copyOf == insn.index) insns.removeAt(insns.size - 1) else {
+                        invalidate(insn.index)
+                        if (copyOf != null) copies[insn.index] = copyOf
+                        insns += insn
+                    }
+                }
+                is Node.Instr.TeeLocal -> {
+                    invalidate(insn.index)
+                    insns += insn
+                }
+                is Node.Instr.Drop -> {
+                    if (last is Node.Instr.TeeLocal) insns[insns.size - 1] = Node.Instr.SetLocal(last.index)
+                    else insns += insn
+                }
+                else -> {
+                    // Anything that might branch or be branched to ends what we know
+                    if (isControlFlow(insn)) copies.clear()
+                    insns += insn
+                }
+            }
+        }
+        return func.copy(instructions = insns)
+    }
+
+    fun isControlFlow(insn: Node.Instr) = when (insn) {
+        is Node.Instr.Block, is Node.Instr.Loop, is Node.Instr.If, is Node.Instr.Else, is Node.Instr.End,
+            is Node.Instr.Br, is Node.Instr.BrIf, is Node.Instr.BrTable, is Node.Instr.Return,
+            is Node.Instr.Unreachable -> true
+        else -> false
+    }
+
+    companion object : CopyPropagation()
+}
@@ -0,0 +1,17 @@
+package asmble.ast.opt
+
+import asmble.ast.Node
+
+// A transformation of a single func's insns. Passes are given valid funcs, must leave them valid, and must not
+// change anything observable about them (results, traps, memory, etc). They may add locals but not change the
+// existing ones.
+interface FuncPass {
+    fun apply(mod: Node.Module, func: Node.Func): Node.Func
+
+    fun apply(mod: Node.Module) = mod.copy(funcs = mod.funcs.map { apply(mod, it) })
+
+    // Runs each pass in order on the result of the previous
+    data class Pipeline(val passes: List<FuncPass>) : FuncPass {
+        override fun apply(mod: Node.Module, func: Node.Func) = passes.fold(func) { f, pass -> pass.apply(mod, f) }
+    }
+}
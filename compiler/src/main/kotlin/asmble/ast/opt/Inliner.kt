@@ -0,0 +1,94 @@
+package asmble.ast.opt
+
+import asmble.ast.Node
+
+// Inlines calls to funcs that have at most maxInsns insns after their own calls are inlined. The callee's params and
+// locals become new locals on the caller (shared by all calls to the same callee). The args are set into the params,
+// the locals are zeroed, and the body is put in a block of the callee's result type with returns as branches out of
+// it. Callees that end up calling themselves, even through other inlined callees, are never inlined.
+open class Inliner(val maxInsns: Int) : FuncPass {
+    override fun apply(mod: Node.Module, func: Node.Func) =
+        inline(mod, func, mod.imports.count { it.kind is Node.Import.Kind.Func }, HashMap(), emptySet())
+
+    // The expansions are by func index and null if the callee is not inlined. The visiting set contains the indices
+    // of the funcs being expanded on the way to this one.
+    protected fun inline(
+        mod: Node.Module,
+        func: Node.Func,
+        importFuncCount: Int,
+        expansions: MutableMap<Int, Node.Func?>,
+        visiting: Set<Int>
+    ): Node.Func {
+        val locals = func.locals.toMutableList()
+        val calleeLocalStarts = HashMap<Int, Int>()
+        val insns = ArrayList<Node.Instr>(func.instructions.size)
+        func.instructions.forEach { insn ->
+            val callee = (insn as? Node.Instr.Call)?.index?.let { calleeIndex ->
+                expansion(mod, calleeIndex, importFuncCount, expansions, visiting)?.let { calleeIndex to it }
+            }
+            if (callee == null) insns += insn else {
+                val (calleeIndex, calleeFunc) = callee
+                val start = calleeLocalStarts.getOrPut(calleeIndex) {
+                    (func.type.params.size + locals.size).also {
+                        locals += calleeFunc.type.params
+                        locals += calleeFunc.locals
+                    }
+                }
+                addInlined(insns, calleeFunc, start)
+            }
+        }
+        return func.copy(locals = locals, instructions = insns)
+    }
+
+    protected fun expansion(
+        mod: Node.Module,
+        index: Int,
+        importFuncCount: Int,
+        expansions: MutableMap<Int, Node.Func?>,
+        visiting: Set<Int>
+    ): Node.Func? {
+        if (index < importFuncCount) return null
+        // We mark the ones we are in as recursive so that they won't be inlined
+        if (visiting.contains(index)) {
+            expansions[index] = null
+            return null
+        }
+        if (expansions.containsKey(index)) return expansions[index]
+        val func = mod.funcs.getOrNull(index - importFuncCount)?.takeIf { it.instructions.size <= maxInsns }
+        val expanded = func?.let { inline(mod, it, importFuncCount, expansions, visiting + index) }?.takeIf {
+            // The recursion check is set on us while we were expanding
+            it.instructions.size <= maxInsns && (!expansions.containsKey(index) || expansions[index] != null)
+        }
+        expansions[index] = expanded
+        return expanded
+    }
+
+    protected fun addInlined(insns: MutableList<Node.Instr>, callee: Node.Func, localStart: Int) {
+        // Params were pushed in order, so they are set in reverse
+        callee.type.params.indices.reversed().forEach { insns += Node.Instr.SetLocal(localStart + it) }
+        callee.locals.forEachIndexed { index, type ->
+            insns += when (type) {
+                Node.Type.Value.I32 -> Node.Instr.I32Const(0)
+                Node.Type.Value.I64 -> Node.Instr.I64Const(0L)
+                Node.Type.Value.F32 -> Node.Instr.F32Const(0f)
+                Node.Type.Value.F64 -> Node.Instr.F64Const(0.0)
+            }
+            insns += Node.Instr.SetLocal(localStart + callee.type.params.size + index)
+        }
+        insns += Node.Instr.Block(callee.type.ret)
+        // The block depth inside the callee, which is also the depth of our wrapping block
+        var depth = 0
+        callee.instructions.forEach { insn ->
+            insns += when (insn) {
+                is Node.Instr.Block, is Node.Instr.Loop, is Node.Instr.If -> insn.also { depth++ }
+                is Node.Instr.End -> insn.also { depth-- }
+                is Node.Instr.Return -> Node.Instr.Br(depth)
+                is Node.Instr.GetLocal -> Node.Instr.GetLocal(localStart + insn.index)
+                is Node.Instr.SetLocal -> Node.Instr.SetLocal(localStart + insn.index)
+                is Node.Instr.TeeLocal -> Node.Instr.TeeLocal(localStart + insn.index)
+                else -> insn
+            }
+        }
+        insns += Node.Instr.End
+    }
+}
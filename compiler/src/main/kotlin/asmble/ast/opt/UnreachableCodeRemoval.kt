@@ -0,0 +1,42 @@
+package asmble.ast.opt
+
+import asmble.ast.Node
+
+// Removes the insns after an unconditional branch, return, or unreachable up until the end (or else) of the block
+// they are in. Validation doesn't look at what comes after them anyway, so nested blocks are removed whole. Note,
+// this means a func that is only invalid in its dead code becomes valid.
+open class UnreachableCodeRemoval : FuncPass {
+    override fun apply(mod: Node.Module, func: Node.Func): Node.Func {
+        val insns = ArrayList<Node.Instr>(func.instructions.size)
+        // Non-null when removing, and is how many blocks deep we are from the one the removal started in
+        var removingDepth: Int? = null
+        func.instructions.forEach { insn ->
+            val depth = removingDepth
+            if (depth == null) {
+                insns += insn
+                if (isUnconditionalJump(insn)) removingDepth = 0
+                return@forEach
+            }
+            when (insn) {
+                is Node.Instr.Block, is Node.Instr.Loop, is Node.Instr.If -> removingDepth = depth + 1
+                is Node.Instr.Else -> if (depth == 0) {
+                    insns += insn
+                    removingDepth = null
+                }
+                is Node.Instr.End -> if (depth > 0) removingDepth = depth - 1 else {
+                    insns += insn
+                    removingDepth = null
+                }
+                else -> { }
+            }
+        }
+        return func.copy(instructions = insns)
+    }
+
+    fun isUnconditionalJump(insn: Node.Instr) = when (insn) {
+        is Node.Instr.Unreachable, is Node.Instr.Br, is Node.Instr.BrTable, is Node.Instr.Return -> true
+        else -> false
+    }
+
+    companion object : UnreachableCodeRemoval()
+}
@@ -4,6 +4,7 @@ import asmble.ast.Script
 import asmble.compile.jvm.AsmToBinary
 import asmble.compile.jvm.AstToAsm
 import asmble.compile.jvm.ClsContext
+import java.io.File
 import java.io.FileOutputStream
 
 @Suppress("NAME_SHADOWING")
@@ -43,7 +44,65 @@ open class Compile : Command<Compile.Args>() {
             opt = "bindata",
             desc = "Embed the WASM binary as an annotation on the class.",
             lowPriority = true
-        )
+        ),
+        dataResource = bld.flag(
+            opt = "dataresource",
+            desc = "Write data segments to a <outClass>.data resource next to the class file instead of " +
+                "embedding them as string constants.",
+            lowPriority = true
+        ),
+        deflateData = bld.flag(
+            opt = "deflatedata",
+            desc = "Deflate the data resource. Only applies with -dataresource.",
+            lowPriority = true
+        ),
+        parallelism = bld.arg(
+            name = "parallelism",
+            opt = "parallelism",
+            desc = "The number of threads to build functions on. Output is the same regardless.",
+            default = "1",
+            lowPriority = true
+        ).toInt(),
+        importInterfaces = bld.flag(
+            opt = "importinterfaces",
+            desc = "Take func and global imports as implementations of a generated interface per import module " +
+                "instead of method handles. The interfaces are written as class files next to the class file.",
+            lowPriority = true
+        ),
+        exportInterface = bld.flag(
+            opt = "exportinterface",
+            desc = "Make the class implement a generated <outClass>\$Exports interface of all exports with static " +
+                "create factories. The interface is written as a class file next to the class file.",
+            lowPriority = true
+        ),
+        exportBatch = bld.flag(
+            opt = "exportbatch",
+            desc = "Add a <export>Batch method for each func export that calls it for each index of arg arrays.",
+            lowPriority = true
+        ),
+        lazyFuncs = bld.flag(
+            opt = "lazyfuncs",
+            desc = "Put each non-exported func in its own class that is only loaded on first call. The classes are " +
+                "written as class files next to the class file.",
+            lowPriority = true
+        ),
+        maxMethodSize = bld.arg(
+            name = "maxMethodSize",
+            opt = "maxmethodsize",
+            desc = "Split methods estimated to have more bytes of code than this. At most 8000 keeps large " +
+                "functions small enough for HotSpot to JIT compile. Splits are reported at the info log level.",
+            default = AsmToBinary.MAX_CODE_SIZE.toString(),
+            lowPriority = true
+        ).toInt(),
+        funcPartitions = bld.arg(
+            name = "funcPartitions",
+            opt = "funcpartitions",
+            desc = "Spread the functions over this many classes, keeping functions that call each other together, " +
+                "for modules too large for one class. Ignored with lazy funcs. The classes are written as class " +
+                "files next to the class file.",
+            default = "1",
+            lowPriority = true
+        ).toInt()
     ).also { bld.done() }
 
     override fun run(args: Args) {
@@ -54,11 +113,17 @@ open class Compile : Command<Compile.Args>() {
         val script = Translate().also { it.logger = logger }.inToAst(args.inFile, inFormat)
         val mod = (script.commands.firstOrNull() as? Script.Cmd.Module) ?:
             error("Only a single sexpr for (module) allowed")
-        val outStream = when (args.outFile) {
-            "<outClass.class>" -> FileOutputStream(args.outClass.substringAfterLast('.') + ".class")
-            "--" -> System.out
-            else -> FileOutputStream(args.outFile)
+        val outFile = when (args.outFile) {
+            "<outClass.class>" -> File(args.outClass.substringAfterLast('.') + ".class")
+            "--" -> null
+            else -> File(args.outFile)
         }
+        if (args.dataResource && outFile == null) error("Data resource requires an out file")
+        if (args.importInterfaces && outFile == null) error("Import interfaces require an out file")
+        if (args.exportInterface && outFile == null) error("Export interface requires an out file")
+        if (args.lazyFuncs && outFile == null) error("Lazy funcs require an out file")
+        if (args.funcPartitions > 1 && outFile == null) error("Func partitions require an out file")
+        val outStream = outFile?.let(::FileOutputStream) ?: System.out
         outStream.use { outStream ->
             val ctx = ClsContext(
                 packageName = if (!args.outClass.contains('.')) "" else args.outClass.substringBeforeLast('.'),
@@ -66,10 +131,33 @@ open class Compile : Command<Compile.Args>() {
                 mod = mod.module,
                 modName = args.name ?: mod.name,
                 logger = logger,
-                includeBinary = args.includeBinary
+                includeBinary = args.includeBinary,
+                dataAsResource = args.dataResource,
+                deflateDataResource = args.deflateData,
+                funcParallelism = args.parallelism,
+                importInterfaces = args.importInterfaces,
+                exportInterface = args.exportInterface,
+                exportBatchMethods = args.exportBatch,
+                lazyFuncs = args.lazyFuncs,
+                maxMethodSize = args.maxMethodSize,
+                funcPartitions = args.funcPartitions
             )
             AstToAsm.fromModule(ctx)
-            outStream.write(AsmToBinary(logger = logger).fromClassNode(ctx.cls))
+            val asmToBinary = AsmToBinary(logger = logger, maxCodeSize = ctx.maxMethodSize)
+            outStream.write(asmToBinary.fromClassNode(ctx.cls))
+            // The resource is loaded relative to the class, so it goes in the same dir
+            if (outFile != null && ctx.dataAsResource && ctx.mod.data.isNotEmpty())
+                outFile.resolveSibling(AstToAsm.dataResourceName(ctx)).writeBytes(AstToAsm.dataResourceBytes(ctx))
+            // The interfaces, lazy func classes, and func parts are in the same package as the class
+            val interfaces = AstToAsm.importInterfaceNodes(ctx) + listOfNotNull(AstToAsm.exportInterfaceNode(ctx))
+            if (outFile != null) interfaces.forEach {
+                outFile.resolveSibling(it.name.substringAfterLast('/') + ".class").
+                    writeBytes(AsmToBinary.noSplit.fromClassNode(it))
+            }
+            if (outFile != null) (ctx.lazyFuncClasses + ctx.funcPartClasses).forEach {
+                outFile.resolveSibling(it.name.substringAfterLast('/') + ".class").
+                    writeBytes(asmToBinary.fromClassNode(it))
+            }
         }
     }
 
@@ -79,7 +167,16 @@ open class Compile : Command<Compile.Args>() {
         val outClass: String,
         val outFile: String,
         val name: String?,
-        val includeBinary: Boolean
+        val includeBinary: Boolean,
+        val dataResource: Boolean,
+        val deflateData: Boolean,
+        val parallelism: Int,
+        val importInterfaces: Boolean,
+        val exportInterface: Boolean,
+        val exportBatch: Boolean,
+        val lazyFuncs: Boolean,
+        val maxMethodSize: Int,
+        val funcPartitions: Int
     )
 
     companion object : Compile()
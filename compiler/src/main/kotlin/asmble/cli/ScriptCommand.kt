@@ -1,6 +1,8 @@
 package asmble.cli
 
 import asmble.ast.Script
+import asmble.compile.jvm.ByteBufferMem
+import asmble.compile.jvm.MappedMem
 import asmble.compile.jvm.javaIdent
 import asmble.run.jvm.Module
 import asmble.run.jvm.ModuleBuilder
@@ -42,14 +44,23 @@ abstract class ScriptCommand<T> : Command<T>() {
             desc = "The maximum number of memory pages when a module doesn't say.",
             default = "5",
             lowPriority = true
-        ).toInt()
+        ).toInt(),
+        memDir = bld.arg(
+            name = "memDir",
+            opt = "memdir",
+            desc = "If set, module memory is a memory-mapped file in this dir named after the module. " +
+                "The memory persists across runs and existing files are reopened as is.",
+            default = "",
+            lowPriority = true
+        ).takeIf { it.isNotEmpty() }?.let(::File)
     )
 
     fun prepareContext(args: ScriptArgs): ScriptContext {
         val builder = ModuleBuilder.Compiled(
             packageName = "asmble.temp" + UUID.randomUUID().toString().replace("-", ""),
             logger = logger,
-            defaultMaxMemPages = args.defaultMaxMemPages
+            defaultMaxMemPages = args.defaultMaxMemPages,
+            mem = args.memDir?.let { MappedMem(it.also { it.mkdirs() }) } ?: ByteBufferMem
         )
         var ctx = ScriptContext(logger = logger, builder = builder)
         // Compile everything
@@ -60,8 +71,10 @@ abstract class ScriptCommand<T> : Command<T>() {
                     else -> Translate.inToAst(inFile, inFile.substringAfterLast('.')).let { inAst ->
                         val (mod, name) = (inAst.commands.singleOrNull() as? Script.Cmd.Module) ?:
                             error("Input file must only contain a single module")
+                        // Mapped memory files are named after the class, so we use the file name if there's a mem dir
                         val className = name?.javaIdent?.capitalize() ?:
-                            "Temp" + UUID.randomUUID().toString().replace("-", "")
+                            if (args.memDir != null) File(inFile).nameWithoutExtension.javaIdent.capitalize()
+                            else "Temp" + UUID.randomUUID().toString().replace("-", "")
                         ctx.withBuiltModule(mod, className, name).let { ctx ->
                             if (name == null && index != args.inFiles.size - 1)
                                 logger.warn { "File '$inFile' not last and has no name so will be unused" }
@@ -86,6 +99,7 @@ abstract class ScriptCommand<T> : Command<T>() {
         val registrations: List<Pair<String, String>>,
         val disableAutoRegister: Boolean,
         val specTestRegister: Boolean,
-        val defaultMaxMemPages: Int
+        val defaultMaxMemPages: Int,
+        val memDir: File?
     )
 }
\ No newline at end of file
@@ -181,11 +181,35 @@ val AbstractInsnNode.isUnconditionalJump: Boolean get() = when (this.opcode) {
     else -> false
 }
 
+// Whether the next insn is only reached by jumping to it
+val AbstractInsnNode.isEndOfFlow: Boolean get() =
+    isTerminating || isUnconditionalJump || this is TableSwitchInsnNode || this is LookupSwitchInsnNode
+
 fun MethodNode.addInsns(vararg insn: AbstractInsnNode): MethodNode {
     insn.forEach(this.instructions::add)
     return this
 }
 
+// Holds the monitor of the object in the given local for the whole method, releasing it before every return and on
+// any throw. Unlike the synchronized flag, this can lock on a param. The local must not be written by the method.
+fun MethodNode.synchronizedOn(local: Int): MethodNode {
+    val start = LabelNode()
+    val end = LabelNode()
+    val handler = LabelNode()
+    instructions.toArray().filter { it.opcode in Opcodes.IRETURN..Opcodes.RETURN }.forEach {
+        instructions.insertBefore(it, VarInsnNode(Opcodes.ALOAD, local))
+        instructions.insertBefore(it, InsnNode(Opcodes.MONITOREXIT))
+    }
+    instructions.insert(InsnList().also {
+        it.add(VarInsnNode(Opcodes.ALOAD, local))
+        it.add(InsnNode(Opcodes.MONITORENTER))
+        it.add(start)
+    })
+    addInsns(end, handler, VarInsnNode(Opcodes.ALOAD, local), InsnNode(Opcodes.MONITOREXIT), InsnNode(Opcodes.ATHROW))
+    tryCatchBlocks.add(TryCatchBlockNode(start, end, handler, null))
+    return this
+}
+
 fun MethodNode.cloneWithInsnRange(range: IntRange) =
     MethodNode(access, name, desc, signature, exceptions.toTypedArray()).also { new ->
         accept(new)
@@ -205,15 +229,23 @@ fun MethodNode.toAsmString(): String {
 val Node.Type.Func.asmDesc: String get() =
     (this.ret?.typeRef ?: Void::class.ref).asMethodRetDesc(*this.params.map { it.typeRef }.toTypedArray())
 
+fun ClassNode.addStaticInitInsns(vararg insn: AbstractInsnNode) {
+    // Put at the front of an existing static init, otherwise create one
+    val staticInit = this.methods.find { (it as? MethodNode)?.name == "<clinit>" }?.let { it as MethodNode }
+    if (staticInit != null) staticInit.instructions.insert(InsnList().also { list -> insn.forEach(list::add) })
+    else this.methods.add(MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null).addInsns(
+        *insn, InsnNode(Opcodes.RETURN)))
+}
+
 fun ClassNode.toAsmString(): String {
     val stringWriter = StringWriter()
     this.accept(TraceClassVisitor(PrintWriter(stringWriter)))
     return stringWriter.toString()
 }
 
-fun ByteArray.asClassNode(): ClassNode {
+fun ByteArray.asClassNode(flags: Int = 0): ClassNode {
     val newNode = ClassNode()
-    ClassReader(this).accept(newNode, 0)
+    ClassReader(this).accept(newNode, flags)
     return newNode
 }
 
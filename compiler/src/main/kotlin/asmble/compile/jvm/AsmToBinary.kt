@@ -2,31 +2,38 @@ package asmble.compile.jvm
 
 import asmble.compile.jvm.msplit.SplitMethod
 import asmble.util.Logger
+import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassWriter
 import org.objectweb.asm.MethodTooLargeException
 import org.objectweb.asm.Opcodes
-import org.objectweb.asm.tree.ClassNode
-import org.objectweb.asm.tree.MethodNode
+import org.objectweb.asm.tree.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.stream.Collectors
 
 /**
  * May mutate given class nodes on [fromClassNode] if [splitMethod] is present (the default). Uses the two-param
- * [SplitMethod.split] call to try and split overly large methods.
+ * [SplitMethod.split] call to try and split overly large methods. Methods estimated to be over [maxCodeSize] are all
+ * split before writing (see [splitLargeMethods]) and reported to [onSplit], and any over the class file limit that the
+ * estimate missed are split when writing fails. A [maxCodeSize] of at most [HUGE_METHOD_SIZE] keeps the parts small
+ * enough for HotSpot to JIT compile. Methods built from funcs already have their frames, so only the methods that don't
+ * have them all get them computed (see [addMissingFrames]).
  */
 open class AsmToBinary(
     val splitMethod: SplitMethod? = SplitMethod(Opcodes.ASM6),
-    val logger: Logger = Logger.Print(Logger.Level.OFF)
+    val logger: Logger = Logger.Print(Logger.Level.OFF),
+    val maxCodeSize: Int = MAX_CODE_SIZE,
+    val onSplit: (Split) -> Unit = { split -> logger.info { split.toString() } }
 ) {
     fun fromClassNode(
         cn: ClassNode,
-        newClassWriter: () -> ClassWriter = { ClassWriter(ClassWriter.COMPUTE_FRAMES + ClassWriter.COMPUTE_MAXS) }
+        newClassWriter: () -> ClassWriter = { ClassWriter(ClassWriter.COMPUTE_MAXS) }
     ): ByteArray {
+        splitLargeMethods(cn)
         while (true) {
-            val cw = newClassWriter()
-            // Note, compute maxs adds a bunch of NOPs for unreachable code.
-            // See $func12 of block.wast. I don't believe the extra time over the
-            // instructions to remove the NOPs is worth it.
-            cn.accept(cw)
             try {
+                addMissingFrames(cn)
+                val cw = newClassWriter()
+                cn.accept(cw)
                 return cw.toByteArray()
             } catch (e: MethodTooLargeException) {
                 if (splitMethod == null) throw e
@@ -42,20 +49,9 @@ open class AsmToBinary(
                 val split = splitMethod.split(cn.name, cn.methods[tooLargeIndex])
                 split ?: throw IllegalStateException("Failed to split", e)
                 // Change the split off method's name if there's already one
-                val origName = split.splitOffMethod.name
-                var foundCount = 0
-                while (cn.methods.any { it.name == split.splitOffMethod.name }) {
-                    split.splitOffMethod.name = origName + (++foundCount)
-                }
+                renameSplitOff(split) { name -> cn.methods.none { it.name == name } }
                 // Replace at the index
-                logger.info {
-                    val m = cn.methods[tooLargeIndex]
-                    "Split ${m.name} (${m.instructions.size()}) into " +
-                        "${split.trimmedMethod.name} (${split.trimmedMethod.instructions.size()}) and " +
-                        "${split.splitOffMethod.name} (${split.splitOffMethod.instructions.size()})"
-                }
-                logMethodInsns("Trimmed", split.trimmedMethod)
-                logMethodInsns("Split-off", split.splitOffMethod)
+                logSplit(cn.methods[tooLargeIndex], split)
                 cn.methods.removeAt(tooLargeIndex)
                 cn.methods.add(tooLargeIndex, split.splitOffMethod)
                 cn.methods.add(tooLargeIndex, split.trimmedMethod)
@@ -63,6 +59,128 @@ open class AsmToBinary(
         }
     }
 
+    // Splits every method estimated to be too large before the class is written, so it's usually only written once.
+    // The methods are split in parallel, and each is split again until all of its parts fit. Methods built from funcs
+    // are split at the start of a block where possible.
+    fun splitLargeMethods(cn: ClassNode) {
+        val splitMethod = splitMethod ?: return
+        val tooLarge = cn.methods.filter { estimateCodeSize(it) > maxCodeSize }
+        if (tooLarge.isEmpty()) return
+        val names = ConcurrentHashMap.newKeySet<String>().also { names -> cn.methods.forEach { names += it.name } }
+        val split = tooLarge.parallelStream().map { splitUntilFits(splitMethod, cn.name, it, names) }.
+            collect(Collectors.toList())
+        tooLarge.forEachIndexed { index, method ->
+            val methodIndex = cn.methods.indexOf(method)
+            cn.methods.removeAt(methodIndex)
+            cn.methods.addAll(methodIndex, split[index])
+            onSplit(Split(cn.name, method.name, estimateCodeSize(method), maxCodeSize,
+                split[index].map { it.name to estimateCodeSize(it) }))
+        }
+    }
+
+    protected fun splitUntilFits(
+        splitMethod: SplitMethod,
+        owner: String,
+        method: MethodNode,
+        names: MutableSet<String>
+    ): List<MethodNode> {
+        val size = estimateCodeSize(method)
+        if (size <= maxCodeSize) return listOf(method)
+        logger.debug {
+            "Method ${method.name} (insns: ${method.instructions.size()}, est. size: $size) too large, splitting..."
+        }
+        logMethodInsns("Pre-split", method)
+        // Otherwise it's left to be split when writing
+        val split = splitMethod.split(owner, method) ?: return listOf(method)
+        // Moving many locals can make a small method's parts larger
+        if (estimateCodeSize(split.trimmedMethod) >= size || estimateCodeSize(split.splitOffMethod) >= size) {
+            return listOf(method)
+        }
+        renameSplitOff(split) { names.add(it) }
+        logSplit(method, split)
+        return splitUntilFits(splitMethod, owner, split.trimmedMethod, names) +
+            splitUntilFits(splitMethod, owner, split.splitOffMethod, names)
+    }
+
+    // Adds a number to the split off method's name until it's available, changing the call to it too
+    protected fun renameSplitOff(split: SplitMethod.Result, available: (String) -> Boolean) {
+        val origName = split.splitOffMethod.name
+        var foundCount = 0
+        while (!available(split.splitOffMethod.name)) split.splitOffMethod.name = origName + (++foundCount)
+        split.splitOffCall.name = split.splitOffMethod.name
+    }
+
+    // An upper bound of the method's code size. Only switch padding and jump offsets aren't known until written, so
+    // those are taken at their largest.
+    fun estimateCodeSize(method: MethodNode): Int {
+        var jumpCount = 0
+        val size = method.instructions.toArray().sumBy { insn ->
+            when (insn) {
+                is LabelNode, is FrameNode, is LineNumberNode -> 0
+                is VarInsnNode -> if (insn.`var` < 4) 1 else if (insn.`var` < 256) 2 else 4
+                is IincInsnNode -> if (insn.`var` < 256 && insn.incr.toByte().toInt() == insn.incr) 3 else 6
+                is IntInsnNode -> if (insn.opcode == Opcodes.SIPUSH) 3 else 2
+                is JumpInsnNode -> 3.also { jumpCount++ }
+                is TableSwitchInsnNode -> 16 + 4 * insn.labels.size
+                is LookupSwitchInsnNode -> 12 + 8 * insn.labels.size
+                is MethodInsnNode -> if (insn.opcode == Opcodes.INVOKEINTERFACE) 5 else 3
+                is InvokeDynamicInsnNode -> 5
+                is MultiANewArrayInsnNode -> 4
+                is LdcInsnNode, is TypeInsnNode, is FieldInsnNode -> 3
+                else -> 1
+            }
+        }
+        // Past 16-bit offsets, ASM makes each jump a GOTO_W, conditional ones after a jump over it
+        return if (size > Short.MAX_VALUE) size + jumpCount * 5 else size
+    }
+
+    // Computes the frames of the methods that need them by writing a class of just those with ASM computing frames and
+    // reading them back. ASM's computing can have to load classes to find common super classes, so it's avoided for
+    // the rest. They're read back expanded like the ones built from funcs so they can still be split.
+    fun addMissingFrames(cn: ClassNode) {
+        val missing = cn.methods.filterNot(::hasAllFrames)
+        if (missing.isEmpty()) return
+        logger.debug { "Computing frames for ${missing.size} method(s) in ${cn.name}" }
+        val cw = ClassWriter(ClassWriter.COMPUTE_FRAMES + ClassWriter.COMPUTE_MAXS)
+        cw.visit(cn.version, cn.access, cn.name, null, cn.superName, cn.interfaces.toTypedArray())
+        missing.forEach { it.accept(cw) }
+        cw.visitEnd()
+        val computed = cw.toByteArray().asClassNode(ClassReader.EXPAND_FRAMES).methods
+        missing.forEachIndexed { index, method -> cn.methods[cn.methods.indexOf(method)] = computed[index] }
+    }
+
+    // Whether there's a frame at every jump target and after every insn that doesn't continue to the next
+    fun hasAllFrames(method: MethodNode): Boolean {
+        val insns = method.instructions.toArray()
+        val targets = insns.flatMap { insn ->
+            when (insn) {
+                is JumpInsnNode -> listOf(insn.label)
+                is TableSwitchInsnNode -> insn.labels + insn.dflt
+                is LookupSwitchInsnNode -> insn.labels + insn.dflt
+                else -> emptyList<LabelNode>()
+            }
+        }.toSet() + method.tryCatchBlocks.map { it.handler }
+        var needsFrame = false
+        insns.forEach { insn ->
+            when {
+                insn is FrameNode -> needsFrame = false
+                insn is LabelNode -> if (targets.contains(insn)) needsFrame = true
+                insn.opcode >= 0 -> if (needsFrame) return false else needsFrame = insn.isEndOfFlow
+            }
+        }
+        return true
+    }
+
+    fun logSplit(method: MethodNode, split: SplitMethod.Result) {
+        logger.debug {
+            "Split ${method.name} (${method.instructions.size()}) into " +
+                "${split.trimmedMethod.name} (${split.trimmedMethod.instructions.size()}) and " +
+                "${split.splitOffMethod.name} (${split.splitOffMethod.instructions.size()})"
+        }
+        logMethodInsns("Trimmed", split.trimmedMethod)
+        logMethodInsns("Split-off", split.splitOffMethod)
+    }
+
     fun logMethodInsns(type: String, method: MethodNode) {
         logger.debug {
             "$type method ${method.name} first 100:\n" + method.cloneWithInsnRange(0 until 100).toAsmString()
@@ -74,7 +192,33 @@ open class AsmToBinary(
         }
     }
 
+    // A method split before writing into the given parts by name and estimated code size
+    data class Split(
+        val owner: String,
+        val method: String,
+        val codeSize: Int,
+        val maxCodeSize: Int,
+        val parts: List<Pair<String, Int>>
+    ) {
+        val reason get() = when {
+            codeSize > MAX_CODE_SIZE -> "over the class file limit of $MAX_CODE_SIZE bytes"
+            codeSize > HUGE_METHOD_SIZE && maxCodeSize <= HUGE_METHOD_SIZE ->
+                "too large to JIT compile, over $HUGE_METHOD_SIZE bytes"
+            else -> "over the split size of $maxCodeSize bytes"
+        }
+
+        override fun toString() =
+            if (parts.size == 1) "Unable to split $owner.$method (est. $codeSize bytes) $reason"
+            else "Split $owner.$method (est. $codeSize bytes) $reason into ${parts.size} methods: " +
+                parts.joinToString { (name, size) -> "$name ($size)" }
+    }
+
     companion object : AsmToBinary() {
+        // The most bytes of code a method can have
+        const val MAX_CODE_SIZE = 65535
+        // HotSpot's HugeMethodLimit, methods with more bytes of code are never JIT compiled
+        const val HUGE_METHOD_SIZE = 8000
+
         val noSplit = AsmToBinary(null)
     }
 }
\ No newline at end of file
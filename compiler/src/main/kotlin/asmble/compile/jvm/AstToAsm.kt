@@ -8,12 +8,19 @@ import asmble.ast.Node
 import asmble.io.AstToBinary
 import asmble.io.ByteWriter
 import asmble.util.Either
+import org.objectweb.asm.Handle
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
 import org.objectweb.asm.tree.*
 import java.io.ByteArrayOutputStream
 import java.lang.invoke.MethodHandle
 import java.lang.invoke.MethodHandles
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
 
 open class AstToAsm {
     // Note, the class does not have a name out of here (yet)
@@ -22,11 +29,17 @@ open class AstToAsm {
         ctx.cls.superName = Object::class.ref.asmName
         ctx.cls.version = Opcodes.V1_8
         ctx.cls.access += Opcodes.ACC_PUBLIC
+        if (ctx.hasSharedMemory && !ctx.mem.supportsSharedMemory)
+            throw CompileErr.SharedMemoryNotSupported(ctx.mem.javaClass.name.substringBefore('$'))
+        if (ctx.hasMemory) ctx.mem.unsupportedPlatformReason?.also {
+            throw CompileErr.MemoryNotSupportedOnPlatform(ctx.mem.javaClass.name.substringBefore('$'), it)
+        }
         addFields(ctx)
         addConstructors(ctx)
         addFuncs(ctx)
         addExports(ctx)
         addAnnotations(ctx)
+        if (ctx.lazyFuncs) moveLazyFuncs(ctx) else if (ctx.funcPartitions > 1) partitionFuncs(ctx)
     }
 
     fun addFields(ctx: ClsContext) {
@@ -40,13 +53,18 @@ open class AstToAsm {
         if (ctx.hasTable)
             ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, "table",
                 Array<MethodHandle>::class.ref.asmDesc, null, null))
-        // Now all method imports as method handles
-        ctx.cls.fields.addAll(ctx.importFuncs.indices.map {
+        // With import interfaces, func and global imports are just a field per import module
+        if (ctx.importInterfaces) ctx.cls.fields.addAll(ctx.importInterfaceModules.map {
+            FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, ctx.importInterfaceFieldName(it),
+                ctx.importInterfaceRef(it).asmDesc, null, null)
+        })
+        // Otherwise all method imports as method handles
+        else ctx.cls.fields.addAll(ctx.importFuncs.indices.map {
             FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, ctx.funcName(it),
                 MethodHandle::class.ref.asmDesc, null, null)
         })
-        // Now all import globals as getter (and maybe setter) method handles
-        ctx.cls.fields.addAll(ctx.importGlobals.mapIndexed { index, import ->
+        // And all import globals as getter (and maybe setter) method handles
+        if (!ctx.importInterfaces) ctx.cls.fields.addAll(ctx.importGlobals.mapIndexed { index, import ->
             val getter = FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, ctx.importGlobalGetterFieldName(index),
                 MethodHandle::class.ref.asmDesc, null, null)
             if (!(import.kind as Node.Import.Kind.Global).type.mutable) listOf(getter)
@@ -60,8 +78,60 @@ open class AstToAsm {
             FieldNode(access, ctx.globalName(ctx.importGlobals.size + index),
                 global.type.contentType.typeRef.asmDesc, null, null)
         })
+        // Passive data is built once per class and each instance refs it until dropped
+        ctx.mod.data.forEachIndexed { index, data -> if (data.passive) addPassiveDataFields(ctx, index, data) }
+    }
+
+    fun addPassiveDataFields(ctx: ClsContext, index: Int, data: Node.Data) {
+        ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL,
+            ctx.passiveDataName(index), ByteArray::class.ref.asmDesc, null, null))
+        ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE, ctx.dataName(index),
+            ByteArray::class.ref.asmDesc, null, null))
+        val buildBytes =
+            // With a resource, it's a copy of the range in the array read on class init which is prepended later
+            if (ctx.dataAsResource) ctx.mod.data.take(index).sumBy { it.data.size }.let { offset ->
+                listOf(
+                    FieldInsnNode(Opcodes.GETSTATIC, ctx.thisRef.asmName, "\$\$dataResource",
+                        ByteArray::class.ref.asmDesc),
+                    offset.const,
+                    (offset + data.data.size).const,
+                    Arrays::class.invokeStatic("copyOfRange", ByteArray::class,
+                        ByteArray::class, Int::class, Int::class)
+                )
+            // Otherwise it's the same ISO-8859 string chunks as active data, just concatenated
+            } else data.data.chunked(16300).toList().let { chunks ->
+                listOf(
+                    TypeInsnNode(Opcodes.NEW, StringBuilder::class.ref.asmName),
+                    InsnNode(Opcodes.DUP),
+                    MethodInsnNode(Opcodes.INVOKESPECIAL, StringBuilder::class.ref.asmName, "<init>", "()V", false)
+                ) + chunks.flatMap { chunk ->
+                    listOf(
+                        LdcInsnNode(chunk.toString(Charsets.ISO_8859_1)),
+                        MethodInsnNode(Opcodes.INVOKEVIRTUAL, StringBuilder::class.ref.asmName, "append",
+                            StringBuilder::class.ref.asMethodRetDesc(String::class.ref), false)
+                    )
+                } + listOf(
+                    MethodInsnNode(Opcodes.INVOKEVIRTUAL, StringBuilder::class.ref.asmName, "toString",
+                        String::class.ref.asMethodRetDesc(), false),
+                    LdcInsnNode("ISO-8859-1"),
+                    MethodInsnNode(Opcodes.INVOKEVIRTUAL, String::class.ref.asmName, "getBytes",
+                        ByteArray::class.ref.asMethodRetDesc(String::class.ref), false)
+                )
+            }
+        ctx.cls.addStaticInitInsns(*(buildBytes + FieldInsnNode(Opcodes.PUTSTATIC, ctx.thisRef.asmName,
+            ctx.passiveDataName(index), ByteArray::class.ref.asmDesc)).toTypedArray())
     }
 
+    fun initializeConstructorPassiveData(ctx: ClsContext, func: Func) =
+        ctx.mod.data.withIndex().filter { it.value.passive }.fold(func) { func, (index, _) ->
+            func.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                FieldInsnNode(Opcodes.GETSTATIC, ctx.thisRef.asmName, ctx.passiveDataName(index),
+                    ByteArray::class.ref.asmDesc),
+                FieldInsnNode(Opcodes.PUTFIELD, ctx.thisRef.asmName, ctx.dataName(index), ByteArray::class.ref.asmDesc)
+            )
+        }
+
     fun addConstructors(ctx: ClsContext) {
         // With no memory, we only have the constructor:
         //  <init>(imports...)
@@ -70,6 +140,8 @@ open class AstToAsm {
         //  <init>(MemClass mem, imports...)
         // If the max memory was supplied in the mem section, we also have
         //  <init>(imports...)
+        // If requested, we also have a constructor for forking from a template instance
+        //  <init>(ThisClass template, [MemClass mem,] imports...)
 
         if (ctx.mod.data.isNotEmpty()) ctx.assertHasMemory()
         if (!ctx.hasMemory) {
@@ -80,6 +152,7 @@ open class AstToAsm {
             // The default constructor is only allowed if the memory is not an import
             if (ctx.mod.memories.isNotEmpty()) addMemDefaultConstructor(ctx)
         }
+        if (ctx.includeForkConstructor) addForkConstructor(ctx)
     }
 
     fun addNoMemConstructor(ctx: ClsContext) {
@@ -91,6 +164,7 @@ open class AstToAsm {
         ).pushBlock(Node.Instr.Block(null), null, null)
         func = setConstructorGlobalImports(ctx, func, 0)
         func = setConstructorFunctionImports(ctx, func, 0)
+        func = setConstructorInterfaceImports(ctx, func, 0)
         func = setConstructorTableImports(ctx, func, 0)
         func = initializeConstructorGlobals(ctx, func, 0)
         func = initializeConstructorTables(ctx, func, 0)
@@ -107,7 +181,7 @@ open class AstToAsm {
             VarInsnNode(Opcodes.ALOAD, 0),
             VarInsnNode(Opcodes.ILOAD, 1)
         ).pushBlock(Node.Instr.Block(null), null, null).push(ctx.thisRef, Int::class.ref)
-        func = ctx.mem.create(func).popExpectingMulti(ctx.thisRef, ctx.mem.memType)
+        func = ctx.mem.create(ctx, func).popExpectingMulti(ctx.thisRef, ctx.mem.memType)
         // In addition to this and mem on the stack, add all imports
         func = func.params.drop(1).indices.fold(func) { amountCon, index ->
             amountCon.addInsns(VarInsnNode(Opcodes.ALOAD, 2 + index))
@@ -130,9 +204,11 @@ open class AstToAsm {
         ).pushBlock(Node.Instr.Block(null), null, null)
         func = setConstructorGlobalImports(ctx, func, 1)
         func = setConstructorFunctionImports(ctx, func, 1)
+        func = setConstructorInterfaceImports(ctx, func, 1)
         func = setConstructorTableImports(ctx, func, 1)
         func = initializeConstructorGlobals(ctx, func, 1)
         func = initializeConstructorTables(ctx, func, 1)
+        func = initializeConstructorPassiveData(ctx, func)
 
         // Set the mem field
         func = func.addInsns(
@@ -143,17 +219,28 @@ open class AstToAsm {
         ).push(ctx.mem.memType)
 
         // Do mem init only on non-import
-        ctx.mod.memories.firstOrNull()?.let { func = ctx.mem.init(func, it.limits.initial) }
+        ctx.mod.memories.firstOrNull()?.let { func = ctx.mem.init(ctx, func, it.limits.initial) }
 
         // Add all data loads
-        func = ctx.mod.data.fold(func) { origFunc, data ->
+        if (ctx.dataAsResource) addDataResourceField(ctx)
+        func = ctx.mod.data.fold(func to 0) { (origFunc, bytesOffset), data ->
+            // Passive data is not applied but its bytes are still in the resource
+            if (data.passive) return@fold origFunc to bytesOffset + data.data.size
             // Add the mem on the stack if it's not already there
             val func =
                 if (origFunc.stack.lastOrNull() == ctx.mem.memType) origFunc
                 else origFunc.addInsns(VarInsnNode(Opcodes.ALOAD, 1)).push(ctx.mem.memType)
             // Ask mem to build the data, giving it a callback to put the offset on the stack
-            ctx.mem.data(func, data.data) { func -> applyOffsetExpr(ctx, data.offset, func) }
-        }
+            val buildOffset = { func: Func -> applyOffsetExpr(ctx, data.offset, func) }
+            if (!ctx.dataAsResource) ctx.mem.data(ctx, func, data.data, buildOffset) to 0
+            // With a resource, the bytes are at their offset in the array read on class init
+            else ctx.mem.dataFromBytes(ctx, func, data.data, bytesOffset, { func ->
+                func.addInsns(
+                    FieldInsnNode(Opcodes.GETSTATIC, ctx.thisRef.asmName, "\$\$dataResource",
+                        ByteArray::class.ref.asmDesc)
+                ).push(ByteArray::class.ref)
+            }, buildOffset) to bytesOffset + data.data.size
+        }.first
         // Take the mem off the stack if it's still left
         if (func.stack.lastOrNull() == ctx.mem.memType) func = func.popExpecting(ctx.mem.memType)
 
@@ -162,6 +249,75 @@ open class AstToAsm {
         ctx.cls.methods.add(toConstructorNode(ctx, func))
     }
 
+    fun addForkConstructor(ctx: ClsContext) {
+        // <init>(ThisClass template, [MemClass mem,] imports...)
+        // Same as the other constructors except the non-import globals are copied from the fully initialized
+        // template and the mem, which the caller already forked, is not initialized. No data or start function.
+        val memTypes = if (ctx.hasMemory) listOf(ctx.mem.memType) else emptyList()
+        val paramsBeforeImports = 1 + memTypes.size
+        var func = Func("<init>", listOf(ctx.thisRef) + memTypes + constructorImportTypes(ctx)).addInsns(
+            // Gotta call super()
+            VarInsnNode(Opcodes.ALOAD, 0),
+            MethodInsnNode(Opcodes.INVOKESPECIAL, Object::class.ref.asmName, "<init>", "()V", false)
+        ).pushBlock(Node.Instr.Block(null), null, null)
+        func = setConstructorGlobalImports(ctx, func, paramsBeforeImports)
+        func = setConstructorFunctionImports(ctx, func, paramsBeforeImports)
+        func = setConstructorInterfaceImports(ctx, func, paramsBeforeImports)
+        func = setConstructorTableImports(ctx, func, paramsBeforeImports)
+        func = ctx.mod.globals.foldIndexed(func) { index, func, global ->
+            val name = ctx.globalName(ctx.importGlobals.size + index)
+            val desc = global.type.contentType.typeRef.asmDesc
+            func.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                VarInsnNode(Opcodes.ALOAD, 1),
+                FieldInsnNode(Opcodes.GETFIELD, ctx.thisRef.asmName, name, desc),
+                FieldInsnNode(Opcodes.PUTFIELD, ctx.thisRef.asmName, name, desc)
+            )
+        }
+        // Passive data refs are copied too since the template may have dropped some
+        func = ctx.mod.data.withIndex().filter { it.value.passive }.fold(func) { func, (index, _) ->
+            func.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                VarInsnNode(Opcodes.ALOAD, 1),
+                FieldInsnNode(Opcodes.GETFIELD, ctx.thisRef.asmName, ctx.dataName(index), ByteArray::class.ref.asmDesc),
+                FieldInsnNode(Opcodes.PUTFIELD, ctx.thisRef.asmName, ctx.dataName(index), ByteArray::class.ref.asmDesc)
+            )
+        }
+        // Elems are re-applied so the table refers to this instance's functions
+        func = initializeConstructorTables(ctx, func, paramsBeforeImports)
+        if (ctx.hasMemory) func = func.addInsns(
+            VarInsnNode(Opcodes.ALOAD, 0),
+            VarInsnNode(Opcodes.ALOAD, 2),
+            FieldInsnNode(Opcodes.PUTFIELD, ctx.thisRef.asmName, "memory", ctx.mem.memType.asmDesc)
+        )
+        func = func.addInsns(InsnNode(Opcodes.RETURN))
+        ctx.cls.methods.add(toConstructorNode(ctx, func))
+    }
+
+    fun addDataResourceField(ctx: ClsContext) {
+        // All data is read once per class from the resource on static init
+        if (ctx.mod.data.isEmpty()) return
+        ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL,
+            "\$\$dataResource", ByteArray::class.ref.asmDesc, null, null))
+        ctx.cls.addStaticInitInsns(
+            LdcInsnNode(ctx.thisRef.asm),
+            LdcInsnNode(dataResourceName(ctx)),
+            ctx.mod.data.sumBy { it.data.size }.const,
+            (if (ctx.deflateDataResource) 1 else 0).const,
+            ctx.helperCall(DataResourceHelpers::class.java, "dataResource", "read"),
+            FieldInsnNode(Opcodes.PUTSTATIC, ctx.thisRef.asmName, "\$\$dataResource", ByteArray::class.ref.asmDesc)
+        )
+    }
+
+    // Resource name relative to the compiled class
+    fun dataResourceName(ctx: ClsContext) = ctx.className + ".data"
+
+    // All data bytes one after another, deflated if requested
+    fun dataResourceBytes(ctx: ClsContext) = ByteArrayOutputStream().also { bytes ->
+        (if (ctx.deflateDataResource) DeflaterOutputStream(bytes, Deflater(Deflater.BEST_COMPRESSION)) else bytes).
+            use { out -> ctx.mod.data.forEach { out.write(it.data) } }
+    }.toByteArray()
+
     fun addMemDefaultConstructor(ctx: ClsContext) {
         //<init>(imports...) only if there was a given max
         // Just defer to the maxMem int one
@@ -182,18 +338,30 @@ open class AstToAsm {
     }
 
     fun constructorImportTypes(ctx: ClsContext) =
-        ctx.importFuncs.map { MethodHandle::class.ref } +
-        ctx.importGlobals.flatMap {
-            // If it's mutable, it also comes with a setter
-            if ((it.kind as? Node.Import.Kind.Global)?.type?.mutable == false) listOf(MethodHandle::class.ref)
-            else listOf(MethodHandle::class.ref, MethodHandle::class.ref)
+        if (ctx.importInterfaces) ctx.importInterfaceModules.map { ctx.importInterfaceRef(it) } else {
+            ctx.importFuncs.map { MethodHandle::class.ref } +
+            ctx.importGlobals.flatMap {
+                // If it's mutable, it also comes with a setter
+                if ((it.kind as? Node.Import.Kind.Global)?.type?.mutable == false) listOf(MethodHandle::class.ref)
+                else listOf(MethodHandle::class.ref, MethodHandle::class.ref)
+            }
         } + ctx.mod.imports.filter { it.kind is Node.Import.Kind.Table }.map { Array<MethodHandle>::class.ref }
 
+    // The number of func and global import params, which come before the table import param
+    fun constructorFuncAndGlobalImportCount(ctx: ClsContext) =
+        if (ctx.importInterfaces) ctx.importInterfaceModules.size
+        // Mutable global imports have setters and take up two spots
+        else ctx.importFuncs.size +
+            ctx.importGlobals.sumBy { if ((it.kind as? Node.Import.Kind.Global)?.type?.mutable == true) 2 else 1 }
+
     fun toConstructorNode(ctx: ClsContext, func: Func) = mutableListOf<List<AnnotationNode>>().let { paramAnns ->
         // If the first param is a mem class and imported, add annotation
         // Otherwise if it is a mem class and not-imported or an int, no annotations
         // Otherwise do nothing because the rest of the params are imports
-        func.params.firstOrNull()?.also { firstParam ->
+        // Fork constructors have the template first which is never annotated
+        val forkTemplate = func.params.firstOrNull() == ctx.thisRef
+        if (forkTemplate) paramAnns.add(emptyList())
+        func.params.getOrNull(if (forkTemplate) 1 else 0)?.also { firstParam ->
             if (firstParam == Int::class.ref) {
                 paramAnns.add(emptyList())
             } else if (firstParam == ctx.mem.memType) {
@@ -202,9 +370,10 @@ open class AstToAsm {
                 else paramAnns.add(listOf(importAnnotation(ctx, importMem)))
             }
         }
-        // All non-mem imports one after another
-        ctx.importFuncs.forEach { paramAnns.add(listOf(importAnnotation(ctx, it))) }
-        ctx.importGlobals.forEach {
+        // All non-mem imports one after another, except interfaces which have them on their methods instead
+        if (ctx.importInterfaces) ctx.importInterfaceModules.forEach { paramAnns.add(emptyList()) }
+        else ctx.importFuncs.forEach { paramAnns.add(listOf(importAnnotation(ctx, it))) }
+        if (!ctx.importInterfaces) ctx.importGlobals.forEach {
             paramAnns.add(listOf(importAnnotation(ctx, it)))
             // There are two annotations here if it's mutable
             if ((it.kind as? Node.Import.Kind.Global)?.type?.mutable == true)
@@ -253,7 +422,8 @@ open class AstToAsm {
     }
 
     fun setConstructorGlobalImports(ctx: ClsContext, func: Func, paramsBeforeImports: Int) =
-        ctx.importGlobals.foldIndexed(func to ctx.importFuncs.size + paramsBeforeImports) {
+        if (ctx.importInterfaces) func
+        else ctx.importGlobals.foldIndexed(func to ctx.importFuncs.size + paramsBeforeImports) {
             importIndex, (func, importParamOffset), import ->
             // Always a getter handle
             func.addInsns(
@@ -274,7 +444,7 @@ open class AstToAsm {
         }.first
 
     fun setConstructorFunctionImports(ctx: ClsContext, func: Func, paramsBeforeImports: Int) =
-        ctx.importFuncs.indices.fold(func) { func, importIndex ->
+        if (ctx.importInterfaces) func else ctx.importFuncs.indices.fold(func) { func, importIndex ->
             func.addInsns(
                 VarInsnNode(Opcodes.ALOAD, 0),
                 VarInsnNode(Opcodes.ALOAD, importIndex + paramsBeforeImports + 1),
@@ -283,12 +453,19 @@ open class AstToAsm {
             )
         }
 
+    fun setConstructorInterfaceImports(ctx: ClsContext, func: Func, paramsBeforeImports: Int) =
+        if (!ctx.importInterfaces) func else ctx.importInterfaceModules.foldIndexed(func) { index, func, module ->
+            func.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                VarInsnNode(Opcodes.ALOAD, index + paramsBeforeImports + 1),
+                FieldInsnNode(Opcodes.PUTFIELD, ctx.thisRef.asmName,
+                    ctx.importInterfaceFieldName(module), ctx.importInterfaceRef(module).asmDesc)
+            )
+        }
+
     fun setConstructorTableImports(ctx: ClsContext, func: Func, paramsBeforeImports: Int) =
         if (ctx.mod.imports.none { it.kind is Node.Import.Kind.Table }) func else {
-            val importIndex = ctx.importFuncs.size +
-                // Mutable global imports have setters and take up two spots
-                ctx.importGlobals.sumBy { if ((it.kind as? Node.Import.Kind.Global)?.type?.mutable == true) 2 else 1 } +
-                paramsBeforeImports + 1
+            val importIndex = constructorFuncAndGlobalImportCount(ctx) + paramsBeforeImports + 1
             func.addInsns(
                 VarInsnNode(Opcodes.ALOAD, 0),
                 VarInsnNode(Opcodes.ALOAD, importIndex),
@@ -314,7 +491,7 @@ open class AstToAsm {
                                     )
                                 listOf(LdcInsnNode(it.value))
                             }
-                            // Initialize from an import global means we'll just grab the MH as from the param and call
+                            // Initialize from an import global means we'll just call the import from its field
                             is Node.Instr.GetGlobal -> {
                                 val refGlobal = ctx.globalAtIndex(it.index)
                                 when (refGlobal) {
@@ -326,21 +503,10 @@ open class AstToAsm {
                                                 global.type.contentType.typeRef,
                                                 refGlobalKind.type.contentType.typeRef
                                             )
-                                        val paramOffset = ctx.importFuncs.size + paramsBeforeImports + 1 +
-                                            ctx.importGlobals.take(it.index).sumBy {
-                                                // Immutable jumps 1, mutable jumps 2
-                                                if ((it.kind as? Node.Import.Kind.Global)?.type?.mutable == false) 1
-                                                else 2
-                                            }
                                         listOf(
-                                            VarInsnNode(Opcodes.ALOAD, paramOffset),
-                                            MethodInsnNode(
-                                                Opcodes.INVOKEVIRTUAL,
-                                                MethodHandle::class.ref.asmName,
-                                                "invokeExact",
-                                                "()" + refGlobalKind.type.contentType.typeRef.asmDesc,
-                                                false
-                                            )
+                                            VarInsnNode(Opcodes.ALOAD, 0),
+                                            ctx.importGlobalGetterRef(it.index),
+                                            ctx.importGlobalGetterCall(it.index)
                                         )
                                     }
                                 }
@@ -386,10 +552,7 @@ open class AstToAsm {
         // Otherwise, it was imported and we can set the elems on the imported one
         // from the parameter
         // TODO: I think this is a security concern and bad practice, may revisit (TODO: consider cloning the array)
-        val importIndex = ctx.importFuncs.size + ctx.importGlobals.sumBy {
-            // Immutable is 1, mutable is 2
-            if ((it.kind as? Node.Import.Kind.Global)?.type?.mutable == false) 1 else 2
-        } + paramsBeforeImports + 1
+        val importIndex = constructorFuncAndGlobalImportCount(ctx) + paramsBeforeImports + 1
         return func.addInsns(VarInsnNode(Opcodes.ALOAD, importIndex)).
             let { func -> addElemsToTable(ctx, func, paramsBeforeImports) }.
             // Remove the array that's still there
@@ -428,11 +591,20 @@ open class AstToAsm {
                         val funcType = ctx.funcTypeAtIndex(funcIndex)
                         when (funcRef) {
                             is Either.Left ->
-                                // Imports we can just get from the param
-                                listOf(VarInsnNode(
+                                // Imports we can just get from the param, or bind the interface method to the field
+                                if (!ctx.importInterfaces) listOf(VarInsnNode(
                                     Opcodes.ALOAD,
                                     funcIndex + paramsBeforeImports + 1
-                                ))
+                                )) else ctx.importFuncCall(funcIndex).let { call ->
+                                    listOf(
+                                        LdcInsnNode(Handle(Opcodes.H_INVOKEINTERFACE, call.owner, call.name,
+                                            call.desc, true)),
+                                        VarInsnNode(Opcodes.ALOAD, 0),
+                                        ctx.importFuncRef(funcIndex),
+                                        MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName,
+                                            "bindTo", MethodHandle::class.ref.asMethodRetDesc(Any::class.ref), false)
+                                    )
+                                }
                             is Either.Right -> {
                                 listOf(
                                     MethodHandles::lookup.invokeStatic(),
@@ -458,11 +630,11 @@ open class AstToAsm {
                 throw CompileErr.InvalidStartFunctionType(ctx.mod.startFuncIndex)
             when (ctx.funcAtIndex(ctx.mod.startFuncIndex)) {
                 is Either.Left ->
-                    // This is an import, so we can just access it as a param
+                    // This is an import, so we can just call it from its field
                     func.addInsns(
-                        VarInsnNode(Opcodes.ALOAD, ctx.mod.startFuncIndex + paramsBeforeImports + 1),
-                        MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName,
-                            "invokeExact", funcType.asmDesc, false)
+                        VarInsnNode(Opcodes.ALOAD, 0),
+                        ctx.importFuncRef(ctx.mod.startFuncIndex),
+                        ctx.importFuncCall(ctx.mod.startFuncIndex)
                     )
                 is Either.Right ->
                     // This is a local func, so invoke it virtual
@@ -496,15 +668,26 @@ open class AstToAsm {
             if (prev.contains(exp.field)) throw CompileErr.DuplicateExport(exp.field)
             prev + exp.field
         }
+        // Batch methods are named after their func export's method, so they can't clash with another's
+        if (ctx.exportBatchMethods) ctx.mod.exports.filter { it.kind == Node.ExternalKind.FUNCTION }.
+            flatMap { listOf(it.field.javaIdent, exportFuncBatchName(it)) }.
+            fold(emptySet<String>()) { prev, name ->
+                if (prev.contains(name)) throw CompileErr.DuplicateExport(name)
+                prev + name
+            }
         // Export all functions as named methods that delegate
         ctx.mod.exports.forEach {
             when (it.kind) {
-                Node.ExternalKind.FUNCTION -> addExportFunc(ctx, it)
+                Node.ExternalKind.FUNCTION -> {
+                    addExportFunc(ctx, it)
+                    if (ctx.exportBatchMethods) addExportFuncBatch(ctx, it)
+                }
                 Node.ExternalKind.GLOBAL -> addExportGlobal(ctx, it)
                 Node.ExternalKind.MEMORY -> addExportMemory(ctx, it)
                 Node.ExternalKind.TABLE -> addExportTable(ctx, it)
             }
         }
+        if (ctx.exportInterface) ctx.cls.interfaces.add(ctx.exportInterfaceRef.asmName)
     }
 
     fun exportAnnotation(export: Node.Export) = AnnotationNode(WasmExport::class.ref.asmDesc).also {
@@ -532,12 +715,10 @@ open class AstToAsm {
         ctx.funcAtIndex(export.index).let { func ->
             when (func) {
                 is Either.Left -> {
-                    // Prepend this.funcName field ref and append invokeExact
-                    method.instructions.insert(FieldInsnNode(Opcodes.GETFIELD, ctx.thisRef.asmName,
-                        ctx.funcName(export.index), MethodHandle::class.ref.asmDesc))
+                    // Prepend this.funcName field ref and append invokeExact (or the interface call)
+                    method.instructions.insert(ctx.importFuncRef(export.index))
                     method.instructions.insert(VarInsnNode(Opcodes.ALOAD, 0))
-                    method.instructions.add(MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName,
-                        "invokeExact", funcType.asmDesc, false))
+                    method.instructions.add(ctx.importFuncCall(export.index))
                 }
                 is Either.Right -> {
                     // Just prepend "this", and make call
@@ -559,6 +740,84 @@ open class AstToAsm {
         ctx.cls.methods.plusAssign(method)
     }
 
+    fun exportFuncBatchName(export: Node.Export) = export.field.javaIdent + "Batch"
+
+    fun addExportFuncBatch(ctx: ClsContext, export: Node.Export) {
+        // void <name>Batch(int offset, int count, params as arrays..., [results array])
+        // Calls the func for each index from offset to offset + count with the args at that index of each param array
+        // and stores the result at that index of the results array. The range is checked against every array first
+        // so nothing is called on a bad one. It's not annotated as an export so it doesn't get mistaken for the
+        // single call.
+        val funcType = ctx.funcTypeAtIndex(export.index)
+        val colTypes = (funcType.params + listOfNotNull(funcType.ret)).map { Type.getType("[" + it.typeRef.asmDesc) }
+        val method = MethodNode(Opcodes.ACC_PUBLIC, exportFuncBatchName(export),
+            Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE, Type.INT_TYPE, *colTypes.toTypedArray()),
+            null, null)
+        val indexLocal = 3 + colTypes.size
+        val endLocal = indexLocal + 1
+        val loopStart = LabelNode()
+        val loopEnd = LabelNode()
+        val outOfBounds = LabelNode()
+        method.addInsns(
+            // Negative offset or count, or an end that overflows
+            VarInsnNode(Opcodes.ILOAD, 1),
+            JumpInsnNode(Opcodes.IFLT, outOfBounds),
+            VarInsnNode(Opcodes.ILOAD, 2),
+            JumpInsnNode(Opcodes.IFLT, outOfBounds),
+            VarInsnNode(Opcodes.ILOAD, 1),
+            VarInsnNode(Opcodes.ILOAD, 2),
+            InsnNode(Opcodes.IADD),
+            VarInsnNode(Opcodes.ISTORE, endLocal),
+            VarInsnNode(Opcodes.ILOAD, endLocal),
+            JumpInsnNode(Opcodes.IFLT, outOfBounds)
+        )
+        colTypes.indices.forEach { index ->
+            method.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 3 + index),
+                InsnNode(Opcodes.ARRAYLENGTH),
+                VarInsnNode(Opcodes.ILOAD, endLocal),
+                JumpInsnNode(Opcodes.IF_ICMPLT, outOfBounds)
+            )
+        }
+        method.addInsns(
+            VarInsnNode(Opcodes.ILOAD, 1),
+            VarInsnNode(Opcodes.ISTORE, indexLocal),
+            loopStart,
+            VarInsnNode(Opcodes.ILOAD, indexLocal),
+            VarInsnNode(Opcodes.ILOAD, endLocal),
+            JumpInsnNode(Opcodes.IF_ICMPGE, loopEnd)
+        )
+        // Results array and index go under the call
+        if (funcType.ret != null) method.addInsns(
+            VarInsnNode(Opcodes.ALOAD, 3 + funcType.params.size),
+            VarInsnNode(Opcodes.ILOAD, indexLocal)
+        )
+        method.addInsns(VarInsnNode(Opcodes.ALOAD, 0))
+        val isImport = ctx.funcAtIndex(export.index) is Either.Left
+        if (isImport) method.addInsns(ctx.importFuncRef(export.index))
+        funcType.params.forEachIndexed { index, param ->
+            method.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 3 + index),
+                VarInsnNode(Opcodes.ILOAD, indexLocal),
+                InsnNode(param.typeRef.asm.getOpcode(Opcodes.IALOAD))
+            )
+        }
+        method.addInsns(
+            if (isImport) ctx.importFuncCall(export.index)
+            else MethodInsnNode(Opcodes.INVOKEVIRTUAL, ctx.thisRef.asmName, ctx.funcName(export.index),
+                funcType.asmDesc, false)
+        )
+        funcType.ret?.let { method.addInsns(InsnNode(it.typeRef.asm.getOpcode(Opcodes.IASTORE))) }
+        method.addInsns(
+            IincInsnNode(indexLocal, 1),
+            JumpInsnNode(Opcodes.GOTO, loopStart),
+            loopEnd,
+            InsnNode(Opcodes.RETURN),
+            outOfBounds
+        ).addInsns(*IndexOutOfBoundsException::class.athrow("Batch range out of bounds").toTypedArray())
+        ctx.cls.methods.plusAssign(method)
+    }
+
     fun addExportGlobal(ctx: ClsContext, export: Node.Export) {
         val global = ctx.globalAtIndex(export.index)
         val type = when (global) {
@@ -570,10 +829,8 @@ open class AstToAsm {
             "()" + type.contentType.typeRef.asmDesc, null, null)
         getter.addInsns(VarInsnNode(Opcodes.ALOAD, 0))
         if (global is Either.Left) getter.addInsns(
-            FieldInsnNode(Opcodes.GETFIELD, ctx.thisRef.asmName,
-                ctx.importGlobalGetterFieldName(export.index), MethodHandle::class.ref.asmDesc),
-            MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName, "invokeExact",
-                "()" + type.contentType.typeRef.asmDesc, false)
+            ctx.importGlobalGetterRef(export.index),
+            ctx.importGlobalGetterCall(export.index)
         ) else getter.addInsns(
             FieldInsnNode(Opcodes.GETFIELD, ctx.thisRef.asmName, ctx.globalName(export.index),
                 type.contentType.typeRef.asmDesc)
@@ -592,16 +849,14 @@ open class AstToAsm {
                 "(${type.contentType.typeRef.asmDesc})V", null, null)
             setter.addInsns(VarInsnNode(Opcodes.ALOAD, 0))
             if (global is Either.Left) setter.addInsns(
-                FieldInsnNode(Opcodes.GETFIELD, ctx.thisRef.asmName,
-                    ctx.importGlobalSetterFieldName(export.index), MethodHandle::class.ref.asmDesc),
+                ctx.importGlobalSetterRef(export.index),
                 VarInsnNode(when (type.contentType) {
                     Node.Type.Value.I32 -> Opcodes.ILOAD
                     Node.Type.Value.I64 -> Opcodes.LLOAD
                     Node.Type.Value.F32 -> Opcodes.FLOAD
                     Node.Type.Value.F64 -> Opcodes.DLOAD
                 }, 1),
-                MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName, "invokeExact",
-                    "(${type.contentType.typeRef.asmDesc})V", false),
+                ctx.importGlobalSetterCall(export.index),
                 InsnNode(Opcodes.RETURN)
             ) else setter.addInsns(
                 VarInsnNode(when (type.contentType) {
@@ -647,12 +902,244 @@ open class AstToAsm {
         ctx.cls.methods.plusAssign(method)
     }
 
+    // The interfaces the func and global imports are called through when importInterfaces is set, one per import
+    // module. Each func is a method and each global is a getter and, if mutable, a setter, all annotated with the
+    // import they are for.
+    fun importInterfaceNodes(ctx: ClsContext) = if (!ctx.importInterfaces) emptyList() else
+        ctx.importInterfaceModules.map { module ->
+            ClassNode().also { iface ->
+                iface.version = Opcodes.V1_8
+                iface.access = Opcodes.ACC_PUBLIC + Opcodes.ACC_INTERFACE + Opcodes.ACC_ABSTRACT
+                iface.name = ctx.importInterfaceRef(module).asmName
+                iface.superName = Object::class.ref.asmName
+                fun addMethod(import: Node.Import, call: MethodInsnNode, globalSetter: Boolean = false) {
+                    iface.methods.add(MethodNode(Opcodes.ACC_PUBLIC + Opcodes.ACC_ABSTRACT, call.name, call.desc,
+                        null, null).also { method ->
+                        method.visibleAnnotations = listOf(importAnnotation(ctx, import).also {
+                            if (globalSetter) it.values.addAll(listOf("globalSetter", true))
+                        })
+                    })
+                }
+                ctx.importFuncs.forEachIndexed { index, import ->
+                    if (import.module == module) addMethod(import, ctx.importFuncCall(index))
+                }
+                ctx.importGlobals.forEachIndexed { index, import ->
+                    if (import.module != module) return@forEachIndexed
+                    addMethod(import, ctx.importGlobalGetterCall(index))
+                    if ((import.kind as Node.Import.Kind.Global).type.mutable)
+                        addMethod(import, ctx.importGlobalSetterCall(index), globalSetter = true)
+                }
+            }
+        }
+
+    // The interface the class implements when exportInterface is set, only complete after the class is built. It has
+    // every public method (i.e. the exports) and a static "create" method for each constructor that returns the new
+    // instance as it.
+    fun exportInterfaceNode(ctx: ClsContext) = if (!ctx.exportInterface) null else ClassNode().also { iface ->
+        iface.version = Opcodes.V1_8
+        iface.access = Opcodes.ACC_PUBLIC + Opcodes.ACC_INTERFACE + Opcodes.ACC_ABSTRACT
+        iface.name = ctx.exportInterfaceRef.asmName
+        iface.superName = Object::class.ref.asmName
+        ctx.cls.methods.forEach { method ->
+            if (method.name == "<init>") iface.methods.add(MethodNode(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC,
+                "create", Type.getMethodDescriptor(ctx.exportInterfaceRef.asm,
+                    *Type.getArgumentTypes(method.desc)), null, null).also { create ->
+                create.visibleParameterAnnotations = method.visibleParameterAnnotations
+                create.addInsns(TypeInsnNode(Opcodes.NEW, ctx.thisRef.asmName), InsnNode(Opcodes.DUP))
+                Type.getArgumentTypes(method.desc).fold(0) { local, type ->
+                    create.addInsns(VarInsnNode(type.getOpcode(Opcodes.ILOAD), local))
+                    local + type.size
+                }
+                create.addInsns(
+                    MethodInsnNode(Opcodes.INVOKESPECIAL, ctx.thisRef.asmName, "<init>", method.desc, false),
+                    InsnNode(Opcodes.ARETURN)
+                )
+            }) else if (method.access and (Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC) == Opcodes.ACC_PUBLIC)
+                iface.methods.add(MethodNode(Opcodes.ACC_PUBLIC + Opcodes.ACC_ABSTRACT, method.name, method.desc,
+                    null, null).also { it.visibleAnnotations = method.visibleAnnotations })
+        }
+    }
+
     fun addFuncs(ctx: ClsContext) {
+        if (ctx.funcParallelism > 1 && ctx.mod.funcs.size > 1) return addFuncsInParallel(ctx)
         ctx.cls.methods.addAll(ctx.mod.funcs.mapIndexed { index, func ->
             ctx.funcBuilder.fromFunc(ctx, func, ctx.importFuncs.size + index).toMethodNode()
         })
     }
 
+    fun addFuncsInParallel(ctx: ClsContext) {
+        // Shared synthetic methods, fields, and static init are created on first use by looking at the class. So
+        // each contiguous chunk of funcs is built against its own copy of the class, and any func that changed its
+        // copy in any way is rebuilt against the real class in order. The funcs that reused something from their
+        // copy come after the one that added it, and synthetic names only depend on what's already in the class, so
+        // the class ends up exactly as if they were all built in order.
+        val chunkSize = Math.ceil(ctx.mod.funcs.size / (ctx.funcParallelism * 4.0)).toInt()
+        val pool = ForkJoinPool(ctx.funcParallelism)
+        val built = try {
+            ctx.mod.funcs.indices.chunked(chunkSize).map { indices ->
+                pool.submit(Callable { buildFuncChunk(ctx, indices) })
+            }.flatMap { task ->
+                try { task.get() } catch (e: ExecutionException) { throw e.cause ?: e }
+            }
+        } finally {
+            pool.shutdown()
+        }
+        ctx.cls.methods.addAll(built.mapIndexed { index, method ->
+            method ?: ctx.funcBuilder.fromFunc(ctx, ctx.mod.funcs[index], ctx.importFuncs.size + index).toMethodNode()
+        })
+    }
+
+    // Result is null for each func that added anything to the class
+    fun buildFuncChunk(ctx: ClsContext, indices: List<Int>): List<MethodNode?> {
+        val cls = ClassNode().also { copy ->
+            copy.name = ctx.cls.name
+            copy.fields.addAll(ctx.cls.fields)
+            // The static init is added to in place, so the copy gets its own
+            copy.methods.addAll(ctx.cls.methods.map {
+                if ((it as MethodNode).name != "<clinit>") it
+                else MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null).addInsns(InsnNode(Opcodes.RETURN))
+            })
+        }
+        val chunkCtx = ctx.copy(cls = cls)
+        return indices.map { index ->
+            val before = classSnapshot(cls)
+            ctx.funcBuilder.fromFunc(chunkCtx, ctx.mod.funcs[index], ctx.importFuncs.size + index).toMethodNode().
+                takeIf { classSnapshot(cls) == before }
+        }
+    }
+
+    // Everything building a func could change on the class. Nodes don't override equals, so the members compare by
+    // identity, with the size of each method's insns to catch any shared method changed in place. The static init
+    // is the copy's own, so all its insns are compared and it only has what the chunk added.
+    fun classSnapshot(cls: ClassNode) = listOf(
+        cls.methods.map { it to it.instructions.size() },
+        cls.fields.toList(),
+        cls.interfaces.toList(),
+        cls.innerClasses.toList(),
+        cls.methods.find { it.name == "<clinit>" }?.instructions?.toArray()?.toList()
+    )
+
+    fun moveLazyFuncs(ctx: ClsContext) {
+        // Each func that isn't exported or the start func is moved to a static method in its own class that takes
+        // the module as its first param, so the locals are the same. The func left behind just calls it, and the JVM
+        // only loads the class on that first call. The classes are in the same package and loader, so everything
+        // here is made package-private for them to get at.
+        val eager = ctx.mod.exports.filter { it.kind == Node.ExternalKind.FUNCTION }.map { it.index }.toSet() +
+            listOfNotNull(ctx.mod.startFuncIndex)
+        ctx.mod.funcs.indices.map { ctx.importFuncs.size + it }.filterNot(eager::contains).forEach { index ->
+            val funcType = ctx.funcTypeAtIndex(index)
+            val methodIndex = ctx.cls.methods.indexOfFirst {
+                it.name == ctx.funcName(index) && it.desc == funcType.asmDesc
+            }
+            val method = ctx.cls.methods[methodIndex]
+            val bodyRef = ctx.lazyFuncRef(index)
+            method.access = Opcodes.ACC_STATIC
+            method.desc = "(" + ctx.thisRef.asmDesc + method.desc.substring(1)
+            ctx.lazyFuncClasses += ClassNode().also {
+                it.version = Opcodes.V1_8
+                it.access = Opcodes.ACC_FINAL + Opcodes.ACC_SUPER + Opcodes.ACC_SYNTHETIC
+                it.name = bodyRef.asmName
+                it.superName = Object::class.ref.asmName
+                it.methods.add(method)
+            }
+            ctx.cls.methods[methodIndex] = funcStub(ctx, index,
+                MethodInsnNode(Opcodes.INVOKESTATIC, bodyRef.asmName, method.name, method.desc, false))
+        }
+        ctx.cls.fields.forEach { it.access = it.access and Opcodes.ACC_PRIVATE.inv() }
+        ctx.cls.methods.forEach { it.access = it.access and Opcodes.ACC_PRIVATE.inv() }
+    }
+
+    fun partitionFuncs(ctx: ClsContext) {
+        // The funcs are moved to static methods in part classes that take the module as their first param, like lazy
+        // funcs, but every call to them is changed to call the part directly. Funcs in the table are bound by name, so
+        // those leave a func behind that calls the part. The parts are in the same package and loader, so everything
+        // here is made package-private for them to get at.
+        val tableFuncs = ctx.mod.elems.flatMap { it.funcIndices }.toSet()
+        val calls = mutableMapOf<String, MethodInsnNode>()
+        funcPartitions(ctx).forEachIndexed { part, indices ->
+            val partRef = ctx.funcPartRef(part)
+            val partCls = ClassNode().also {
+                it.version = Opcodes.V1_8
+                it.access = Opcodes.ACC_FINAL + Opcodes.ACC_SUPER + Opcodes.ACC_SYNTHETIC
+                it.name = partRef.asmName
+                it.superName = Object::class.ref.asmName
+            }
+            indices.forEach { index ->
+                val funcType = ctx.funcTypeAtIndex(index)
+                val methodIndex = ctx.cls.methods.indexOfFirst {
+                    it.name == ctx.funcName(index) && it.desc == funcType.asmDesc
+                }
+                val method = ctx.cls.methods[methodIndex]
+                val call = MethodInsnNode(Opcodes.INVOKESTATIC, partRef.asmName, method.name,
+                    "(" + ctx.thisRef.asmDesc + method.desc.substring(1), false)
+                calls[method.name + method.desc] = call
+                method.access = Opcodes.ACC_STATIC
+                method.desc = call.desc
+                partCls.methods.add(method)
+                if (tableFuncs.contains(index)) ctx.cls.methods[methodIndex] = funcStub(ctx, index, call)
+                else ctx.cls.methods.removeAt(methodIndex)
+            }
+            ctx.funcPartClasses += partCls
+        }
+        // The module is already first on the stack for the virtual calls, so they just become static ones
+        (ctx.cls.methods + ctx.funcPartClasses.flatMap { it.methods }).forEach { method ->
+            method.instructions.toArray().forEach { insn ->
+                if (insn is MethodInsnNode && insn.opcode == Opcodes.INVOKEVIRTUAL && insn.owner == ctx.thisRef.asmName)
+                    calls[insn.name + insn.desc]?.let { method.instructions.set(insn, it.clone(emptyMap())) }
+            }
+        }
+        ctx.cls.fields.forEach { it.access = it.access and Opcodes.ACC_PRIVATE.inv() }
+        ctx.cls.methods.forEach { it.access = it.access and Opcodes.ACC_PRIVATE.inv() }
+    }
+
+    fun funcPartitions(ctx: ClsContext): List<List<Int>> {
+        // Funcs are ordered by walking the calls both ways from each func not already reached, so callers and callees
+        // end up next to each other. That's then cut into parts with about the same number of insns.
+        val neighbors = ctx.mod.funcs.map { TreeSet<Int>() }
+        ctx.mod.funcs.forEachIndexed { caller, func ->
+            func.instructions.forEach { insn ->
+                val callee = (insn as? Node.Instr.Call)?.index?.minus(ctx.importFuncs.size)
+                if (callee != null && callee in neighbors.indices && callee != caller) {
+                    neighbors[caller] += callee
+                    neighbors[callee] += caller
+                }
+            }
+        }
+        val order = ArrayList<Int>(ctx.mod.funcs.size)
+        val reached = BooleanArray(ctx.mod.funcs.size)
+        ctx.mod.funcs.indices.forEach { start ->
+            if (reached[start]) return@forEach
+            reached[start] = true
+            var next = order.size
+            order += start
+            while (next < order.size) neighbors[order[next++]].forEach {
+                if (!reached[it]) { reached[it] = true; order += it }
+            }
+        }
+        val sizes = ctx.mod.funcs.map { it.instructions.size + 1 }
+        val partSize = (sizes.sum() + ctx.funcPartitions - 1) / ctx.funcPartitions
+        val parts = mutableListOf(mutableListOf<Int>())
+        var size = 0
+        order.forEach { func ->
+            if (size >= partSize && parts.size < ctx.funcPartitions) { parts += mutableListOf<Int>(); size = 0 }
+            parts.last() += ctx.importFuncs.size + func
+            size += sizes[func]
+        }
+        return parts.filter { it.isNotEmpty() }
+    }
+
+    // A func that just calls the given static call with the module and the func's params
+    fun funcStub(ctx: ClsContext, index: Int, call: MethodInsnNode): MethodNode {
+        val funcType = ctx.funcTypeAtIndex(index)
+        val stub = MethodNode(0, ctx.funcName(index), funcType.asmDesc, null, null).
+            addInsns(VarInsnNode(Opcodes.ALOAD, 0))
+        funcType.params.fold(1) { local, param ->
+            stub.addInsns(VarInsnNode(param.typeRef.asm.getOpcode(Opcodes.ILOAD), local))
+            local + param.typeRef.stackSize
+        }
+        return stub.addInsns(call, InsnNode((funcType.ret?.typeRef?.asm ?: Type.VOID_TYPE).getOpcode(Opcodes.IRETURN)))
+    }
+
     fun addAnnotations(ctx: ClsContext) {
         val annotationVals = mutableListOf<Any>()
         ctx.modName?.let { annotationVals.addAll(listOf("name", it)) }
@@ -0,0 +1,370 @@
+package asmble.compile.jvm
+
+import asmble.ast.Node
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.*
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.reflect.KClass
+import kotlin.reflect.KFunction
+import kotlin.reflect.jvm.javaMethod
+
+/**
+ * A [Mem] backed by a plain heap byte array so that memory is allocated and reclaimed like any other short-lived
+ * object instead of as native memory. Multi-byte values are read and written via `MethodHandles.byteArrayViewVarHandle`
+ * in little endian order (so this requires Java 9+ at runtime). Since an array cannot carry a separate limit, the
+ * array is allocated as the capacity plus four extra trailing bytes that hold the current limit as a little endian
+ * int. Compiled classes cache the limit in a field for bounds checks and only read it from the array past the cached
+ * one. [allocate], [limit], and [limitAndCapacity] can be used to work with these arrays outside of compiled code. The
+ * index handling is reused from [ByteBufferMem].
+ */
+open class ByteArrayMem : ByteBufferMem(direct = false) {
+    override val memType = ByteArray::class.ref
+
+    override fun limitAndCapacity(instance: Any) =
+        if (instance !is ByteArray || instance.size < LIMIT_SIZE) error("Unrecognized memory instance: $instance")
+        else limit(instance) to instance.size - LIMIT_SIZE
+
+    // The trailing limit comes along with the copy
+    override fun fork(instance: Any): Any =
+        if (instance !is ByteArray || instance.size < LIMIT_SIZE) error("Unrecognized memory instance: $instance")
+        else instance.copyOf()
+
+    fun allocate(limit: Int, capacity: Int) = ByteArray(capacity + LIMIT_SIZE).also {
+        require(limit in 0..capacity) { "Limit $limit not in capacity $capacity" }
+        ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN).putInt(capacity, limit)
+    }
+
+    fun limit(mem: ByteArray) = ByteBuffer.wrap(mem).order(ByteOrder.LITTLE_ENDIAN).getInt(mem.size - LIMIT_SIZE)
+
+    override fun create(func: Func) = func.popExpecting(Int::class.ref).addInsns(
+        LIMIT_SIZE.const,
+        InsnNode(Opcodes.IADD),
+        IntInsnNode(Opcodes.NEWARRAY, Opcodes.T_BYTE)
+    ).push(memType)
+
+    override fun init(func: Func, initial: Int) = func.popExpecting(memType).addInsns(
+        // Set the trailing limit to initial. We don't have the class here for the var handle so we just set the
+        // non-zero bytes of the little endian int individually.
+        (0 until LIMIT_SIZE).map { ((initial * Mem.PAGE_SIZE) ushr (it * 8)) and 0xFF }.withIndex().
+            filter { (_, byte) -> byte != 0 }.flatMap { (index, byte) ->
+                listOf(
+                    InsnNode(Opcodes.DUP),
+                    InsnNode(Opcodes.DUP),
+                    InsnNode(Opcodes.ARRAYLENGTH),
+                    (LIMIT_SIZE - index).const,
+                    InsnNode(Opcodes.ISUB),
+                    byte.toByte().toInt().const,
+                    InsnNode(Opcodes.BASTORE)
+                )
+            }
+    ).push(memType)
+
+    override fun data(func: Func, bytes: ByteArray, buildOffset: (Func) -> Func) =
+        // We wrap the array up to the limit and use the same approach as the parent, so segments that don't fit under
+        // the limit fail the same way
+        func.popExpecting(memType).
+            addInsns(wrapToLimit()).
+            let(buildOffset).popExpecting(Int::class.ref).
+            addInsns(
+                forceFnType<ByteBuffer.(Int) -> Buffer>(Buffer::position).invokeVirtual(),
+                TypeInsnNode(Opcodes.CHECKCAST, ByteBuffer::class.ref.asmName)
+            ).addInsns(
+                bytes.chunked(16300).flatMap { bytes ->
+                    sequenceOf(
+                        LdcInsnNode(bytes.toString(Charsets.ISO_8859_1)),
+                        LdcInsnNode("ISO-8859-1"),
+                        MethodInsnNode(Opcodes.INVOKEVIRTUAL, String::class.ref.asmName,
+                            "getBytes", "(Ljava/lang/String;)[B", false),
+                        0.const,
+                        bytes.size.const,
+                        forceFnType<ByteBuffer.(ByteArray, Int, Int) -> ByteBuffer>(ByteBuffer::put).invokeVirtual()
+                    )
+                }.toList()
+            ).addInsns(
+                InsnNode(Opcodes.POP)
+            )
+
+    override fun dataFromBytes(
+        ctx: ClsContext,
+        func: Func,
+        bytes: ByteArray,
+        bytesOffset: Int,
+        pushBytes: (Func) -> Func,
+        buildOffset: (Func) -> Func
+    ) =
+        // Same as data except a single bulk put from the given array
+        func.popExpecting(memType).
+            addInsns(wrapToLimit()).
+            let(buildOffset).popExpecting(Int::class.ref).
+            addInsns(
+                forceFnType<ByteBuffer.(Int) -> Buffer>(Buffer::position).invokeVirtual(),
+                TypeInsnNode(Opcodes.CHECKCAST, ByteBuffer::class.ref.asmName)
+            ).
+            let(pushBytes).popExpecting(ByteArray::class.ref).
+            addInsns(
+                bytesOffset.const,
+                bytes.size.const,
+                forceFnType<ByteBuffer.(ByteArray, Int, Int) -> ByteBuffer>(ByteBuffer::put).invokeVirtual(),
+                InsnNode(Opcodes.POP)
+            )
+
+    // Replaces the mem on the stack with a buffer over it that ends at the limit instead of the capacity (or the
+    // trailing limit). This is only for data, so the limit is read without the helpers that need the class.
+    fun wrapToLimit() = listOf(
+        InsnNode(Opcodes.DUP), // [mem, mem]
+        InsnNode(Opcodes.DUP), // [mem, mem, mem]
+        InsnNode(Opcodes.ARRAYLENGTH), // [mem, mem, len]
+        InsnNode(Opcodes.SWAP), // [mem, len, mem]
+        forceFnType<(ByteArray) -> ByteBuffer>(ByteBuffer::wrap).invokeStatic(), // [mem, len, buf]
+        ByteOrder::LITTLE_ENDIAN.getStatic(), // [mem, len, buf, order]
+        forceFnType<ByteBuffer.(ByteOrder) -> ByteBuffer>(ByteBuffer::order).invokeVirtual(), // [mem, len, buf]
+        InsnNode(Opcodes.SWAP), // [mem, buf, len]
+        LIMIT_SIZE.const, // [mem, buf, len, limsize]
+        InsnNode(Opcodes.ISUB), // [mem, buf, cap]
+        forceFnType<ByteBuffer.(Int) -> Int>(ByteBuffer::getInt).invokeVirtual(), // [mem, lim]
+        0.const, // [mem, lim, 0]
+        InsnNode(Opcodes.SWAP), // [mem, 0, lim]
+        forceFnType<(ByteArray, Int, Int) -> ByteBuffer>(ByteBuffer::wrap).invokeStatic() // [buf]
+    )
+
+    override fun currentMemory(ctx: FuncContext, func: Func) = func.popExpecting(memType).addInsns(
+        getOrCreateLimitMethod(ctx.cls).let {
+            MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, it.name, it.desc, false)
+        },
+        Mem.PAGE_SIZE.const,
+        InsnNode(Opcodes.IDIV)
+    ).push(Int::class.ref)
+
+    override fun growMemory(ctx: FuncContext, func: Func) = getOrCreateGrowMemoryMethod(ctx, func).let { method ->
+        func.popExpecting(Int::class.ref).popExpecting(memType).addInsns(
+            MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, method.name, method.desc, false)
+        ).push(Int::class.ref)
+    }
+
+    override fun getOrCreateGrowMemoryMethod(ctx: FuncContext, func: Func): MethodNode =
+        ctx.cls.cls.methods.find { (it as? MethodNode)?.name == "\$\$growMemory" }?.let { it as MethodNode } ?: run {
+            val okLim = LabelNode()
+            val node = MethodNode(
+                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+                "\$\$growMemory", Int::class.ref.asMethodRetDesc(memType, Int::class.ref), null, null
+            ).addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0), // [mem]
+                getOrCreateLimitMethod(ctx.cls).let {
+                    MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, it.name, it.desc, false)
+                }, // [lim]
+                InsnNode(Opcodes.DUP), // [lim, lim]
+                // We have to use longs because the page multiplication can overflow an int
+                InsnNode(Opcodes.I2L), // [lim, limL]
+                VarInsnNode(Opcodes.ILOAD, 1), // [lim, limL, pagedelt]
+                InsnNode(Opcodes.I2L), // [lim, limL, pagedeltL]
+                Mem.PAGE_SIZE.toLong().const, // [lim, limL, pagedeltL, pagesizeL]
+                InsnNode(Opcodes.LMUL), // [lim, limL, memdeltL]
+                InsnNode(Opcodes.LADD), // [lim, newlimL]
+                InsnNode(Opcodes.DUP2), // [lim, newlimL, newlimL]
+                VarInsnNode(Opcodes.ALOAD, 0), // [lim, newlimL, newlimL, mem]
+                InsnNode(Opcodes.ARRAYLENGTH), // [lim, newlimL, newlimL, len]
+                LIMIT_SIZE.const, // [lim, newlimL, newlimL, len, limsize]
+                InsnNode(Opcodes.ISUB), // [lim, newlimL, newlimL, cap]
+                InsnNode(Opcodes.I2L), // [lim, newlimL, newlimL, capL]
+                InsnNode(Opcodes.LCMP), // [lim, newlimL, cmpres]
+                JumpInsnNode(Opcodes.IFLE, okLim), // [lim, newlimL]
+                InsnNode(Opcodes.POP2), InsnNode(Opcodes.POP),
+                (-1).const,
+                InsnNode(Opcodes.IRETURN),
+                okLim, // [lim, newlimL]
+                InsnNode(Opcodes.L2I), // [lim, newlim]
+                VarInsnNode(Opcodes.ISTORE, 2), // [lim]
+                getOrCreateVarHandleField(ctx.cls, Int::class.javaPrimitiveType!!), // [lim, vh]
+                VarInsnNode(Opcodes.ALOAD, 0), // [lim, vh, mem]
+                InsnNode(Opcodes.DUP), // [lim, vh, mem, mem]
+                InsnNode(Opcodes.ARRAYLENGTH), // [lim, vh, mem, len]
+                LIMIT_SIZE.const, // [lim, vh, mem, len, limsize]
+                InsnNode(Opcodes.ISUB), // [lim, vh, mem, cap]
+                VarInsnNode(Opcodes.ILOAD, 2), // [lim, vh, mem, cap, newlim]
+                varHandleSet(Int::class.javaPrimitiveType!!), // [lim]
+                Mem.PAGE_SIZE.const, // [lim, pagesize]
+                InsnNode(Opcodes.IDIV), // [limpages]
+                InsnNode(Opcodes.IRETURN)
+            )
+            // Serialized on the memory for shared memory like our parent's
+            if (ctx.cls.hasSharedMemory) node.synchronizedOn(0)
+            ctx.cls.cls.methods.add(node)
+            node
+        }
+
+    // The access methods are also given "this" for its cached limit
+    override fun bufferLoad(ctx: FuncContext, fn: KFunction<*>) =
+        getOrCreateAccessMethod(ctx.cls, fn.javaMethod!!.returnType, load = true).let { method ->
+            listOf(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, method.name, method.desc, false)
+            )
+        }
+
+    override fun bufferStore(ctx: FuncContext, name: String, valType: KClass<*>) =
+        getOrCreateAccessMethod(ctx.cls, valType.javaPrimitiveType!!, load = false).let { method ->
+            listOf(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, method.name, method.desc, false)
+            )
+        }
+
+    override fun bulkHelper(ctx: ClsContext, name: String) = super.bulkHelper(ctx, name + "Array")
+
+    override fun atomicLimit(ctx: ClsContext) = getOrCreateLimitMethod(ctx).let {
+        MethodInsnNode(Opcodes.INVOKESTATIC, ctx.thisRef.asmName, it.name, it.desc, false)
+    }
+
+    // Atomics use the same array views as the other accesses
+    override fun atomicVarHandle(ctx: ClsContext, primType: Class<*>) = getOrCreateVarHandleField(ctx, primType)
+
+    // Creates a static (byte[], int, this)T for loads or a static (byte[], int, T, this)byte[] for stores. The store
+    // returns the array so that we can keep the storeLeavesMemOnStack contract of our parent.
+    fun getOrCreateAccessMethod(ctx: ClsContext, primType: Class<*>, load: Boolean): MethodNode {
+        val name = "\$\$byteArray" + (if (load) "Get" else "Put") + primType.name.capitalize()
+        return ctx.cls.methods.find { (it as? MethodNode)?.name == name }?.let { it as MethodNode } ?: run {
+            val valTypeRef = primType.ref
+            val node = MethodNode(
+                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC, name,
+                if (load) valTypeRef.asMethodRetDesc(memType, Int::class.ref, ctx.thisRef)
+                else memType.asMethodRetDesc(memType, Int::class.ref, valTypeRef, ctx.thisRef),
+                null, null
+            )
+            val selfLocal = if (load) 2 else 2 + valTypeRef.asm.size
+            // Bytes are just array accesses, everything else goes through the var handle
+            val isByte = primType == Byte::class.javaPrimitiveType
+            if (!isByte) node.addInsns(getOrCreateVarHandleField(ctx, primType))
+            node.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                VarInsnNode(Opcodes.ALOAD, 0),
+                VarInsnNode(Opcodes.ILOAD, 1),
+                valTypeRef.asm.byteSize.const,
+                VarInsnNode(Opcodes.ALOAD, selfLocal),
+                getOrCreateIndexMethod(ctx).let {
+                    MethodInsnNode(Opcodes.INVOKESTATIC, ctx.thisRef.asmName, it.name, it.desc, false)
+                }
+            )
+            if (load) node.addInsns(
+                if (isByte) InsnNode(Opcodes.BALOAD) else varHandleGet(primType),
+                InsnNode(valTypeRef.asm.getOpcode(Opcodes.IRETURN))
+            ) else node.addInsns(
+                VarInsnNode(valTypeRef.asm.getOpcode(Opcodes.ILOAD), 2),
+                if (isByte) InsnNode(Opcodes.BASTORE) else varHandleSet(primType),
+                VarInsnNode(Opcodes.ALOAD, 0),
+                InsnNode(Opcodes.ARETURN)
+            )
+            ctx.cls.methods.add(node)
+            node
+        }
+    }
+
+    // Creates a static (byte[] mem, int index, int size, this)int that checks the index against the limit and returns
+    // it. The limit is cached in a field of "this" so it's not read from the array every access. Memory can be grown
+    // by any module that has it, so past the cached limit the real one is read and cached before failing. The limit
+    // never shrinks, so a stale cache can only cost that extra read.
+    fun getOrCreateIndexMethod(ctx: ClsContext): MethodNode =
+        ctx.cls.methods.find { (it as? MethodNode)?.name == "\$\$byteArrayIndex" }?.let { it as MethodNode } ?: run {
+            val cachedLimit = "\$\$byteArrayCachedLimit"
+            ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_SYNTHETIC, cachedLimit, "I", null, null))
+            // One unsigned check: index as unsigned long must be <= lim - size
+            fun checkAgainst(lim: List<AbstractInsnNode>, outOfBounds: LabelNode) = listOf(
+                VarInsnNode(Opcodes.ILOAD, 1), // [index]
+                InsnNode(Opcodes.I2L), // [indexL]
+                0xFFFFFFFFL.const, // [indexL, mask]
+                InsnNode(Opcodes.LAND) // [uindexL]
+            ) + lim + listOf( // [uindexL, lim]
+                VarInsnNode(Opcodes.ILOAD, 2), // [uindexL, lim, size]
+                InsnNode(Opcodes.ISUB), // [uindexL, maxindex]
+                InsnNode(Opcodes.I2L), // [uindexL, maxindexL]
+                InsnNode(Opcodes.LCMP), // [cmpres]
+                JumpInsnNode(Opcodes.IFGT, outOfBounds), // []
+                VarInsnNode(Opcodes.ILOAD, 1), // [index]
+                InsnNode(Opcodes.IRETURN)
+            )
+            val pastCached = LabelNode()
+            val outOfBounds = LabelNode()
+            val node = MethodNode(
+                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC, "\$\$byteArrayIndex",
+                Int::class.ref.asMethodRetDesc(memType, Int::class.ref, Int::class.ref, ctx.thisRef), null, null
+            ).addInsns(*checkAgainst(listOf(
+                VarInsnNode(Opcodes.ALOAD, 3),
+                FieldInsnNode(Opcodes.GETFIELD, ctx.thisRef.asmName, cachedLimit, "I")
+            ), pastCached).toTypedArray()).addInsns(
+                pastCached,
+                VarInsnNode(Opcodes.ALOAD, 0), // [mem]
+                getOrCreateLimitMethod(ctx).let {
+                    MethodInsnNode(Opcodes.INVOKESTATIC, ctx.thisRef.asmName, it.name, it.desc, false)
+                }, // [lim]
+                VarInsnNode(Opcodes.ISTORE, 4), // []
+                VarInsnNode(Opcodes.ALOAD, 3), // [this]
+                VarInsnNode(Opcodes.ILOAD, 4), // [this, lim]
+                FieldInsnNode(Opcodes.PUTFIELD, ctx.thisRef.asmName, cachedLimit, "I") // []
+            )
+            // Checked against what we read, not the field, since another thread may have cached an older one
+            node.addInsns(*checkAgainst(listOf(VarInsnNode(Opcodes.ILOAD, 4)), outOfBounds).toTypedArray()).addInsns(
+                outOfBounds
+            ).addInsns(*IndexOutOfBoundsException::class.athrow("Memory access out of bounds").toTypedArray())
+            ctx.cls.methods.add(node)
+            node
+        }
+
+    // Creates a static (byte[] mem)int that reads the trailing limit
+    fun getOrCreateLimitMethod(ctx: ClsContext): MethodNode =
+        ctx.cls.methods.find { (it as? MethodNode)?.name == "\$\$byteArrayLimit" }?.let { it as MethodNode } ?: run {
+            val node = MethodNode(
+                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC, "\$\$byteArrayLimit",
+                Int::class.ref.asMethodRetDesc(memType), null, null
+            ).addInsns(
+                getOrCreateVarHandleField(ctx, Int::class.javaPrimitiveType!!),
+                VarInsnNode(Opcodes.ALOAD, 0),
+                InsnNode(Opcodes.DUP),
+                InsnNode(Opcodes.ARRAYLENGTH),
+                LIMIT_SIZE.const,
+                InsnNode(Opcodes.ISUB),
+                varHandleGet(Int::class.javaPrimitiveType!!),
+                InsnNode(Opcodes.IRETURN)
+            )
+            ctx.cls.methods.add(node)
+            node
+        }
+
+    // Adds a static var handle field for the given primitive set in the static init if not already there, and
+    // returns the getter for it
+    fun getOrCreateVarHandleField(ctx: ClsContext, primType: Class<*>): FieldInsnNode {
+        val getHandle = FieldInsnNode(Opcodes.GETSTATIC, ctx.thisRef.asmName,
+            "\$\$byteArray" + primType.name.capitalize() + "Handle", "L$VAR_HANDLE_CLASS_NAME;")
+        if (ctx.cls.fields.any { (it as? FieldNode)?.name == getHandle.name }) return getHandle
+        ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL +
+            Opcodes.ACC_SYNTHETIC, getHandle.name, getHandle.desc, null, null))
+        ctx.cls.addStaticInitInsns(
+            LdcInsnNode(Type.getType("[" + primType.ref.asmDesc)),
+            ByteOrder::LITTLE_ENDIAN.getStatic(),
+            MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "byteArrayViewVarHandle",
+                "(Ljava/lang/Class;Ljava/nio/ByteOrder;)L$VAR_HANDLE_CLASS_NAME;", false),
+            FieldInsnNode(Opcodes.PUTSTATIC, getHandle.owner, getHandle.name, getHandle.desc)
+        )
+        return getHandle
+    }
+
+    // Var handle methods are signature polymorphic so we give the exact desc we're using
+    fun varHandleGet(primType: Class<*>) = MethodInsnNode(Opcodes.INVOKEVIRTUAL, VAR_HANDLE_CLASS_NAME, "get",
+        primType.ref.asMethodRetDesc(memType, Int::class.ref), false)
+
+    fun varHandleSet(primType: Class<*>) = MethodInsnNode(Opcodes.INVOKEVIRTUAL, VAR_HANDLE_CLASS_NAME, "set",
+        Void::class.ref.asMethodRetDesc(memType, Int::class.ref, primType.ref), false)
+
+    val Type.byteSize get() = when (this) {
+        Type.BYTE_TYPE -> 1
+        Type.SHORT_TYPE -> 2
+        Type.LONG_TYPE, Type.DOUBLE_TYPE -> 8
+        else -> 4
+    }
+
+    companion object : ByteArrayMem() {
+        const val LIMIT_SIZE = 4
+        const val VAR_HANDLE_CLASS_NAME = "java/lang/invoke/VarHandle"
+    }
+}
@@ -17,6 +17,15 @@ open class ByteBufferMem(val direct: Boolean = true) : Mem {
         if (instance !is ByteBuffer) error("Unrecognized memory instance: $instance")
         else instance.limit() to instance.capacity()
 
+    override fun fork(instance: Any): Any =
+        if (instance !is ByteBuffer) error("Unrecognized memory instance: $instance")
+        else (if (instance.isDirect) ByteBuffer.allocateDirect(instance.capacity())
+            else ByteBuffer.allocate(instance.capacity())).also {
+            // No sharing to do here, just copy up to the limit. Casts are for Java 8 compat.
+            it.put(instance.duplicate().also { (it as Buffer).position(0) })
+            (it as Buffer).flip()
+        }.order(ByteOrder.LITTLE_ENDIAN)
+
     override fun create(func: Func) = func.popExpecting(Int::class.ref).addInsns(
         (if (direct) ByteBuffer::allocateDirect else ByteBuffer::allocate).invokeStatic()
     ).push(memType)
@@ -68,6 +77,30 @@ open class ByteBufferMem(val direct: Boolean = true) : Mem {
                 InsnNode(Opcodes.POP)
             )
 
+    override fun dataFromBytes(
+        ctx: ClsContext,
+        func: Func,
+        bytes: ByteArray,
+        bytesOffset: Int,
+        pushBytes: (Func) -> Func,
+        buildOffset: (Func) -> Func
+    ) =
+        // Same as data except a single bulk put from the given array
+        func.popExpecting(memType).
+            addInsns(ByteBuffer::duplicate.invokeVirtual()).
+            let(buildOffset).popExpecting(Int::class.ref).
+            addInsns(
+                forceFnType<ByteBuffer.(Int) -> Buffer>(Buffer::position).invokeVirtual(),
+                TypeInsnNode(Opcodes.CHECKCAST, ByteBuffer::class.ref.asmName)
+            ).
+            let(pushBytes).popExpecting(ByteArray::class.ref).
+            addInsns(
+                bytesOffset.const,
+                bytes.size.const,
+                forceFnType<ByteBuffer.(ByteArray, Int, Int) -> ByteBuffer>(ByteBuffer::put).invokeVirtual(),
+                InsnNode(Opcodes.POP)
+            )
+
     override fun currentMemory(ctx: FuncContext, func: Func) = func.popExpecting(memType).addInsns(
         forceFnType<ByteBuffer.() -> Int>(ByteBuffer::limit).invokeVirtual(),
         Mem.PAGE_SIZE.const,
@@ -81,7 +114,7 @@ open class ByteBufferMem(val direct: Boolean = true) : Mem {
         ).push(Int::class.ref)
     }
 
-    fun getOrCreateGrowMemoryMethod(ctx: FuncContext, func: Func): MethodNode =
+    open fun getOrCreateGrowMemoryMethod(ctx: FuncContext, func: Func): MethodNode =
         ctx.cls.cls.methods.find { (it as? MethodNode)?.name == "\$\$growMemory" }?.let { it as MethodNode } ?: run {
             val okLim = LabelNode()
             val node = MethodNode(
@@ -117,11 +150,20 @@ open class ByteBufferMem(val direct: Boolean = true) : Mem {
                 InsnNode(Opcodes.IDIV), // [limpages]
                 InsnNode(Opcodes.IRETURN)
             )
+            // Shared memory can be grown by any module that imports it, so the limit update is serialized on the memory
+            // itself, the same lock the interpreter uses
+            if (ctx.cls.hasSharedMemory) node.synchronizedOn(0)
             ctx.cls.cls.methods.add(node)
             node
         }
 
-    override fun loadOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset): Func {
+    override fun loadOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset) =
+        loadOp(ctx, func, insn, checked = true)
+
+    override fun uncheckedLoadOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset) =
+        loadOp(ctx, func, insn, checked = false)
+
+    open fun loadOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset, checked: Boolean): Func {
         // Ug, some tests expect this to be a runtime failure so we feature flagged it
         if (ctx.cls.eagerFailLargeMemOffset)
             require(insn.offset <= Int.MAX_VALUE, { "Offsets > ${Int.MAX_VALUE} unsupported" }).let { this }
@@ -139,7 +181,9 @@ open class ByteBufferMem(val direct: Boolean = true) : Mem {
                             }
                         }
                     }
-                }).popExpecting(memType).addInsns((fn as KFunction<*>).invokeVirtual())
+                }).popExpecting(memType).addInsns(
+                    if (checked) bufferLoad(ctx, fn as KFunction<*>) else uncheckedBufferLoad(ctx, fn as KFunction<*>)
+                )
             }.push(retClass.ref)
         fun Func.loadI32(fn: ByteBuffer.(Int) -> Any) =
             this.load(fn, Int::class)
@@ -195,11 +239,17 @@ open class ByteBufferMem(val direct: Boolean = true) : Mem {
     }
 
     override fun storeOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset) =
+        storeOp(ctx, func, insn, checked = true)
+
+    override fun uncheckedStoreOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset) =
+        storeOp(ctx, func, insn, checked = false)
+
+    open fun storeOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset, checked: Boolean) =
         func.let { func ->
             // Ug, some tests expect this to be a runtime failure so we feature flagged it
             if (ctx.cls.eagerFailLargeMemOffset)
                 require(insn.offset <= Int.MAX_VALUE, { "Offsets > ${Int.MAX_VALUE} unsupported" }).let { this }
-            fun Func.store(fn: MethodInsnNode, inClass: KClass<*>) =
+            fun Func.store(fn: List<AbstractInsnNode>, inClass: KClass<*>) =
                 // Stack comes in as mem + index + value which is good...
                 // However, if the offset is not 0, we have to add to index which means
                 // a swap, add, swap back.
@@ -224,12 +274,10 @@ open class ByteBufferMem(val direct: Boolean = true) : Mem {
                         popExpecting(Int::class.ref).
                         popExpecting(memType).
                         addInsns(fn).
-                        push(ByteBuffer::class.ref)
+                        push(memType)
                 }
-            // Ug, I hate these as strings but can't introspect Kotlin overloads
             fun bufStoreFunc(name: String, valType: KClass<*>) =
-                MethodInsnNode(Opcodes.INVOKEVIRTUAL, ByteBuffer::class.ref.asmName, name,
-                    ByteBuffer::class.ref.asMethodRetDesc(Int::class.ref, valType.ref), false)
+                if (checked) bufferStore(ctx, name, valType) else uncheckedBufferStore(ctx, name, valType)
             fun Func.changeI64ToI32() =
                 this.popExpecting(Long::class.ref).push(Int::class.ref)
             when (insn) {
@@ -258,7 +306,143 @@ open class ByteBufferMem(val direct: Boolean = true) : Mem {
             }
         }
 
+    // Called with the mem and the index on the stack, must leave only the loaded value
+    open fun bufferLoad(ctx: FuncContext, fn: KFunction<*>): List<AbstractInsnNode> = listOf(fn.invokeVirtual())
+
+    // Called with the mem, the index, and the value on the stack, must leave only the mem
+    open fun bufferStore(ctx: FuncContext, name: String, valType: KClass<*>): List<AbstractInsnNode> = listOf(
+        // Ug, I hate these as strings but can't introspect Kotlin overloads
+        MethodInsnNode(Opcodes.INVOKEVIRTUAL, ByteBuffer::class.ref.asmName, name,
+            ByteBuffer::class.ref.asMethodRetDesc(Int::class.ref, valType.ref), false)
+    )
+
+    // Same as bufferLoad but the access is known to be in bounds
+    open fun uncheckedBufferLoad(ctx: FuncContext, fn: KFunction<*>) = bufferLoad(ctx, fn)
+
+    // Same as bufferStore but the access is known to be in bounds
+    open fun uncheckedBufferStore(ctx: FuncContext, name: String, valType: KClass<*>) = bufferStore(ctx, name, valType)
+
+    override fun memoryCopy(ctx: FuncContext, func: Func) =
+        func.popExpectingMulti(memType, Int::class.ref, Int::class.ref, Int::class.ref).addInsns(
+            bulkHelper(ctx.cls, "copy")
+        )
+
+    override fun memoryFill(ctx: FuncContext, func: Func) =
+        func.popExpectingMulti(memType, Int::class.ref, Int::class.ref, Int::class.ref).addInsns(
+            bulkHelper(ctx.cls, "fill")
+        )
+
+    override fun memoryInit(ctx: FuncContext, func: Func) =
+        func.popExpectingMulti(memType, Int::class.ref, Int::class.ref, Int::class.ref, ByteArray::class.ref).addInsns(
+            bulkHelper(ctx.cls, "init")
+        )
+
+    // Called with the bulk op's full stack, must leave nothing. Defaults to the helper of the given name.
+    open fun bulkHelper(ctx: ClsContext, name: String): AbstractInsnNode =
+        ctx.helperCall(BulkMemoryHelpers::class.java, "bulk", name)
+
+    override fun atomicOp(ctx: FuncContext, func: Func, insn: Node.Instr.AtomicAccess) = insn.accessOp.let { op ->
+        val valType = op.valueType.typeRef
+        val typeName = op.valueType.jclass.name.capitalize()
+        val size = (op.argBits / 8).const
+        when (op.kind) {
+            "load" -> func.popExpectingMulti(memType, Int::class.ref).addInsns(
+                insn.offset.const, size, atomicHelper(ctx.cls, "load$typeName")
+            )
+            "store" -> func.popExpectingMulti(memType, Int::class.ref, valType).addInsns(
+                insn.offset.const, size, atomicHelper(ctx.cls, "store$typeName")
+            )
+            "cmpxchg" -> func.popExpectingMulti(memType, Int::class.ref, valType, valType).addInsns(
+                insn.offset.const, size, atomicHelper(ctx.cls, "cmpxchg$typeName")
+            )
+            "notify" -> func.popExpectingMulti(memType, Int::class.ref, Int::class.ref).addInsns(
+                insn.offset.const, atomicHelper(ctx.cls, "notify")
+            )
+            "wait" -> func.popExpectingMulti(memType, Int::class.ref, valType, Long::class.ref).addInsns(
+                insn.offset.const,
+                (if (ctx.cls.hasSharedMemory) 1 else 0).const,
+                atomicHelper(ctx.cls, "wait" + op.argBits)
+            )
+            else -> func.popExpectingMulti(memType, Int::class.ref, valType).addInsns(
+                insn.offset.const, size, atomicRmwOps.indexOf(op.kind).const,
+                atomicHelper(ctx.cls, "rmw$typeName")
+            )
+        }.let {
+            // Waits give an i32 status regardless of what they compare
+            if (!op.hasResult) it else it.push(if (op.kind == "wait") Int::class.ref else valType)
+        }
+    }
+
+    // Called with the atomic op's full stack plus the helper's trailing constants. Defaults to the helper of the
+    // given name with its native methods built by getOrCreateAtomicPrimitive.
+    open fun atomicHelper(ctx: ClsContext, name: String): AbstractInsnNode =
+        ctx.helperCall(AtomicMemHelpers::class.java, "atomic", name) { getOrCreateAtomicPrimitive(ctx, it) }
+
+    // Builds the atomic helpers' native methods. They take the mem as an object like the helpers do. The limit is
+    // read with atomicLimit and the rest are the var handle access mode of the same name (e.g. intGetVolatile is
+    // getVolatile on the int view) with the exact desc for the mem type.
+    fun getOrCreateAtomicPrimitive(ctx: ClsContext, name: String): MethodInsnNode {
+        val desc = Type.getMethodDescriptor(AtomicMemHelpers::class.java.declaredMethods.first { it.name == name })
+        val call = MethodInsnNode(Opcodes.INVOKESTATIC, ctx.thisRef.asmName,
+            "\$\$atomic" + name.capitalize(), desc, false)
+        if (ctx.cls.methods.any { (it as MethodNode).name == call.name }) return call
+        val retType = Type.getReturnType(desc)
+        val method = MethodNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+            call.name, desc, null, null)
+        if (name == "limit") method.addInsns(
+            VarInsnNode(Opcodes.ALOAD, 0),
+            TypeInsnNode(Opcodes.CHECKCAST, memType.asmName),
+            atomicLimit(ctx),
+            InsnNode(Opcodes.IRETURN)
+        ) else {
+            val primName = name.takeWhile { it.isLowerCase() }
+            val valTypes = Type.getArgumentTypes(desc).drop(2)
+            method.addInsns(
+                atomicVarHandle(ctx, if (primName == "int") Int::class.javaPrimitiveType!!
+                    else Long::class.javaPrimitiveType!!),
+                VarInsnNode(Opcodes.ALOAD, 0),
+                TypeInsnNode(Opcodes.CHECKCAST, memType.asmName),
+                VarInsnNode(Opcodes.ILOAD, 1),
+                *valTypes.mapIndexed { index, valType ->
+                    VarInsnNode(valType.getOpcode(Opcodes.ILOAD), 2 + index * valType.size)
+                }.toTypedArray(),
+                MethodInsnNode(Opcodes.INVOKEVIRTUAL, ByteArrayMem.VAR_HANDLE_CLASS_NAME,
+                    name.removePrefix(primName).decapitalize(),
+                    Type.getMethodDescriptor(retType, memType.asm, Type.INT_TYPE, *valTypes.toTypedArray()), false),
+                InsnNode(retType.getOpcode(Opcodes.IRETURN))
+            )
+        }
+        ctx.cls.methods.add(method)
+        return call
+    }
+
+    // Replaces the mem on the stack with its limit for the atomic helpers
+    open fun atomicLimit(ctx: ClsContext): AbstractInsnNode =
+        forceFnType<ByteBuffer.() -> Int>(ByteBuffer::limit).invokeVirtual()
+
+    // Gets the var handle the atomic helpers use for the int or long view of the mem type
+    open fun atomicVarHandle(ctx: ClsContext, primType: Class<*>): AbstractInsnNode {
+        val getHandle = FieldInsnNode(Opcodes.GETSTATIC, ctx.thisRef.asmName,
+            "\$\$byteBuffer" + primType.name.capitalize() + "Handle", "L${ByteArrayMem.VAR_HANDLE_CLASS_NAME};")
+        if (ctx.cls.fields.any { (it as? FieldNode)?.name == getHandle.name }) return getHandle
+        ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL +
+            Opcodes.ACC_SYNTHETIC, getHandle.name, getHandle.desc, null, null))
+        ctx.cls.addStaticInitInsns(
+            LdcInsnNode(Type.getType("[" + primType.ref.asmDesc)),
+            ByteOrder::LITTLE_ENDIAN.getStatic(),
+            MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "byteBufferViewVarHandle",
+                "(Ljava/lang/Class;Ljava/nio/ByteOrder;)L${ByteArrayMem.VAR_HANDLE_CLASS_NAME};", false),
+            FieldInsnNode(Opcodes.PUTSTATIC, getHandle.owner, getHandle.name, getHandle.desc)
+        )
+        return getHandle
+    }
+
     override val storeLeavesMemOnStack get() = true
 
-    companion object : ByteBufferMem()
+    override val supportsSharedMemory get() = true
+
+    companion object : ByteBufferMem() {
+        // In the order of the rmw op codes in the atomic helpers
+        val atomicRmwOps = listOf("add", "sub", "and", "or", "xor", "xchg")
+    }
 }
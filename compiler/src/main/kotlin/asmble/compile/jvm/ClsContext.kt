@@ -1,14 +1,21 @@
 package asmble.compile.jvm
 
 import asmble.ast.Node
+import asmble.ast.opt.ConstantFolding
+import asmble.ast.opt.ConstantIndirectCalls
+import asmble.ast.opt.CopyPropagation
+import asmble.ast.opt.FuncPass
+import asmble.ast.opt.Inliner
+import asmble.ast.opt.UnreachableCodeRemoval
 import asmble.util.Either
 import asmble.util.Logger
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
 import org.objectweb.asm.tree.ClassNode
+import org.objectweb.asm.tree.FieldInsnNode
 import org.objectweb.asm.tree.MethodInsnNode
 import org.objectweb.asm.tree.MethodNode
-import java.util.*
+import java.lang.invoke.MethodHandle
 
 data class ClsContext(
     val packageName: String,
@@ -28,17 +35,113 @@ data class ClsContext(
     val accurateNanBits: Boolean = true,
     val checkSignedDivIntegerOverflow: Boolean = true,
     val jumpTableChunkSize: Int = 5000,
-    val includeBinary: Boolean = false
+    val includeBinary: Boolean = false,
+    val includeForkConstructor: Boolean = false,
+    val dataAsResource: Boolean = false,
+    val deflateDataResource: Boolean = false,
+    val hoistLoopRangeChecks: Boolean = true,
+    val funcParallelism: Int = 1,
+    val foldConstants: Boolean = false,
+    val removeUnreachableCode: Boolean = false,
+    val propagateLocalCopies: Boolean = false,
+    // Zero to not inline
+    val inlineMaxInsns: Int = 0,
+    val resolveConstantIndirectCalls: Boolean = false,
+    // How many different funcs each indirect call site caches before always looking them up, zero for no caching
+    val indirectCacheSize: Int = 0,
+    // Largest estimated size in bytes of a switch that statically dispatches indirect calls into a private table, zero
+    // to always use call sites. At most 8000 (HotSpot's huge method limit) keeps them JIT compiled.
+    val staticIndirectDispatchMaxSize: Int = 0,
+    // Func and global imports as an interface per import module instead of method handles (not for the linker)
+    val importInterfaces: Boolean = false,
+    // An interface of all exports, with factories for each constructor, that the class implements
+    val exportInterface: Boolean = false,
+    // A "<export>Batch" method for each func export that calls it over columns of args in arrays
+    val exportBatchMethods: Boolean = false,
+    // Each non-exported func in its own class that is only loaded when first called, making members package-private
+    val lazyFuncs: Boolean = false,
+    // Methods with an estimated size in bytes over this are split before the class is written. At most 8000 (HotSpot's
+    // huge method limit, see AsmToBinary.HUGE_METHOD_SIZE) keeps large funcs JIT compiled. The default only splits
+    // methods that are too large for a class file.
+    val maxMethodSize: Int = AsmToBinary.MAX_CODE_SIZE,
+    // How many classes to spread the funcs over for modules too large for one, keeping funcs that call each other
+    // together. Calls become static calls on the parts, and members are package-private. Ignored with lazyFuncs.
+    val funcPartitions: Int = 1,
+    val extraFuncPasses: List<FuncPass> = emptyList()
 ) : Logger by logger {
     val importFuncs: List<Node.Import> by lazy { mod.imports.filter { it.kind is Node.Import.Kind.Func } }
     val importGlobals: List<Node.Import> by lazy { mod.imports.filter { it.kind is Node.Import.Kind.Global } }
+    // The classes of the lazy funcs, filled in after the module class is built
+    val lazyFuncClasses = mutableListOf<ClassNode>()
+    // The classes of the func partitions, filled in after the module class is built
+    val funcPartClasses = mutableListOf<ClassNode>()
     val thisRef = TypeRef(Type.getObjectType((packageName.replace('.', '/') + "/$className").trimStart('/')))
     val hasMemory: Boolean by lazy {
         mod.memories.isNotEmpty() || mod.imports.any { it.kind is Node.Import.Kind.Memory }
     }
+    val hasSharedMemory: Boolean by lazy {
+        mod.memories.any { it.shared } ||
+            mod.imports.any { (it.kind as? Node.Import.Kind.Memory)?.type?.shared == true }
+    }
+    // The modules with func or global imports, in order, that each have an interface if importInterfaces is set
+    val importInterfaceModules: List<String> by lazy {
+        mod.imports.filter { it.kind is Node.Import.Kind.Func || it.kind is Node.Import.Kind.Global }.
+            map { it.module }.distinct()
+    }
+    val importInterfaceNames: List<String> by lazy {
+        // The export interface has its own name
+        val seen = if (exportInterface) mutableSetOf("Exports") else mutableSetOf()
+        importInterfaceModules.map { module ->
+            var name = module.javaIdent.capitalize()
+            var nameIndex = 0
+            while (!seen.add(name)) name = module.javaIdent.capitalize() + (nameIndex++)
+            thisRef.asmName + "\$" + name
+        }
+    }
+    // The interface method names for each func import and each global import (without the get/set prefix)
+    val importInterfaceMethodNames: Pair<List<String>, List<String>> by lazy {
+        // Object's methods can't be used, some are final
+        val objectMethods = Any::class.java.methods.map { it.name }.toSet()
+        val seen = importInterfaceModules.associate { it to objectMethods.toMutableSet() }
+        val funcNames = mutableListOf<String>()
+        val globalNames = mutableListOf<String>()
+        mod.imports.forEach { import ->
+            val names = seen[import.module] ?: return@forEach
+            fun taken(name: String) =
+                if (import.kind !is Node.Import.Kind.Global) names.contains(name)
+                else names.contains("get" + name.capitalize()) || names.contains("set" + name.capitalize())
+            var name = import.field.javaIdent
+            var nameIndex = 0
+            while (taken(name)) name = import.field.javaIdent + (nameIndex++)
+            if (import.kind is Node.Import.Kind.Func) {
+                names += name
+                funcNames += name
+            } else if (import.kind is Node.Import.Kind.Global) {
+                names += listOf("get" + name.capitalize(), "set" + name.capitalize())
+                globalNames += name
+            }
+        }
+        funcNames to globalNames
+    }
     val hasTable: Boolean by lazy {
         mod.tables.isNotEmpty() || mod.imports.any { it.kind is Node.Import.Kind.Table }
     }
+    // The func index at each table index if the table is private and never changes after instantiation
+    val knownTable: List<Int?>? by lazy { ConstantIndirectCalls.staticTable(mod) }
+    // The known table if indirect calls into it are dispatched statically
+    val staticTable: List<Int?>? get() = knownTable.takeIf { staticIndirectDispatchMaxSize > 0 }
+    // Inlining first so the others apply to the inlined code, then folding since it can turn br_ifs into brs that
+    // leave code unreachable. Constant indirect calls are resolved after folding makes their indices constant and
+    // before the passes that work on the result.
+    val funcPasses: FuncPass by lazy {
+        FuncPass.Pipeline(listOfNotNull(
+            Inliner(inlineMaxInsns).takeIf { inlineMaxInsns > 0 },
+            ConstantFolding.takeIf { foldConstants },
+            ConstantIndirectCalls.forTable(knownTable).takeIf { resolveConstantIndirectCalls },
+            UnreachableCodeRemoval.takeIf { removeUnreachableCode },
+            CopyPropagation.takeIf { propagateLocalCopies }
+        ) + extraFuncPasses)
+    }
     val dedupedFuncNames: Map<Int, String>? by lazy {
         // Consider all exports as seen
         val seen = mod.exports.flatMap { export ->
@@ -60,6 +163,8 @@ data class ClsContext(
 
     fun assertHasMemory() { if (!hasMemory) throw CompileErr.UnknownMemory(0) }
 
+    fun dataAtIndex(index: Int) = mod.data.getOrNull(index) ?: throw CompileErr.UnknownData(index)
+
     fun typeAtIndex(index: Int) = mod.types.getOrNull(index) ?: throw CompileErr.UnknownType(index)
 
     fun funcAtIndex(index: Int) = importFuncs.getOrNull(index).let {
@@ -86,9 +191,60 @@ data class ClsContext(
         }
     }
 
+    val exportInterfaceRef: TypeRef get() = TypeRef(Type.getObjectType(thisRef.asmName + "\$Exports"))
+
+    fun importInterfaceRef(module: String) = TypeRef(Type.getObjectType(
+        importInterfaceNames[importInterfaceModules.indexOf(module)]))
+    fun importInterfaceFieldName(module: String) = "import\$module" + importInterfaceModules.indexOf(module)
+
+    // The field ref that needs "this" on the stack and the call that needs the ref and the params on the stack
+    fun importFuncRef(index: Int) = importFuncs[index].let { import ->
+        if (!importInterfaces) FieldInsnNode(Opcodes.GETFIELD, thisRef.asmName, funcName(index),
+            MethodHandle::class.ref.asmDesc)
+        else FieldInsnNode(Opcodes.GETFIELD, thisRef.asmName, importInterfaceFieldName(import.module),
+            importInterfaceRef(import.module).asmDesc)
+    }
+    fun importFuncCall(index: Int) = importFuncs[index].let { import ->
+        val desc = funcTypeAtIndex(index).asmDesc
+        if (!importInterfaces) MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName,
+            "invokeExact", desc, false)
+        else MethodInsnNode(Opcodes.INVOKEINTERFACE, importInterfaceRef(import.module).asmName,
+            importInterfaceMethodNames.first[index], desc, true)
+    }
+    fun importGlobalGetterRef(index: Int) = importGlobals[index].let { import ->
+        if (!importInterfaces) FieldInsnNode(Opcodes.GETFIELD, thisRef.asmName, importGlobalGetterFieldName(index),
+            MethodHandle::class.ref.asmDesc)
+        else FieldInsnNode(Opcodes.GETFIELD, thisRef.asmName, importInterfaceFieldName(import.module),
+            importInterfaceRef(import.module).asmDesc)
+    }
+    fun importGlobalGetterCall(index: Int) = importGlobals[index].let { import ->
+        val desc = "()" + (import.kind as Node.Import.Kind.Global).type.contentType.typeRef.asmDesc
+        if (!importInterfaces) MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName,
+            "invokeExact", desc, false)
+        else MethodInsnNode(Opcodes.INVOKEINTERFACE, importInterfaceRef(import.module).asmName,
+            "get" + importInterfaceMethodNames.second[index].capitalize(), desc, true)
+    }
+    fun importGlobalSetterRef(index: Int) = importGlobals[index].let { import ->
+        if (!importInterfaces) FieldInsnNode(Opcodes.GETFIELD, thisRef.asmName, importGlobalSetterFieldName(index),
+            MethodHandle::class.ref.asmDesc)
+        else FieldInsnNode(Opcodes.GETFIELD, thisRef.asmName, importInterfaceFieldName(import.module),
+            importInterfaceRef(import.module).asmDesc)
+    }
+    fun importGlobalSetterCall(index: Int) = importGlobals[index].let { import ->
+        val desc = "(" + (import.kind as Node.Import.Kind.Global).type.contentType.typeRef.asmDesc + ")V"
+        if (!importInterfaces) MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName,
+            "invokeExact", desc, false)
+        else MethodInsnNode(Opcodes.INVOKEINTERFACE, importInterfaceRef(import.module).asmName,
+            "set" + importInterfaceMethodNames.second[index].capitalize(), desc, true)
+    }
+
     fun importGlobalGetterFieldName(index: Int) = "import\$get" + globalName(index)
     fun importGlobalSetterFieldName(index: Int) = "import\$set" + globalName(index)
     fun globalName(index: Int) = "\$global$index"
+    fun dataName(index: Int) = "\$\$data$index"
+    fun passiveDataName(index: Int) = "\$\$passiveData$index"
+    fun lazyFuncRef(index: Int) = TypeRef(Type.getObjectType(thisRef.asmName + "\$\$Func$index"))
+    fun funcPartRef(part: Int) = TypeRef(Type.getObjectType(thisRef.asmName + "\$\$Part$part"))
     fun funcName(index: Int) = dedupedFuncNames?.get(index) ?: "\$func$index"
 
     private fun syntheticFunc(
@@ -113,11 +269,41 @@ data class ClsContext(
     val divAssertI get() = syntheticFunc("assertIDiv", SyntheticFuncBuilder::buildIDivAssertion)
     val divAssertL get() = syntheticFunc("assertLDiv", SyntheticFuncBuilder::buildLDivAssertion)
 
-    val indirectBootstrap get() = syntheticFunc("indirectBootstrap", SyntheticFuncBuilder::buildIndirectBootstrap)
+    val indirectBootstrap get() = helperCall(RuntimeHelpers::class.java, "indirect", "bootstrap").also {
+        // The bootstrap looks this one up by name instead of calling it
+        if (indirectCacheSize > 0) helperCall(RuntimeHelpers::class.java, "indirect", "cacheMiss")
+    }
+
+    // Null if the table is not static or the dispatch would be too large
+    fun staticIndirectDispatch(type: Node.Type.Func) = staticTable?.let { table ->
+        val estimatedSize = syntheticFuncBuilder.staticIndirectDispatchSize(this, type, table)
+        if (estimatedSize > staticIndirectDispatchMaxSize) null
+        else syntheticFunc("staticIndirect" + mod.types.indexOf(type)) { ctx, name ->
+            buildStaticIndirectDispatch(ctx, name, type, table)
+        }
+    }
+
+    // Copies the static method from the helper class (and any helpers it calls) if not already there. Calls to the
+    // helper class's native methods are replaced with the call nativeCall gives for the name.
+    fun helperCall(
+        helpers: Class<*>,
+        namePrefix: String,
+        helperName: String,
+        nativeCall: ((String) -> MethodInsnNode)? = null
+    ): MethodInsnNode {
+        val name = "\$\$$namePrefix" + helperName.capitalize()
+        val method =
+            cls.methods.find { (it as MethodNode).name == name }?.let { it as MethodNode } ?:
+                syntheticFuncBuilder.buildHelperCopy(this, helpers, helperName, name, nativeCall) {
+                    helperCall(helpers, namePrefix, it, nativeCall)
+                }.also { cls.methods.add(it) }
+        return MethodInsnNode(Opcodes.INVOKESTATIC, thisRef.asmName, method.name, method.desc, false)
+    }
 
-    // Builds a method that takes an int and returns a depth int
+    // Builds a method that takes an int and returns a depth int. The method count only grows, so it makes the name
+    // unique, and the same every time the funcs are built in the same order.
     fun largeTableJumpCall(table: Node.Instr.BrTable): MethodInsnNode {
-        val namePrefix = "largeTable" + UUID.randomUUID().toString().replace("-", "")
+        val namePrefix = "largeTable" + cls.methods.size
         val methods = syntheticFuncBuilder.buildLargeTableJumps(this, namePrefix, table)
         cls.methods.addAll(methods)
         return methods.first().let { method ->
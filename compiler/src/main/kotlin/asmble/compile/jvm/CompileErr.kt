@@ -87,6 +87,10 @@ sealed class CompileErr(message: String, cause: Throwable? = null) : RuntimeExce
         override val asmErrString get() = "unknown memory $index"
     }
 
+    class UnknownData(val index: Int) : CompileErr("No data present at index $index") {
+        override val asmErrString get() = "unknown data segment $index"
+    }
+
     class UnknownTable(val index: Int) : CompileErr("No table present at index $index") {
         override val asmErrString get() = "unknown table"
         override val asmErrStrings get() = listOf(asmErrString, "unknown table $index")
@@ -122,4 +126,24 @@ sealed class CompileErr(message: String, cause: Throwable? = null) : RuntimeExce
     class DuplicateExport(val name: String) : CompileErr("Duplicate export '$name'") {
         override val asmErrString get() = "duplicate export name"
     }
+
+    class SharedMemoryNotSupported(
+        val memName: String
+    ) : CompileErr("Shared memory not supported by $memName, use one like ByteBufferMem") {
+        override val asmErrString get() = "shared memory not supported"
+    }
+
+    class MemoryNotSupportedOnPlatform(
+        val memName: String,
+        val reason: String
+    ) : CompileErr("Memory $memName not supported on this platform: $reason") {
+        override val asmErrString get() = "memory not supported on platform"
+    }
+
+    class MemoryOpNotSupported(
+        val memName: String,
+        val op: String
+    ) : CompileErr("Memory $memName does not support $op") {
+        override val asmErrString get() = "memory op not supported"
+    }
 }
\ No newline at end of file
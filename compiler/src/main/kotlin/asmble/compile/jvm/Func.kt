@@ -1,6 +1,7 @@
 package asmble.compile.jvm
 
 import asmble.ast.Node
+import asmble.util.toAppendList
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.tree.*
 
@@ -12,9 +13,14 @@ data class Func(
     val insns: List<AbstractInsnNode> = emptyList(),
     val stack: List<TypeRef> = emptyList(),
     val blockStack: List<Block> = emptyList(),
-    // Contains index of JumpInsnNode that has a null label initially
-    val ifStack: List<Int> = emptyList(),
-    val lastStackIsMemLeftover: Boolean = false
+    // Contains the JumpInsnNode that has a null label initially
+    val ifStack: List<JumpInsnNode> = emptyList(),
+    val lastStackIsMemLeftover: Boolean = false,
+    // The types of the local slots that are set at this point, or null if this point can't be reached. Frames are
+    // built from these, so they have to start with "this" and the params.
+    val locals: Map<Int, TypeRef>? = emptyMap(),
+    // The locals that are set on every jump so far to each label, shared by all copies of this func
+    val labelLocals: MutableMap<LabelNode, Map<Int, TypeRef>> = mutableMapOf()
 ) {
 
     val desc: String get() = ret.asMethodRetDesc(*params.toTypedArray())
@@ -33,13 +39,80 @@ data class Func(
         copy(stack = currentBlock.origStack)
     }
 
-    fun addInsns(insns: List<AbstractInsnNode>) =
-        if (isCurrentBlockDead) this else copy(insns = this.insns + insns)
+    // The lists are append lists so that building up a func isn't quadratic. Any list given to us is converted on
+    // first change. Insns that can't be reached (i.e. after a jump or return until a label that is jumped to) are
+    // left out, so there's no dead code for the frames to cover.
+    fun addInsns(insns: List<AbstractInsnNode>): Func {
+        if (isCurrentBlockDead) return this
+        var locals = this.locals
+        val reachable = insns.filter { insn ->
+            if (insn is LabelNode) locals = mergeLocals(locals, labelLocals[insn])
+            val before = locals
+            if (before != null && insn !is LabelNode) locals = localsAfter(insn, before)
+            insn is LabelNode || before != null
+        }
+        return copy(insns = this.insns.toAppendList() + reachable, locals = locals)
+    }
 
-    fun addInsns(vararg insns: AbstractInsnNode) =
-        if (isCurrentBlockDead) this else copy(insns = this.insns + insns)
+    fun addInsns(vararg insns: AbstractInsnNode) = addInsns(insns.asList())
 
-    fun push(types: List<TypeRef>) = copy(stack = stack + types)
+    // Adds the label and, if anything jumps to it, a frame with the given stack
+    fun addLabel(label: LabelNode, stack: List<TypeRef> = this.stack) = addInsns(label).let { fn ->
+        if (fn.locals == null || !labelLocals.containsKey(label)) fn
+        else fn.frame(fn.locals, stack)?.let { fn.addInsns(it) } ?: fn
+    }
+
+    // Adds the label of the loop just pushed as the current block, with a frame if it's reachable. The jumps back to
+    // it come later but have what is set now, so they don't change the frame and nothing has to be inserted after.
+    fun addLoopLabel() = addInsns(currentBlock.requiredLabel).let { fn ->
+        fn.locals?.let { fn.frame(it, fn.stack) }?.let { fn.addInsns(it) } ?: fn
+    }
+
+    fun recordJump(label: LabelNode, locals: Map<Int, TypeRef>) {
+        labelLocals[label] = mergeLocals(labelLocals[label], locals)!!
+    }
+
+    // Records any jumps, then gives the locals after the insn or null if it doesn't continue to the next one
+    fun localsAfter(insn: AbstractInsnNode, locals: Map<Int, TypeRef>): Map<Int, TypeRef>? {
+        when (insn) {
+            is JumpInsnNode -> insn.label?.let { recordJump(it, locals) }
+            is TableSwitchInsnNode -> (insn.labels + insn.dflt).forEach { recordJump(it, locals) }
+            is LookupSwitchInsnNode -> (insn.labels + insn.dflt).forEach { recordJump(it, locals) }
+            is VarInsnNode -> when (insn.opcode) {
+                Opcodes.ISTORE -> Int::class.ref
+                Opcodes.LSTORE -> Long::class.ref
+                Opcodes.FSTORE -> Float::class.ref
+                Opcodes.DSTORE -> Double::class.ref
+                else -> null
+            }?.let { type -> if (locals[insn.`var`] != type) return locals + (insn.`var` to type) }
+        }
+        return if (insn.isEndOfFlow) null else locals
+    }
+
+    // Only the locals set on both ways are set after they meet
+    fun mergeLocals(first: Map<Int, TypeRef>?, second: Map<Int, TypeRef>?) = when {
+        first == null || first === second -> second
+        second == null -> first
+        else -> first.filter { (slot, type) -> second[slot] == type }
+    }
+
+    // A full frame, or null if the types on the stack aren't all known
+    fun frame(locals: Map<Int, TypeRef>, stack: List<TypeRef>): FrameNode? {
+        if (stack.contains(TypeRef.Unknown)) return null
+        val frameLocals = mutableListOf<Any>()
+        val lastSlot = locals.keys.fold(-1) { last, slot -> Math.max(last, slot) }
+        var slot = 0
+        while (slot <= lastSlot) {
+            // Unset slots are TOP, but the second slot of a long or double is implied
+            val type = locals[slot]
+            frameLocals += type?.frameType ?: Opcodes.TOP
+            slot += type?.stackSize ?: 1
+        }
+        return FrameNode(Opcodes.F_NEW, frameLocals.size, frameLocals.toTypedArray(),
+            stack.size, stack.map { it.frameType }.toTypedArray())
+    }
+
+    fun push(types: List<TypeRef>) = copy(stack = stack.toAppendList() + types)
 
     fun push(vararg types: TypeRef) = push(types.asList())
 
@@ -71,7 +144,7 @@ data class Func(
             if (currBlock.hasElse && currBlock.unreachableInElse) return this to TypeRef.Unknown
             throw CompileErr.StackMismatch(emptyArray(), null)
         }
-        return copy(stack = stack.dropLast(1)) to stack.last()
+        return copy(stack = stack.toAppendList().dropLast(1)) to stack.last()
     }
 
     fun peekExpecting(type: TypeRef, currBlock: Block = currentBlock): Unit {
@@ -81,9 +154,16 @@ data class Func(
 
     fun toMethodNode(): MethodNode {
         if (stack.isNotEmpty()) throw CompileErr.UnusedStackOnReturn(stack)
-        require(insns.lastOrNull()?.isTerminating ?: false) { "Last insn for $name$desc is not terminating" }
+        require(insns.lastOrNull()?.isEndOfFlow ?: false) { "Last insn for $name$desc is not terminating" }
         val ret = MethodNode(access, name, desc, null, null)
-        insns.forEach(ret.instructions::add)
+        // Labels at the same place can each have a frame, but only one is allowed there. The last one has what's
+        // set on all the ways to any of them.
+        var lastFrame: FrameNode? = null
+        insns.forEach { insn ->
+            if (insn is FrameNode) lastFrame?.also(ret.instructions::remove)
+            if (insn is FrameNode) lastFrame = insn else if (insn.opcode >= 0) lastFrame = null
+            ret.instructions.add(insn)
+        }
         return ret
     }
 
@@ -114,25 +194,26 @@ data class Func(
         pushBlock(insn, listOfNotNull(labelType?.typeRef), listOfNotNull(endType?.typeRef))
 
     fun pushBlock(insn: Node.Instr, labelTypes: List<TypeRef>, endTypes: List<TypeRef>) =
-        copy(blockStack = blockStack + Block(insn, insns.size, stack, labelTypes, endTypes))
+        copy(blockStack = blockStack.toAppendList() + Block(insn, stack, labelTypes, endTypes, locals))
 
-    fun popBlock() = copy(blockStack = blockStack.dropLast(1)) to blockStack.last()
+    fun popBlock() = copy(blockStack = blockStack.toAppendList().dropLast(1)) to blockStack.last()
 
     fun blockAtDepth(depth: Int): Block =
         blockStack.getOrNull(blockStack.size - depth - 1) ?: throw CompileErr.NoBlockAtDepth(depth)
 
-    fun pushIf() = copy(ifStack = ifStack + insns.size)
+    fun pushIf(jump: JumpInsnNode) = copy(ifStack = ifStack.toAppendList() + jump)
 
-    fun peekIf() = insns[ifStack.last()] as JumpInsnNode
+    fun peekIf() = ifStack.last()
 
-    fun popIf() = copy(ifStack = ifStack.dropLast(1)) to peekIf()
+    fun popIf() = copy(ifStack = ifStack.toAppendList().dropLast(1)) to peekIf()
 
     class Block(
         val insn: Node.Instr,
-        val startIndex: Int,
         val origStack: List<TypeRef>,
         val labelTypes: List<TypeRef>,
-        val endTypes: List<TypeRef>
+        val endTypes: List<TypeRef>,
+        // The locals set at the start, or null if it can't be reached
+        val startLocals: Map<Int, TypeRef>?
     ) {
         var unreachable = false
         var unreachableInIf = false
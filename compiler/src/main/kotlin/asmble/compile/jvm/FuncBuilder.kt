@@ -4,18 +4,18 @@ import asmble.ast.Node
 import asmble.io.AstToSExpr
 import asmble.io.SExprToStr
 import asmble.util.Either
-import asmble.util.add
 import org.objectweb.asm.Handle
 import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
 import org.objectweb.asm.tree.*
-import java.lang.invoke.MethodHandle
 
 // TODO: modularize
 
 open class FuncBuilder {
+    @Suppress("NAME_SHADOWING")
     fun fromFunc(ctx: ClsContext, f: Node.Func, index: Int): Func {
         ctx.debug { "Building function ${ctx.funcName(index)}" }
+        val f = ctx.funcPasses.apply(ctx.mod, f)
         ctx.trace { "Function ast:\n${SExprToStr.fromSExpr(AstToSExpr.fromFunc(f))}" }
         var func = Func(
             access = Opcodes.ACC_PRIVATE,
@@ -36,6 +36,12 @@ open class FuncBuilder {
                 ctx.reworker.nonAdjacentMemAccesses(reworkedInsns) >= ctx.nonAdjacentMemAccessesRequiringLocalVar
         )
 
+        // This, the params, and the mem local var (set first thing) are always set
+        func = func.copy(locals = listOfNotNull(
+            0 to ctx.thisRef,
+            funcCtx.actualLocalIndex(funcCtx.node.localsSize).takeIf { funcCtx.memIsLocalVar }?.to(ctx.mem.memType)
+        ).toMap() + f.type.params.mapIndexed { index, param -> funcCtx.actualLocalIndex(index) to param.typeRef })
+
         // Add the mem as a local variable if necessary
         if (funcCtx.memIsLocalVar) func = func.addInsns(
             VarInsnNode(Opcodes.ALOAD, 0),
@@ -75,23 +81,62 @@ open class FuncBuilder {
         is Insn.Node ->
             applyNodeInsn(ctx, fn, i.insn, index)
         is Insn.ImportFuncRefNeededOnStack ->
-            // Func refs are method handle fields
-            fn.addInsns(
-                VarInsnNode(Opcodes.ALOAD, 0),
-                FieldInsnNode(Opcodes.GETFIELD, ctx.cls.thisRef.asmName,
-                    ctx.cls.funcName(i.index), MethodHandle::class.ref.asmDesc)
-            ).push(MethodHandle::class.ref)
+            // Func refs are method handle fields or import interface fields
+            ctx.cls.importFuncRef(i.index).let { ref ->
+                fn.addInsns(VarInsnNode(Opcodes.ALOAD, 0), ref).push(TypeRef(Type.getType(ref.desc)))
+            }
         is Insn.ImportGlobalSetRefNeededOnStack ->
-            // Import setters are method handle fields
-            fn.addInsns(
-                VarInsnNode(Opcodes.ALOAD, 0),
-                FieldInsnNode(Opcodes.GETFIELD, ctx.cls.thisRef.asmName,
-                    ctx.cls.importGlobalSetterFieldName(i.index), MethodHandle::class.ref.asmDesc)
-            ).push(MethodHandle::class.ref)
+            // Import setters are method handle fields or import interface fields
+            ctx.cls.importGlobalSetterRef(i.index).let { ref ->
+                fn.addInsns(VarInsnNode(Opcodes.ALOAD, 0), ref).push(TypeRef(Type.getType(ref.desc)))
+            }
         is Insn.ThisNeededOnStack ->
             fn.addInsns(VarInsnNode(Opcodes.ALOAD, 0)).push(ctx.cls.thisRef)
         is Insn.MemNeededOnStack ->
             putMemoryOnStack(ctx, fn)
+        is Insn.LoopRangeCheck ->
+            applyLoopRangeCheck(ctx, fn, i)
+        is Insn.RangeCheckedMemAccess ->
+            // Stores are the only accesses that pop two and push nothing
+            if (ctx.cls.reworker.insnStackDiff(ctx.cls, i.insn) == -2)
+                applyStoreOp(ctx, fn, i.insn as Node.Instr.Args.AlignOffset, index, i.rangeCheckIndex)
+            else applyLoadOp(ctx, fn, i.insn as Node.Instr.Args.AlignOffset, i.rangeCheckIndex)
+    }
+
+    fun applyLoopRangeCheck(ctx: FuncContext, fn: Func, check: Insn.LoopRangeCheck) =
+        applyGetLocal(ctx, fn, check.local).let { fn ->
+            when (check.bound) {
+                is Node.Instr.GetLocal -> applyGetLocal(ctx, fn, check.bound.index)
+                is Node.Instr.I32Const -> fn.addInsns(check.bound.value.const).push(Int::class.ref)
+                else -> error("Unexpected range check bound ${check.bound}")
+            }
+        }.addInsns(
+            check.step.const,
+            when (check.comparison) {
+                Node.Instr.I32LtU -> RangeCheckHelpers.COMPARISON_LT_U
+                Node.Instr.I32LtS -> RangeCheckHelpers.COMPARISON_LT_S
+                else -> RangeCheckHelpers.COMPARISON_NE
+            }.const,
+            check.accessEnd.const
+        ).push(Int::class.ref, Int::class.ref, Int::class.ref).let { fn ->
+            putMemoryOnStack(ctx, fn).let { fn -> ctx.cls.mem.currentMemory(ctx, fn) }
+        }.popExpectingMulti(Int::class.ref, Int::class.ref, Int::class.ref, Int::class.ref, Int::class.ref,
+            Int::class.ref).addInsns(
+            ctx.cls.helperCall(RangeCheckHelpers::class.java, "rangeCheck", "loopInRange"),
+            VarInsnNode(Opcodes.ISTORE, ctx.rangeCheckLocalIndex(check.rangeCheckIndex))
+        )
+
+    // Runs the unchecked access if the range check local is set, otherwise the regular one
+    fun applyRangeChecked(ctx: FuncContext, fn: Func, rangeCheckIndex: Int, op: (Func, Boolean) -> Func): Func {
+        val checkedLabel = LabelNode()
+        val doneLabel = LabelNode()
+        val guarded = fn.addInsns(
+            VarInsnNode(Opcodes.ILOAD, ctx.rangeCheckLocalIndex(rangeCheckIndex)),
+            JumpInsnNode(Opcodes.IFEQ, checkedLabel)
+        )
+        return op(guarded, false).addInsns(JumpInsnNode(Opcodes.GOTO, doneLabel)).let { fn ->
+            op(fn.copy(stack = guarded.stack).addLabel(checkedLabel), true)
+        }.addLabel(doneLabel)
     }
 
     fun applyNodeInsn(ctx: FuncContext, fn: Func, i: Node.Instr, index: Int) = when (i) {
@@ -102,11 +147,12 @@ open class FuncBuilder {
         is Node.Instr.Block ->
             fn.pushBlock(i, i.type, i.type)
         is Node.Instr.Loop ->
-            fn.pushBlock(i, null, i.type)
+            fn.pushBlock(i, null, i.type).addLoopLabel()
         is Node.Instr.If ->
             // The label is set in else or end
-            fn.popExpecting(Int::class.ref).pushBlock(i, i.type, i.type).pushIf().
-                addInsns(JumpInsnNode(Opcodes.IFEQ, null))
+            JumpInsnNode(Opcodes.IFEQ, null).let { jump ->
+                fn.popExpecting(Int::class.ref).pushBlock(i, i.type, i.type).pushIf(jump).addInsns(jump)
+            }
         is Node.Instr.Else ->
             applyElse(ctx, fn)
         is Node.Instr.End ->
@@ -152,6 +198,18 @@ open class FuncBuilder {
             applyMemorySize(ctx, fn)
         is Node.Instr.MemoryGrow ->
             applyMemoryGrow(ctx, fn)
+        is Node.Instr.MemoryInit ->
+            applyMemoryInit(ctx, fn, i.index)
+        is Node.Instr.DataDrop ->
+            applyDataDrop(ctx, fn, i.index)
+        is Node.Instr.MemoryCopy ->
+            ctx.cls.assertHasMemory().let { ctx.cls.mem.memoryCopy(ctx, fn) }
+        is Node.Instr.MemoryFill ->
+            ctx.cls.assertHasMemory().let { ctx.cls.mem.memoryFill(ctx, fn) }
+        is Node.Instr.AtomicAccess ->
+            ctx.cls.assertHasMemory().let { ctx.cls.mem.atomicOp(ctx, fn, i) }
+        is Node.Instr.AtomicFence ->
+            fn.addInsns(MethodInsnNode(Opcodes.INVOKESTATIC, ByteArrayMem.VAR_HANDLE_CLASS_NAME, "fullFence", "()V", false))
         is Node.Instr.I32Const ->
             fn.addInsns(i.value.const).push(Int::class.ref)
         is Node.Instr.I64Const ->
@@ -577,9 +635,8 @@ open class FuncBuilder {
         return fn.addInsns(
             ctx.cls.largeTableJumpCall(insn),
             TableSwitchInsnNode(0, depthToLabel.size - 1, unreachableLabel,
-                *depthToLabel.map { it ?: unreachableLabel }.toTypedArray()),
-            unreachableLabel
-        ).addInsns(UnsupportedOperationException::class.athrow("Unreachable")).markUnreachable()
+                *depthToLabel.map { it ?: unreachableLabel }.toTypedArray())
+        ).addLabel(unreachableLabel).addInsns(UnsupportedOperationException::class.athrow("Unreachable")).markUnreachable()
     }
 
     fun needsToPopBeforeJumping(ctx: FuncContext, fn: Func, block: Func.Block): Boolean {
@@ -607,7 +664,7 @@ open class FuncBuilder {
         // We actually have to pop the second to last, keeping the latest (unless it's empty)...and we do
         // this over and over, sadly, if there are more to discard
         val resumeLabel = LabelNode()
-        return fn.addInsns(JumpInsnNode(Opcodes.GOTO, resumeLabel), tempLabel).withoutAffectingStack { fn ->
+        return fn.addInsns(JumpInsnNode(Opcodes.GOTO, resumeLabel)).addLabel(tempLabel).withoutAffectingStack { fn ->
             (requiredStackCount until fn.stack.size).fold(fn) { fn, index ->
                 if (fn.stack.size == 1) {
                     fn.addInsns(InsnNode(if (fn.stack.last().stackSize == 2) Opcodes.POP2 else Opcodes.POP)).
@@ -617,10 +674,7 @@ open class FuncBuilder {
                         pop(block).first
                 }
             }
-        }.addInsns(
-            JumpInsnNode(Opcodes.GOTO, block.requiredLabel),
-            resumeLabel
-        )
+        }.addInsns(JumpInsnNode(Opcodes.GOTO, block.requiredLabel)).addLabel(resumeLabel)
     }
 
     fun applyElse(ctx: FuncContext, fn: Func) = fn.blockAtDepth(0).let { block ->
@@ -628,10 +682,11 @@ open class FuncBuilder {
         // Also, put the stack back at what it was pre-if and ask end to check the else stack
         val label = LabelNode()
         fn.peekIf().label = label
+        block.startLocals?.let { fn.recordJump(label, it) }
         ctx.debug { "Else block for ${block.insn}, orig stack ${block.origStack}" }
         block.hasElse = true
         block.thenStackOnIf = fn.stack
-        fn.addInsns(JumpInsnNode(Opcodes.GOTO, block.requiredLabel), label).copy(stack = block.origStack)
+        fn.addInsns(JumpInsnNode(Opcodes.GOTO, block.requiredLabel)).copy(stack = block.origStack).addLabel(label)
     }
 
     fun applyEnd(ctx: FuncContext, fn: Func) = fn.popBlock().let { (fn, block) ->
@@ -653,23 +708,26 @@ open class FuncBuilder {
                 when (block.insn) {
                     is Node.Instr.Block ->
                         // Add label to end of block if it's there
-                        block.label?.let { fn.addInsns(it) } ?: fn
-                    is Node.Instr.Loop ->
-                        // Add label to beginning of loop if it's there
-                        block.label?.let { fn.copy(insns = fn.insns.add(block.startIndex, it)) } ?: fn
+                        block.label?.let { fn.addLabel(it) } ?: fn
+                    // The label was added at the start
+                    is Node.Instr.Loop -> fn
                     is Node.Instr.If -> fn.popIf().let { (fn, jumpNode) ->
                         when (block.label) {
                             // If there is no existing break label, add one to initial
                             // "if" only if it isn't there from an "else"
                             null -> if (jumpNode.label != null) fn else {
                                 jumpNode.label = LabelNode()
-                                fn.addInsns(jumpNode.label)
+                                block.startLocals?.let { fn.recordJump(jumpNode.label, it) }
+                                fn.addLabel(jumpNode.label)
                             }
                             // If there is one, add it to the initial "if"
                             // if the "else" didn't set one on there...then push it
                             else -> {
-                                if (jumpNode.label == null) jumpNode.label = block.label
-                                fn.addInsns(block.label!!)
+                                if (jumpNode.label == null) {
+                                    jumpNode.label = block.label
+                                    block.startLocals?.let { fn.recordJump(jumpNode.label, it) }
+                                }
+                                fn.addLabel(block.label!!)
                             }
                         }
                     }
@@ -695,15 +753,14 @@ open class FuncBuilder {
             InsnNode(Opcodes.LCMP),
             JumpInsnNode(Opcodes.IFLT, notPositive),
             InsnNode(Opcodes.L2F),
-            JumpInsnNode(Opcodes.GOTO, allDone),
-            notPositive,
+            JumpInsnNode(Opcodes.GOTO, allDone)
+        ).push(Long::class.ref).addLabel(notPositive).addInsns(
             1.const,
             InsnNode(Opcodes.LUSHR),
             InsnNode(Opcodes.L2F),
             2f.const,
-            InsnNode(Opcodes.FMUL),
-            allDone
-        ).push(Float::class.ref)
+            InsnNode(Opcodes.FMUL)
+        ).popExpecting(Long::class.ref).push(Float::class.ref).addLabel(allDone)
     }
 
     fun applyF64ConvertUI64(ctx: FuncContext, fn: Func): Func {
@@ -716,8 +773,8 @@ open class FuncBuilder {
             InsnNode(Opcodes.LCMP),
             JumpInsnNode(Opcodes.IFLT, notPositive),
             InsnNode(Opcodes.L2D),
-            JumpInsnNode(Opcodes.GOTO, allDone),
-            notPositive,
+            JumpInsnNode(Opcodes.GOTO, allDone)
+        ).push(Long::class.ref).addLabel(notPositive).addInsns(
             InsnNode(Opcodes.DUP2),
             1.const,
             InsnNode(Opcodes.LUSHR),
@@ -728,9 +785,8 @@ open class FuncBuilder {
             InsnNode(Opcodes.LOR),
             InsnNode(Opcodes.L2D),
             2.0.const,
-            InsnNode(Opcodes.DMUL),
-            allDone
-        ).push(Double::class.ref)
+            InsnNode(Opcodes.DMUL)
+        ).popExpecting(Long::class.ref).push(Double::class.ref).addLabel(allDone)
     }
 
     fun applyI64TruncUF32(ctx: FuncContext, fn: Func) = LabelNode().let { underMax ->
@@ -747,11 +803,10 @@ open class FuncBuilder {
                 (-9223372036854775808f).const,
                 InsnNode(Opcodes.FADD),
                 InsnNode(Opcodes.F2L),
-                JumpInsnNode(Opcodes.GOTO, allDone),
-                underMax,
-                InsnNode(Opcodes.F2L),
-                allDone
-            ).push(Long::class.ref)
+                JumpInsnNode(Opcodes.GOTO, allDone)
+            ).push(Float::class.ref).addLabel(underMax).addInsns(
+                InsnNode(Opcodes.F2L)
+            ).popExpecting(Float::class.ref).push(Long::class.ref).addLabel(allDone)
         }
     }
 
@@ -768,11 +823,10 @@ open class FuncBuilder {
                 (-9223372036854775808.0).const,
                 InsnNode(Opcodes.DADD),
                 InsnNode(Opcodes.D2L),
-                JumpInsnNode(Opcodes.GOTO, allDone),
-                underMax,
-                InsnNode(Opcodes.D2L),
-                allDone
-            ).push(Long::class.ref)
+                JumpInsnNode(Opcodes.GOTO, allDone)
+            ).push(Double::class.ref).addLabel(underMax).addInsns(
+                InsnNode(Opcodes.D2L)
+            ).popExpecting(Double::class.ref).push(Long::class.ref).addLabel(allDone)
         }
     }
 
@@ -839,11 +893,10 @@ open class FuncBuilder {
             InsnNode(Opcodes.DCMPG),
             JumpInsnNode(Opcodes.IFGE, label1),
             Math::ceil.invokeStatic(),
-            JumpInsnNode(Opcodes.GOTO, label2),
-            label1,
-            Math::floor.invokeStatic(),
-            label2
-        ).push(Double::class.ref)
+            JumpInsnNode(Opcodes.GOTO, label2)
+        ).push(Double::class.ref).addLabel(label1).addInsns(
+            Math::floor.invokeStatic()
+        ).addLabel(label2)
     }
 
     fun applyF32Trunc(ctx: FuncContext, fn: Func): Func {
@@ -857,13 +910,13 @@ open class FuncBuilder {
             JumpInsnNode(Opcodes.IFGE, label1),
             InsnNode(Opcodes.F2D),
             Math::ceil.invokeStatic(),
-            JumpInsnNode(Opcodes.GOTO, label2),
-            label1,
+            JumpInsnNode(Opcodes.GOTO, label2)
+        ).push(Float::class.ref).addLabel(label1).addInsns(
             InsnNode(Opcodes.F2D),
-            Math::floor.invokeStatic(),
-            label2,
+            Math::floor.invokeStatic()
+        ).popExpecting(Float::class.ref).push(Double::class.ref).addLabel(label2).addInsns(
             InsnNode(Opcodes.D2F)
-        ).push(Float::class.ref)
+        ).popExpecting(Double::class.ref).push(Float::class.ref)
     }
 
     fun applyF64UnaryNanReturnPositive(ctx: FuncContext, fn: Func, cb: (Func) -> Func): Func {
@@ -882,9 +935,8 @@ open class FuncBuilder {
             InsnNode(Opcodes.LCMP), // [d, i]
             JumpInsnNode(Opcodes.IFGE, allDone), // [d]
             InsnNode(Opcodes.DNEG),
-            JumpInsnNode(Opcodes.GOTO, allDone),
-            notNan
-        ).let(cb).addInsns(allDone)
+            JumpInsnNode(Opcodes.GOTO, allDone)
+        ).addLabel(notNan).let(cb).addLabel(allDone)
     }
 
     fun applyF32UnaryNanReturnPositive(ctx: FuncContext, fn: Func, cb: (Func) -> Func): Func {
@@ -902,9 +954,8 @@ open class FuncBuilder {
             0x7f800000.const, // [f, i, i]
             JumpInsnNode(Opcodes.IF_ICMPGE, allDone), // [f]
             InsnNode(Opcodes.FNEG),
-            JumpInsnNode(Opcodes.GOTO, allDone),
-            notNan
-        ).let(cb).addInsns(allDone)
+            JumpInsnNode(Opcodes.GOTO, allDone)
+        ).addLabel(notNan).let(cb).addLabel(allDone)
     }
 
     fun applyF64UnaryNanReturnSame(ctx: FuncContext, fn: Func, cb: (Func) -> Func): Func {
@@ -916,7 +967,7 @@ open class FuncBuilder {
             // Equals compare to check nan
             InsnNode(Opcodes.DCMPL), // [d, z]
             JumpInsnNode(Opcodes.IFNE, allDone) // [d]
-        ).let(cb).addInsns(allDone)
+        ).let(cb).addLabel(allDone)
     }
 
     fun applyF32UnaryNanReturnSame(ctx: FuncContext, fn: Func, cb: (Func) -> Func): Func {
@@ -930,7 +981,7 @@ open class FuncBuilder {
             // Equals compare to check nan
             InsnNode(Opcodes.FCMPL), // [f, z]
             JumpInsnNode(Opcodes.IFNE, allDone) // [f]
-        ).let(cb).addInsns(allDone)
+        ).let(cb).addLabel(allDone)
     }
 
     fun applyWithF32To64AndBack(ctx: FuncContext, fn: Func, f: (Func) -> Func) =
@@ -1036,11 +1087,8 @@ open class FuncBuilder {
         return fn.popExpecting(inTypes).popExpecting(inTypes).addInsns(
             JumpInsnNode(op, label1),
             0.const,
-            JumpInsnNode(Opcodes.GOTO, label2),
-            label1,
-            1.const,
-            label2
-        ).push(Int::class.ref)
+            JumpInsnNode(Opcodes.GOTO, label2)
+        ).addLabel(label1).addInsns(1.const).push(Int::class.ref).addLabel(label2)
     }
 
     fun applyI32UnaryCmp(ctx: FuncContext, fn: Func, op: Int): Func {
@@ -1055,11 +1103,8 @@ open class FuncBuilder {
         return fn.popExpecting(Int::class.ref).addInsns(
             JumpInsnNode(op, label1),
             0.const,
-            JumpInsnNode(Opcodes.GOTO, label2),
-            label1,
-            1.const,
-            label2
-        ).push(Int::class.ref)
+            JumpInsnNode(Opcodes.GOTO, label2)
+        ).addLabel(label1).addInsns(1.const).push(Int::class.ref).addLabel(label2)
     }
 
     fun applyMemoryGrow(ctx: FuncContext, fn: Func) =
@@ -1069,6 +1114,28 @@ open class FuncBuilder {
             ctx.cls.mem.growMemory(ctx, fn)
         }
 
+    fun applyMemoryInit(ctx: FuncContext, fn: Func, index: Int) =
+        // Mem is pre-injected like grow. Active data is dropped on instantiation, so only passive
+        // data has bytes to push.
+        ctx.cls.assertHasMemory().let {
+            if (!ctx.cls.dataAtIndex(index).passive) fn.addInsns(InsnNode(Opcodes.ACONST_NULL))
+            else fn.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                FieldInsnNode(Opcodes.GETFIELD, ctx.cls.thisRef.asmName,
+                    ctx.cls.dataName(index), ByteArray::class.ref.asmDesc)
+            )
+        }.push(ByteArray::class.ref).let { fn -> ctx.cls.mem.memoryInit(ctx, fn) }
+
+    fun applyDataDrop(ctx: FuncContext, fn: Func, index: Int) =
+        // Dropping is just nulling out the instance's ref to the passive bytes
+        if (!ctx.cls.dataAtIndex(index).passive) fn
+        else fn.addInsns(
+            VarInsnNode(Opcodes.ALOAD, 0),
+            InsnNode(Opcodes.ACONST_NULL),
+            FieldInsnNode(Opcodes.PUTFIELD, ctx.cls.thisRef.asmName,
+                ctx.cls.dataName(index), ByteArray::class.ref.asmDesc)
+        )
+
     fun applyMemorySize(ctx: FuncContext, fn: Func) =
         // Curr mem is not specially injected, so we have to put the memory on the
         // stack since we need it
@@ -1076,29 +1143,41 @@ open class FuncBuilder {
             putMemoryOnStack(ctx, fn).let { fn -> ctx.cls.mem.currentMemory(ctx, fn) }
         }
 
-    fun applyStoreOp(ctx: FuncContext, fn: Func, insn: Node.Instr.Args.AlignOffset, insnIndex: Int) =
+    fun applyStoreOp(
+        ctx: FuncContext,
+        fn: Func,
+        insn: Node.Instr.Args.AlignOffset,
+        insnIndex: Int,
+        rangeCheckIndex: Int? = null
+    ) =
         // Store is a special case where the memory ref is already pre-injected on
         // the stack before this call. But it can have a memory leftover on the stack
         // so we pop it if we need to
         ctx.cls.assertHasMemory().let {
-            ctx.cls.mem.storeOp(ctx, fn, insn).let { fn ->
-                // As a special case, if this leaves the mem on the stack
-                // and we need it in the future, we mark it as leftover and
-                // reuse
-                if (!ctx.cls.mem.storeLeavesMemOnStack) fn else ctx.insns.getOrNull(insnIndex + 1).let { nextInsn ->
-                    if (nextInsn is Insn.MemNeededOnStack) {
-                        fn.peekExpecting(ctx.cls.mem.memType)
-                        fn.copy(lastStackIsMemLeftover = true)
-                    } else fn.popExpecting(ctx.cls.mem.memType).addInsns(InsnNode(Opcodes.POP))
-                }
+            if (rangeCheckIndex == null) ctx.cls.mem.storeOp(ctx, fn, insn)
+            else applyRangeChecked(ctx, fn, rangeCheckIndex) { fn, checked ->
+                if (checked) ctx.cls.mem.storeOp(ctx, fn, insn) else ctx.cls.mem.uncheckedStoreOp(ctx, fn, insn)
+            }
+        }.let { fn ->
+            // As a special case, if this leaves the mem on the stack
+            // and we need it in the future, we mark it as leftover and
+            // reuse
+            if (!ctx.cls.mem.storeLeavesMemOnStack) fn else ctx.insns.getOrNull(insnIndex + 1).let { nextInsn ->
+                if (nextInsn is Insn.MemNeededOnStack) {
+                    fn.peekExpecting(ctx.cls.mem.memType)
+                    fn.copy(lastStackIsMemLeftover = true)
+                } else fn.popExpecting(ctx.cls.mem.memType).addInsns(InsnNode(Opcodes.POP))
             }
         }
 
-    fun applyLoadOp(ctx: FuncContext, fn: Func, insn: Node.Instr.Args.AlignOffset) =
+    fun applyLoadOp(ctx: FuncContext, fn: Func, insn: Node.Instr.Args.AlignOffset, rangeCheckIndex: Int? = null) =
         // Load is a special case where the memory ref is already pre-injected on
         // the stack before this call
         ctx.cls.assertHasMemory().let {
-            ctx.cls.mem.loadOp(ctx, fn, insn)
+            if (rangeCheckIndex == null) ctx.cls.mem.loadOp(ctx, fn, insn)
+            else applyRangeChecked(ctx, fn, rangeCheckIndex) { fn, checked ->
+                if (checked) ctx.cls.mem.loadOp(ctx, fn, insn) else ctx.cls.mem.uncheckedLoadOp(ctx, fn, insn)
+            }
         }
 
     fun putMemoryOnStack(ctx: FuncContext, fn: Func) =
@@ -1137,11 +1216,8 @@ open class FuncBuilder {
         // Load the setter method handle field, then invoke it with stack val
         // Note, this is special and the method handle has already been injected on the stack for us
         return fn.popExpecting(import.type.contentType.typeRef).
-            popExpecting(MethodHandle::class.ref).
-            addInsns(
-                MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName, "invokeExact",
-                    "(${import.type.contentType.typeRef.asmDesc})V", false)
-            )
+            popExpecting(TypeRef(Type.getType(ctx.cls.importGlobalSetterRef(index).desc))).
+            addInsns(ctx.cls.importGlobalSetterCall(index))
     }
 
     fun applyGetGlobal(ctx: FuncContext, fn: Func, index: Int) = ctx.cls.globalAtIndex(index).let {
@@ -1162,10 +1238,8 @@ open class FuncBuilder {
         // Load the getter method handle field, then invoke it with nothing
         fn.addInsns(
             VarInsnNode(Opcodes.ALOAD, 0),
-            FieldInsnNode(Opcodes.GETFIELD, ctx.cls.thisRef.asmName,
-                ctx.cls.importGlobalGetterFieldName(index), MethodHandle::class.ref.asmDesc),
-            MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName, "invokeExact",
-                "()" + import.type.contentType.typeRef.asmDesc, false)
+            ctx.cls.importGlobalGetterRef(index),
+            ctx.cls.importGlobalGetterCall(index)
         ).push(import.type.contentType.typeRef)
 
     fun applyTeeLocal(ctx: FuncContext, fn: Func, index: Int) = ctx.node.localByIndex(index).typeRef.let { typeRef ->
@@ -1210,9 +1284,8 @@ open class FuncBuilder {
             pop().let { (fn, type1) ->
                 fn.pop().let { (fn, type2) ->
                     if (!type1.equivalentTo(type2)) throw CompileErr.SelectMismatch(type1, type2)
-                    // Label and pop
-                    fn.addInsns(
-                        nonZero,
+                    // Label (where the jump had them unswapped, but they're the same type) and pop
+                    fn.push(type2, type1).addLabel(nonZero).pop().first.pop().first.addInsns(
                         InsnNode(if (type1.stackSize == 2) Opcodes.POP2 else Opcodes.POP)
                     ).push(type2)
                 }
@@ -1220,15 +1293,14 @@ open class FuncBuilder {
     }
 
     fun applyCallInsn(ctx: FuncContext, fn: Func, index: Int) =
-        // Imports use a MethodHandle field, others call directly
+        // Imports use a MethodHandle or interface field, others call directly
         ctx.cls.funcTypeAtIndex(index).let { funcType ->
             ctx.debug { "Applying call to ${ctx.cls.funcName(index)} of type $funcType with stack ${fn.stack}" }
             fn.popExpectingMulti(funcType.params.map(Node.Type.Value::typeRef)).let { fn ->
                 when (ctx.cls.funcAtIndex(index)) {
-                    is Either.Left -> fn.popExpecting(MethodHandle::class.ref).addInsns(
-                        MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName,
-                            "invokeExact", funcType.asmDesc, false)
-                    )
+                    is Either.Left -> ctx.cls.importFuncRef(index).let { ref ->
+                        fn.popExpecting(TypeRef(Type.getType(ref.desc))).addInsns(ctx.cls.importFuncCall(index))
+                    }
                     is Either.Right -> fn.popExpecting(ctx.cls.thisRef).addInsns(
                         MethodInsnNode(Opcodes.INVOKEVIRTUAL, ctx.cls.thisRef.asmName,
                             ctx.cls.funcName(index), funcType.asmDesc, false)
@@ -1243,29 +1315,31 @@ open class FuncBuilder {
         // bootstrap method is a synthetic method embedded into this module. The
         // resulting method handle accepts all method params THEN "this" THEN
         // the table index. Stack manip prior to this has ensured "this" is on
-        // the stack before the index.
-        return ctx.cls.indirectBootstrap.let { indirectBootstrapNode ->
-            val funcType = ctx.cls.typeAtIndex(index)
-            val desc = Type.getMethodDescriptor(
-                (funcType.ret?.jclass ?: Void.TYPE).asmType,
-                // All params
-                *funcType.params.map { it.jclass.asmType }.toTypedArray(),
-                // This
-                ctx.cls.thisRef.asm,
-                // The int index
-                Type.INT_TYPE
-            )
-            fn.popExpecting(Int::class.ref).popExpecting(ctx.cls.thisRef).
-                popExpectingMulti(funcType.params.map(Node.Type.Value::typeRef)).
-                addInsns(
+        // the stack before the index. If the table never changes, we instead
+        // call a synthetic method that takes the same args and calls directly.
+        val funcType = ctx.cls.typeAtIndex(index)
+        val desc = Type.getMethodDescriptor(
+            (funcType.ret?.jclass ?: Void.TYPE).asmType,
+            // All params
+            *funcType.params.map { it.jclass.asmType }.toTypedArray(),
+            // This
+            ctx.cls.thisRef.asm,
+            // The int index
+            Type.INT_TYPE
+        )
+        return fn.popExpecting(Int::class.ref).popExpecting(ctx.cls.thisRef).
+            popExpectingMulti(funcType.params.map(Node.Type.Value::typeRef)).
+            addInsns(
+                ctx.cls.staticIndirectDispatch(funcType) ?: ctx.cls.indirectBootstrap.let { indirectBootstrapNode ->
                     InvokeDynamicInsnNode(
                         "indirectBootstrap",
                         desc,
                         Handle(Opcodes.H_INVOKESTATIC, indirectBootstrapNode.owner,
-                            indirectBootstrapNode.name, indirectBootstrapNode.desc, false)
+                            indirectBootstrapNode.name, indirectBootstrapNode.desc, false),
+                        ctx.cls.indirectCacheSize
                     )
-                ).let { fn -> funcType.ret?.let { fn.push(it.typeRef) } ?: fn }
-        }
+                }
+            ).let { fn -> funcType.ret?.let { fn.push(it.typeRef) } ?: fn }
     }
 
     fun applyReturnInsn(ctx: FuncContext, fn: Func): Func {
@@ -10,4 +10,7 @@ data class FuncContext(
     val memIsLocalVar: Boolean = false
 ) : Logger by cls.logger {
     fun actualLocalIndex(givenIndex: Int) = node.actualLocalIndex(givenIndex)
+
+    // Range check results are ints just past the mem local
+    fun rangeCheckLocalIndex(rangeCheckIndex: Int) = actualLocalIndex(node.localsSize) + 1 + rangeCheckIndex
 }
\ No newline at end of file
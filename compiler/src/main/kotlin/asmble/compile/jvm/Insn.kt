@@ -6,4 +6,16 @@ sealed class Insn {
     data class ImportGlobalSetRefNeededOnStack(val index: Int) : Insn()
     object ThisNeededOnStack : Insn()
     object MemNeededOnStack : Insn()
-}
\ No newline at end of file
+    // Before a loop, checks whether every access at the induction local plus at most accessEnd is in bounds for all
+    // iterations and stores the result in the range check local at the given index
+    data class LoopRangeCheck(
+        val rangeCheckIndex: Int,
+        val local: Int,
+        val bound: asmble.ast.Node.Instr,
+        val step: Int,
+        val comparison: asmble.ast.Node.Instr,
+        val accessEnd: Int
+    ) : Insn()
+    // A load or store that can skip bounds checks if the range check local at the given index is set
+    data class RangeCheckedMemAccess(val insn: asmble.ast.Node.Instr, val rangeCheckIndex: Int) : Insn()
+}
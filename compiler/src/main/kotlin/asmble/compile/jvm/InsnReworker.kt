@@ -6,10 +6,169 @@ open class InsnReworker {
 
     fun rework(ctx: ClsContext, func: Node.Func): List<Insn> {
         return injectNeededStackVars(ctx, func.instructions).let { insns ->
+            hoistLoopRangeChecks(ctx, func, insns)
+        }.let { insns ->
             addEagerLocalInitializers(ctx, func, insns)
         }
     }
 
+    fun hoistLoopRangeChecks(ctx: ClsContext, func: Node.Func, insns: List<Insn>): List<Insn> {
+        if (!ctx.hoistLoopRangeChecks || !ctx.mem.supportsUncheckedAccess) return insns
+        // For loops that step a local up to a bound that doesn't change in the loop, all accesses addressed by that
+        // local are within the start and the bound. So we check that whole range once before the loop and mark the
+        // accesses so they can skip their own check when the range check passed. If it didn't, they are checked as
+        // usual so traps still happen at the same access.
+        val rangeChecks = HashMap<Int, Insn.LoopRangeCheck>()
+        val checkedAccesses = HashMap<Int, Insn.RangeCheckedMemAccess>()
+        insns.forEachIndexed { loopIndex, loopInsn ->
+            if ((loopInsn as? Insn.Node)?.insn !is Node.Instr.Loop) return@forEachIndexed
+            val endIndex = blockEndIndex(insns, loopIndex)
+            val induction = loopInduction(ctx, func, insns, loopIndex, endIndex) ?: return@forEachIndexed
+            // Only accesses directly addressed by the local before the increment
+            val accesses = (loopIndex + 1 until induction.incrementIndex).mapNotNull { index ->
+                // Atomics check alignment themselves and aren't worth hoisting
+                val insn = (insns[index] as? Insn.Node)?.insn?.takeIf { it !is Node.Instr.AtomicAccess } as?
+                    Node.Instr.Args.AlignOffset ?: return@mapNotNull null
+                val isStore = insnStackDiff(ctx, insn as Node.Instr) == POP_PARAM * 2
+                val accessEnd = insn.offset + memAccessSize(insn)
+                if (accessEnd > Int.MAX_VALUE) return@mapNotNull null
+                addressProducerIndex(ctx, insns, index, if (isStore) 2 else 1)?.takeIf {
+                    (insns[it] as? Insn.Node)?.insn == Node.Instr.GetLocal(induction.local)
+                }?.let { index to accessEnd.toInt() }
+            }
+            if (accesses.isEmpty()) return@forEachIndexed
+            val rangeCheckIndex = rangeChecks.size
+            rangeChecks += loopIndex to Insn.LoopRangeCheck(rangeCheckIndex, induction.local, induction.bound,
+                induction.step, induction.comparison, accesses.map { it.second }.max()!!)
+            checkedAccesses += accesses.map { (index, _) ->
+                index to Insn.RangeCheckedMemAccess((insns[index] as Insn.Node).insn, rangeCheckIndex)
+            }
+        }
+        if (rangeChecks.isEmpty()) return insns
+        ctx.debug { "Hoisting range checks for ${checkedAccesses.size} accesses in ${rangeChecks.size} loop(s)" }
+        val ret = ArrayList<Insn>(insns.size + rangeChecks.size)
+        insns.forEachIndexed { index, insn ->
+            rangeChecks[index]?.let { ret += it }
+            ret += checkedAccesses[index] ?: insn
+        }
+        return ret
+    }
+
+    data class LoopInduction(
+        val local: Int,
+        val bound: Node.Instr,
+        val step: Int,
+        val comparison: Node.Instr,
+        val incrementIndex: Int
+    )
+
+    fun loopInduction(
+        ctx: ClsContext,
+        func: Node.Func,
+        insns: List<Insn>,
+        loopIndex: Int,
+        endIndex: Int
+    ): LoopInduction? {
+        // We only accept a loop that ends with an increment of an i32 local by a positive constant, then a
+        // conditional continue comparing it to an i32 const or local, e.g.
+        //   get_local i, i32.const 4, i32.add, tee_local i, get_local n, i32.lt_u, br_if 0
+        // The set_local form can have the compared values in either order.
+        val tail = insns.subList(loopIndex + 1, endIndex).takeLastWhile { it is Insn.Node }.
+            map { (it as Insn.Node).insn }
+        if (tail.lastOrNull() != Node.Instr.BrIf(0)) return null
+        fun isI32Local(index: Int) = func.localByIndex(index) == Node.Type.Value.I32
+        fun increment(first: Node.Instr, second: Node.Instr) = when {
+            first is Node.Instr.GetLocal && second is Node.Instr.I32Const -> first.index to second.value
+            first is Node.Instr.I32Const && second is Node.Instr.GetLocal -> second.index to first.value
+            else -> null
+        }?.takeIf { (local, step) -> step > 0 && isI32Local(local) }
+        fun bound(local: Int, insn: Node.Instr) = insn.takeIf {
+            it is Node.Instr.I32Const || (it is Node.Instr.GetLocal && it.index != local && isI32Local(it.index))
+        }
+        fun comparison(insn: Node.Instr, swapped: Boolean): Node.Instr? = when (insn) {
+            Node.Instr.I32LtU -> if (swapped) null else Node.Instr.I32LtU
+            Node.Instr.I32LtS -> if (swapped) null else Node.Instr.I32LtS
+            Node.Instr.I32GtU -> if (swapped) Node.Instr.I32LtU else null
+            Node.Instr.I32GtS -> if (swapped) Node.Instr.I32LtS else null
+            Node.Instr.I32Ne -> Node.Instr.I32Ne
+            else -> null
+        }
+        val induction = tail.takeLast(7).takeIf { it.size == 7 && it[2] == Node.Instr.I32Add }?.let { insns ->
+            // Tee form
+            val (local, step) = increment(insns[0], insns[1]) ?: return@let null
+            if (insns[3] != Node.Instr.TeeLocal(local)) return@let null
+            LoopInduction(local, bound(local, insns[4]) ?: return@let null, step,
+                comparison(insns[5], false) ?: return@let null, endIndex - 7)
+        } ?: tail.takeLast(8).takeIf { it.size == 8 && it[2] == Node.Instr.I32Add }?.let { insns ->
+            // Set form
+            val (local, step) = increment(insns[0], insns[1]) ?: return@let null
+            if (insns[3] != Node.Instr.SetLocal(local)) return@let null
+            val swapped = insns[5] == Node.Instr.GetLocal(local)
+            if (!swapped && insns[4] != Node.Instr.GetLocal(local)) return@let null
+            LoopInduction(local, bound(local, if (swapped) insns[4] else insns[5]) ?: return@let null, step,
+                comparison(insns[6], swapped) ?: return@let null, endIndex - 8)
+        } ?: return null
+        // Neither the local nor the bound can be set anywhere else in the loop
+        val boundLocal = (induction.bound as? Node.Instr.GetLocal)?.index
+        val incrementSetIndex = induction.incrementIndex + 3
+        (loopIndex + 1 until endIndex).forEach { index ->
+            val insn = (insns[index] as? Insn.Node)?.insn
+            if (index != incrementSetIndex && (insn is Node.Instr.SetLocal || insn is Node.Instr.TeeLocal) &&
+                (insn as Node.Instr.Args.Index).index.let { it == induction.local || it == boundLocal }) return null
+        }
+        ctx.trace { "Found loop at insn #$loopIndex with induction $induction" }
+        return induction
+    }
+
+    fun blockEndIndex(insns: List<Insn>, blockIndex: Int): Int {
+        var depth = 0
+        for (index in blockIndex + 1 until insns.size) {
+            when ((insns[index] as? Insn.Node)?.insn) {
+                is Node.Instr.Block, is Node.Instr.Loop, is Node.Instr.If -> depth++
+                is Node.Instr.End -> if (depth == 0) return index else depth--
+                else -> { }
+            }
+        }
+        error("No end for block at insn #$blockIndex")
+    }
+
+    // Finds the index of the insn that pushed the deepest of the given operand count of the insn at the given index.
+    // Only works without control flow in between, otherwise null.
+    fun addressProducerIndex(ctx: ClsContext, insns: List<Insn>, insnIndex: Int, operandCount: Int): Int? {
+        var needed = operandCount
+        for (index in insnIndex - 1 downTo 0) {
+            val insn = (insns[index] as? Insn.Node)?.insn ?: continue
+            val pushes = when (insn) {
+                is Node.Instr.Unreachable, is Node.Instr.Block, is Node.Instr.Loop, is Node.Instr.If,
+                is Node.Instr.Else, is Node.Instr.End, is Node.Instr.Br, is Node.Instr.BrIf, is Node.Instr.BrTable,
+                is Node.Instr.Return -> return null
+                is Node.Instr.Call -> if (ctx.funcTypeAtIndex(insn.index).ret == null) 0 else 1
+                is Node.Instr.CallIndirect -> if (ctx.typeAtIndex(insn.index).ret == null) 0 else 1
+                is Node.Instr.Nop, is Node.Instr.Drop, is Node.Instr.SetLocal, is Node.Instr.SetGlobal,
+                is Node.Instr.MemoryInit, is Node.Instr.DataDrop, is Node.Instr.MemoryCopy,
+                is Node.Instr.MemoryFill, is Node.Instr.AtomicFence -> 0
+                is Node.Instr.AtomicAccess -> if (insn.accessOp.hasResult) 1 else 0
+                // Stores are the only other insns without a result
+                is Node.Instr.Args.AlignOffset -> if (insnStackDiff(ctx, insn) == POP_PARAM * 2) 0 else 1
+                else -> 1
+            }
+            if (needed <= pushes) return index
+            // Otherwise what it pushed is no longer needed but what it popped is
+            needed -= insnStackDiff(ctx, insn)
+        }
+        return null
+    }
+
+    fun memAccessSize(insn: Node.Instr.Args.AlignOffset) = when (insn) {
+        is Node.Instr.I32Load8S, is Node.Instr.I32Load8U, is Node.Instr.I64Load8S, is Node.Instr.I64Load8U,
+        is Node.Instr.I32Store8, is Node.Instr.I64Store8 -> 1
+        is Node.Instr.I32Load16S, is Node.Instr.I32Load16U, is Node.Instr.I64Load16S, is Node.Instr.I64Load16U,
+        is Node.Instr.I32Store16, is Node.Instr.I64Store16 -> 2
+        is Node.Instr.I32Load, is Node.Instr.F32Load, is Node.Instr.I64Load32S, is Node.Instr.I64Load32U,
+        is Node.Instr.I32Store, is Node.Instr.F32Store, is Node.Instr.I64Store32 -> 4
+        else -> 8
+    }
+
     fun addEagerLocalInitializers(ctx: ClsContext, func: Node.Func, insns: List<Insn>): List<Insn> {
         if (func.locals.isEmpty()) return insns
         // The JVM requires you set a local before you access it. WASM requires that
@@ -189,6 +348,12 @@ open class InsnReworker {
                 // Grow memory requires "mem" before the single param
                 is Node.Instr.MemoryGrow ->
                     injectBeforeLastStackCount(Insn.MemNeededOnStack, 1)
+                // Bulk ops require "mem" before the three params
+                is Node.Instr.MemoryInit, is Node.Instr.MemoryCopy, is Node.Instr.MemoryFill ->
+                    injectBeforeLastStackCount(Insn.MemNeededOnStack, 3)
+                // Atomics require "mem" before all params
+                is Node.Instr.AtomicAccess ->
+                    injectBeforeLastStackCount(Insn.MemNeededOnStack, insn.accessOp.paramCount)
                 else -> { }
             }
 
@@ -240,6 +405,13 @@ open class InsnReworker {
         is Node.Instr.I64Store32 -> POP_PARAM + POP_PARAM
         is Node.Instr.MemorySize -> PUSH_RESULT
         is Node.Instr.MemoryGrow -> POP_PARAM + PUSH_RESULT
+        is Node.Instr.MemoryInit, is Node.Instr.MemoryCopy, is Node.Instr.MemoryFill ->
+            POP_PARAM + POP_PARAM + POP_PARAM
+        is Node.Instr.DataDrop -> NOP
+        is Node.Instr.AtomicAccess -> insn.accessOp.let {
+            (POP_PARAM * it.paramCount) + (if (it.hasResult) PUSH_RESULT else NOP)
+        }
+        is Node.Instr.AtomicFence -> NOP
         is Node.Instr.I32Const, is Node.Instr.I64Const,
         is Node.Instr.F32Const, is Node.Instr.F64Const -> PUSH_RESULT
         is Node.Instr.I32Add, is Node.Instr.I32Sub, is Node.Instr.I32Mul, is Node.Instr.I32DivS,
@@ -289,7 +461,8 @@ open class InsnReworker {
             else if (insn == Insn.MemNeededOnStack) 1
             else if (insn is Insn.Node && insn.insn is Node.Instr.MemorySize) 1
             else 0
-        val couldSetMemNext = if (insn !is Insn.Node) false else when (insn.insn) {
+        val nodeInsn = (insn as? Insn.Node)?.insn ?: (insn as? Insn.RangeCheckedMemAccess)?.insn
+        val couldSetMemNext = if (nodeInsn == null) false else when (nodeInsn) {
             is Node.Instr.I32Store, is Node.Instr.I64Store, is Node.Instr.F32Store, is Node.Instr.F64Store,
             is Node.Instr.I32Store8, is Node.Instr.I32Store16, is Node.Instr.I64Store8, is Node.Instr.I64Store16,
             is Node.Instr.I64Store32, is Node.Instr.MemoryGrow -> true
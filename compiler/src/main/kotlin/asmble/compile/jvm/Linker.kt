@@ -91,7 +91,7 @@ open class Linker {
             if (memClassCtr.parameters.first().isAnnotationPresent(WasmImport::class.java)) memClassCtr else {
                 // If there is a non-int-starting constructor, we want to use that
                 val nonMaxMemCtr = mod.cls.constructors.find {
-                    it != memClassCtr && it.parameters.firstOrNull()?.type != Integer.TYPE
+                    it != memClassCtr && it.parameters.firstOrNull()?.type.let { it != Integer.TYPE && it != mod.cls }
                 }
                 if (nonMaxMemCtr != null) nonMaxMemCtr else {
                     // Use the max-mem constructor and put the int on the stack
@@ -0,0 +1,138 @@
+package asmble.compile.jvm
+
+import asmble.ast.Node
+import asmble.runtime.MappedMemFiles
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.*
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+
+/**
+ * A [ByteBufferMem] where the memory created by the max memory constructor is a memory-mapped file in the given dir
+ * named after the compiled class, or in the dir of the [MappedMemFiles.DIR_PROPERTY] system property if it's set when
+ * the memory is created. The mapping is the max memory plus a small trailer that persists the current limit and whether
+ * data segments have been applied, so growth is persisted and reopening the file (e.g. on restart) restores the memory
+ * as it was instead of replaying the data segments. Existing files keep their size unless they are smaller than the max
+ * memory requested, in which case they are grown, and growth never goes past the declared max even when the file is
+ * larger. A file can only be used by one instance at a time, others fail on construction until [close]. Other instances
+ * can be given their own file by passing [open] to the memory constructor. Changes are written whenever the OS likes,
+ * or on [flush]. Loads and stores are the same as the parent.
+ */
+open class MappedMem(val dir: File) : ByteBufferMem(direct = true) {
+
+    fun fileName(ctx: ClsContext) = ctx.className + ".mem"
+
+    override fun limitAndCapacity(instance: Any) =
+        if (instance !is ByteBuffer) error("Unrecognized memory instance: $instance")
+        else instance.limit() to instance.capacity() - TRAILER_SIZE
+
+    override fun create(ctx: ClsContext, func: Func) = func.popExpecting(Int::class.ref).addInsns(
+        // The dir is left as given so the runtime can resolve it
+        LdcInsnNode(dir.path),
+        LdcInsnNode(fileName(ctx)),
+        invokeHelper(ctx, "create")
+    ).push(memType)
+
+    override fun init(ctx: ClsContext, func: Func, initial: Int) = func.popExpecting(memType).addInsns(
+        (initial * Mem.PAGE_SIZE).const,
+        (if (ctx.mod.data.all { it.passive }) 0 else 1).const,
+        invokeHelper(ctx, "init")
+    ).push(memType)
+
+    override fun data(ctx: ClsContext, func: Func, bytes: ByteArray, buildOffset: (Func) -> Func) =
+        // Imported memory is never initialized here, so we just always apply the data like the parent
+        if (ctx.mod.memories.isEmpty()) super.data(ctx, func, bytes, buildOffset)
+        // The last chunk of the last active data marks the memory as initialized
+        else (ctx.mod.data.lastOrNull { !it.passive }?.data === bytes).let { lastData ->
+            val chunks = bytes.chunked(16300).toList().let { if (it.isEmpty()) listOf(bytes) else it }
+            func.popExpecting(memType).
+                let(buildOffset).popExpecting(Int::class.ref).
+                addInsns(
+                    // Same string chunking as the parent, each chunk written at its own offset
+                    chunks.withIndex().flatMap { (index, chunk) ->
+                        listOf(
+                            InsnNode(Opcodes.DUP2),
+                            (index * 16300).const,
+                            InsnNode(Opcodes.IADD),
+                            LdcInsnNode(chunk.toString(Charsets.ISO_8859_1)),
+                            (if (lastData && index == chunks.size - 1) 1 else 0).const,
+                            invokeHelper(ctx, "data"),
+                            InsnNode(Opcodes.POP)
+                        )
+                    }
+                ).addInsns(
+                    InsnNode(Opcodes.POP2)
+                )
+        }
+
+    override fun dataFromBytes(
+        ctx: ClsContext,
+        func: Func,
+        bytes: ByteArray,
+        bytesOffset: Int,
+        pushBytes: (Func) -> Func,
+        buildOffset: (Func) -> Func
+    ) =
+        if (ctx.mod.memories.isEmpty()) super.dataFromBytes(ctx, func, bytes, bytesOffset, pushBytes, buildOffset)
+        // The bytes are in data order, so the last active data (or any empty ones after it) ends where the data up
+        // to and including it does
+        else (bytesOffset + bytes.size == ctx.mod.data.take(ctx.mod.data.indexOfLast { !it.passive } + 1).
+            sumBy { it.data.size }).let { lastData ->
+            func.popExpecting(memType).
+                let(buildOffset).popExpecting(Int::class.ref).
+                let(pushBytes).popExpecting(ByteArray::class.ref).
+                addInsns(
+                    bytesOffset.const,
+                    bytes.size.const,
+                    (if (lastData) 1 else 0).const,
+                    invokeHelper(ctx, "dataBytes"),
+                    InsnNode(Opcodes.POP)
+                )
+        }
+
+    override fun getOrCreateGrowMemoryMethod(ctx: FuncContext, func: Func): MethodNode =
+        ctx.cls.cls.methods.find { (it as? MethodNode)?.name == "\$\$growMemory" }?.let { it as MethodNode } ?: run {
+            // The file can be larger than the max, so the max is given too
+            val node = MethodNode(
+                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+                "\$\$growMemory", "(Ljava/nio/ByteBuffer;I)I", null, null
+            ).addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                VarInsnNode(Opcodes.ILOAD, 1),
+                maxPages(ctx.cls).const,
+                invokeHelper(ctx.cls, "grow"),
+                InsnNode(Opcodes.IRETURN)
+            )
+            // Serialized on the memory for shared memory like our parent's, the trailer write included
+            if (ctx.cls.hasSharedMemory) node.synchronizedOn(0)
+            ctx.cls.cls.methods.add(node)
+            node
+        }
+
+    // The declared max pages of the memory, or the most wasm allows if there isn't one
+    fun maxPages(ctx: ClsContext) = (ctx.mod.memories.firstOrNull() ?: ctx.mod.imports.mapNotNull {
+        (it.kind as? Node.Import.Kind.Memory)?.type
+    }.firstOrNull())?.limits?.maximum ?: MAX_PAGES
+
+    fun invokeHelper(ctx: ClsContext, name: String) = ctx.helperCall(MappedMemHelpers::class.java, "mapped", name)
+
+    companion object {
+        const val TRAILER_SIZE = MappedMemFiles.TRAILER_SIZE
+        const val MAX_PAGES = 65536
+
+        // Maps the file as memory with at least the given capacity in bytes, to give an instance its own file via the
+        // memory constructor
+        fun open(file: File, capacity: Int): ByteBuffer = MappedMemFiles.open(file.path, capacity)
+
+        // Writes the memory's changes to its file now instead of whenever the OS does
+        fun flush(instance: Any) {
+            (instance as? MappedByteBuffer ?: error("Unrecognized memory instance: $instance")).force()
+        }
+
+        // Flushes the memory and frees its file to be used by another instance, the memory can't be used after
+        fun close(instance: Any) {
+            MappedMemFiles.close(instance as? MappedByteBuffer ?: error("Unrecognized memory instance: $instance"))
+        }
+    }
+}
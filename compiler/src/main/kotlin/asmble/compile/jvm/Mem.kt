@@ -8,20 +8,55 @@ interface Mem {
 
     fun limitAndCapacity(instance: Any): Pair<Int, Int>
 
+    // Given a fully initialized mem instance, return a new instance for a fork
+    // that starts with the same contents. Writes to either must not be visible
+    // in the other.
+    fun fork(instance: Any): Any = throw CompileErr.MemoryOpNotSupported(javaClass.name, "forking")
+
     // Caller can trust the max is on the stack as an i32 in bytes. The result
-    // must be put on the stack
-    fun create(func: Func): Func
+    // must be put on the stack. Impls must override this or the one with the
+    // class context.
+    fun create(func: Func): Func = throw CompileErr.MemoryOpNotSupported(javaClass.name, "create without a class")
+
+    // Same as create but with the class context for impls that need to add
+    // helpers. This is the one called.
+    fun create(ctx: ClsContext, func: Func) = create(func)
 
     // Caller can trust the mem instance is on the stack and must handle it. If
     // it's already there after call anyways, this can leave the mem inst on the
     // stack and it will be reused or popped. Note, this is not called for
-    // imported memory.
-    fun init(func: Func, initial: Int): Func
+    // imported memory. Impls must override this or the one with the class
+    // context.
+    fun init(func: Func, initial: Int): Func =
+        throw CompileErr.MemoryOpNotSupported(javaClass.name, "init without a class")
+
+    // Same as init but with the class context for impls that need to add
+    // helpers. This is the one called.
+    fun init(ctx: ClsContext, func: Func, initial: Int) = init(func, initial)
 
     // Caller can trust the mem instance is on the stack, buildOffset puts an i32
     // offset on the stack. If it's already there after call anyways, this can
-    // leave the mem inst on the stack and it will be reused or popped.
-    fun data(func: Func, bytes: ByteArray, buildOffset: (Func) -> Func): Func
+    // leave the mem inst on the stack and it will be reused or popped. Impls
+    // must override this or the one with the class context.
+    fun data(func: Func, bytes: ByteArray, buildOffset: (Func) -> Func): Func =
+        throw CompileErr.MemoryOpNotSupported(javaClass.name, "data without a class")
+
+    // Same as data but with the class context for impls that need to add
+    // helpers. This is the one called.
+    fun data(ctx: ClsContext, func: Func, bytes: ByteArray, buildOffset: (Func) -> Func) =
+        data(func, bytes, buildOffset)
+
+    // Same as data but instead of embedding the bytes, pushBytes puts a byte array
+    // on the stack that has them at the given offset. By default they are just
+    // embedded like data.
+    fun dataFromBytes(
+        ctx: ClsContext,
+        func: Func,
+        bytes: ByteArray,
+        bytesOffset: Int,
+        pushBytes: (Func) -> Func,
+        buildOffset: (Func) -> Func
+    ) = data(ctx, func, bytes, buildOffset)
 
     // Caller can trust the mem instance is on the stack.
     fun currentMemory(ctx: FuncContext, func: Func): Func
@@ -42,6 +77,49 @@ interface Mem {
     // Whether or not storeOp leaves a mem instance on the stack
     val storeLeavesMemOnStack: Boolean
 
+    // Whether shared memory from the threads proposal can be used, i.e. the
+    // instance can be accessed and grown from several threads at once
+    val supportsSharedMemory: Boolean get() = false
+
+    // Why what's built can't run on this platform (e.g. it needs a certain
+    // byte order), or null if it can
+    val unsupportedPlatformReason: String? get() = null
+
+    // Whether uncheckedLoadOp and uncheckedStoreOp actually skip bounds checks
+    val supportsUncheckedAccess: Boolean get() = false
+
+    // Same as loadOp but the caller has already checked the access is in bounds
+    fun uncheckedLoadOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset) = loadOp(ctx, func, insn)
+
+    // Same as storeOp but the caller has already checked the access is in bounds
+    fun uncheckedStoreOp(ctx: FuncContext, func: Func, insn: Node.Instr.Args.AlignOffset) = storeOp(ctx, func, insn)
+
+    // Caller can trust the mem instance then the i32 dest, i32 source, and i32
+    // length are on the stack. Must copy as if through a temporary buffer and
+    // must trap before writing anything if either range is out of bounds.
+    fun memoryCopy(ctx: FuncContext, func: Func): Func =
+        throw CompileErr.MemoryOpNotSupported(javaClass.name, "bulk memory")
+
+    // Caller can trust the mem instance then the i32 dest, i32 byte value, and
+    // i32 length are on the stack. Must trap before writing anything if out of
+    // bounds.
+    fun memoryFill(ctx: FuncContext, func: Func): Func =
+        throw CompileErr.MemoryOpNotSupported(javaClass.name, "bulk memory")
+
+    // Caller can trust the mem instance then the i32 dest, i32 data offset, i32
+    // length, and the segment's byte array are on the stack. The byte array is
+    // null if the segment was dropped. Must trap before writing anything if
+    // either range is out of bounds.
+    fun memoryInit(ctx: FuncContext, func: Func): Func =
+        throw CompileErr.MemoryOpNotSupported(javaClass.name, "bulk memory")
+
+    // Caller can trust the mem instance then the insn's params (address first)
+    // are on the stack. Must leave the result, if any, and must be sequentially
+    // consistent. Traps on misalignment before bounds. The fence is not given
+    // here since it doesn't touch memory.
+    fun atomicOp(ctx: FuncContext, func: Func, insn: Node.Instr.AtomicAccess): Func =
+        throw CompileErr.MemoryOpNotSupported(javaClass.name, "atomics")
+
     companion object {
         const val PAGE_SIZE = 65536
     }
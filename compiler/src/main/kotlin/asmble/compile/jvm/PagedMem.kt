@@ -0,0 +1,115 @@
+package asmble.compile.jvm
+
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.tree.*
+import java.nio.ByteBuffer
+import kotlin.reflect.KClass
+import kotlin.reflect.KFunction
+
+/**
+ * A [Mem] that only commits the pages in use instead of allocating the full max up front. The memory instance is a
+ * `ByteBuffer[]` page table sized to the max page count where only the first committed pages are non-null. The initial
+ * pages are committed on init and growing commits the new pages. Accesses resolve the page via the table, and values
+ * that straddle two pages fall back to byte-at-a-time access. The accessors are copied from [PagedMemHelpers] into the
+ * compiled class. Since the table instance never changes, this works with imported and exported memory. The index
+ * handling is reused from [ByteBufferMem].
+ *
+ * Forking shares the committed pages as read-only views between the original and the fork, and whichever writes to a
+ * shared page first gets a private copy of it. Forking swaps the original's pages for read-only views, so it should
+ * not happen while the original is running, and host code writing to the pages must check `isReadOnly` itself.
+ */
+open class PagedMem(direct: Boolean = false) : ByteBufferMem(direct) {
+    override val memType = Array<ByteBuffer>::class.ref
+
+    override fun limitAndCapacity(instance: Any) =
+        if (instance !is Array<*> || !instance.isArrayOf<ByteBuffer>()) error("Unrecognized memory instance: $instance")
+        else instance.count { it != null } * Mem.PAGE_SIZE to instance.size * Mem.PAGE_SIZE
+
+    @Suppress("UNCHECKED_CAST")
+    override fun fork(instance: Any): Any =
+        if (instance !is Array<*> || !instance.isArrayOf<ByteBuffer>()) error("Unrecognized memory instance: $instance")
+        else PagedMemHelpers.fork(instance as Array<ByteBuffer?>)
+
+    fun allocate(initialPages: Int, maxPages: Int) = arrayOfNulls<ByteBuffer>(maxPages).also {
+        require(initialPages in 0..maxPages) { "Initial pages $initialPages not in max pages $maxPages" }
+        for (i in 0 until initialPages) it[i] = PagedMemHelpers.newPage(direct)
+    }
+
+    override fun create(ctx: ClsContext, func: Func) = func.popExpecting(Int::class.ref).addInsns(
+        Mem.PAGE_SIZE.const,
+        InsnNode(Opcodes.IDIV),
+        TypeInsnNode(Opcodes.ANEWARRAY, ByteBuffer::class.ref.asmName)
+    ).push(memType)
+
+    override fun init(ctx: ClsContext, func: Func, initial: Int) = func.popExpecting(memType).addInsns(
+        initial.const,
+        direct.const,
+        invokeHelper(ctx, "commit")
+    ).push(memType)
+
+    override fun data(ctx: ClsContext, func: Func, bytes: ByteArray, buildOffset: (Func) -> Func) =
+        func.popExpecting(memType).
+            let(buildOffset).popExpecting(Int::class.ref).
+            addInsns(
+                // Same string chunking as the parent, each chunk written at its own offset
+                bytes.chunked(16300).withIndex().flatMap { (index, bytes) ->
+                    sequenceOf(
+                        InsnNode(Opcodes.DUP2),
+                        (index * 16300).const,
+                        InsnNode(Opcodes.IADD),
+                        LdcInsnNode(bytes.toString(Charsets.ISO_8859_1)),
+                        invokeHelper(ctx, "data"),
+                        InsnNode(Opcodes.POP)
+                    )
+                }.toList()
+            ).addInsns(
+                InsnNode(Opcodes.POP2)
+            )
+
+    override fun dataFromBytes(
+        ctx: ClsContext,
+        func: Func,
+        bytes: ByteArray,
+        bytesOffset: Int,
+        pushBytes: (Func) -> Func,
+        buildOffset: (Func) -> Func
+    ) =
+        func.popExpecting(memType).
+            let(buildOffset).popExpecting(Int::class.ref).
+            let(pushBytes).popExpecting(ByteArray::class.ref).
+            addInsns(
+                bytesOffset.const,
+                bytes.size.const,
+                invokeHelper(ctx, "dataBytes"),
+                InsnNode(Opcodes.POP)
+            )
+
+    override fun currentMemory(ctx: FuncContext, func: Func) = func.popExpecting(memType).addInsns(
+        invokeHelper(ctx.cls, "pages")
+    ).push(Int::class.ref)
+
+    override fun growMemory(ctx: FuncContext, func: Func) =
+        func.popExpecting(Int::class.ref).popExpecting(memType).addInsns(
+            direct.const,
+            invokeHelper(ctx.cls, "grow")
+        ).push(Int::class.ref)
+
+    override fun bufferLoad(ctx: FuncContext, fn: KFunction<*>) = listOf(invokeHelper(ctx.cls, fn.name))
+
+    override fun bufferStore(ctx: FuncContext, name: String, valType: KClass<*>) = listOf(invokeHelper(ctx.cls, name))
+
+    override fun bulkHelper(ctx: ClsContext, name: String) = invokeHelper(ctx, name)
+
+    // Page commits and copies on write aren't thread safe
+    override val supportsSharedMemory get() = false
+
+    // Only unshared memory gets here, so the atomics can be the plain page accesses. They still trap when unaligned.
+    override fun atomicHelper(ctx: ClsContext, name: String): AbstractInsnNode =
+        ctx.helperCall(AtomicMemHelpers::class.java, "atomic", name) { invokeHelper(ctx, "atomic" + it.capitalize()) }
+
+    fun invokeHelper(ctx: ClsContext, name: String) = ctx.helperCall(PagedMemHelpers::class.java, "paged", name)
+
+    val Boolean.const get() = (if (this) 1 else 0).const
+
+    companion object : PagedMem()
+}
@@ -1,29 +1,104 @@
 package asmble.compile.jvm
 
 import asmble.ast.Node
+import asmble.util.Either
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
 import org.objectweb.asm.tree.*
+import java.lang.invoke.WrongMethodTypeException
 
 open class SyntheticFuncBuilder {
 
-    fun buildIndirectBootstrap(ctx: ClsContext, name: String): MethodNode {
-        // With WASM, you have all parameters then the index of the method to call in the table.
-        // So we need to build a dynamic call that can take parameters + the table index.
-        // Just take the helper's instructions and add them here. For now we don't cache because
-        // ASM does some annoying state manip even when just looping over instructions. For now,
-        // none of the insns in the helper reference the "owner" so we don't have to change those.
-        val runtimeHelpers = ClassNode().also {
-            ClassReader(RuntimeHelpers::class.java.name).
-                accept(it, ClassReader.SKIP_DEBUG and ClassReader.SKIP_FRAMES)
+    fun buildHelperCopy(
+        ctx: ClsContext,
+        helpers: Class<*>,
+        helperName: String,
+        name: String,
+        nativeCall: ((String) -> MethodInsnNode)?,
+        helperCall: (String) -> MethodInsnNode
+    ): MethodNode {
+        // Just take the helper's instructions and add them here. For now we don't cache because ASM does some
+        // annoying state manip even when just looping over instructions. The helpers must be static, use no fields
+        // or try/catch, and not be mutually recursive. Calls to other helpers are pointed at copies of those, and
+        // calls to native helpers are pointed at whatever the caller gives for them with the same desc.
+        val helperCls = ClassNode().also {
+            ClassReader(helpers.name).accept(it, ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES)
         }
-        val helperMeth = runtimeHelpers.methods.first { (it as MethodNode).name == "bootstrapIndirect" } as MethodNode
+        val helperMeths = helperCls.methods.map { it as MethodNode }
+        val nativeNames = helperMeths.filter { it.access and Opcodes.ACC_NATIVE != 0 }.map { it.name }.toSet()
+        val helperMeth = helperMeths.first { it.name == helperName }
         return MethodNode(
             Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC, name,
             helperMeth.desc, null, null
-        ).addInsns(*helperMeth.instructions.toArray())
+        ).addInsns(*helperMeth.instructions.toArray().map { insn ->
+            if (insn !is MethodInsnNode || insn.owner != helperCls.name) insn
+            else if (insn.name in nativeNames)
+                nativeCall?.invoke(insn.name) ?: throw IllegalArgumentException("No call for native ${insn.name}")
+            else helperCall(insn.name)
+        }.toTypedArray())
     }
 
+    fun buildStaticIndirectDispatch(ctx: ClsContext, name: String, type: Node.Type.Func, table: List<Int?>) =
+        // Takes the params, then "this", then the table index like the indirect call site does, but switches on the
+        // index to call the funcs directly. Each func of the type gets one case no matter how many indices it's at.
+        // Bad indices fail with the same exceptions the call site would.
+        MethodNode(
+            Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC, name,
+            Type.getMethodDescriptor((type.ret?.jclass ?: Void.TYPE).asmType,
+                *type.params.map { it.jclass.asmType }.toTypedArray(), ctx.thisRef.asm, Type.INT_TYPE),
+            null, null
+        ).also { method ->
+            val thisIndex = type.params.sumBy { it.typeRef.stackSize }
+            val outOfBounds = LabelNode()
+            val uninitialized = LabelNode()
+            val mismatch = LabelNode()
+            val funcLabels = table.filterNotNull().distinct().
+                filter { ctx.funcTypeAtIndex(it) == type }.associate { it to LabelNode() }
+            val labels = table.map { funcIndex -> funcIndex?.let { funcLabels[it] ?: mismatch } ?: uninitialized }
+            method.addInsns(
+                VarInsnNode(Opcodes.ILOAD, thisIndex + 1),
+                if (labels.isEmpty()) JumpInsnNode(Opcodes.GOTO, outOfBounds)
+                else TableSwitchInsnNode(0, labels.size - 1, outOfBounds, *labels.toTypedArray())
+            )
+            funcLabels.forEach { (funcIndex, label) ->
+                method.addInsns(label, VarInsnNode(Opcodes.ALOAD, thisIndex))
+                val isImport = ctx.funcAtIndex(funcIndex) is Either.Left
+                // Imports use the method handle or interface field
+                if (isImport) method.addInsns(ctx.importFuncRef(funcIndex))
+                type.params.fold(0) { stackIndex, param ->
+                    method.addInsns(VarInsnNode(param.typeRef.asm.getOpcode(Opcodes.ILOAD), stackIndex))
+                    stackIndex + param.typeRef.stackSize
+                }
+                method.addInsns(
+                    if (isImport) ctx.importFuncCall(funcIndex)
+                    else MethodInsnNode(Opcodes.INVOKEVIRTUAL, ctx.thisRef.asmName,
+                        ctx.funcName(funcIndex), type.asmDesc, false),
+                    InsnNode(type.ret?.typeRef?.asm?.getOpcode(Opcodes.IRETURN) ?: Opcodes.RETURN)
+                )
+            }
+            listOf(
+                outOfBounds to ArrayIndexOutOfBoundsException::class,
+                uninitialized to NullPointerException::class,
+                mismatch to WrongMethodTypeException::class
+            ).forEach { (label, exClass) ->
+                method.addInsns(
+                    label,
+                    TypeInsnNode(Opcodes.NEW, exClass.ref.asmName),
+                    InsnNode(Opcodes.DUP),
+                    MethodInsnNode(Opcodes.INVOKESPECIAL, exClass.ref.asmName, "<init>", "()V", false),
+                    InsnNode(Opcodes.ATHROW)
+                )
+            }
+        }
+
+    // A rough, slightly high, bytecode size of the static indirect dispatch
+    fun staticIndirectDispatchSize(ctx: ClsContext, type: Node.Type.Func, table: List<Int?>) =
+        // The index load and switch, each func's call, and the three throws
+        16 + (4 * table.size) + table.filterNotNull().distinct().filter { ctx.funcTypeAtIndex(it) == type }.sumBy {
+            10 + (2 * type.params.size)
+        } + (3 * 8)
+
     // Guaranteed that the first method result can be called to get the proper index.
     // Caller needs to make sure namePrefix is unique.
     fun buildLargeTableJumps(ctx: ClsContext, namePrefix: String, table: Node.Instr.BrTable): List<MethodNode> {
@@ -1,5 +1,6 @@
 package asmble.compile.jvm
 
+import org.objectweb.asm.Opcodes
 import org.objectweb.asm.Type
 
 data class TypeRef(val asm: Type) {
@@ -10,6 +11,15 @@ data class TypeRef(val asm: Type) {
 
     val stackSize: Int get() = if (asm == Type.DOUBLE_TYPE || asm == Type.LONG_TYPE) 2 else 1
 
+    // How the type is given in a frame
+    val frameType: Any get() = when (asm.sort) {
+        Type.BOOLEAN, Type.BYTE, Type.CHAR, Type.SHORT, Type.INT -> Opcodes.INTEGER
+        Type.LONG -> Opcodes.LONG
+        Type.FLOAT -> Opcodes.FLOAT
+        Type.DOUBLE -> Opcodes.DOUBLE
+        else -> asmName
+    }
+
     fun equivalentTo(other: TypeRef) = this == other || this == Unknown || other == Unknown
 
     object UnknownType
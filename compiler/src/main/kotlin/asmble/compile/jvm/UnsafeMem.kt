@@ -0,0 +1,213 @@
+package asmble.compile.jvm
+
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.*
+import java.lang.reflect.AccessibleObject
+import java.lang.reflect.Field
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.reflect.KClass
+import kotlin.reflect.KFunction
+import kotlin.reflect.jvm.javaMethod
+
+/**
+ * A [ByteBufferMem] that still uses a direct [ByteBuffer] as the memory instance (so creation, growth, imports and
+ * exports are unchanged) but does loads and stores with `sun.misc.Unsafe` against the buffer's raw address instead of
+ * going through the buffer accessors. Each access does a single unsigned bounds check against the buffer limit and
+ * throws the same [IndexOutOfBoundsException] a buffer would, except for accesses in loops whose whole range was
+ * checked before the loop (see [InsnReworker.hoistLoopRangeChecks]). Only direct buffers on little endian platforms
+ * are supported, compiling on any other fails with [CompileErr.MemoryNotSupportedOnPlatform].
+ */
+open class UnsafeMem : ByteBufferMem(direct = true) {
+
+    override fun limitAndCapacity(instance: Any) =
+        if (instance !is ByteBuffer || !instance.isDirect) error("Unsafe memory must be a direct buffer: $instance")
+        else instance.limit() to instance.capacity()
+
+    override fun bufferLoad(ctx: FuncContext, fn: KFunction<*>) =
+        getOrCreateAccessMethod(ctx, fn.name, fn.javaMethod!!.returnType.kotlin, load = true).let { method ->
+            listOf(MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, method.name, method.desc, false))
+        }
+
+    override fun bufferStore(ctx: FuncContext, name: String, valType: KClass<*>) =
+        getOrCreateAccessMethod(ctx, name, valType, load = false).let { method ->
+            listOf(MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, method.name, method.desc, false))
+        }
+
+    // The byte order loads and stores get from Unsafe
+    open val nativeOrder: ByteOrder get() = ByteOrder.nativeOrder()
+
+    override val unsupportedPlatformReason get() =
+        if (nativeOrder == ByteOrder.LITTLE_ENDIAN) null
+        else "Unsafe memory requires little endian, native order is $nativeOrder"
+
+    // Accesses inside loops that were range checked up front can go straight to the address
+    override val supportsUncheckedAccess get() = true
+
+    override fun uncheckedBufferLoad(ctx: FuncContext, fn: KFunction<*>) =
+        getOrCreateAccessMethod(ctx, fn.name, fn.javaMethod!!.returnType.kotlin, load = true, checked = false).
+            let { method ->
+                listOf(MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, method.name, method.desc, false))
+            }
+
+    override fun uncheckedBufferStore(ctx: FuncContext, name: String, valType: KClass<*>) =
+        getOrCreateAccessMethod(ctx, name, valType, load = false, checked = false).let { method ->
+            listOf(MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, method.name, method.desc, false))
+        }
+
+    // Creates a static (ByteBuffer, int)T for loads or a static (ByteBuffer, int, T)ByteBuffer for stores. The store
+    // returns the buffer so that we can keep the storeLeavesMemOnStack contract of our parent.
+    fun getOrCreateAccessMethod(
+        ctx: FuncContext,
+        bufMethodName: String,
+        valType: KClass<*>,
+        load: Boolean,
+        checked: Boolean = true
+    ) =
+        valType.javaPrimitiveType!!.let { primType ->
+            // The byte buffer methods are just get/put for bytes, the unsafe ones are getByte/putByte
+            val unsafeMethodName = (if (load) "get" else "put") + primType.name.capitalize()
+            val name = "\$\$unsafe" + (if (checked) "" else "Unchecked") + unsafeMethodName.capitalize()
+            require(bufMethodName == unsafeMethodName || bufMethodName + "Byte" == unsafeMethodName) {
+                "Unknown buffer method $bufMethodName"
+            }
+            ctx.cls.cls.methods.find { (it as? MethodNode)?.name == name }?.let { it as MethodNode } ?: run {
+                val valTypeRef = primType.ref
+                val (accessDesc, unsafeDesc) =
+                    if (load) valTypeRef.asMethodRetDesc(memType, Int::class.ref) to
+                        valTypeRef.asMethodRetDesc(Long::class.ref)
+                    else memType.asMethodRetDesc(memType, Int::class.ref, valTypeRef) to
+                        Void::class.ref.asMethodRetDesc(Long::class.ref, valTypeRef)
+                val node = MethodNode(
+                    Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+                    name, accessDesc, null, null
+                ).addInsns(
+                    getOrCreateUnsafeField(ctx.cls),
+                    VarInsnNode(Opcodes.ALOAD, 0),
+                    VarInsnNode(Opcodes.ILOAD, 1),
+                    when (primType) {
+                        Byte::class.javaPrimitiveType -> 1
+                        Short::class.javaPrimitiveType -> 2
+                        Long::class.javaPrimitiveType, Double::class.javaPrimitiveType -> 8
+                        else -> 4
+                    }.const,
+                    (if (checked) getOrCreateAddressMethod(ctx.cls)
+                        else getOrCreateUncheckedAddressMethod(ctx.cls)).let {
+                        MethodInsnNode(Opcodes.INVOKESTATIC, ctx.cls.thisRef.asmName, it.name, it.desc, false)
+                    }
+                )
+                if (load) node.addInsns(
+                    MethodInsnNode(Opcodes.INVOKEVIRTUAL, UNSAFE_CLASS_NAME, unsafeMethodName, unsafeDesc, false),
+                    InsnNode(valTypeRef.asm.getOpcode(Opcodes.IRETURN))
+                ) else node.addInsns(
+                    VarInsnNode(valTypeRef.asm.getOpcode(Opcodes.ILOAD), 2),
+                    MethodInsnNode(Opcodes.INVOKEVIRTUAL, UNSAFE_CLASS_NAME, unsafeMethodName, unsafeDesc, false),
+                    VarInsnNode(Opcodes.ALOAD, 0),
+                    InsnNode(Opcodes.ARETURN)
+                )
+                ctx.cls.cls.methods.add(node)
+                node
+            }
+        }
+
+    // Creates a static (ByteBuffer, int index, int size)long that does the bounds check and returns the raw address
+    fun getOrCreateAddressMethod(ctx: ClsContext): MethodNode =
+        ctx.cls.methods.find { (it as? MethodNode)?.name == "\$\$unsafeAddress" }?.let { it as MethodNode } ?: run {
+            val outOfBounds = LabelNode()
+            val node = MethodNode(
+                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+                "\$\$unsafeAddress", Long::class.ref.asMethodRetDesc(memType, Int::class.ref, Int::class.ref), null, null
+            ).addInsns(
+                // One unsigned check: index as unsigned long must be <= lim - size
+                VarInsnNode(Opcodes.ILOAD, 1), // [index]
+                InsnNode(Opcodes.I2L), // [indexL]
+                0xFFFFFFFFL.const, // [indexL, mask]
+                InsnNode(Opcodes.LAND), // [uindexL]
+                VarInsnNode(Opcodes.ALOAD, 0), // [uindexL, mem]
+                forceFnType<ByteBuffer.() -> Int>(ByteBuffer::limit).invokeVirtual(), // [uindexL, lim]
+                VarInsnNode(Opcodes.ILOAD, 2), // [uindexL, lim, size]
+                InsnNode(Opcodes.ISUB), // [uindexL, maxindex]
+                InsnNode(Opcodes.I2L), // [uindexL, maxindexL]
+                InsnNode(Opcodes.LCMP), // [cmpres]
+                JumpInsnNode(Opcodes.IFGT, outOfBounds), // []
+                getOrCreateUnsafeField(ctx), // [unsafe]
+                VarInsnNode(Opcodes.ALOAD, 0), // [unsafe, mem]
+                FieldInsnNode(Opcodes.GETSTATIC, ctx.thisRef.asmName, "\$\$unsafeAddressOffset", "J"),
+                MethodInsnNode(Opcodes.INVOKEVIRTUAL, UNSAFE_CLASS_NAME, "getLong", "(Ljava/lang/Object;J)J", false),
+                VarInsnNode(Opcodes.ILOAD, 1), // [addr, index]
+                InsnNode(Opcodes.I2L), // [addr, indexL]
+                InsnNode(Opcodes.LADD), // [indexaddr]
+                InsnNode(Opcodes.LRETURN),
+                outOfBounds
+            ).addInsns(*IndexOutOfBoundsException::class.athrow("Memory access out of bounds").toTypedArray())
+            ctx.cls.methods.add(node)
+            node
+        }
+
+    // Same as the address method but without the bounds check, the index is just treated as unsigned
+    fun getOrCreateUncheckedAddressMethod(ctx: ClsContext): MethodNode =
+        ctx.cls.methods.find { (it as? MethodNode)?.name == "\$\$unsafeUncheckedAddress" }?.let { it as MethodNode } ?:
+            MethodNode(
+                Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+                "\$\$unsafeUncheckedAddress",
+                Long::class.ref.asMethodRetDesc(memType, Int::class.ref, Int::class.ref), null, null
+            ).addInsns(
+                getOrCreateUnsafeField(ctx), // [unsafe]
+                VarInsnNode(Opcodes.ALOAD, 0), // [unsafe, mem]
+                FieldInsnNode(Opcodes.GETSTATIC, ctx.thisRef.asmName, "\$\$unsafeAddressOffset", "J"),
+                MethodInsnNode(Opcodes.INVOKEVIRTUAL, UNSAFE_CLASS_NAME, "getLong", "(Ljava/lang/Object;J)J", false),
+                VarInsnNode(Opcodes.ILOAD, 1), // [addr, index]
+                InsnNode(Opcodes.I2L), // [addr, indexL]
+                0xFFFFFFFFL.const, // [addr, indexL, mask]
+                InsnNode(Opcodes.LAND), // [addr, uindexL]
+                InsnNode(Opcodes.LADD), // [indexaddr]
+                InsnNode(Opcodes.LRETURN)
+            ).also { ctx.cls.methods.add(it) }
+
+    // Adds the static unsafe and buffer address offset fields set in the static init if not already there, and
+    // returns the getter for the unsafe field
+    fun getOrCreateUnsafeField(ctx: ClsContext): FieldInsnNode {
+        val getUnsafe = FieldInsnNode(Opcodes.GETSTATIC, ctx.thisRef.asmName, "\$\$unsafe", "L$UNSAFE_CLASS_NAME;")
+        if (ctx.cls.fields.any { (it as? FieldNode)?.name == getUnsafe.name }) return getUnsafe
+        ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL +
+            Opcodes.ACC_SYNTHETIC, getUnsafe.name, getUnsafe.desc, null, null))
+        ctx.cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL +
+            Opcodes.ACC_SYNTHETIC, "\$\$unsafeAddressOffset", "J", null, null))
+        val littleEndian = LabelNode()
+        ctx.cls.addStaticInitInsns(
+            // Unsafe values are little endian only on little endian platforms. The compile fails on any other, this
+            // is for classes that were built on one and then run on another.
+            forceFnType<() -> ByteOrder>(ByteOrder::nativeOrder).invokeStatic(),
+            FieldInsnNode(Opcodes.GETSTATIC, ByteOrder::class.ref.asmName, "LITTLE_ENDIAN", ByteOrder::class.ref.asmDesc),
+            JumpInsnNode(Opcodes.IF_ACMPEQ, littleEndian),
+            *UnsupportedOperationException::class.athrow("Unsafe memory requires little endian").toTypedArray(),
+            littleEndian,
+            // Grab the unsafe instance from the field
+            LdcInsnNode(Type.getObjectType(UNSAFE_CLASS_NAME)),
+            "theUnsafe".const,
+            Class<*>::getDeclaredField.invokeVirtual(),
+            InsnNode(Opcodes.DUP),
+            1.const,
+            MethodInsnNode(Opcodes.INVOKEVIRTUAL, AccessibleObject::class.ref.asmName, "setAccessible", "(Z)V", false),
+            InsnNode(Opcodes.ACONST_NULL),
+            Field::get.invokeVirtual(),
+            TypeInsnNode(Opcodes.CHECKCAST, UNSAFE_CLASS_NAME),
+            InsnNode(Opcodes.DUP),
+            FieldInsnNode(Opcodes.PUTSTATIC, ctx.thisRef.asmName, getUnsafe.name, getUnsafe.desc),
+            // Now the offset of the address field on the buffer
+            LdcInsnNode(Buffer::class.asmType),
+            "address".const,
+            Class<*>::getDeclaredField.invokeVirtual(),
+            MethodInsnNode(Opcodes.INVOKEVIRTUAL, UNSAFE_CLASS_NAME, "objectFieldOffset",
+                "(Ljava/lang/reflect/Field;)J", false),
+            FieldInsnNode(Opcodes.PUTSTATIC, ctx.thisRef.asmName, "\$\$unsafeAddressOffset", "J")
+        )
+        return getUnsafe
+    }
+
+    companion object : UnsafeMem() {
+        const val UNSAFE_CLASS_NAME = "sun/misc/Unsafe"
+    }
+}
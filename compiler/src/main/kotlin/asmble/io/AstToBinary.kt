@@ -18,8 +18,11 @@ open class AstToBinary(val version: Long = 1L) {
     }
 
     fun fromData(b: ByteWriter, n: Node.Data) {
-        b.writeVarUInt32(n.index)
-        fromInitExpr(b, n.offset)
+        // Flags are 0 for active in memory 0, 1 for passive, and 2 for active with an explicit memory
+        if (n.passive) b.writeVarUInt32(1)
+        else if (n.index == 0) b.writeVarUInt32(0)
+        else b.writeVarUInt32(2).also { b.writeVarUInt32(n.index) }
+        if (!n.passive) fromInitExpr(b, n.offset)
         b.writeVarUInt32(n.data.size)
         b.writeBytes(n.data)
     }
@@ -91,7 +94,13 @@ open class AstToBinary(val version: Long = 1L) {
 
     fun fromInstr(b: ByteWriter, n: Node.Instr) {
         val op = n.op()
-        b.writeByte(op.opcode.toByte())
+        // Prefixed opcodes have the sub opcode after
+        (op.opcode.toInt() ushr 8 and 0xff).let { prefix ->
+            if (prefix == 0) b.writeByte(op.opcode.toByte()) else {
+                b.writeByte(prefix.toByte())
+                b.writeVarUInt32(op.opcode.toInt() and 0xff)
+            }
+        }
         fun <A : Node.Instr.Args> Node.InstrOp<A>.args() = this.argsOf(n)
         when (op) {
             is Node.InstrOp.ControlFlowOp.NoArg, is Node.InstrOp.ParamOp.NoArg,
@@ -121,6 +130,18 @@ open class AstToBinary(val version: Long = 1L) {
             }
             is Node.InstrOp.MemOp.ReservedArg ->
                 b.writeVarUInt1(false)
+            is Node.InstrOp.MemOp.BulkIndexArg -> {
+                b.writeVarUInt32(op.args().index)
+                repeat(op.reservedBytes) { b.writeByte(0) }
+            }
+            is Node.InstrOp.MemOp.BulkNoArg ->
+                repeat(op.reservedBytes) { b.writeByte(0) }
+            is Node.InstrOp.MemOp.AtomicAlignOffsetArg -> op.args().let {
+                b.writeVarUInt32(it.align)
+                b.writeVarUInt32(it.offset)
+            }
+            is Node.InstrOp.MemOp.AtomicNoArg ->
+                b.writeByte(0)
             is Node.InstrOp.ConstOp.IntArg ->
                 b.writeVarInt32(op.args().value)
             is Node.InstrOp.ConstOp.LongArg ->
@@ -138,7 +159,11 @@ open class AstToBinary(val version: Long = 1L) {
     }
 
     fun fromMemoryType(b: ByteWriter, n: Node.Type.Memory) {
-        fromResizableLimits(b, n.limits)
+        // Shared memory is the second flag bit
+        if (!n.shared) fromResizableLimits(b, n.limits) else {
+            b.writeVarUInt7(((n.limits.maximum?.let { 1 } ?: 0) or 2).toShort())
+            fromResizableLimitsBody(b, n.limits)
+        }
     }
 
     fun fromModule(n: Node.Module) =
@@ -162,6 +187,9 @@ open class AstToBinary(val version: Long = 1L) {
         if (n.startFuncIndex != null)
             wrapSection(b, n, 8) { b -> b.writeVarUInt32(n.startFuncIndex) }
         wrapListSection(b, n, 9, n.elems, this::fromElem)
+        // The data count is required if any code refers to data segments
+        if (n.funcs.any { it.instructions.any { it is Node.Instr.MemoryInit || it is Node.Instr.DataDrop } })
+            wrapSection(b, n, 12) { b -> b.writeVarUInt32(n.data.size) }
         wrapListSection(b, n, 10, n.funcs, this::fromFuncBody)
         wrapListSection(b, n, 11, n.data, this::fromData)
         n.names?.also { fromNames(b, it) }
@@ -193,6 +221,10 @@ open class AstToBinary(val version: Long = 1L) {
 
     fun fromResizableLimits(b: ByteWriter, n: Node.ResizableLimits) {
         b.writeVarUInt1(n.maximum != null)
+        fromResizableLimitsBody(b, n)
+    }
+
+    fun fromResizableLimitsBody(b: ByteWriter, n: Node.ResizableLimits) {
         b.writeVarUInt32(n.initial)
         n.maximum?.let { b.writeVarUInt32(it) }
     }
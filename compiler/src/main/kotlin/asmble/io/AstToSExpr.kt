@@ -44,7 +44,8 @@ open class AstToSExpr(val parensInstrs: Boolean = true) {
     }
 
     fun fromData(v: Node.Data) =
-        (newMulti("data") + v.index) + (newMulti("offset") +
+        if (v.passive) newMulti("data") + v.data.toString(Charsets.UTF_8).quoted
+        else (newMulti("data") + v.index) + (newMulti("offset") +
             fromInstrs(v.offset).unwrapInstrs()) + v.data.toString(Charsets.UTF_8).quoted
 
     fun fromElem(v: Node.Elem) =
@@ -136,6 +137,13 @@ open class AstToSExpr(val parensInstrs: Boolean = true) {
                     it.align.takeIf { it > 0 }?.let { "align=$it"}
             }
             is Node.InstrOp.MemOp.ReservedArg -> exp
+            is Node.InstrOp.MemOp.BulkIndexArg -> exp + it.argsOf(v).index
+            is Node.InstrOp.MemOp.BulkNoArg -> exp
+            is Node.InstrOp.MemOp.AtomicAlignOffsetArg -> it.argsOf(v).let {
+                exp + it.offset.takeIf { it > 0 }?.let { "offset=$it"} +
+                    it.align.takeIf { it > 0 }?.let { "align=$it"}
+            }
+            is Node.InstrOp.MemOp.AtomicNoArg -> exp
             is Node.InstrOp.ConstOp<*> -> exp + it.argsOf(v).value
         }
     }
@@ -177,7 +185,8 @@ open class AstToSExpr(val parensInstrs: Boolean = true) {
     fun fromMemory(v: Node.Type.Memory, name: String? = null, impExp: ImportOrExport? = null) =
         newMulti("memory", name) + impExp?.let(this::fromImportOrExport) + fromMemorySig(v)
 
-    fun fromMemorySig(v: Node.Type.Memory) = fromResizableLimits(v.limits)
+    fun fromMemorySig(v: Node.Type.Memory) =
+        fromResizableLimits(v.limits) + listOfNotNull("shared".takeIf { v.shared }).map { fromString(it) }
 
     fun fromMeta(v: Script.Cmd.Meta) = when(v) {
         is Script.Cmd.Meta.Script -> newMulti("script", v.name) + fromScript(v.script)
@@ -38,11 +38,17 @@ open class BinaryToAst(
         }.also { require(b.isEof) }
     }
 
-    fun toData(b: ByteReader) = Node.Data(
-        index = b.readVarUInt32AsInt(),
-        offset = toInitExpr(b),
-        data = b.readVarUInt32AsInt().let { b.readBytes(it) }
-    )
+    fun toData(b: ByteReader) = b.readVarUInt32AsInt().let { flags ->
+        // 0 is active for memory 0, 1 is passive, and 2 is active with an explicit memory index
+        when (flags) {
+            0 -> Node.Data(index = 0, offset = toInitExpr(b), data = b.readVarUInt32AsInt().let { b.readBytes(it) })
+            1 -> Node.Data(index = 0, offset = emptyList(), data = b.readVarUInt32AsInt().let { b.readBytes(it) },
+                passive = true)
+            2 -> Node.Data(index = b.readVarUInt32AsInt(), offset = toInitExpr(b),
+                data = b.readVarUInt32AsInt().let { b.readBytes(it) })
+            else -> error("Unrecognized data flags: $flags")
+        }
+    }
 
     fun toElem(b: ByteReader) = Node.Elem(
         index = b.readVarUInt32AsInt(),
@@ -116,7 +122,7 @@ open class BinaryToAst(
 
     fun toInstrs(b: ByteReader) = mutableListOf<Node.Instr>().also { while (!b.isEof) it += toInstr(b) }.toList()
 
-    fun toInstr(b: ByteReader) = Node.InstrOp.op(b.readByte().toUnsignedShort()).let { op ->
+    fun toInstr(b: ByteReader) = Node.InstrOp.op(toOpcode(b)).let { op ->
         when (op) {
             is Node.InstrOp.ControlFlowOp.NoArg ->
                 op.create
@@ -144,6 +150,16 @@ open class BinaryToAst(
             )
             is Node.InstrOp.MemOp.ReservedArg ->
                 op.create(b.readVarUInt1().also { if (it) throw IoErr.InvalidReservedArg() })
+            is Node.InstrOp.MemOp.BulkIndexArg ->
+                op.create(b.readVarUInt32AsInt()).also { toReservedBytes(b, op.reservedBytes) }
+            is Node.InstrOp.MemOp.BulkNoArg ->
+                op.create.also { toReservedBytes(b, op.reservedBytes) }
+            is Node.InstrOp.MemOp.AtomicAlignOffsetArg -> op.create(
+                b.readVarUInt32AsInt(),
+                b.readVarUInt32()
+            )
+            is Node.InstrOp.MemOp.AtomicNoArg ->
+                op.create.also { toReservedBytes(b, 1) }
             is Node.InstrOp.ConstOp.IntArg ->
                 op.create(b.readVarInt32())
             is Node.InstrOp.ConstOp.LongArg ->
@@ -163,12 +179,26 @@ open class BinaryToAst(
         }
     }
 
+    fun toOpcode(b: ByteReader) = b.readByte().toUnsignedShort().let { opcode ->
+        // Prefixed opcodes have the sub opcode after
+        if (opcode != BULK_PREFIX && opcode != ATOMIC_PREFIX) opcode
+        else ((opcode.toInt() shl 8) or b.readVarUInt32AsInt()).toShort()
+    }
+
+    fun toReservedBytes(b: ByteReader, count: Int) = repeat(count) {
+        if (b.readByte().toInt() != 0) throw IoErr.InvalidReservedArg()
+    }
+
     fun toLocals(b: ByteReader): List<Node.Type.Value> {
         val size = try { b.readVarUInt32AsInt() } catch (e: NumberFormatException) { throw IoErr.InvalidLocalSize(e) }
         return toValueType(b).let { type -> List(size) { type } }
     }
 
-    fun toMemoryType(b: ByteReader) = Node.Type.Memory(toResizableLimits(b))
+    fun toMemoryType(b: ByteReader) = b.readVarUInt7().toInt().let { flags ->
+        // Shared memory is the second bit and requires a max
+        if (flags > 3 || flags == 2) throw IoErr.InvalidLimitsFlags(flags)
+        Node.Type.Memory(toResizableLimits(b, flags and 1 == 1), flags and 2 == 2)
+    }
 
     fun toModule(b: ByteArray) = toModule(ByteReader.InputStream(b.inputStream()))
 
@@ -178,15 +208,21 @@ open class BinaryToAst(
 
         // Slice up all the sections
         var maxSectionId = 0
+        var maxSectionOrder = 0
         var sections = emptyList<Pair<Int, ByteReader>>()
+        var dataCount: Int? = null
         while (!b.isEof) {
             val sectionId = b.readVarUInt7().toInt()
-            if (sectionId > 11) throw IoErr.InvalidSectionId(sectionId)
+            if (sectionId > 12) throw IoErr.InvalidSectionId(sectionId)
+            // The data count section comes between the elem and code sections
+            val sectionOrder = if (sectionId == 12) 19 else sectionId * 2
             if (sectionId != 0)
-                require(sectionId > maxSectionId) { "Section ID $sectionId came after $maxSectionId" }.
-                    also { maxSectionId = sectionId }
+                require(sectionOrder > maxSectionOrder) { "Section ID $sectionId came after $maxSectionId" }.
+                    also { maxSectionId = sectionId; maxSectionOrder = sectionOrder }
             val sectionLen = b.readVarUInt32AsInt()
-            sections += sectionId to b.read(sectionLen)
+            // The data count is only needed for single pass validation, so we just check and drop it
+            if (sectionId == 12) dataCount = b.read(sectionLen).readVarUInt32AsInt()
+            else sections += sectionId to b.read(sectionLen)
         }
 
         // Now build the module
@@ -207,7 +243,9 @@ open class BinaryToAst(
             funcs = readSectionList(10) { it }.
                 also { if (it.size != funcIndices.size) throw IoErr.InvalidCodeLength(funcIndices.size, it.size) }.
                 zip(funcIndices.map { types[it] }, this::toFunc),
-            data = readSectionList(11, this::toData),
+            data = readSectionList(11, this::toData).also {
+                if (dataCount != null && dataCount != it.size) throw IoErr.InvalidDataCount(dataCount!!, it.size)
+            },
             customSections = sections.foldIndexed(emptyList()) { index, customSections, (sectionId, b) ->
                 if (sectionId != 0) customSections else {
                     // If the last section was custom, use the last custom section's after-ID,
@@ -229,12 +267,12 @@ open class BinaryToAst(
         ).copy(names = nameSection)
     }
 
-    fun toResizableLimits(b: ByteReader) = b.readVarUInt1().let {
-        Node.ResizableLimits(
-            initial = b.readVarUInt32AsInt(),
-            maximum = if (it) b.readVarUInt32AsInt() else null
-        )
-    }
+    fun toResizableLimits(b: ByteReader) = toResizableLimits(b, b.readVarUInt1())
+
+    fun toResizableLimits(b: ByteReader, hasMax: Boolean) = Node.ResizableLimits(
+        initial = b.readVarUInt32AsInt(),
+        maximum = if (hasMax) b.readVarUInt32AsInt() else null
+    )
 
     fun toTableType(b: ByteReader) = Node.Type.Table(toElemType(b), toResizableLimits(b))
 
@@ -256,5 +294,8 @@ open class BinaryToAst(
     }
     fun ByteReader.readVarUInt32AsInt() = this.readVarUInt32().toIntExact()
 
-    companion object : BinaryToAst()
+    companion object : BinaryToAst() {
+        const val BULK_PREFIX: Short = 0xfc
+        const val ATOMIC_PREFIX: Short = 0xfe
+    }
 }
\ No newline at end of file
@@ -26,6 +26,10 @@ sealed class IoErr(message: String, cause: Throwable? = null) : RuntimeException
         override val asmErrString get() = "function and code section have inconsistent lengths"
     }
 
+    class InvalidDataCount(dataCount: Int, dataLen: Int) : IoErr("Got data count $dataCount but $dataLen data") {
+        override val asmErrString get() = "data count and data section have inconsistent lengths"
+    }
+
     class InvalidMutability : IoErr("Invalid mutability boolean") {
         override val asmErrString get() = "invalid mutability"
     }
@@ -34,6 +38,14 @@ sealed class IoErr(message: String, cause: Throwable? = null) : RuntimeException
         override val asmErrString get() = "zero flag expected"
     }
 
+    class InvalidLimitsFlags(val flags: Int) : IoErr("Invalid limits flags $flags") {
+        override val asmErrString get() = "integer too large"
+    }
+
+    class SharedMemoryWithoutMax : IoErr("Shared memory must have a max") {
+        override val asmErrString get() = "shared memory must have maximum"
+    }
+
     class MultipleMemories : IoErr("Only single memory allowed") {
         override val asmErrString get() = "multiple memories"
     }
@@ -58,6 +70,13 @@ sealed class IoErr(message: String, cause: Throwable? = null) : RuntimeException
         override val asmErrString get() = "alignment must not be larger than natural"
     }
 
+    class InvalidAtomicAlign(
+        val align: Int,
+        val natural: Int
+    ) : IoErr("Atomic alignment $align is not the natural $natural") {
+        override val asmErrString get() = "atomic alignment must be natural"
+    }
+
     class InvalidResultArity : IoErr("Only single results supported") {
         override val asmErrString get() = "invalid result arity"
     }
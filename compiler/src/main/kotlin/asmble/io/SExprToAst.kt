@@ -114,6 +114,15 @@ open class SExprToAst(
     fun toData(exp: SExpr.Multi, nameMap: NameMap): Node.Data {
         exp.requireFirstSymbol("data")
         var currIndex = 1
+        // A leading name is the data's own name unless it refers to a memory
+        exp.maybeName(currIndex)?.also { if (nameMap.get("memory", it) == null) currIndex++ }
+        // Passive data is only the bytes, no memory or offset
+        if (exp.vals.drop(currIndex).all { it is SExpr.Symbol && it.quoted }) {
+            val bytes = exp.vals.drop(currIndex).fold(byteArrayOf()) { bytes, sym ->
+                bytes + (sym as SExpr.Symbol).rawContentCharsToBytes()
+            }
+            return Node.Data(0, emptyList(), bytes, passive = true)
+        }
         val index = toVarMaybe(exp.vals[currIndex], nameMap, "memory")
         if (index != null) currIndex++
         val offsetMulti = exp.vals[currIndex] as SExpr.Multi
@@ -487,7 +496,10 @@ open class SExprToAst(
     }
 
     fun toMemorySig(exp: SExpr.Multi, offset: Int): Node.Type.Memory {
-        return Node.Type.Memory(toResizeableLimits(exp, offset))
+        val limits = toResizeableLimits(exp, offset)
+        val shared = exp.vals.drop(offset).any { it.symbolStr() == "shared" }
+        if (shared && limits.maximum == null) throw IoErr.SharedMemoryWithoutMax()
+        return Node.Type.Memory(limits, shared)
     }
 
     fun toMeta(exp: SExpr.Multi): Script.Cmd.Meta {
@@ -699,6 +711,7 @@ open class SExprToAst(
         var globalCount = 0
         var tableCount = 0
         var memoryCount = 0
+        var dataCount = 0
         var nameMap = NameMap(
             names = emptyMap(),
             funcNames = if (includeNames) emptyMap() else null,
@@ -731,7 +744,11 @@ open class SExprToAst(
                 "func" -> maybeAddName(kindName, funcCount++, "func")
                 "global" -> maybeAddName(kindName, globalCount++, "global")
                 "table" -> maybeAddName(kindName, tableCount++, "table")
-                "memory" -> maybeAddName(kindName, memoryCount++, "memory")
+                "memory" -> maybeAddName(kindName, memoryCount++, "memory").also { _ ->
+                    // Inline data is a data segment too
+                    if (it.vals.any { (it as? SExpr.Multi)?.vals?.firstOrNull()?.symbolStr() == "data" }) dataCount++
+                }
+                "data" -> maybeAddName(kindName, dataCount++, "data")
                 // We go ahead and do the full type def build here eagerly
                 "type" -> maybeAddName(kindName, types.size, "type").also { _ ->
                     toTypeDef(it, nameMap).also { (_, type) -> types += type }
@@ -797,29 +814,19 @@ open class SExprToAst(
             is InstrOp.ParamOp.NoArg -> Pair(op.create, 1)
             is InstrOp.VarOp.IndexArg -> Pair(op.create(
                 oneVar(if (head.contents.endsWith("global")) "global" else "local")), 2)
-            is InstrOp.MemOp.AlignOffsetArg -> {
-                var count = 1
-                var instrOffset = 0L
-                var instrAlign = 0
-                if (exp.vals.size > offset + count) exp.vals[offset + count].symbolStr().also {
-                    if (it != null && it.startsWith("offset=")) {
-                        instrOffset = it.substring(7).toUnsignedIntConst()
-                        count++
-                    }
-                }
-                if (exp.vals.size > offset + count) exp.vals[offset + count].symbolStr().also {
-                    if (it != null && it.startsWith("align=")) {
-                        instrAlign = it.substring(6).toInt()
-                        if (instrAlign <= 0 || instrAlign and (instrAlign - 1) != 0) {
-                            throw IoErr.InvalidAlignPower(instrAlign)
-                        }
-                        if (instrAlign > op.argBits / 8) throw IoErr.InvalidAlignTooLarge(instrAlign, op.argBits)
-                        count++
-                    }
-                }
-                Pair(op.create(instrAlign, instrOffset), count)
+            is InstrOp.MemOp.AlignOffsetArg -> toAlignOffset(exp, offset, op.argBits).let { (align, off, count) ->
+                Pair(op.create(align, off), count)
             }
             is InstrOp.MemOp.ReservedArg -> Pair(op.create(false), 1)
+            is InstrOp.MemOp.BulkIndexArg -> Pair(op.create(oneVar("data")), 2)
+            is InstrOp.MemOp.BulkNoArg -> Pair(op.create, 1)
+            is InstrOp.MemOp.AtomicAlignOffsetArg ->
+                toAlignOffset(exp, offset, op.argBits).let { (align, off, count) ->
+                    // Unlike other accesses, atomics can only be given their natural alignment
+                    if (align != 0 && align != op.argBits / 8) throw IoErr.InvalidAtomicAlign(align, op.argBits / 8)
+                    Pair(op.create(align, off), count)
+                }
+            is InstrOp.MemOp.AtomicNoArg -> Pair(op.create, 1)
             is InstrOp.ConstOp.IntArg -> Pair(op.create(exp.vals[offset + 1].symbol()!!.contents.toIntConst()), 2)
             is InstrOp.ConstOp.LongArg -> Pair(op.create(exp.vals[offset + 1].symbol()!!.contents.toLongConst()), 2)
             is InstrOp.ConstOp.FloatArg -> Pair(op.create(exp.vals[offset + 1].symbol()!!.contents.toFloatConst()), 2)
@@ -831,6 +838,30 @@ open class SExprToAst(
         }
     }
 
+    // Returns the align, the offset, and the number of exps used including the op
+    fun toAlignOffset(exp: SExpr.Multi, offset: Int, argBits: Int): Triple<Int, Long, Int> {
+        var count = 1
+        var instrOffset = 0L
+        var instrAlign = 0
+        if (exp.vals.size > offset + count) exp.vals[offset + count].symbolStr().also {
+            if (it != null && it.startsWith("offset=")) {
+                instrOffset = it.substring(7).toUnsignedIntConst()
+                count++
+            }
+        }
+        if (exp.vals.size > offset + count) exp.vals[offset + count].symbolStr().also {
+            if (it != null && it.startsWith("align=")) {
+                instrAlign = it.substring(6).toInt()
+                if (instrAlign <= 0 || instrAlign and (instrAlign - 1) != 0) {
+                    throw IoErr.InvalidAlignPower(instrAlign)
+                }
+                if (instrAlign > argBits / 8) throw IoErr.InvalidAlignTooLarge(instrAlign, argBits)
+                count++
+            }
+        }
+        return Triple(instrAlign, instrOffset, count)
+    }
+
     fun toParams(exp: SExpr.Multi): Pair<String?, List<Node.Type.Value>> {
         exp.requireFirstSymbol("param")
         val name = exp.maybeName(1)
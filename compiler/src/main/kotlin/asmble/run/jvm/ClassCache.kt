@@ -0,0 +1,167 @@
+package asmble.run.jvm
+
+import asmble.compile.jvm.AstToAsm
+import asmble.compile.jvm.ByteBufferMem
+import asmble.compile.jvm.ClsContext
+import asmble.compile.jvm.MappedMem
+import asmble.io.AstToBinary
+import asmble.util.Logger
+import java.io.*
+import java.nio.file.*
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.stream.Collectors
+
+// A directory of compiled classes and resources, one file per key. The key is a hash of the module's binary, the
+// context's options, and the asmble build, so anything that changes the output changes the key. Without a way to
+// tell the asmble build apart (see asmbleVersion) there is no key and nothing is cached. Entries are written
+// to a temp file and moved into place, so concurrent writers of the same key (even across processes) just replace
+// one complete entry with another. Entries not used within maxAgeMillis are removed, and then the least recently
+// used ones are removed until the total size is under maxBytes.
+open class ClassCache(
+    val dir: Path,
+    val maxBytes: Long = 512L * 1024 * 1024,
+    val maxAgeMillis: Long = 30L * 24 * 60 * 60 * 1000,
+    val logger: Logger = Logger.Print(Logger.Level.OFF)
+) : Logger by logger {
+    // Classes in the order they are defined, resources by name, and classes only defined when loaded
+    class Entry(
+        val classes: List<ByteArray>,
+        val resources: Map<String, ByteArray>,
+        val lazyClasses: List<ByteArray> = emptyList()
+    )
+
+    fun key(ctx: ClsContext): String? {
+        val version = asmbleVersion ?: return null
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update(AstToBinary.fromModule(ctx.mod))
+        // All simple options by name. Others are by their class, so stateful extra passes must be in the class name.
+        val options = ClsContext::class.java.declaredFields.filter {
+            it.type.isPrimitive || it.type == String::class.java
+        }.sortedBy { it.name }.map { field ->
+            field.isAccessible = true
+            field.name + "=" + field.get(ctx)
+        } + listOf(ctx.mem, ctx.reworker, ctx.funcBuilder, ctx.syntheticFuncBuilder).map { it.javaClass.name } +
+            ctx.extraFuncPasses.map { it.javaClass.name } + memOptions(ctx) +
+            listOf(FORMAT_VERSION.toString(), version)
+        digest.update(options.joinToString("\n").toByteArray())
+        return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    // The built-in mems' params that end up in the class
+    protected fun memOptions(ctx: ClsContext) = listOfNotNull(
+        (ctx.mem as? ByteBufferMem)?.direct?.let { "direct=$it" },
+        (ctx.mem as? MappedMem)?.dir?.let { "dir=${it.path}" }
+    )
+
+    fun get(key: String): Entry? {
+        val file = dir.resolve("$key$SUFFIX")
+        val entry = try {
+            DataInputStream(BufferedInputStream(Files.newInputStream(file))).use { input ->
+                val classes = List(input.readInt()) { readBytes(input) }
+                val resources = List(input.readInt()) { input.readUTF() to readBytes(input) }.toMap()
+                Entry(classes, resources, List(input.readInt()) { readBytes(input) })
+            }
+        } catch (e: NoSuchFileException) {
+            null
+        } catch (e: IOException) {
+            // Corrupt entries (e.g. from a different format) are just rebuilt
+            warn { "Unable to read cached classes from $file: $e" }
+            null
+        }
+        debug { "Class cache ${if (entry == null) "miss" else "hit"} for $key" }
+        // The time is when it was last used for eviction
+        if (entry != null) try { Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())) }
+            catch (e: IOException) { }
+        return entry
+    }
+
+    fun put(key: String, entry: Entry) {
+        Files.createDirectories(dir)
+        val temp = Files.createTempFile(dir, key, TEMP_SUFFIX)
+        try {
+            DataOutputStream(BufferedOutputStream(Files.newOutputStream(temp))).use { out ->
+                out.writeInt(entry.classes.size)
+                entry.classes.forEach { writeBytes(out, it) }
+                out.writeInt(entry.resources.size)
+                entry.resources.forEach { (name, bytes) ->
+                    out.writeUTF(name)
+                    writeBytes(out, bytes)
+                }
+                out.writeInt(entry.lazyClasses.size)
+                entry.lazyClasses.forEach { writeBytes(out, it) }
+            }
+            Files.move(temp, dir.resolve("$key$SUFFIX"), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+        evict()
+    }
+
+    fun evict() {
+        val now = System.currentTimeMillis()
+        // Entries can be removed by others at any time, so those are just skipped
+        val files = Files.newDirectoryStream(dir).use { stream ->
+            stream.mapNotNull { file ->
+                try {
+                    val name = file.fileName.toString()
+                    val lastUsed = Files.getLastModifiedTime(file).toMillis()
+                    when {
+                        name.endsWith(SUFFIX) -> Triple(file, lastUsed, Files.size(file))
+                        // Left over from writers that died, using the same age so we don't remove in-progress ones
+                        name.endsWith(TEMP_SUFFIX) && now - lastUsed > maxAgeMillis ->
+                            null.also { Files.deleteIfExists(file) }
+                        else -> null
+                    }
+                } catch (e: IOException) { null }
+            }
+        }.sortedByDescending { it.second }
+        var totalBytes = 0L
+        files.forEach { (file, lastUsed, size) ->
+            totalBytes += size
+            if (now - lastUsed > maxAgeMillis || totalBytes > maxBytes) {
+                debug { "Evicting cached classes at $file" }
+                try { Files.deleteIfExists(file) } catch (e: IOException) { }
+            }
+        }
+    }
+
+    protected fun readBytes(input: DataInputStream) = ByteArray(input.readInt()).also { input.readFully(it) }
+
+    protected fun writeBytes(out: DataOutputStream, bytes: ByteArray) {
+        out.writeInt(bytes.size)
+        out.write(bytes)
+    }
+
+    companion object {
+        const val SUFFIX = ".classes"
+        const val TEMP_SUFFIX = ".tmp"
+        // Changed whenever the entry format changes
+        const val FORMAT_VERSION = 2
+
+        // A hash of the jar or classes dir asmble was loaded from, or the jar's version if it can't be read. Null if
+        // there's neither, since a build is all that tells cached classes from different asmble changes apart.
+        val asmbleVersion: String? by lazy {
+            val codeSource = try {
+                AstToAsm::class.java.protectionDomain?.codeSource?.location?.toURI()?.let { Paths.get(it) }
+            } catch (e: Exception) { null }
+            codeSource?.let { contentHash(it) } ?: AstToAsm::class.java.`package`?.implementationVersion
+        }
+
+        // A hash of the file's contents, or the names and contents of all files in the dir. Null if unreadable.
+        fun contentHash(path: Path): String? = try {
+            val digest = MessageDigest.getInstance("SHA-256")
+            if (!Files.isDirectory(path)) digest.update(Files.readAllBytes(path))
+            else Files.walk(path).use { paths ->
+                paths.filter { Files.isRegularFile(it) }.sorted().collect(Collectors.toList())
+            }.forEach { file ->
+                digest.update(path.relativize(file).joinToString("/").toByteArray())
+                digest.update(Files.readAllBytes(file))
+            }
+            digest.digest().joinToString("") { String.format("%02x", it) }
+        } catch (e: IOException) {
+            null
+        }
+    }
+}
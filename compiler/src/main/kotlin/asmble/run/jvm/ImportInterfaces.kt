@@ -0,0 +1,176 @@
+package asmble.run.jvm
+
+import asmble.annotation.WasmExternalKind
+import asmble.annotation.WasmImport
+import asmble.ast.Node
+import asmble.compile.jvm.*
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.*
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.reflect.Method
+import java.lang.reflect.Modifier
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+// Implementations of the import interfaces that modules compiled with importInterfaces take instead of method
+// handles. Implementations either call a handle per method or, for native hosts with exactly matching public
+// methods, call the host directly. Each implementing class is generated once per interface (and host class).
+open class ImportInterfaces {
+    private val handleImpls = object : ClassValue<Class<*>>() {
+        override fun computeValue(iface: Class<*>) = defineImpl(iface, null, emptyList())
+    }
+    // Keyed by host class, empty if the host can't be called directly
+    private val nativeImpls = object : ClassValue<MutableMap<Class<*>, Optional<Class<*>>>>() {
+        override fun computeValue(iface: Class<*>) = ConcurrentHashMap<Class<*>, Optional<Class<*>>>()
+    }
+    private val implCount = AtomicInteger()
+
+    // The methods of the interface and the import each is for (or sets for if it's a global setter)
+    fun methodImports(iface: Class<*>) = iface.methods.sortedBy { it.name }.mapNotNull { method ->
+        method.getDeclaredAnnotation(WasmImport::class.java)?.let { method to it }
+    }
+
+    fun importModule(iface: Class<*>) = methodImports(iface).first().second.module
+
+    // Each method invokes the resolved func or global handle
+    fun fromResolver(iface: Class<*>, imports: Module.ImportResolver): Any {
+        val methodImports = methodImports(iface)
+        val globals = HashMap<String, Pair<MethodHandle, MethodHandle?>>()
+        val handles = methodImports.map { (method, import) ->
+            if (import.kind == WasmExternalKind.FUNCTION) imports.resolveImportFunc(import.module, import.field,
+                Node.Type.Func(method.parameterTypes.map { it.valueType!! }, method.returnType.valueType))
+            else globals.getOrPut(import.field) {
+                val getter = methodImports.first { it.second.field == import.field && !it.second.globalSetter }
+                val mutable = methodImports.any { it.second.field == import.field && it.second.globalSetter }
+                imports.resolveImportGlobal(import.module, import.field,
+                    Node.Type.Global(getter.first.returnType.valueType!!, mutable))
+            }.let { if (import.globalSetter) it.second!! else it.first }
+        }
+        return handleImpls.get(iface).getConstructor(Array<MethodHandle>::class.java).
+            newInstance(handles.toTypedArray())
+    }
+
+    // Each method invokes the host's matching public method directly, or null if any doesn't match exactly
+    fun fromNative(iface: Class<*>, native: Module.Instance): Any? {
+        if (iface.isInstance(native.inst)) return native.inst
+        val impl = nativeImpls.get(iface).getOrPut(native.cls) {
+            val methodImports = methodImports(iface)
+            val hostMethods = methodImports.map { (method, import) ->
+                nativeMethod(native, methodImports, method, import)
+            }
+            Optional.ofNullable(
+                if (!isAccessible(native.cls) || hostMethods.contains(null)) null
+                else defineImpl(iface, native.cls, hostMethods.requireNoNulls())
+            )
+        }
+        return impl.orElse(null)?.getConstructor(native.cls)?.newInstance(native.inst)
+    }
+
+    // The handle for the getter of the global import, bound to the implementation
+    fun globalGetter(iface: Class<*>, impl: Any, field: String) = methodImports(iface).find { (_, import) ->
+        import.kind == WasmExternalKind.GLOBAL && import.field == field && !import.globalSetter
+    }?.let { MethodHandles.publicLookup().unreflect(it.first).bindTo(impl) }
+
+    protected fun nativeMethod(
+        native: Module.Instance,
+        methodImports: List<Pair<Method, WasmImport>>,
+        method: Method,
+        import: WasmImport
+    ): Method? {
+        val javaName = import.field.javaIdent
+        val hostMethod = when {
+            import.kind == WasmExternalKind.FUNCTION ->
+                native.exportedMethod(import.field, import.kind, javaName)
+            import.globalSetter ->
+                native.exportedMethod(import.field, import.kind, "set" + javaName.capitalize(), 1)
+            else -> native.exportedMethod(import.field, import.kind, "get" + javaName.capitalize(), 0)?.takeIf {
+                // Mutability has to match like it does for handles
+                val setter = native.exportedMethod(import.field, import.kind, "set" + javaName.capitalize(), 1)
+                val mutable = methodImports.any { it.second.field == import.field && it.second.globalSetter }
+                (setter != null) == mutable
+            }
+        }
+        return hostMethod?.takeIf {
+            it.returnType == method.returnType && it.parameterTypes.contentEquals(method.parameterTypes) &&
+                isAccessible(it.declaringClass)
+        }
+    }
+
+    protected fun isAccessible(cls: Class<*>): Boolean =
+        Modifier.isPublic(cls.modifiers) && (cls.enclosingClass?.let(::isAccessible) ?: true)
+
+    // With a host class, the constructor takes the host and calls its methods (one for each of the interface's in
+    // order). Otherwise it takes the handles.
+    protected fun defineImpl(iface: Class<*>, host: Class<*>?, hostMethods: List<Method>): Class<*> {
+        val cls = ClassNode().also {
+            it.version = Opcodes.V1_8
+            it.access = Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_SUPER
+            it.name = iface.ref.asmName + "\$\$Impl" + implCount.incrementAndGet()
+            it.superName = Object::class.ref.asmName
+            it.interfaces = listOf(iface.ref.asmName)
+        }
+        val methodImports = methodImports(iface)
+        val constructorParam = host?.ref ?: Array<MethodHandle>::class.ref
+        val constructor = MethodNode(Opcodes.ACC_PUBLIC, "<init>", Void::class.ref.asMethodRetDesc(constructorParam),
+            null, null).addInsns(
+            VarInsnNode(Opcodes.ALOAD, 0),
+            MethodInsnNode(Opcodes.INVOKESPECIAL, Object::class.ref.asmName, "<init>", "()V", false)
+        )
+        if (host != null) {
+            cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, "host", host.ref.asmDesc, null, null))
+            constructor.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                VarInsnNode(Opcodes.ALOAD, 1),
+                FieldInsnNode(Opcodes.PUTFIELD, cls.name, "host", host.ref.asmDesc)
+            )
+        } else methodImports.indices.forEach { index ->
+            cls.fields.add(FieldNode(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, "handle$index",
+                MethodHandle::class.ref.asmDesc, null, null))
+            constructor.addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                VarInsnNode(Opcodes.ALOAD, 1),
+                index.const,
+                InsnNode(Opcodes.AALOAD),
+                FieldInsnNode(Opcodes.PUTFIELD, cls.name, "handle$index", MethodHandle::class.ref.asmDesc)
+            )
+        }
+        cls.methods.add(constructor.addInsns(InsnNode(Opcodes.RETURN)))
+        methodImports.forEachIndexed { index, (method, _) ->
+            val desc = Type.getMethodDescriptor(method)
+            val impl = MethodNode(Opcodes.ACC_PUBLIC, method.name, desc, null, null).addInsns(
+                VarInsnNode(Opcodes.ALOAD, 0),
+                if (host != null) FieldInsnNode(Opcodes.GETFIELD, cls.name, "host", host.ref.asmDesc)
+                else FieldInsnNode(Opcodes.GETFIELD, cls.name, "handle$index", MethodHandle::class.ref.asmDesc)
+            )
+            method.parameterTypes.fold(1) { local, param ->
+                impl.addInsns(VarInsnNode(param.asmType.getOpcode(Opcodes.ILOAD), local))
+                local + param.ref.stackSize
+            }
+            impl.addInsns(
+                if (host == null) MethodInsnNode(Opcodes.INVOKEVIRTUAL, MethodHandle::class.ref.asmName,
+                    "invokeExact", desc, false)
+                else MethodInsnNode(if (host.isInterface) Opcodes.INVOKEINTERFACE else Opcodes.INVOKEVIRTUAL,
+                    host.ref.asmName, hostMethods[index].name, desc, host.isInterface),
+                InsnNode(method.returnType.asmType.getOpcode(Opcodes.IRETURN))
+            )
+            cls.methods.add(impl)
+        }
+        return ImplClassLoader(iface, host).define(cls.name.replace('/', '.'), AsmToBinary.noSplit.fromClassNode(cls))
+    }
+
+    // Sees the interface and the host even if they are from unrelated loaders
+    protected class ImplClassLoader(val iface: Class<*>, val host: Class<*>?) : ClassLoader(iface.classLoader) {
+        override fun loadClass(name: String, resolve: Boolean): Class<*> = when (name) {
+            iface.name -> iface
+            host?.name -> host
+            else -> super.loadClass(name, resolve)
+        }
+
+        fun define(name: String, bytes: ByteArray): Class<*> = defineClass(name, bytes, 0, bytes.size)
+    }
+
+    companion object : ImportInterfaces()
+}
@@ -6,10 +6,13 @@ import asmble.ast.Node
 import asmble.compile.jvm.Mem
 import asmble.compile.jvm.javaIdent
 import asmble.compile.jvm.ref
+import asmble.runtime.MemoryRegion
+import org.objectweb.asm.Type
 import java.lang.invoke.MethodHandle
 import java.lang.invoke.MethodHandles
 import java.lang.reflect.Constructor
 import java.lang.reflect.Modifier
+import java.nio.ByteBuffer
 
 interface Module {
     val name: String?
@@ -28,6 +31,9 @@ interface Module {
         ): Pair<MethodHandle, MethodHandle?>
         fun <T> resolveImportMemory(module: String, field: String, type: Node.Type.Memory, memClass: Class<T>): T
         fun resolveImportTable(module: String, field: String, type: Node.Type.Table): Array<MethodHandle?>
+        // An implementation of the import interface a module compiled with importInterfaces takes for an import
+        // module, by default calling the resolved func and global imports
+        fun resolveImportInterface(iface: Class<*>): Any = ImportInterfaces.fromResolver(iface, this)
     }
 
     interface Instance : Module {
@@ -39,6 +45,15 @@ interface Module {
             wasmKind: WasmExternalKind,
             javaName: String = wasmName.javaIdent,
             paramCountRequired: Int? = null
+        ) = exportedMethod(wasmName, wasmKind, javaName, paramCountRequired)?.let {
+            MethodHandles.lookup().unreflect(it).bindTo(inst)
+        }
+
+        fun exportedMethod(
+            wasmName: String,
+            wasmKind: WasmExternalKind,
+            javaName: String = wasmName.javaIdent,
+            paramCountRequired: Int? = null
         ) = cls.methods.filter {
             // @WasmExport match or just javaName match
             Modifier.isPublic(it.modifiers) &&
@@ -47,7 +62,7 @@ interface Module {
                 it.getDeclaredAnnotation(WasmExport::class.java).let { ann ->
                     if (ann == null) it.name == javaName else ann.value == wasmName && ann.kind == wasmKind
                 }
-        }.mapNotNull { MethodHandles.lookup().unreflect(it).bindTo(inst) }.singleOrNull()
+        }.singleOrNull()
 
         override fun exportedFunc(field: String) = bindMethod(field, WasmExternalKind.FUNCTION, field.javaIdent)
         override fun exportedGlobal(field: String) =
@@ -58,6 +73,10 @@ interface Module {
         override fun <T> exportedMemory(field: String, memClass: Class<T>) =
             bindMethod(field, WasmExternalKind.MEMORY, "get" + field.javaIdent.capitalize(), 0)?.
                 takeIf { it.type().returnType() == memClass }?.let { it.invokeWithArguments() as? T }
+        // Only for ByteBuffer or ByteArrayMem memory
+        fun exportedMemoryRegion(field: String = "memory") =
+            exportedMemory(field, ByteBuffer::class.java)?.let { MemoryRegion.of(it) } ?:
+                exportedMemory(field, ByteArray::class.java)?.let { MemoryRegion.of(it) }
         @SuppressWarnings("UNCHECKED_CAST")
         override fun exportedTable(field: String) =
             bindMethod(field, WasmExternalKind.TABLE, "get" + field.javaIdent.capitalize(), 0)?.
@@ -68,15 +87,35 @@ interface Module {
         constructor(name: String?, inst: Any) : this(inst::class.java, name, inst)
     }
 
-    class Compiled(
+    class Compiled private constructor(
         val mod: Node.Module,
         override val cls: Class<*>,
         override val name: String?,
         val mem: Mem,
-        imports: ImportResolver,
-        val defaultMaxMemPages: Int = 1
+        private val imports: ImportResolver,
+        val defaultMaxMemPages: Int,
+        template: Any?
     ) : Instance {
-        override val inst = createInstance(imports)
+        constructor(
+            mod: Node.Module,
+            cls: Class<*>,
+            name: String?,
+            mem: Mem,
+            imports: ImportResolver,
+            defaultMaxMemPages: Int = 1
+        ) : this(mod, cls, name, mem, imports, defaultMaxMemPages, null)
+
+        override val inst = if (template == null) createInstance(imports) else forkInstance(template)
+
+        // Creates a new instance that starts where this one is now, skipping data and the start function. This
+        // requires the class to have been compiled with the fork constructor. Imports are resolved again, owned
+        // memory is forked via the mem, and imported memory and tables are shared like any other instantiation.
+        fun fork() = Compiled(mod, cls, name, mem, imports, defaultMaxMemPages, inst)
+
+        // Arrays, e.g. heap byte array memory, need their descriptor to be loaded by name
+        private val memClass: Class<*> get() = mem.memType.asm.let {
+            Class.forName(if (it.sort == Type.ARRAY) it.descriptor.replace('/', '.') else it.className)
+        }
 
         private fun createInstance(imports: ImportResolver): Any {
             // Find the constructor
@@ -89,7 +128,7 @@ interface Module {
                 constructor = cls.declaredConstructors.find { it.parameterTypes.firstOrNull()?.ref == mem.memType }
                 val memImportKind = memImport.kind as Node.Import.Kind.Memory
                 val memInst = imports.resolveImportMemory(memImport.module, memImport.field,
-                    memImportKind.type, Class.forName(mem.memType.asm.className))
+                    memImportKind.type, memClass)
                 constructorParams += memInst
                 val (memLimit, memCap) = mem.limitAndCapacity(memInst)
                 if (memLimit < memImportKind.type.limits.initial * Mem.PAGE_SIZE)
@@ -102,9 +141,8 @@ interface Module {
             } else {
                 // Find the constructor with no max mem amount (i.e. not int and not memory)
                 constructor = cls.declaredConstructors.find {
-                    val memClass = Class.forName(mem.memType.asm.className)
                     when (it.parameterTypes.firstOrNull()) {
-                        Int::class.java, memClass -> false
+                        Int::class.java, memClass, cls -> false
                         else -> true
                     }
                 }
@@ -119,20 +157,17 @@ interface Module {
             }
             if (constructor == null) error("Unable to find suitable module constructor")
 
-            // Function imports
-            constructorParams += mod.imports.mapNotNull {
-                if (it.kind is Node.Import.Kind.Func)
-                    imports.resolveImportFunc(it.module, it.field, mod.types[it.kind.typeIndex])
-                else null
-            }
-
-            // Global imports
-            val globalImports = mod.imports.flatMap {
-                if (it.kind is Node.Import.Kind.Global) {
-                    imports.resolveImportGlobal(it.module, it.field, it.kind.type).toList().mapNotNull { it }
-                } else emptyList()
-            }
-            constructorParams += globalImports
+            // Func and global imports, or the interfaces they are called through
+            val interfaceImports = interfaceImports(imports, constructor, constructorParams.size)
+            val globalImports = if (interfaceImports != null) emptyList() else globalImports(imports)
+            constructorParams += interfaceImports?.map { it.second } ?: funcImports(imports) + globalImports
+            val globalImportGetters = interfaceImports?.let { impls ->
+                mod.imports.filter { it.kind is Node.Import.Kind.Global }.map { import ->
+                    impls.first { ImportInterfaces.importModule(it.first) == import.module }.let { (iface, impl) ->
+                        ImportInterfaces.globalGetter(iface, impl, import.field)!!
+                    }
+                }
+            } ?: globalImports
 
             // Table imports
             val tableImport = mod.imports.find { it.kind is Node.Import.Kind.Table }
@@ -153,12 +188,12 @@ interface Module {
                 when (it) {
                     is Node.Instr.I32Const -> it.value
                     is Node.Instr.GetGlobal ->
-                        if (it.index < globalImports.size) {
+                        if (it.index < globalImportGetters.size) {
                             // Imports we already have
-                            if (globalImports[it.index].type().returnType() == Int::class.java) {
-                                globalImports[it.index].invokeWithArguments() as Int
+                            if (globalImportGetters[it.index].type().returnType() == Int::class.java) {
+                                globalImportGetters[it.index].invokeWithArguments() as Int
                             } else null
-                        } else constIntExpr(mod.globals[it.index - globalImports.size].init)
+                        } else constIntExpr(mod.globals[it.index - globalImportGetters.size].init)
                     else -> null
                 }
             }
@@ -168,7 +203,7 @@ interface Module {
                         throw RunErr.InvalidElemIndex(offset, elem.funcIndices.size, tableSize)
                 }
             }
-            if (memLimit != null) mod.data.forEach { data ->
+            if (memLimit != null) mod.data.filterNot { it.passive }.forEach { data ->
                 constIntExpr(data.offset)?.let { offset ->
                     if (offset < 0 || offset + data.data.size > memLimit)
                         throw RunErr.InvalidDataIndex(offset, data.data.size, memLimit)
@@ -178,5 +213,40 @@ interface Module {
             // Construct
             return constructor.newInstance(*constructorParams.toTypedArray())
         }
+
+        private fun forkInstance(template: Any): Any {
+            val constructor = cls.declaredConstructors.find { it.parameterTypes.firstOrNull() == cls } ?:
+                error("Module not compiled with fork constructor")
+            var constructorParams = listOf(template)
+            // Our own memory is forked, but imported memory is just shared
+            if (constructor.parameterTypes.getOrNull(1) == memClass) {
+                val templateMem = cls.getDeclaredField("memory").also { it.isAccessible = true }.get(template)
+                constructorParams += if (mod.memories.isEmpty()) templateMem else mem.fork(templateMem)
+            }
+            constructorParams += interfaceImports(imports, constructor, constructorParams.size)?.map { it.second } ?:
+                funcImports(imports) + globalImports(imports)
+            mod.imports.find { it.kind is Node.Import.Kind.Table }?.let {
+                constructorParams = constructorParams.plusElement(
+                    imports.resolveImportTable(it.module, it.field, (it.kind as Node.Import.Kind.Table).type))
+            }
+            return constructor.newInstance(*constructorParams.toTypedArray())
+        }
+
+        // The interfaces and their implementations if the constructor takes import interfaces at the index
+        private fun interfaceImports(imports: ImportResolver, constructor: Constructor<*>, paramIndex: Int) =
+            constructor.parameterTypes.drop(paramIndex).takeWhile { it.isInterface }.
+                map { it to imports.resolveImportInterface(it) }.takeIf { it.isNotEmpty() }
+
+        private fun funcImports(imports: ImportResolver) = mod.imports.mapNotNull {
+            if (it.kind is Node.Import.Kind.Func)
+                imports.resolveImportFunc(it.module, it.field, mod.types[it.kind.typeIndex])
+            else null
+        }
+
+        private fun globalImports(imports: ImportResolver) = mod.imports.flatMap {
+            if (it.kind is Node.Import.Kind.Global) {
+                imports.resolveImportGlobal(it.module, it.field, it.kind.type).toList().mapNotNull { it }
+            } else emptyList()
+        }
     }
 }
\ No newline at end of file
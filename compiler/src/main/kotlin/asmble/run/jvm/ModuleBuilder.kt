@@ -6,6 +6,10 @@ import asmble.util.Logger
 import org.objectweb.asm.ClassReader
 import org.objectweb.asm.ClassVisitor
 import org.objectweb.asm.Opcodes
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.stream.Collectors
 
 interface ModuleBuilder<T : Module> {
     fun build(imports: Module.ImportResolver, mod: Node.Module, className: String, name: String?): T
@@ -16,7 +20,14 @@ interface ModuleBuilder<T : Module> {
         val classLoader: SimpleClassLoader = SimpleClassLoader(Compiled::class.java.classLoader, logger),
         val adjustContext: (ClsContext) -> ClsContext = { it },
         val includeBinaryInCompiledClass: Boolean = false,
-        val defaultMaxMemPages: Int = 1
+        val defaultMaxMemPages: Int = 1,
+        val mem: Mem = ByteBufferMem,
+        val includeForkConstructor: Boolean = false,
+        val funcParallelism: Int = 1,
+        val importInterfaces: Boolean = false,
+        val exportInterface: Boolean = false,
+        // Built classes are loaded from here when they have been built before with the same module and options
+        val classCache: ClassCache? = null
     ) : ModuleBuilder<Module.Compiled> {
         override fun build(
             imports: Module.ImportResolver,
@@ -24,33 +35,87 @@ interface ModuleBuilder<T : Module> {
             className: String,
             name: String?
         ): Module.Compiled {
-            val ctx = ClsContext(
-                packageName = packageName,
-                className = className,
-                mod = mod,
-                logger = logger,
-                includeBinary = includeBinaryInCompiledClass
-            ).let(adjustContext)
-            AstToAsm.fromModule(ctx)
-            return Module.Compiled(mod, classLoader.fromBuiltContext(ctx), name, ctx.mem, imports, defaultMaxMemPages)
+            val ctx = context(mod, className)
+            return Module.Compiled(mod, buildClass(ctx), name, ctx.mem, imports, defaultMaxMemPages)
         }
 
+        fun context(mod: Node.Module, className: String) = ClsContext(
+            packageName = packageName,
+            className = className,
+            mod = mod,
+            logger = logger,
+            mem = mem,
+            includeBinary = includeBinaryInCompiledClass,
+            includeForkConstructor = includeForkConstructor,
+            funcParallelism = funcParallelism,
+            importInterfaces = importInterfaces,
+            exportInterface = exportInterface
+        ).let(adjustContext)
+
+        // Compiles and loads the class for the context unless the cache already has it
+        fun buildClass(ctx: ClsContext): Class<*> =
+            if (classCache != null) classLoader.fromCachedContext(ctx, classCache) else {
+                AstToAsm.fromModule(ctx)
+                classLoader.fromBuiltContext(ctx)
+            }
+
         open class SimpleClassLoader(
             parent: ClassLoader,
             logger: Logger,
             val splitWhenTooLarge: Boolean = true
         ) : ClassLoader(parent), Logger by logger {
-            fun fromBuiltContext(ctx: ClsContext): Class<*> {
-                trace { "Computing frames for ASM class:\n" + ctx.cls.toAsmString() }
-                val writer = if (splitWhenTooLarge) AsmToBinary else AsmToBinary.noSplit
-                return writer.fromClassNode(ctx.cls).let { bytes ->
-                    debug { "ASM class:\n" + bytes.asClassNode().toAsmString() }
-                    val prefix = if (ctx.packageName.isNotEmpty()) ctx.packageName + "." else ""
-                    defineClass("$prefix${ctx.className}",  bytes, 0, bytes.size)
+            private val resources = ConcurrentHashMap<String, ByteArray>()
+            // Defined when first loaded
+            private val lazyClasses = ConcurrentHashMap<String, ByteArray>()
+
+            fun fromBuiltContext(ctx: ClsContext) = fromEntry(ctx, builtEntry(ctx))
+
+            // Builds the context and caches the result if the cache doesn't already have it
+            fun fromCachedContext(ctx: ClsContext, cache: ClassCache): Class<*> {
+                val key = cache.key(ctx) ?: return fromBuiltContext(ctx.also { AstToAsm.fromModule(it) }).also {
+                    warn { "Unable to tell which asmble build this is, not caching classes" }
+                }
+                val entry = cache.get(key) ?: builtEntry(ctx.also { AstToAsm.fromModule(it) }).also {
+                    try { cache.put(key, it) } catch (e: IOException) { warn { "Unable to cache classes: $e" } }
                 }
+                return fromEntry(ctx, entry)
             }
 
-            fun addClass(bytes: ByteArray) {
+            // The module class is last, after the import and export interfaces and func parts it refers to
+            fun builtEntry(ctx: ClsContext): ClassCache.Entry {
+                val resources =
+                    if (!ctx.dataAsResource || ctx.mod.data.isEmpty()) emptyMap()
+                    else mapOf((ctx.packageName.replace('.', '/') + "/" + AstToAsm.dataResourceName(ctx)).
+                        trimStart('/') to AstToAsm.dataResourceBytes(ctx))
+                val interfaces = AstToAsm.importInterfaceNodes(ctx) + listOfNotNull(AstToAsm.exportInterfaceNode(ctx))
+                trace { "Computing frames for ASM class:\n" + ctx.cls.toAsmString() }
+                val writer =
+                    if (splitWhenTooLarge) AsmToBinary(logger = this, maxCodeSize = ctx.maxMethodSize)
+                    else AsmToBinary.noSplit
+                val bytes = writer.fromClassNode(ctx.cls)
+                debug { "ASM class:\n" + bytes.asClassNode().toAsmString() }
+                val parts = ctx.funcPartClasses.parallelStream().map { writer.fromClassNode(it) }.
+                    collect(Collectors.toList())
+                return ClassCache.Entry(interfaces.map { AsmToBinary.noSplit.fromClassNode(it) } + parts + bytes,
+                    resources, ctx.lazyFuncClasses.map { writer.fromClassNode(it) })
+            }
+
+            fun fromEntry(ctx: ClsContext, entry: ClassCache.Entry): Class<*> {
+                // Resources have to be available before the class is initialized
+                entry.resources.forEach { (name, bytes) -> addResource(name, bytes) }
+                val classes = entry.classes.map { addClass(it) }
+                // Classes are otherwise verified one at a time on first use, so with func parts it's done up front
+                if (ctx.funcPartitions > 1) classes.parallelStream().forEach { Class.forName(it.name, true, this) }
+                entry.lazyClasses.forEach { addLazyClass(it) }
+                val prefix = if (ctx.packageName.isNotEmpty()) ctx.packageName + "." else ""
+                return loadClass("$prefix${ctx.className}")
+            }
+
+            fun addClass(bytes: ByteArray): Class<*> = defineClass(className(bytes), bytes, 0, bytes.size)
+
+            fun addLazyClass(bytes: ByteArray) { lazyClasses[className(bytes)] = bytes }
+
+            protected fun className(bytes: ByteArray): String {
                 // Just get the name
                 var className = ""
                 ClassReader(bytes).accept(object : ClassVisitor(Opcodes.ASM5) {
@@ -58,8 +123,18 @@ interface ModuleBuilder<T : Module> {
                         className = name.replace('/', '.')
                     }
                 }, ClassReader.SKIP_CODE)
-                defineClass(className, bytes, 0, bytes.size)
+                return className
             }
+
+            override fun findClass(name: String): Class<*> = lazyClasses.remove(name)?.let { bytes ->
+                debug { "Defining lazy class $name" }
+                defineClass(name, bytes, 0, bytes.size)
+            } ?: super.findClass(name)
+
+            fun addResource(name: String, bytes: ByteArray) { resources[name] = bytes }
+
+            override fun getResourceAsStream(name: String) =
+                resources[name]?.let(::ByteArrayInputStream) ?: super.getResourceAsStream(name)
         }
     }
 }
\ No newline at end of file
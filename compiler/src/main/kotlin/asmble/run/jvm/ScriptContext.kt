@@ -253,4 +253,10 @@ data class ScriptContext(
 
     override fun resolveImportTable(module: String, field: String, type: Node.Type.Table) =
         registrations[module]?.exportedTable(field) ?: throw RunErr.ImportNotFound(module, field)
+
+    override fun resolveImportInterface(iface: Class<*>) =
+        // Native hosts are called directly when they can be, otherwise it's through the resolved handles
+        (registrations[ImportInterfaces.importModule(iface)] as? Module.Native)?.let {
+            ImportInterfaces.fromNative(iface, it)
+        } ?: ImportInterfaces.fromResolver(iface, this)
 }
\ No newline at end of file
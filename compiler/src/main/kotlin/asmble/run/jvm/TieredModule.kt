@@ -0,0 +1,177 @@
+package asmble.run.jvm
+
+import asmble.ast.Node
+import asmble.compile.jvm.ClsContext
+import asmble.compile.jvm.ref
+import asmble.run.jvm.interpret.RunModule
+import asmble.util.Logger
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.lang.invoke.MutableCallSite
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.withLock
+
+// A module that runs in the interpreter until its class is compiled, then runs the compiled class. Exported funcs
+// and globals are call sites that are switched to the compiled instance once it's built. The compiled instance
+// shares the interpreter's memory and takes over its globals and passive data, and the switch happens when no
+// interpreted calls are running so nothing is lost between the two. It only waits for them a moment at a time, so
+// calls made meanwhile are never held up for long by ones that take a while. An owned table is not shared, so the
+// table export is whichever tier's is current.
+class TieredModule(
+    override val name: String?,
+    val interpreted: RunModule,
+    val logger: Logger = Logger.Print(Logger.Level.OFF)
+) : Module, Logger by logger {
+    // Completed when the exports have switched to the compiled instance, or exceptionally if compiling failed
+    val compiled = CompletableFuture<Module.Compiled>()
+    @Volatile private var compiledInst: Module.Compiled? = null
+    // Interpreted calls hold the read lock, the switch holds the write lock
+    private val lock = ReentrantReadWriteLock()
+    // Each export's site and its compiled target
+    private val switches = mutableListOf<Pair<MutableCallSite, (Module.Compiled) -> MethodHandle>>()
+
+    private val funcSites = interpreted.ctx.mod.exports.filter { it.kind == Node.ExternalKind.FUNCTION }.map {
+        it.field to tieredSite(interpreted.exportedFunc(it.field)!!) { inst -> inst.exportedFunc(it.field)!! }
+    }.toMap()
+    private val globalSites = interpreted.ctx.mod.exports.filter { it.kind == Node.ExternalKind.GLOBAL }.map {
+        val (getter, setter) = interpreted.exportedGlobal(it.field)!!
+        it.field to Pair(
+            tieredSite(getter) { inst -> inst.exportedGlobal(it.field)!!.first },
+            setter?.let { setter -> tieredSite(setter) { inst -> inst.exportedGlobal(it.field)!!.second!! } }
+        )
+    }.toMap()
+
+    override fun exportedFunc(field: String) = funcSites[field]?.dynamicInvoker()
+
+    override fun exportedGlobal(field: String) = globalSites[field]?.let { (getter, setter) ->
+        getter.dynamicInvoker() to setter?.dynamicInvoker()
+    }
+
+    // The memory is the same in both tiers
+    override fun <T> exportedMemory(field: String, memClass: Class<T>) = interpreted.exportedMemory(field, memClass)
+
+    override fun exportedTable(field: String) =
+        compiledInst?.exportedTable(field) ?: interpreted.exportedTable(field)
+
+    // Starts at the interpreted handle, which defers to the compiled one if the switch happened in the meantime
+    private fun tieredSite(interp: MethodHandle, compiledHandle: (Module.Compiled) -> MethodHandle): MutableCallSite {
+        val callInterpreted = MethodHandles.lookup().bind(this, "callInterpreted", MethodType.methodType(
+            Any::class.java, MethodHandle::class.java, Function1::class.java, Array<Any?>::class.java))
+        val site = MutableCallSite(MethodHandles.insertArguments(callInterpreted, 0, interp, compiledHandle).
+            asCollector(Array<Any?>::class.java, interp.type().parameterCount()).asType(interp.type()))
+        switches += site to compiledHandle
+        return site
+    }
+
+    private fun callInterpreted(
+        interp: MethodHandle,
+        compiledHandle: (Module.Compiled) -> MethodHandle,
+        args: Array<Any?>
+    ): Any? = lock.readLock().withLock {
+        val inst = compiledInst
+        if (inst == null) interp.invokeWithArguments(*args) else compiledHandle(inst).invokeWithArguments(*args)
+    }
+
+    // Builds the compiled class and switches over to it, leaving it interpreted if it fails
+    fun compileAndSwitch(builder: ModuleBuilder.Compiled, imports: Module.ImportResolver, className: String) {
+        try {
+            val mod = compiledTierModule(interpreted.ctx.mod)
+            val ctx = builder.context(mod, className)
+            val cls = builder.buildClass(ctx)
+            // Constructing writes elems into any imported table, so it can't happen while interpreting either
+            lockForSwitch()
+            val inst = try {
+                Module.Compiled(mod, cls, name, ctx.mem, SharedMemoryImports(imports), builder.defaultMaxMemPages).
+                    also { inst ->
+                        copyState(ctx, inst)
+                        switches.forEach { (site, compiledHandle) ->
+                            site.target = compiledHandle(inst).asType(site.type())
+                        }
+                        MutableCallSite.syncAll(switches.map { it.first }.toTypedArray())
+                        compiledInst = inst
+                    }
+            } finally {
+                lock.writeLock().unlock()
+            }
+            debug { "Switched module ${name ?: className} to compiled class ${cls.name}" }
+            compiled.complete(inst)
+        } catch (e: Throwable) {
+            warn { "Unable to compile module ${name ?: className}, staying interpreted: $e" }
+            compiled.completeExceptionally(e)
+        }
+    }
+
+    // Takes the write lock once no interpreted calls are running. Calls made while it waits queue behind it, so it
+    // only waits a moment each try and backs off between them to let any running calls finish.
+    private fun lockForSwitch() {
+        var backoffMillis = 1L
+        while (!lock.writeLock().tryLock(SWITCH_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            Thread.sleep(backoffMillis)
+            backoffMillis = minOf(backoffMillis * 2, MAX_SWITCH_BACKOFF_MILLIS)
+        }
+    }
+
+    // Module globals and passive data are fields on the compiled instance, set to where the interpreter left them
+    private fun copyState(ctx: ClsContext, inst: Module.Compiled) {
+        val state = interpreted.ctx
+        state.mod.globals.forEachIndexed { index, global ->
+            // Immutable ones are always the same as their init
+            if (global.type.mutable) inst.cls.getDeclaredField(ctx.globalName(state.importGlobals.size + index)).
+                also { it.isAccessible = true }.set(inst.inst, state.moduleGlobals[index])
+        }
+        state.passiveData.forEachIndexed { index, bytes ->
+            inst.cls.getDeclaredField(ctx.dataName(index)).also { it.isAccessible = true }.set(inst.inst, bytes)
+        }
+    }
+
+    // The memory is always an import so the interpreter's is shared, and everything that was done on instantiation
+    // (data, the start func) isn't done again. Data is made passive to keep its index for memory.init and
+    // data.drop, and the interpreter's passive data is copied over it.
+    private fun compiledTierModule(mod: Node.Module) = mod.copy(
+        imports = mod.imports + mod.memories.map { Node.Import("", "memory", Node.Import.Kind.Memory(it)) },
+        memories = emptyList(),
+        startFuncIndex = null,
+        data = mod.data.map { it.copy(passive = true) }
+    )
+
+    private inner class SharedMemoryImports(imports: Module.ImportResolver) : Module.ImportResolver by imports {
+        @Suppress("UNCHECKED_CAST")
+        override fun <T> resolveImportMemory(
+            module: String,
+            field: String,
+            type: Node.Type.Memory,
+            memClass: Class<T>
+        ) = interpreted.ctx.mem as T
+    }
+
+    class Builder(
+        val interpreted: RunModule.Builder = RunModule.Builder(),
+        val compiled: ModuleBuilder.Compiled = ModuleBuilder.Compiled(),
+        val logger: Logger = compiled.logger,
+        // Runs the compilation, by default on a new daemon thread
+        val executor: Executor = Executor { Thread(it, "asmble-tiered-compile").apply { isDaemon = true }.start() }
+    ) : ModuleBuilder<TieredModule> {
+        override fun build(
+            imports: Module.ImportResolver,
+            mod: Node.Module,
+            className: String,
+            name: String?
+        ): TieredModule {
+            require(compiled.mem.memType == ByteBuffer::class.ref) { "Tiered modules require ByteBuffer memory" }
+            return TieredModule(name, interpreted.build(imports, mod, className, name), logger).also {
+                executor.execute { it.compileAndSwitch(compiled, imports, className) }
+            }
+        }
+    }
+
+    companion object {
+        // The longest calls can be held up by a switch waiting for others to finish
+        const val SWITCH_WAIT_MILLIS = 10L
+        const val MAX_SWITCH_BACKOFF_MILLIS = 1000L
+    }
+}
@@ -31,6 +31,17 @@ sealed class InterpretErr(message: String, cause: Throwable? = null) : RuntimeEx
         override val asmErrString get() = "out of bounds memory access"
     }
 
+    class UnalignedAtomic(
+        val index: Int,
+        val offset: Long
+    ) : InterpretErr("Atomic access of mem $index + offset $offset is not aligned") {
+        override val asmErrString get() = "unaligned atomic"
+    }
+
+    class ExpectedSharedMemory : InterpretErr("Can only wait on shared memory") {
+        override val asmErrString get() = "expected shared memory"
+    }
+
     class UndefinedElement(
         val index: Int
     ) : InterpretErr("No table element for index $index") {
@@ -3,6 +3,7 @@ package asmble.run.jvm.interpret
 import asmble.ast.Node
 import asmble.compile.jvm.*
 import asmble.run.jvm.RunErr
+import asmble.runtime.AtomicWaiters
 import asmble.util.Either
 import asmble.util.Logger
 import asmble.util.toUnsignedInt
@@ -233,6 +234,40 @@ open class Interpreter {
                         ctx.mem.limit(newLim.toInt())
                     }
                 }
+                is Node.Instr.MemoryInit -> next {
+                    val len = popInt()
+                    val src = popInt()
+                    val dest = popInt()
+                    if (insn.index >= ctx.mod.data.size) throw CompileErr.UnknownData(insn.index)
+                    // Active and dropped data are both empty
+                    val data = ctx.passiveData[insn.index] ?: ByteArray(0)
+                    checkBulkRange(dest, len, ctx.mem.limit())
+                    checkBulkRange(src, len, data.size)
+                    ctx.mem.duplicate().apply { position(dest) }.put(data, src, len)
+                }
+                is Node.Instr.DataDrop -> next {
+                    if (insn.index >= ctx.mod.data.size) throw CompileErr.UnknownData(insn.index)
+                    ctx.passiveData[insn.index] = null
+                }
+                is Node.Instr.MemoryCopy -> next {
+                    val len = popInt()
+                    val src = popInt()
+                    val dest = popInt()
+                    checkBulkRange(dest, len, ctx.mem.limit())
+                    checkBulkRange(src, len, ctx.mem.limit())
+                    ctx.mem.duplicate().apply { position(dest) }.
+                        put(ctx.mem.duplicate().apply { limit(src + len).position(src) })
+                }
+                is Node.Instr.MemoryFill -> next {
+                    val len = popInt()
+                    val value = popInt().toByte()
+                    val dest = popInt()
+                    checkBulkRange(dest, len, ctx.mem.limit())
+                    for (i in dest until dest + len) ctx.mem.put(i, value)
+                }
+                is Node.Instr.AtomicAccess -> next { atomicOp(ctx, insn) }
+                // We do every atomic access under the memory's lock, so there is nothing to fence
+                is Node.Instr.AtomicFence -> next { }
                 is Node.Instr.I32Const -> next { push(insn.value) }
                 is Node.Instr.I64Const -> next { push(insn.value) }
                 is Node.Instr.F32Const -> next { push(insn.value) }
@@ -403,6 +438,84 @@ open class Interpreter {
         }
     }
 
+    fun checkBulkRange(index: Int, length: Int, limit: Int) {
+        // Bulk ops check the whole range before doing anything
+        if (index.toUnsignedLong() + length.toUnsignedLong() > limit)
+            throw IndexOutOfBoundsException("Memory access out of bounds")
+    }
+
+    open fun atomicOp(ctx: Context, insn: Node.Instr.AtomicAccess) = ctx.currFuncCtx.run {
+        val op = insn.accessOp
+        val size = op.argBits / 8
+        val mask = if (size == 8) -1L else (1L shl op.argBits) - 1
+        fun address(addr: Int) = (addr.toUnsignedLong() + insn.offset).let { index ->
+            // Alignment is checked before bounds
+            if (index % size != 0L) throw InterpretErr.UnalignedAtomic(addr, insn.offset)
+            if (index + size > ctx.mem.limit()) throw InterpretErr.OutOfBoundsMemory(addr, insn.offset)
+            index.toInt()
+        }
+        fun load(index: Int) = when (size) {
+            1 -> ctx.mem.get(index).toUnsignedLong()
+            2 -> ctx.mem.getShort(index).toUnsignedLong()
+            4 -> ctx.mem.getInt(index).toUnsignedLong()
+            else -> ctx.mem.getLong(index)
+        }
+        fun store(index: Int, v: Long) {
+            when (size) {
+                1 -> ctx.mem.put(index, v.toByte())
+                2 -> ctx.mem.putShort(index, v.toShort())
+                4 -> ctx.mem.putInt(index, v.toInt())
+                else -> ctx.mem.putLong(index, v)
+            }
+        }
+        fun popValue() = if (op.valueType == Node.Type.Value.I64) popLong() else popInt().toLong()
+        fun pushValue(v: Long) = if (op.valueType == Node.Type.Value.I64) push(v) else push(v.toInt())
+        // Other interpreters can share the memory, so all accesses are under its lock
+        val park = synchronized(ctx.mem) {
+            when (op.kind) {
+                "load" -> pushValue(load(address(popInt())))
+                "store" -> popValue().let { store(address(popInt()), it) }
+                "cmpxchg" -> {
+                    val replacement = popValue()
+                    val expected = popValue() and mask
+                    val index = address(popInt())
+                    pushValue(load(index).also { if (it == expected) store(index, replacement) })
+                }
+                // Waiters are shared with anything else using the memory, interpreted or compiled
+                "notify" -> popInt().let { count -> push(AtomicWaiters.notify(ctx.mem, address(popInt()), count)) }
+                "wait" -> {
+                    val timeout = popLong()
+                    val expected = popValue() and mask
+                    val index = address(popInt())
+                    if (!ctx.sharedMemory) throw InterpretErr.ExpectedSharedMemory()
+                    // Queued before the check so a notify between the check and the park isn't lost
+                    val waiter = AtomicWaiters.enqueue(ctx.mem, index)
+                    if (load(index) == expected)
+                        return@synchronized { AtomicWaiters.park(ctx.mem, index, waiter, timeout) }
+                    AtomicWaiters.cancel(ctx.mem, index, waiter)
+                    push(AtomicWaiters.NOT_EQUAL)
+                }
+                else -> {
+                    val v = popValue()
+                    val index = address(popInt())
+                    pushValue(load(index).also { old ->
+                        store(index, when (op.kind) {
+                            "add" -> old + v
+                            "sub" -> old - v
+                            "and" -> old and v
+                            "or" -> old or v
+                            "xor" -> old xor v
+                            else -> v
+                        })
+                    })
+                }
+            }
+            null
+        }
+        // Waits park outside of the lock so others can get to the memory to notify
+        if (park != null) push(park())
+    }
+
     companion object : Interpreter()
 
     // Creating this does all the initialization except execute the start function
@@ -455,8 +568,8 @@ open class Interpreter {
                     }
                 }
             mem?.also { mem ->
-                // Load all data
-                mod.data.forEach { data ->
+                // Load all active data
+                mod.data.filterNot { it.passive }.forEach { data ->
                     val pos = singleConstant(data.offset) as? Int ?: throw CompileErr.OffsetNotConstant()
                     if (pos < 0 || pos + data.data.size > mem.limit())
                         throw RunErr.InvalidDataIndex(pos, data.data.size, mem.limit())
@@ -465,6 +578,11 @@ open class Interpreter {
             }
         }
         val mem get() = maybeMem ?: throw CompileErr.UnknownMemory(0)
+        val sharedMemory = mod.memories.any { it.shared } ||
+            mod.imports.any { (it.kind as? Node.Import.Kind.Memory)?.type?.shared == true }
+
+        // Only passive data can be used after init, the rest are as if dropped
+        val passiveData = mod.data.map { if (it.passive) it.data else null }.toMutableList()
 
         // TODO: some of this shares with the compiler's context, so how about some code reuse?
         val importFuncs = mod.imports.filter { it.kind is Node.Import.Kind.Func }
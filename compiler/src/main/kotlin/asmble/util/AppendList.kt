@@ -0,0 +1,36 @@
+package asmble.util
+
+// An immutable list that shares its backing array with the lists it was made from. Appending to the longest list
+// over a backing array adds to it in place in amortized constant time and dropping from the end never copies.
+// Appending to any other list over the array (i.e. an older or shortened one) copies first, so every list still
+// only ever sees its own items.
+class AppendList<T> private constructor(
+    private val backing: ArrayList<T>,
+    override val size: Int
+) : AbstractList<T>() {
+
+    override fun get(index: Int): T {
+        if (index < 0 || index >= size) throw IndexOutOfBoundsException("Index $index, size $size")
+        return backing[index]
+    }
+
+    operator fun plus(item: T) = plus(listOf(item))
+
+    operator fun plus(items: Collection<T>): AppendList<T> {
+        if (items.isEmpty()) return this
+        val newBacking = if (size == backing.size) backing else ArrayList(subList(0, size))
+        newBacking.addAll(items)
+        return AppendList(newBacking, newBacking.size)
+    }
+
+    fun dropLast(n: Int): AppendList<T> {
+        require(n >= 0) { "Requested element count $n is less than zero." }
+        return AppendList(backing, Math.max(size - n, 0))
+    }
+
+    companion object {
+        fun <T> empty() = AppendList(ArrayList<T>(), 0)
+    }
+}
+
+fun <T> List<T>.toAppendList() = this as? AppendList<T> ?: AppendList.empty<T>() + this
@@ -0,0 +1,33 @@
+package asmble.ast.opt
+
+import asmble.SpecTestUnit
+import asmble.TestBase
+import asmble.ast.Script
+import asmble.ast.Stack
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+
+@RunWith(Parameterized::class)
+class FuncPassTest(val unit: SpecTestUnit) : TestBase() {
+
+    @Test
+    fun testFuncPassesKeepFuncsValid() {
+        val passes = FuncPass.Pipeline(listOf(
+            Inliner(20), ConstantFolding, ConstantIndirectCalls, UnreachableCodeRemoval, CopyPropagation
+        ))
+        unit.script.commands.mapNotNull { it as? Script.Cmd.Module }.forEach { mod ->
+            mod.module.funcs.filter { it.instructions.isNotEmpty() }.forEach { func ->
+                val optimized = passes.apply(mod.module, func)
+                debug { "Func ${func.instructions} optimized to ${optimized.instructions}" }
+                Stack.walkStrict(mod.module, optimized)
+            }
+        }
+    }
+
+    companion object {
+        // Only tests that shouldn't fail
+        @JvmStatic @Parameterized.Parameters(name = "{0}")
+        fun data() = SpecTestUnit.allUnits.filterNot { it.shouldFail }
+    }
+}
@@ -0,0 +1,105 @@
+package asmble.ast.opt
+
+import asmble.TestBase
+import asmble.ast.Node
+import asmble.ast.Stack
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+
+class InlinerTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (func ${'$'}double (param i32) (result i32)
+                (i32.add (get_local 0) (get_local 0)))
+            (func ${'$'}clamp (param i32) (result i32) (local i32)
+                (set_local 1 (i32.const 100))
+                (if (i32.gt_s (get_local 0) (get_local 1)) (then (return (get_local 1))))
+                (get_local 0))
+            (func ${'$'}counted (result i32) (local i32)
+                (set_local 0 (i32.add (get_local 0) (i32.const 1)))
+                (get_local 0))
+            (func ${'$'}fact (param i32) (result i32)
+                (if (result i32) (i32.eqz (get_local 0))
+                    (then (i32.const 1))
+                    (else (i32.mul (get_local 0) (call ${'$'}fact (i32.sub (get_local 0) (i32.const 1)))))))
+            (func (export "doubleClamp") (param i32) (result i32)
+                (call ${'$'}clamp (call ${'$'}double (get_local 0))))
+            (func (export "countedLoop") (param i32) (result i32) (local i32)
+                (block
+                    (loop
+                        (br_if 1 (i32.eqz (get_local 0)))
+                        (set_local 1 (i32.add (get_local 1) (call ${'$'}counted)))
+                        (set_local 0 (i32.sub (get_local 0) (i32.const 1)))
+                        (br 0)))
+                (get_local 1))
+            (func (export "fact") (param i32) (result i32)
+                (call ${'$'}fact (get_local 0)))
+        )
+    """.trimIndent())).second
+
+    fun func(name: String) = mod.funcs[mod.exports.single { it.field == name }.index]
+
+    @Test
+    fun testInlinedOutput() {
+        val inlined = Inliner(20).apply(mod, func("doubleClamp"))
+        Stack.walkStrict(mod, inlined)
+        assertEquals(listOf(
+            Node.Instr.GetLocal(0),
+            // Double
+            Node.Instr.SetLocal(1),
+            Node.Instr.Block(Node.Type.Value.I32),
+            Node.Instr.GetLocal(1),
+            Node.Instr.GetLocal(1),
+            Node.Instr.I32Add,
+            Node.Instr.End,
+            // Clamp
+            Node.Instr.SetLocal(2),
+            Node.Instr.I32Const(0),
+            Node.Instr.SetLocal(3),
+            Node.Instr.Block(Node.Type.Value.I32),
+            Node.Instr.I32Const(100),
+            Node.Instr.SetLocal(3),
+            Node.Instr.GetLocal(2),
+            Node.Instr.GetLocal(3),
+            Node.Instr.I32GtS,
+            Node.Instr.If(null),
+            Node.Instr.GetLocal(3),
+            Node.Instr.Br(1),
+            Node.Instr.End,
+            Node.Instr.GetLocal(2),
+            Node.Instr.End
+        ), inlined.instructions)
+        assertEquals(List(3) { Node.Type.Value.I32 }, inlined.locals)
+    }
+
+    @Test
+    fun testLimitAndRecursion() {
+        // Clamp is too big at this limit
+        assertEquals(1, Inliner(4).apply(mod, func("doubleClamp")).instructions.count { it is Node.Instr.Call })
+        // Recursive funcs are never inlined, not even into themselves
+        assertEquals(func("fact"), Inliner(100).apply(mod, func("fact")))
+        assertEquals(mod.funcs[3], Inliner(100).apply(mod, mod.funcs[3]))
+    }
+
+    @Test
+    fun testCompiledWithInlining() {
+        listOf(0, 20).forEach { inlineMaxInsns ->
+            val builder = ModuleBuilder.Compiled(logger = logger, adjustContext = {
+                it.copy(inlineMaxInsns = inlineMaxInsns)
+            })
+            val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+            val inst = builder.build(ScriptContext(logger = logger), mod, className, null) as Module.Compiled
+            assertEquals(14, inst.exportedFunc("doubleClamp")!!.invokeWithArguments(7))
+            assertEquals(100, inst.exportedFunc("doubleClamp")!!.invokeWithArguments(70))
+            // The inlined local is zeroed each time, so each call returns 1
+            assertEquals(5, inst.exportedFunc("countedLoop")!!.invokeWithArguments(5))
+            assertEquals(120, inst.exportedFunc("fact")!!.invokeWithArguments(5))
+        }
+    }
+}
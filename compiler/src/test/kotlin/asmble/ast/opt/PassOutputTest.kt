@@ -0,0 +1,74 @@
+package asmble.ast.opt
+
+import asmble.TestBase
+import asmble.ast.Node
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+
+class PassOutputTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (func (export "fold") (result i32)
+                (i32.mul (i32.add (i32.const 2) (i32.const 3)) (i32.const 4)))
+            (func (export "noFoldTrap") (result i32)
+                (i32.div_s (i32.const 1) (i32.const 0)))
+            (func (export "dead") (param i32) (result i32)
+                (block (result i32)
+                    (br_if 0 (get_local 0) (i32.const 1))
+                    (drop)
+                    (i32.const 5)))
+            (func (export "copy") (param i32) (result i32) (local i32)
+                (set_local 1 (get_local 0))
+                (set_local 0 (get_local 0))
+                (i32.add (get_local 1) (get_local 1)))
+        )
+    """.trimIndent())).second
+
+    fun func(name: String) = mod.funcs[mod.exports.single { it.field == name }.index]
+
+    @Test
+    fun testConstantFolding() {
+        assertEquals(listOf<Node.Instr>(Node.Instr.I32Const(20)), ConstantFolding.apply(mod, func("fold")).instructions)
+        assertEquals(func("noFoldTrap"), ConstantFolding.apply(mod, func("noFoldTrap")))
+    }
+
+    @Test
+    fun testUnreachableCodeRemoval() {
+        // The br_if becomes a br, then the rest of the block is gone
+        assertEquals(listOf(
+            Node.Instr.Block(Node.Type.Value.I32),
+            Node.Instr.GetLocal(0),
+            Node.Instr.Br(0),
+            Node.Instr.End
+        ), UnreachableCodeRemoval.apply(mod, ConstantFolding.apply(mod, func("dead"))).instructions)
+    }
+
+    @Test
+    fun testCopyPropagation() {
+        assertEquals(listOf(
+            Node.Instr.GetLocal(0),
+            Node.Instr.SetLocal(1),
+            Node.Instr.GetLocal(0),
+            Node.Instr.GetLocal(0),
+            Node.Instr.I32Add
+        ), CopyPropagation.apply(mod, func("copy")).instructions)
+    }
+
+    @Test
+    fun testCompiledWithPasses() {
+        val builder = ModuleBuilder.Compiled(logger = logger, adjustContext = {
+            it.copy(foldConstants = true, removeUnreachableCode = true, propagateLocalCopies = true)
+        })
+        val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+        val inst = builder.build(ScriptContext(logger = logger), mod, className, null) as Module.Compiled
+        assertEquals(20, inst.exportedFunc("fold")!!.invokeWithArguments())
+        assertEquals(7, inst.exportedFunc("dead")!!.invokeWithArguments(7))
+        assertEquals(6, inst.exportedFunc("copy")!!.invokeWithArguments(3))
+    }
+}
@@ -0,0 +1,327 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.ast.Node
+import asmble.io.AstToBinary
+import asmble.io.AstToSExpr
+import asmble.io.BinaryToAst
+import asmble.io.IoErr
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import asmble.run.jvm.interpret.RunModule
+import org.junit.Test
+import java.lang.reflect.InvocationTargetException
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class AtomicsTest : TestBase() {
+    val mod = module(shared = true)
+
+    @Test
+    fun testAtomics() {
+        listOf(ByteBufferMem(direct = false), ByteBufferMem(direct = true), UnsafeMem, ByteArrayMem).forEach {
+            assertAtomics(Instance(it, mod))
+        }
+    }
+
+    @Test
+    fun testAtomicsBinaryRoundTrip() {
+        val fromBinary = BinaryToAst.toModule(AstToBinary.fromModule(mod))
+        assertEquals(mod, fromBinary)
+        assertTrue(fromBinary.memories.single().shared)
+        assertEquals(mod, SExprToAst.toModule(AstToSExpr.fromModule(mod)).second)
+        assertAtomics(Instance(ByteBufferMem, fromBinary))
+    }
+
+    @Test
+    fun testAtomicsConcurrentIncrements() {
+        val inst = Instance(ByteBufferMem, mod)
+        val threads = (0 until 4).map {
+            thread {
+                repeat(10000) {
+                    inst.call("add", 0, 1)
+                    inst.call("add8", 5, 1)
+                    inst.call("add64", 8, 1L)
+                }
+            }
+        }
+        threads.forEach { it.join() }
+        assertEquals(40000, inst.call("load", 0))
+        // The byte wraps without touching its neighbors
+        assertEquals(40000 % 256, inst.call("load8", 5))
+        assertEquals(0, inst.call("load8", 4))
+        assertEquals(0, inst.call("load8", 6))
+        assertEquals(40000L, inst.call("load64", 8))
+    }
+
+    @Test
+    fun testAtomicsWaitNotify() {
+        listOf(ByteBufferMem, ByteArrayMem).forEach { assertWaitNotify(it) }
+    }
+
+    @Test
+    fun testAtomicsWaitersByMemory() {
+        // Other compiled classes and interpreters using the same memory wake each other
+        fun mod(str: String) = SExprToAst.toModule(StrToSExpr.parseSingleMulti(str.trimIndent())).second
+        var ctx = ScriptContext(logger = logger, builder = ModuleBuilder.Compiled(logger = logger, mem = ByteBufferMem))
+        val exporter = ctx.buildModule(mod("""
+            (module
+                (memory (export "mem") 1 1 shared)
+                (func (export "wake") (param i32) (param i32) (result i32)
+                    (memory.atomic.notify (get_local 0) (get_local 1)))
+            )
+        """), "AtomicsExporter", "exporter")
+        ctx = ctx.withModuleRegistered(exporter)
+        val importer = mod("""
+            (module
+                (import "exporter" "mem" (memory 1 1 shared))
+                (func (export "sleep") (param i32) (param i32) (param i64) (result i32)
+                    (memory.atomic.wait32 (get_local 0) (get_local 1) (get_local 2)))
+                (func (export "wake") (param i32) (param i32) (result i32)
+                    (memory.atomic.notify (get_local 0) (get_local 1)))
+            )
+        """)
+        val compiled = ctx.buildModule(importer, "AtomicsImporter", "compiled")
+        val interpreted = RunModule.Builder(logger).build(ctx, importer, "AtomicsInterpreted", "interpreted")
+        fun Module.call(name: String, vararg args: Any) = exportedFunc(name)!!.invokeWithArguments(*args)
+        fun waitAll(vararg mods: Module) = mods.map { thread { assertEquals(0, it.call("sleep", 0, 0, -1L)) } }
+        fun notifyAll(notifier: Module, count: Int) {
+            var woken = 0
+            waitFor { woken += notifier.call("wake", 0, -1) as Int; woken == count }
+        }
+        // The exporter wakes both importers, then the interpreter wakes the compiled one and vice versa
+        waitAll(compiled, interpreted).also { notifyAll(exporter, 2) }.forEach { it.join(10000) }
+        waitAll(compiled).also { notifyAll(interpreted, 1) }.forEach { it.join(10000) }
+        waitAll(interpreted).also { notifyAll(compiled, 1) }.forEach { it.join(10000) }
+        // Interpreted waits time out and don't wait on unexpected values
+        assertEquals(2, interpreted.call("sleep", 0, 0, TimeUnit.MILLISECONDS.toNanos(10)))
+        assertEquals(1, interpreted.call("sleep", 0, 1, -1L))
+        assertEquals(0, interpreted.call("wake", 0, -1))
+    }
+
+    @Test
+    fun testSharedGrowLocksMemory() {
+        // Other compiled classes growing the same memory lock on the memory itself, like the interpreter
+        fun mod(str: String) = SExprToAst.toModule(StrToSExpr.parseSingleMulti(str.trimIndent())).second
+        val dir = Files.createTempDirectory("asmble-shared-grow").toFile()
+        listOf(
+            ByteBufferMem to ByteBuffer::class.java,
+            ByteArrayMem to ByteArray::class.java,
+            MappedMem(dir) to ByteBuffer::class.java
+        ).forEach { (mem, type) ->
+            val suffix = mem.javaClass.simpleName
+            var ctx = ScriptContext(logger = logger, builder = ModuleBuilder.Compiled(logger = logger, mem = mem))
+            val exporter = ctx.buildModule(mod("""
+                (module (memory (export "mem") 1 3 shared))
+            """), "GrowExporter$suffix", "exporter")
+            ctx = ctx.withModuleRegistered(exporter)
+            val importer = ctx.buildModule(mod("""
+                (module
+                    (import "exporter" "mem" (memory 1 3 shared))
+                    (func (export "grow") (result i32) (memory.grow (i32.const 1)))
+                )
+            """), "GrowImporter$suffix", "importer")
+            val memory = exporter.exportedMemory("mem", type)!!
+            val grower = synchronized(memory) {
+                thread { assertEquals(1, importer.exportedFunc("grow")!!.invokeWithArguments()) }.also { grower ->
+                    waitFor { grower.state == Thread.State.BLOCKED }
+                }
+            }
+            grower.join(10000)
+            assertEquals(2, importer.exportedFunc("grow")!!.invokeWithArguments())
+            assertEquals(-1, importer.exportedFunc("grow")!!.invokeWithArguments())
+        }
+        dir.deleteRecursively()
+    }
+
+    fun assertWaitNotify(mem: Mem) {
+        val inst = Instance(mem, mod)
+        // Not equal and timed out without another thread
+        assertEquals(1, inst.call("wait", 0, 1, -1L))
+        assertEquals(2, inst.call("wait", 0, 0, TimeUnit.MILLISECONDS.toNanos(10)))
+        assertEquals(2, inst.call("wait64", 8, 0L, 0L))
+        assertEquals(0, inst.call("notify", 0, 1))
+        // Each waiter sets its flag after waking
+        val started = CountDownLatch(2)
+        val waiters = (0 until 2).map { index ->
+            thread {
+                started.countDown()
+                assertEquals(0, inst.call("wait", 0, 0, -1L))
+                inst.call("store", 100 + index * 4, 1)
+            }
+        }
+        started.await()
+        // Wake only one at a time, retrying until each one is actually waiting
+        fun notifyOne() { while (inst.call("notify", 0, 1) == 0) Thread.sleep(1) }
+        notifyOne()
+        waitFor { inst.call("load", 100) as Int + inst.call("load", 104) as Int == 1 }
+        notifyOne()
+        waiters.forEach { it.join(10000) }
+        assertEquals(2, inst.call("load", 100) as Int + inst.call("load", 104) as Int)
+        // Instances of the same class have their own memory to wait on
+        val other = Instance(mem, mod, inst.cls)
+        val waiter = thread { assertEquals(0, other.call("wait", 0, 0, -1L)) }
+        waitFor { waiter.state == Thread.State.WAITING }
+        assertEquals(0, inst.call("notify", 0, -1))
+        while (other.call("notify", 0, -1) == 0) Thread.sleep(1)
+        waiter.join(10000)
+        assertTrue(!waiter.isAlive)
+    }
+
+    @Test
+    fun testAtomicsUnsharedWait() {
+        val inst = Instance(ByteBufferMem, module(shared = false))
+        assertEquals(0, inst.call("add", 0, 1))
+        // Only waiting requires shared memory, and only once the address checks out
+        assertEquals(0, inst.call("notify", 0, 1))
+        inst.assertTraps<ArithmeticException>("Expected shared memory", "wait", 0, 0, 0L)
+        inst.assertTraps<ArithmeticException>("Unaligned atomic", "wait", 2, 0, 0L)
+    }
+
+    @Test
+    fun testAtomicsPagedMem() {
+        // Shared memory is rejected up front, atomics on unshared memory work like any other
+        assertFailsWith<CompileErr.SharedMemoryNotSupported> { Instance(PagedMem, mod) }
+        val inst = Instance(PagedMem, module(shared = false))
+        assertAtomics(inst)
+        inst.assertTraps<ArithmeticException>("Expected shared memory", "wait", 0, 0, 0L)
+    }
+
+    @Test
+    fun testAtomicsAlign() {
+        fun parse(align: Int) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module (memory 1 1 shared) (func (result i64) (i64.atomic.load32_u align=$align (i32.const 0))))
+        """.trimIndent()))
+        parse(4)
+        listOf(1, 2).forEach { assertFailsWith<IoErr.InvalidAtomicAlign> { parse(it) } }
+        assertFailsWith<IoErr.InvalidAlignTooLarge> { parse(8) }
+    }
+
+    fun assertAtomics(inst: Instance) {
+        // Regular rmw ops return the old value
+        assertEquals(0, inst.call("add", 0, 5))
+        assertEquals(5, inst.call("sub", 0, 7))
+        assertEquals(-2, inst.call("load", 0))
+        assertEquals(-2, inst.call("and", 0, 0xFF))
+        assertEquals(0xFE, inst.call("or", 0, 0x100))
+        assertEquals(0x1FE, inst.call("xor", 0, 0xF))
+        assertEquals(0x1F1, inst.call("xchg", 0, 42))
+        assertEquals(42, inst.call("cmpxchg", 0, 1, 2))
+        assertEquals(42, inst.call("cmpxchg", 0, 42, 3))
+        assertEquals(3, inst.call("load", 0))
+        // Sub-word ops only touch their bytes and wrap the expected value
+        inst.call("store", 4, 0x11223344)
+        assertEquals(0x22, inst.call("add8", 6, 0xFF))
+        assertEquals(0x11213344, inst.call("load", 4))
+        assertEquals(0x1121, inst.call("cmpxchg16", 6, 0x71121, 0xBEEF))
+        assertEquals(0xBEEF3344.toInt(), inst.call("load", 4))
+        inst.call("store16", 4, 0x12345)
+        assertEquals(0xBEEF2345.toInt(), inst.call("load", 4))
+        assertEquals(0x45, inst.call("load8", 4))
+        // i64 ops, including the 32-bit ones zero extended
+        assertEquals(0L, inst.call("add64", 8, -1L))
+        assertEquals(-1L, inst.call("cmpxchg64", 8, -1L, Long.MAX_VALUE))
+        assertEquals(0xFFFFFFFFL, inst.call("xchg32_64", 8, 0x1234567800000001L))
+        assertEquals(0x7FFFFFFF00000001L, inst.call("load64", 8))
+        assertEquals(1L, inst.call("load8_64", 8))
+        // Offsets count toward alignment and bounds
+        assertEquals(0xBEEF2345.toInt(), inst.call("loadOff", 0))
+        assertEquals(1, inst.call("loadOff", 4))
+        inst.call("fence")
+        // Misaligned traps first, even out of bounds
+        inst.assertTraps<ArithmeticException>("Unaligned atomic", "load", 1)
+        inst.assertTraps<ArithmeticException>("Unaligned atomic", "add64", 4, 1L)
+        inst.assertTraps<ArithmeticException>("Unaligned atomic", "cmpxchg16", 5, 0, 0)
+        inst.assertTraps<ArithmeticException>("Unaligned atomic", "load", Mem.PAGE_SIZE + 1)
+        inst.assertTraps<ArithmeticException>("Unaligned atomic", "loadOff", 2)
+        inst.assertTraps<IndexOutOfBoundsException>("Memory access out of bounds", "load", Mem.PAGE_SIZE)
+        inst.assertTraps<IndexOutOfBoundsException>("Memory access out of bounds", "loadOff", Mem.PAGE_SIZE - 4)
+        inst.assertTraps<IndexOutOfBoundsException>("Memory access out of bounds", "add8", -1, 1)
+        inst.call("store", Mem.PAGE_SIZE - 4, 1)
+    }
+
+    fun waitFor(pred: () -> Boolean) {
+        val end = System.currentTimeMillis() + 10000
+        while (!pred()) {
+            assertTrue(System.currentTimeMillis() < end, "Timed out")
+            Thread.sleep(1)
+        }
+    }
+
+    inner class Instance(mem: Mem, mod: Node.Module, cls: Class<*>? = null) {
+        val cls = cls ?: ClsContext(
+            packageName = "test",
+            className = "Temp" + UUID.randomUUID().toString().replace("-", ""),
+            mod = mod,
+            logger = logger,
+            mem = mem
+        ).let { ctx ->
+            AstToAsm.fromModule(ctx)
+            ModuleBuilder.Compiled.SimpleClassLoader(javaClass.classLoader, logger).fromBuiltContext(ctx)
+        }
+        val inst = this.cls.getConstructor(Integer.TYPE).newInstance(Mem.PAGE_SIZE)
+
+        fun call(name: String, vararg args: Any) =
+            cls.declaredMethods.single { it.name == name }.invoke(inst, *args)
+
+        inline fun <reified T : Throwable> assertTraps(msg: String, name: String, vararg args: Any) {
+            val err = assertFailsWith<InvocationTargetException> { call(name, *args) }
+            assertTrue(err.targetException is T, "Unexpected error: ${err.targetException}")
+            assertEquals(msg, err.targetException.message)
+        }
+    }
+
+    fun module(shared: Boolean) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (memory 1 1 ${if (shared) "shared" else ""})
+            (func (export "load") (param i32) (result i32) (i32.atomic.load (get_local 0)))
+            (func (export "load8") (param i32) (result i32) (i32.atomic.load8_u (get_local 0)))
+            (func (export "loadOff") (param i32) (result i32) (i32.atomic.load offset=4 (get_local 0)))
+            (func (export "load64") (param i32) (result i64) (i64.atomic.load (get_local 0)))
+            (func (export "load8_64") (param i32) (result i64) (i64.atomic.load8_u (get_local 0)))
+            (func (export "store") (param i32) (param i32) (i32.atomic.store (get_local 0) (get_local 1)))
+            (func (export "store16") (param i32) (param i32) (i32.atomic.store16 (get_local 0) (get_local 1)))
+            (func (export "add") (param i32) (param i32) (result i32)
+                (i32.atomic.rmw.add (get_local 0) (get_local 1)))
+            (func (export "sub") (param i32) (param i32) (result i32)
+                (i32.atomic.rmw.sub (get_local 0) (get_local 1)))
+            (func (export "and") (param i32) (param i32) (result i32)
+                (i32.atomic.rmw.and (get_local 0) (get_local 1)))
+            (func (export "or") (param i32) (param i32) (result i32)
+                (i32.atomic.rmw.or (get_local 0) (get_local 1)))
+            (func (export "xor") (param i32) (param i32) (result i32)
+                (i32.atomic.rmw.xor (get_local 0) (get_local 1)))
+            (func (export "xchg") (param i32) (param i32) (result i32)
+                (i32.atomic.rmw.xchg (get_local 0) (get_local 1)))
+            (func (export "add8") (param i32) (param i32) (result i32)
+                (i32.atomic.rmw8.add_u (get_local 0) (get_local 1)))
+            (func (export "cmpxchg") (param i32) (param i32) (param i32) (result i32)
+                (i32.atomic.rmw.cmpxchg (get_local 0) (get_local 1) (get_local 2)))
+            (func (export "cmpxchg16") (param i32) (param i32) (param i32) (result i32)
+                (i32.atomic.rmw16.cmpxchg_u (get_local 0) (get_local 1) (get_local 2)))
+            (func (export "add64") (param i32) (param i64) (result i64)
+                (i64.atomic.rmw.add (get_local 0) (get_local 1)))
+            (func (export "cmpxchg64") (param i32) (param i64) (param i64) (result i64)
+                (i64.atomic.rmw.cmpxchg (get_local 0) (get_local 1) (get_local 2)))
+            (func (export "xchg32_64") (param i32) (param i64) (result i64)
+                (i64.atomic.rmw32.xchg_u (get_local 0) (get_local 1)))
+            (func (export "wait") (param i32) (param i32) (param i64) (result i32)
+                (memory.atomic.wait32 (get_local 0) (get_local 1) (get_local 2)))
+            (func (export "wait64") (param i32) (param i64) (param i64) (result i32)
+                (memory.atomic.wait64 (get_local 0) (get_local 1) (get_local 2)))
+            (func (export "notify") (param i32) (param i32) (result i32)
+                (memory.atomic.notify (get_local 0) (get_local 1)))
+            (func (export "fence") (atomic.fence))
+        )
+    """.trimIndent())).second
+}
@@ -0,0 +1,108 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.ast.Node
+import asmble.io.AstToBinary
+import asmble.io.BinaryToAst
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.ModuleBuilder
+import org.junit.Test
+import java.lang.reflect.InvocationTargetException
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class BulkMemoryTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (memory 2)
+            (data (i32.const 0) "abcdefgh")
+            (data "0123456789")
+            (func (export "copy") (param i32) (param i32) (param i32)
+                (memory.copy (get_local 0) (get_local 1) (get_local 2))
+            )
+            (func (export "fill") (param i32) (param i32) (param i32)
+                (memory.fill (get_local 0) (get_local 1) (get_local 2))
+            )
+            (func (export "init") (param i32) (param i32) (param i32)
+                (memory.init 1 (get_local 0) (get_local 1) (get_local 2))
+            )
+            (func (export "drop")
+                (data.drop 1)
+            )
+            (func (export "load") (param i32) (result i32)
+                (i32.load8_u (get_local 0))
+            )
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testBulkMemory() {
+        listOf(ByteBufferMem(direct = false), ByteBufferMem(direct = true), ByteArrayMem, PagedMem, UnsafeMem).
+            forEach { assertBulkMemory(it, mod) }
+    }
+
+    @Test
+    fun testBulkMemoryBinaryRoundTrip() {
+        val fromBinary = BinaryToAst.toModule(AstToBinary.fromModule(mod))
+        assertEquals(mod, fromBinary)
+        assertTrue(fromBinary.data[1].passive)
+        assertBulkMemory(ByteBufferMem, fromBinary)
+    }
+
+    fun assertBulkMemory(mem: Mem, mod: Node.Module) {
+        val ctx = ClsContext(
+            packageName = "test",
+            className = "Temp" + UUID.randomUUID().toString().replace("-", ""),
+            mod = mod,
+            logger = logger,
+            mem = mem
+        )
+        AstToAsm.fromModule(ctx)
+        val cls = ModuleBuilder.Compiled.SimpleClassLoader(javaClass.classLoader, logger).fromBuiltContext(ctx)
+        val limit = Mem.PAGE_SIZE * 2
+        val inst = cls.getConstructor(Integer.TYPE).newInstance(limit)
+        fun call(name: String, vararg args: Int) =
+            cls.declaredMethods.single { it.name == name }.invoke(inst, *args.toTypedArray())
+        fun str(index: Int, len: Int) = String(CharArray(len) { (call("load", index + it) as Int).toChar() })
+        fun assertTraps(name: String, vararg args: Int) {
+            val err = assertFailsWith<InvocationTargetException> { call(name, *args) }
+            assertTrue(err.targetException is IndexOutOfBoundsException, "Unexpected error: ${err.targetException}")
+        }
+        // Only the active data is applied on init
+        assertEquals("abcdefgh\u0000", str(0, 9))
+        // Overlapping copies both ways
+        call("copy", 2, 0, 6)
+        assertEquals("ababcdef", str(0, 8))
+        call("copy", 0, 2, 6)
+        assertEquals("abcdefef", str(0, 8))
+        // Copy and fill across a page boundary
+        call("fill", Mem.PAGE_SIZE - 3, 'x'.toInt(), 6)
+        assertEquals("\u0000xxxxxx\u0000", str(Mem.PAGE_SIZE - 4, 8))
+        call("copy", Mem.PAGE_SIZE - 2, 0, 4)
+        assertEquals("xabcdx", str(Mem.PAGE_SIZE - 3, 6))
+        // Init from the passive data, including a zero length at its end
+        call("init", 100, 2, 5)
+        assertEquals("23456", str(100, 5))
+        call("init", 100, 10, 0)
+        // Out of bounds traps without writing anything
+        assertTraps("fill", limit - 2, 'y'.toInt(), 3)
+        assertEquals("\u0000\u0000", str(limit - 2, 2))
+        assertTraps("copy", limit - 2, 0, 3)
+        assertTraps("copy", 0, limit - 2, 3)
+        assertTraps("copy", 0, -1, 2)
+        assertEquals("ab", str(0, 2))
+        assertTraps("init", 0, 8, 3)
+        assertEquals("ab", str(0, 2))
+        // Zero length at the limit is fine
+        call("copy", limit, 0, 0)
+        call("fill", limit, 0, 0)
+        // Once dropped, only zero length init is allowed
+        call("drop")
+        call("init", 0, 0, 0)
+        assertTraps("init", 0, 0, 1)
+        assertEquals("ab", str(0, 2))
+    }
+}
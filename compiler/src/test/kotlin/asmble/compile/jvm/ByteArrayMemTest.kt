@@ -0,0 +1,95 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.lang.reflect.InvocationTargetException
+import java.nio.ByteBuffer
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class ByteArrayMemTest : TestBase() {
+    @Test
+    fun testSharedMemory() {
+        fun mod(str: String) = SExprToAst.toModule(StrToSExpr.parseSingleMulti(str.trimIndent())).second
+        var ctx = ScriptContext(
+            logger = logger,
+            builder = ModuleBuilder.Compiled(logger = logger, mem = ByteArrayMem, defaultMaxMemPages = 3)
+        )
+        // One module exports its memory with some data set...
+        val exporter = ctx.buildModule(mod("""
+            (module
+                (memory (export "mem") 1)
+                (data (i32.const 10) "hello")
+                (func (export "grow") (param i32) (result i32) (memory.grow (get_local 0)))
+            )
+        """), "ByteArrayMemExporter", "exporter")
+        ctx = ctx.withModuleRegistered(exporter)
+        // ...and another imports it and works with it
+        val importer = ctx.buildModule(mod("""
+            (module
+                (import "exporter" "mem" (memory 1))
+                (func (export "size") (result i32) (memory.size))
+                (func (export "loadU8") (param i32) (result i32) (i32.load8_u (get_local 0)))
+                (func (export "storeLoadI64") (param i32) (param i64) (result i64)
+                    (i64.store (get_local 0) (get_local 1))
+                    (i64.load (get_local 0))
+                )
+            )
+        """), "ByteArrayMemImporter", "importer") as Module.Compiled
+        fun invoke(name: String, vararg args: Any) = importer.exportedFunc(name)!!.invokeWithArguments(*args)
+        assertEquals('h'.toInt(), invoke("loadU8", 10))
+        assertEquals(0xFFFFFFFFFL, invoke("storeLoadI64", 100, 0xFFFFFFFFFL))
+        // Make sure the bounds are based on the limit, not the capacity
+        assertEquals(5L, invoke("storeLoadI64", Mem.PAGE_SIZE - 8, 5L))
+        assertFailsWith<IndexOutOfBoundsException> { invoke("storeLoadI64", Mem.PAGE_SIZE - 7, 5L) }
+        assertFailsWith<IndexOutOfBoundsException> { invoke("loadU8", -1) }
+        // Grow it in the exporter and confirm the importer sees it
+        assertEquals(1, exporter.exportedFunc("grow")!!.invokeWithArguments(1))
+        assertEquals(2, invoke("size"))
+        assertEquals(5L, invoke("storeLoadI64", Mem.PAGE_SIZE * 2 - 8, 5L))
+        // The importer's cached limit catches up on the first access past it
+        assertEquals(Mem.PAGE_SIZE * 2, importer.inst.javaClass.getDeclaredField("\$\$byteArrayCachedLimit").
+            also { it.isAccessible = true }.get(importer.inst))
+        assertEquals(-1, exporter.exportedFunc("grow")!!.invokeWithArguments(2))
+        // Check the memory from the outside
+        val mem = exporter.exportedMemory("mem", ByteArray::class.java)!!
+        assertEquals(Mem.PAGE_SIZE * 2 to Mem.PAGE_SIZE * 3, ByteArrayMem.limitAndCapacity(mem))
+        assertEquals("hello", String(mem, 10, 5))
+    }
+
+    @Test
+    fun testDataPastLimit() {
+        // Data is checked against the limit, not the capacity (or the trailing limit) and fails like a byte buffer
+        fun construct(mem: Mem, memInst: Any, offset: Int): Throwable? {
+            val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+                (module (memory 1 2) (data (i32.const $offset) "abcd"))
+            """.trimIndent())).second
+            val ctx = ClsContext(packageName = "asmble.temp", mem = mem, mod = mod, logger = logger,
+                className = "Temp" + UUID.randomUUID().toString().replace("-", ""))
+            val cls = ModuleBuilder.Compiled(logger = logger, mem = mem).buildClass(ctx)
+            val constructor = cls.constructors.single { it.parameterTypes.singleOrNull()?.isInstance(memInst) == true }
+            return try { constructor.newInstance(memInst); null } catch (e: InvocationTargetException) { e.cause }
+        }
+        val bytes = ByteArrayMem.allocate(0, Mem.PAGE_SIZE * 2)
+        assertEquals(null, construct(ByteArrayMem, bytes, Mem.PAGE_SIZE - 4))
+        assertEquals("abcd", String(bytes, Mem.PAGE_SIZE - 4, 4))
+        fun assertFailsLikeByteBuffer(bytes: ByteArray, offset: Int) {
+            val expected = construct(ByteBufferMem, ByteBuffer.allocate(Mem.PAGE_SIZE * 2), offset)
+            assertTrue(expected != null)
+            assertEquals(expected?.javaClass, construct(ByteArrayMem, bytes, offset)?.javaClass)
+        }
+        // Just past the initial size
+        assertFailsLikeByteBuffer(ByteArrayMem.allocate(0, Mem.PAGE_SIZE * 2), Mem.PAGE_SIZE - 2)
+        // Ending exactly at the capacity, leaving the limit alone
+        val atCapacity = ByteArrayMem.allocate(0, Mem.PAGE_SIZE * 2)
+        assertFailsLikeByteBuffer(atCapacity, Mem.PAGE_SIZE * 2 - 4)
+        assertEquals(Mem.PAGE_SIZE, ByteArrayMem.limit(atCapacity))
+    }
+}
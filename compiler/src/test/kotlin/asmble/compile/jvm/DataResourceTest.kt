@@ -0,0 +1,49 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class DataResourceTest : TestBase() {
+    @Test
+    fun testDataResource() {
+        listOf(ByteBufferMem, ByteArrayMem(), PagedMem).forEach { mem ->
+            listOf(false, true).forEach { deflate -> testDataResource(mem, deflate) }
+        }
+    }
+
+    fun testDataResource(mem: Mem, deflate: Boolean) {
+        // Large enough to have needed multiple string constants and to straddle pages
+        val large = ByteArray(70000) { ((it % 255) - Byte.MIN_VALUE).toByte() }
+        val (_, mod) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (memory 3 3)
+                (data (i32.const 1) "hi")
+                (data (i32.const 100) "")
+                (data (i32.const 65000) "${large.joinToString("") { "\\%02x".format(it) }}")
+                (data (i32.const 2) "o")
+                (func (export "load") (param i32) (result i32) (i32.load8_u (get_local 0)))
+            )
+        """.trimIndent()))
+        val builder = ModuleBuilder.Compiled(logger = logger, mem = mem, adjustContext = {
+            it.copy(dataAsResource = true, deflateDataResource = deflate)
+        })
+        val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+        val inst = builder.build(ScriptContext(logger = logger), mod, className, null) as Module.Compiled
+        // No string constants, just the resource read once
+        assertTrue(inst.cls.declaredFields.any { it.name == "\$\$dataResource" })
+        fun load(index: Int) = inst.exportedFunc("load")!!.invokeWithArguments(index) as Int
+        assertEquals('h'.toInt(), load(1))
+        assertEquals('o'.toInt(), load(2))
+        assertEquals(0, load(3))
+        large.forEachIndexed { index, byte -> assertEquals(byte.toInt() and 0xFF, load(65000 + index)) }
+        assertEquals(0, load(65000 + large.size))
+    }
+}
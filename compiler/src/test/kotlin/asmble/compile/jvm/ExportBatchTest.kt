@@ -0,0 +1,77 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotNull
+
+class ExportBatchTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (import "env" "record" (func ${'$'}record (param i64)))
+            (func (export "score") (param i32 f64) (result f64)
+                (f64.mul (f64.convert_s/i32 (get_local 0)) (get_local 1)))
+            (func (export "record") (param i64) (call ${'$'}record (get_local 0)))
+            (export "recordImport" (func ${'$'}record))
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testExportBatch() {
+        val builder = ModuleBuilder.Compiled(logger = logger, adjustContext = { it.copy(exportBatchMethods = true) })
+        val env = Env()
+        val ctx = ScriptContext(logger = logger).withModuleRegistered(Module.Native("env", env))
+        val inst = builder.build(ctx, mod, "Temp" + UUID.randomUUID().toString().replace("-", ""), null)
+        // The batch methods don't get in the way of the single ones and can be found like exports
+        assertEquals(6.0, inst.exportedFunc("score")!!.invokeWithArguments(3, 2.0))
+        val score = assertNotNull(inst.exportedFunc("scoreBatch"))
+        val results = DoubleArray(4) { -1.0 }
+        score.invokeWithArguments(1, 2, intArrayOf(1, 2, 3, 4), doubleArrayOf(0.5, 0.5, 1.5, 2.5), results)
+        assertEquals(listOf(-1.0, 1.0, 4.5, -1.0), results.toList())
+        // Both direct and import funcs without results
+        inst.exportedFunc("recordBatch")!!.invokeWithArguments(0, 2, longArrayOf(5L, 6L))
+        inst.exportedFunc("recordImportBatch")!!.invokeWithArguments(1, 1, longArrayOf(5L, 6L))
+        assertEquals(listOf(5L, 6L, 6L), env.recorded)
+        // Bad ranges fail before anything is called or stored
+        listOf(3 to 2, -1 to 2, 1 to -1, 2 to Int.MAX_VALUE).forEach { (offset, count) ->
+            val untouched = DoubleArray(4) { -1.0 }
+            assertFailsWith<IndexOutOfBoundsException> {
+                score.invokeWithArguments(offset, count, intArrayOf(1, 2, 3, 4), doubleArrayOf(0.5, 0.5, 1.5, 2.5),
+                    untouched)
+            }
+            assertEquals(List(4) { -1.0 }, untouched.toList())
+        }
+        assertFailsWith<IndexOutOfBoundsException> {
+            inst.exportedFunc("recordBatch")!!.invokeWithArguments(1, 2, longArrayOf(7L, 8L))
+        }
+        assertEquals(listOf(5L, 6L, 6L), env.recorded)
+    }
+
+    @Test
+    fun testExportBatchNameClash() {
+        val (_, clashing) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (func (export "score") (param i32) (result i32) (get_local 0))
+                (func (export "scoreBatch") (param i32) (result i32) (get_local 0))
+            )
+        """.trimIndent()))
+        val builder = ModuleBuilder.Compiled(logger = logger, adjustContext = { it.copy(exportBatchMethods = true) })
+        val err = assertFailsWith<CompileErr.DuplicateExport> {
+            builder.build(ScriptContext(logger = logger), clashing,
+                "Temp" + UUID.randomUUID().toString().replace("-", ""), null)
+        }
+        assertEquals("scoreBatch", err.name)
+    }
+
+    class Env {
+        val recorded = mutableListOf<Long>()
+        fun record(v: Long) { recorded += v }
+    }
+}
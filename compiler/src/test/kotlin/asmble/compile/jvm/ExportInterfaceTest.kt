@@ -0,0 +1,61 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.annotation.WasmExport
+import asmble.annotation.WasmImport
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.lang.invoke.MethodHandle
+import java.nio.ByteBuffer
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertTrue
+
+class ExportInterfaceTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (import "env" "scale" (func ${'$'}scale (param f64) (result f64)))
+            (memory (export "memory") 1 1)
+            (global ${'$'}count (export "count") (mut i32) (i32.const 3))
+            (func (export "addLong") (param i64 i64) (result i64) (i64.add (get_local 0) (get_local 1)))
+            (func (export "scaled") (param f64) (result f64) (call ${'$'}scale (get_local 0)))
+            (func (export "incr") (set_global ${'$'}count (i32.add (get_global ${'$'}count) (i32.const 1))))
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testExportInterface() {
+        val builder = ModuleBuilder.Compiled(logger = logger, exportInterface = true)
+        val ctx = ScriptContext(logger = logger).withModuleRegistered(Module.Native("env", Env()))
+        val inst = builder.build(ctx, mod, "Temp" + UUID.randomUUID().toString().replace("-", ""), null)
+        val iface = inst.cls.interfaces.single()
+        assertTrue(iface.isInstance(inst.inst))
+        assertEquals(setOf("addLong", "scaled", "incr", "getCount", "setCount", "getMemory"),
+            iface.methods.filter { it.isAnnotationPresent(WasmExport::class.java) }.map { it.name }.toSet())
+        // Every constructor has a factory with the same params and import annotations
+        inst.cls.constructors.forEach { con ->
+            val create = iface.getMethod("create", *con.parameterTypes)
+            assertEquals(iface, create.returnType)
+            assertEquals(con.parameterAnnotations.map { anns -> anns.map { (it as? WasmImport)?.field } },
+                create.parameterAnnotations.map { anns -> anns.map { (it as? WasmImport)?.field } })
+        }
+        // Build another with the factory and call through the interface
+        val scale = assertNotNull(ctx.resolveImportFunc("env", "scale", mod.types[0]))
+        val created = iface.getMethod("create", MethodHandle::class.java).invoke(null, scale)
+        assertEquals(7L, iface.getMethod("addLong", Long::class.java, Long::class.java).invoke(created, 3L, 4L))
+        assertEquals(5.0, iface.getMethod("scaled", Double::class.java).invoke(created, 2.5))
+        iface.getMethod("incr").invoke(created)
+        assertEquals(4, iface.getMethod("getCount").invoke(created))
+        assertEquals(3, inst.exportedGlobal("count")!!.first.invokeWithArguments())
+        assertTrue(iface.getMethod("getMemory").invoke(created) is ByteBuffer)
+    }
+
+    class Env {
+        fun scale(v: Double) = v * 2
+    }
+}
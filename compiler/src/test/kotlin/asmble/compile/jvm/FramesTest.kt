@@ -0,0 +1,95 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import org.objectweb.asm.tree.MethodNode
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class FramesTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (memory 1)
+            (func (export "sum") (param i32) (result i32) (local i32 i64)
+                (block ${'$'}done
+                    (loop ${'$'}next
+                        (br_if ${'$'}done (i32.eqz (get_local 0)))
+                        (set_local 1 (i32.add (get_local 1) (get_local 0)))
+                        (set_local 0 (i32.sub (get_local 0) (i32.const 1)))
+                        (br ${'$'}next)))
+                (get_local 1))
+            (func (export "fill") (param i32) (result i32) (local i32)
+                (block ${'$'}done
+                    (loop ${'$'}next
+                        (br_if ${'$'}done (i32.ge_u (get_local 1) (get_local 0)))
+                        (i32.store8 (get_local 1) (get_local 1))
+                        (set_local 1 (i32.add (get_local 1) (i32.const 1)))
+                        (br ${'$'}next)))
+                (i32.load8_u (i32.sub (get_local 0) (i32.const 1))))
+            (func (export "conv") (param i32) (result f64) (local f64)
+                (if (result f64) (i32.lt_s (get_local 0) (i32.const 0))
+                    (then (set_local 1 (f64.const -1.5)) (f64.abs (get_local 1)))
+                    (else (f64.trunc (f64.convert_u/i64 (i64.extend_u/i32 (get_local 0)))))))
+            (func (export "cmp") (param i64 f32) (result i32)
+                (i32.add (i64.lt_u (get_local 0) (i64.const 5))
+                    (i32.add (f32.eq (f32.nearest (get_local 1)) (f32.const 2))
+                        (i32.wrap/i64 (i64.trunc_u/f32 (f32.trunc (get_local 1)))))))
+            (func (export "table") (param i32) (result i32)
+                (block ${'$'}a
+                    (block ${'$'}b
+                        (block ${'$'}c (br_table ${'$'}a ${'$'}b ${'$'}c (get_local 0)))
+                        (return (i32.const 10)))
+                    (return (i32.const 20)))
+                (i32.const 30))
+            (func (export "select") (param i32 i64 i64) (result i64)
+                (select (get_local 1) (get_local 2) (get_local 0)))
+            (func (export "leftover") (param i32) (result i32)
+                (block (result i32)
+                    (i32.const 7)
+                    (br_if 0 (i32.const 5) (get_local 0))
+                    (drop) (drop)
+                    (i32.const 9)))
+            (func (export "dead") (result i32)
+                (block (br 0) (i32.const 1) (drop))
+                (i32.const 2))
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testFuncsHaveFrames() {
+        val ctx = ClsContext(packageName = "asmble.temp", className = "Temp", mod = mod, logger = logger)
+        AstToAsm.fromModule(ctx)
+        // Every func has a frame wherever it needs one, none are left for ASM to compute
+        mod.funcs.indices.map { ctx.funcName(it) }.forEach { name ->
+            val method = ctx.cls.methods.single { (it as MethodNode).name == name } as MethodNode
+            assertTrue(AsmToBinary.hasAllFrames(method), "Missing frames in $name")
+        }
+    }
+
+    @Test
+    fun testFuncsWithFramesRun() {
+        // The JVM verifies the frames on load
+        val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+        val inst = ModuleBuilder.Compiled(logger = logger).build(ScriptContext(logger = logger), mod, className, null)
+        fun call(field: String, vararg args: Any) = inst.exportedFunc(field)!!.invokeWithArguments(*args)
+        assertEquals(15, call("sum", 5))
+        assertEquals(9, call("fill", 10))
+        assertEquals(1.5, call("conv", -3))
+        assertEquals(3.0, call("conv", 3))
+        assertEquals(4, call("cmp", 3L, 2.4f))
+        assertEquals(30, call("table", 0))
+        assertEquals(20, call("table", 1))
+        assertEquals(10, call("table", 2))
+        assertEquals(10, call("table", 7))
+        assertEquals(2L, call("select", 0, 1L, 2L))
+        assertEquals(1L, call("select", 1, 1L, 2L))
+        assertEquals(5, call("leftover", 1))
+        assertEquals(9, call("leftover", 0))
+        assertEquals(2, call("dead"))
+    }
+}
@@ -0,0 +1,78 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+
+class FuncPartitionsTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (type ${'$'}unop (func (param i32) (result i32)))
+            (memory 1)
+            (global ${'$'}calls (mut i32) (i32.const 0))
+            (table 1 anyfunc)
+            (elem (i32.const 0) ${'$'}double)
+            (func ${'$'}double (param i32) (result i32)
+                (set_global ${'$'}calls (i32.add (get_global ${'$'}calls) (i32.const 1)))
+                (i32.store (i32.const 0) (get_local 0))
+                (i32.mul (i32.load (i32.const 0)) (i32.const 2)))
+            (func ${'$'}inc (param i64) (result i64) (i64.add (get_local 0) (i64.const 1)))
+            (func ${'$'}viaTable (param i32) (result i32)
+                (call_indirect (type ${'$'}unop) (get_local 0) (i32.const 0)))
+            (func (export "incTwice") (param i64) (result i64) (call ${'$'}inc (call ${'$'}inc (get_local 0))))
+            (func (export "calc") (param i32) (result i32)
+                (i32.add (call ${'$'}double (get_local 0)) (call ${'$'}viaTable (get_local 0))))
+            (func (export "calls") (result i32) (get_global ${'$'}calls))
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testCallersAndCalleesTogether() {
+        val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (func ${'$'}a (result i32) (i32.const 1))
+                (func ${'$'}b (result i32) (i32.const 2))
+                (func ${'$'}callsA (result i32) (call ${'$'}a))
+                (func ${'$'}callsB (result i32) (call ${'$'}b))
+            )
+        """.trimIndent())).second
+        val ctx = ClsContext(packageName = "asmble.temp", className = "Temp", mod = mod, logger = logger,
+            funcPartitions = 2)
+        assertEquals(listOf(listOf(0, 2), listOf(1, 3)), AstToAsm.funcPartitions(ctx))
+    }
+
+    @Test
+    fun testFuncPartitions() {
+        listOf<Pair<(ClsContext) -> ClsContext, Int>>(
+            { ctx: ClsContext ->
+                ctx.copy(funcPartitions = 2, staticIndirectDispatchMaxSize = 8000, indirectCacheSize = 4)
+            } to 2,
+            { ctx: ClsContext -> ctx.copy(funcPartitions = 3, indirectCacheSize = 4) } to 3,
+            // No more parts than funcs
+            { ctx: ClsContext -> ctx.copy(funcPartitions = 10) } to 6
+        ).forEach { (adjustContext, partCount) ->
+            val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+            // The constant indirect call is resolved so only the table needs the func on the module class
+            val inst = ModuleBuilder.Compiled(logger = logger, adjustContext = {
+                adjustContext(it).copy(resolveConstantIndirectCalls = true)
+            }).
+                build(ScriptContext(logger = logger), mod, className, null)
+            assertEquals(4L, inst.exportedFunc("incTwice")!!.invokeWithArguments(2L))
+            assertEquals(12, inst.exportedFunc("calc")!!.invokeWithArguments(3))
+            assertEquals(2, inst.exportedFunc("calls")!!.invokeWithArguments())
+            // Only the func in the table is left on the module class
+            assertEquals(listOf("calc", "calls", "incTwice", "wasm\$double"),
+                inst.cls.declaredMethods.map { it.name }.sorted())
+            val parts = (0 until 10).filter {
+                try { Class.forName(inst.cls.name + "\$\$Part$it", false, inst.cls.classLoader); true }
+                catch (e: ClassNotFoundException) { false }
+            }
+            assertEquals(partCount, parts.size)
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.ImportInterfaces
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class ImportInterfacesTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (type ${'$'}binop (func (param i32 i32) (result i32)))
+            (import "env" "sub" (func ${'$'}sub (param i32 i32) (result i32)))
+            (import "env" "tick" (func ${'$'}tick))
+            (import "env" "base" (global ${'$'}base i32))
+            (import "env" "counter" (global ${'$'}counter (mut i32)))
+            (import "other" "twice" (func ${'$'}twice (param i32) (result i32)))
+            (global ${'$'}start (mut i32) (get_global ${'$'}base))
+            (table 2 anyfunc)
+            (elem (i32.const 0) ${'$'}sub ${'$'}add)
+            (export "sub" (func ${'$'}sub))
+            (export "base" (global ${'$'}base))
+            (export "counter" (global ${'$'}counter))
+            (start ${'$'}tick)
+            (func ${'$'}add (param i32 i32) (result i32) (i32.add (get_local 0) (get_local 1)))
+            (func (export "call") (param i32 i32 i32) (result i32)
+                (call_indirect (type ${'$'}binop) (get_local 1) (get_local 2) (get_local 0)))
+            (func (export "incr") (result i32)
+                (set_global ${'$'}counter (i32.add (get_global ${'$'}counter) (i32.const 1)))
+                (get_global ${'$'}counter))
+            (func (export "calc") (param i32) (result i32)
+                (call ${'$'}twice (call ${'$'}sub (get_local 0) (get_global ${'$'}start))))
+        )
+    """.trimIndent())).second
+
+    val otherMod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (func (export "twice") (param i32) (result i32) (i32.mul (get_local 0) (i32.const 2)))
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testImportInterfaces() {
+        val ctxs = listOf<(ClsContext) -> ClsContext>(
+            { it },
+            { it.copy(importInterfaces = true, staticIndirectDispatchMaxSize = 8000) },
+            { it.copy(importInterfaces = true) }
+        )
+        ctxs.forEach { adjustContext ->
+            val builder = ModuleBuilder.Compiled(logger = logger, adjustContext = adjustContext)
+            val env = Env()
+            var ctx = ScriptContext(logger = logger).withModuleRegistered(Module.Native("env", env))
+            ctx = ctx.withModuleRegistered(ctx.buildModule(otherMod, className(), "other"))
+            val inst = builder.build(ctx, mod, className(), null)
+            // Start func ran
+            assertEquals(1, env.ticks)
+            assertEquals(3, inst.exportedFunc("call")!!.invokeWithArguments(0, 5, 2))
+            assertEquals(7, inst.exportedFunc("call")!!.invokeWithArguments(1, 5, 2))
+            assertEquals(-1, inst.exportedFunc("sub")!!.invokeWithArguments(1, 2))
+            assertEquals(10, inst.exportedGlobal("base")!!.first.invokeWithArguments())
+            assertEquals(6, inst.exportedFunc("incr")!!.invokeWithArguments())
+            assertEquals(6, env.counter)
+            inst.exportedGlobal("counter")!!.second!!.invokeWithArguments(20)
+            assertEquals(20, env.counter)
+            assertEquals(10, inst.exportedFunc("calc")!!.invokeWithArguments(15))
+        }
+    }
+
+    @Test
+    fun testImportInterfaceImpls() {
+        val builder = ModuleBuilder.Compiled(logger = logger, importInterfaces = true)
+        val native = Module.Native("env", Env())
+        var ctx = ScriptContext(logger = logger).withModuleRegistered(native)
+        ctx = ctx.withModuleRegistered(ctx.buildModule(otherMod, className(), "other"))
+        val inst = builder.build(ctx, mod, className(), null)
+        val ifaces = inst.cls.declaredConstructors.first().parameterTypes.filter { it.isInterface }
+        assertEquals(listOf("env", "other"), ifaces.map { ImportInterfaces.importModule(it) })
+        assertEquals(listOf("getBase", "getCounter", "setCounter", "sub", "tick"),
+            ImportInterfaces.methodImports(ifaces[0]).map { it.first.name })
+        // The env host is called directly, but not if its globals don't match
+        assertNotNull(ImportInterfaces.fromNative(ifaces[0], native))
+        assertNull(ImportInterfaces.fromNative(ifaces[0], Module.Native("env", ImmutableCounterEnv())))
+    }
+
+    fun className() = "Temp" + UUID.randomUUID().toString().replace("-", "")
+
+    class Env {
+        var ticks = 0
+        val base = 10
+        var counter = 5
+        fun sub(a: Int, b: Int) = a - b
+        fun tick() { ticks++ }
+    }
+
+    class ImmutableCounterEnv {
+        val base = 10
+        val counter = 5
+        fun sub(a: Int, b: Int) = a - b
+        fun tick() { }
+    }
+}
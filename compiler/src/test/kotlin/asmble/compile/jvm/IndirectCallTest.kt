@@ -0,0 +1,83 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.ast.Node
+import asmble.ast.opt.ConstantIndirectCalls
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.lang.invoke.WrongMethodTypeException
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+
+class IndirectCallTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (type ${'$'}binop (func (param i32 i32) (result i32)))
+            (import "env" "sub" (func ${'$'}sub (param i32 i32) (result i32)))
+            (table 6 anyfunc)
+            (elem (i32.const 0) ${'$'}add ${'$'}sub ${'$'}mul ${'$'}add)
+            (elem (i32.const 5) ${'$'}neg)
+            (func ${'$'}add (param i32 i32) (result i32) (i32.add (get_local 0) (get_local 1)))
+            (func ${'$'}mul (param i32 i32) (result i32) (i32.mul (get_local 0) (get_local 1)))
+            (func ${'$'}neg (param i32) (result i32) (i32.sub (i32.const 0) (get_local 0)))
+            (func (export "call") (param i32 i32 i32) (result i32)
+                (call_indirect (type ${'$'}binop) (get_local 1) (get_local 2) (get_local 0)))
+            (func (export "callMul") (param i32 i32) (result i32)
+                (call_indirect (type ${'$'}binop) (get_local 0) (get_local 1) (i32.const 2)))
+        )
+    """.trimIndent())).second
+
+    fun func(name: String) = mod.funcs[mod.exports.single { it.field == name }.index - 1]
+
+    @Test
+    fun testConstantIndirectCalls() {
+        assertEquals(listOf(1, 0, 2, 1, null, 3), ConstantIndirectCalls.staticTable(mod))
+        assertEquals(Node.Instr.Call(2), ConstantIndirectCalls.apply(mod, func("callMul")).instructions.last())
+        assertEquals(func("call"), ConstantIndirectCalls.apply(mod, func("call")))
+        // Exported tables can change
+        val exported = mod.copy(exports = mod.exports + Node.Export("table", Node.ExternalKind.TABLE, 0))
+        assertNull(ConstantIndirectCalls.staticTable(exported))
+        assertEquals(func("callMul"), ConstantIndirectCalls.apply(exported, func("callMul")))
+    }
+
+    @Test
+    fun testIndirectCallStrategies() {
+        val ctxs = listOf<(ClsContext) -> ClsContext>(
+            { it.copy(staticIndirectDispatchMaxSize = 8000, indirectCacheSize = 4,
+                resolveConstantIndirectCalls = true) },
+            { it.copy(indirectCacheSize = 4, resolveConstantIndirectCalls = true) },
+            { it.copy(indirectCacheSize = 1) },
+            { it }
+        )
+        ctxs.forEach { adjustContext ->
+            val builder = ModuleBuilder.Compiled(logger = logger, adjustContext = adjustContext)
+            val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+            val ctx = ScriptContext(logger = logger).withModuleRegistered(Module.Native("env", Env()))
+            val inst = builder.build(ctx, mod, className, null) as Module.Compiled
+            val call = assertNotNull(inst.exportedFunc("call"))
+            // Repeated so the call site caches fill up
+            repeat(3) {
+                assertEquals(7, call.invokeWithArguments(0, 3, 4))
+                assertEquals(-1, call.invokeWithArguments(1, 3, 4))
+                assertEquals(12, call.invokeWithArguments(2, 3, 4))
+                assertEquals(7, call.invokeWithArguments(3, 3, 4))
+                assertFailsWith<NullPointerException> { call.invokeWithArguments(4, 3, 4) }
+                assertFailsWith<WrongMethodTypeException> { call.invokeWithArguments(5, 3, 4) }
+                assertFailsWith<ArrayIndexOutOfBoundsException> { call.invokeWithArguments(6, 3, 4) }
+                assertFailsWith<ArrayIndexOutOfBoundsException> { call.invokeWithArguments(-1, 3, 4) }
+            }
+            assertEquals(12, inst.exportedFunc("callMul")!!.invokeWithArguments(3, 4))
+        }
+    }
+
+    class Env {
+        fun sub(a: Int, b: Int) = a - b
+    }
+}
@@ -0,0 +1,60 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import asmble.util.Logger
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+
+class LazyFuncsTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (type ${'$'}unop (func (param i32) (result i32)))
+            (memory 1)
+            (global ${'$'}calls (mut i32) (i32.const 0))
+            (table 2 anyfunc)
+            (elem (i32.const 0) ${'$'}double ${'$'}unused)
+            (func ${'$'}double (param i32) (result i32)
+                (set_global ${'$'}calls (i32.add (get_global ${'$'}calls) (i32.const 1)))
+                (i32.store (i32.const 0) (get_local 0))
+                (i32.mul (i32.load (i32.const 0)) (i32.const 2)))
+            (func ${'$'}viaTable (param i32 i32) (result i32)
+                (call_indirect (type ${'$'}unop) (get_local 1) (get_local 0)))
+            (func ${'$'}unused (param i32) (result i32) (unreachable))
+            (func (export "calc") (param i32) (result i32)
+                (i32.add (call ${'$'}double (get_local 0)) (call ${'$'}viaTable (i32.const 0) (get_local 0))))
+            (func (export "calls") (result i32) (get_global ${'$'}calls))
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testLazyFuncs() {
+        listOf<(ClsContext) -> ClsContext>(
+            { it.copy(lazyFuncs = true, staticIndirectDispatchMaxSize = 8000, indirectCacheSize = 4) },
+            { it.copy(lazyFuncs = true, indirectCacheSize = 4) },
+            { it.copy(lazyFuncs = true) }
+        ).forEach { adjustContext ->
+            val defined = mutableListOf<String>()
+            val builder = ModuleBuilder.Compiled(
+                classLoader = ModuleBuilder.Compiled.SimpleClassLoader(javaClass.classLoader, object : Logger {
+                    override val level = Logger.Level.DEBUG
+                    override fun log(atLevel: Logger.Level, str: String) {
+                        Regex("Defining lazy class .*\\$\\$(\\w+)").find(str)?.let { defined += it.groupValues[1] }
+                    }
+                }),
+                adjustContext = adjustContext
+            )
+            val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+            val inst = builder.build(ScriptContext(logger = logger), mod, className, null)
+            // Nothing is loaded until called, and then only what is called
+            assertEquals(emptyList<String>(), defined)
+            assertEquals(12, inst.exportedFunc("calc")!!.invokeWithArguments(3))
+            assertEquals(2, inst.exportedFunc("calls")!!.invokeWithArguments())
+            assertEquals(listOf("Func0", "Func1"), defined.sorted())
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.ModuleBuilder
+import org.junit.Test
+import java.lang.reflect.InvocationTargetException
+import java.nio.ByteBuffer
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class LoopRangeCheckTest : TestBase() {
+    @Test
+    fun testLoopRangeCheck() {
+        val (_, mod) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (memory 1)
+                (func (export "fill") (param i32) (param i32) (param i32)
+                    (loop
+                        (i32.store8 (get_local 0) (get_local 2))
+                        (br_if 0 (i32.lt_u (tee_local 0 (i32.add (get_local 0) (i32.const 1))) (get_local 1)))
+                    )
+                )
+                (func (export "sum") (param i32) (param i32) (result i32) (local i32)
+                    (loop
+                        (set_local 2 (i32.add (get_local 2) (i32.load offset=1 (get_local 0))))
+                        (set_local 0 (i32.add (get_local 0) (i32.const 4)))
+                        (br_if 0 (i32.gt_u (get_local 1) (get_local 0)))
+                    )
+                    (get_local 2)
+                )
+            )
+        """.trimIndent()))
+        val ctx = ClsContext(
+            packageName = "test",
+            className = "Temp" + UUID.randomUUID().toString().replace("-", ""),
+            mod = mod,
+            logger = logger,
+            mem = UnsafeMem
+        )
+        AstToAsm.fromModule(ctx)
+        val cls = ModuleBuilder.Compiled.SimpleClassLoader(javaClass.classLoader, logger).fromBuiltContext(ctx)
+        // Both loops were range checked up front
+        assertTrue(cls.declaredMethods.any { it.name == "\$\$rangeCheckLoopInRange" })
+        assertTrue(cls.declaredMethods.any { it.name == "\$\$unsafeUncheckedPutByte" })
+        assertTrue(cls.declaredMethods.any { it.name == "\$\$unsafeUncheckedGetInt" })
+        val inst = cls.getConstructor(Integer.TYPE).newInstance(Mem.PAGE_SIZE)
+        val fill = cls.getMethod("fill", Integer.TYPE, Integer.TYPE, Integer.TYPE)
+        val sum = cls.getMethod("sum", Integer.TYPE, Integer.TYPE)
+        val mem = cls.getDeclaredField("memory").also { it.isAccessible = true }.get(inst) as ByteBuffer
+        fill.invoke(inst, 0, 400, 1)
+        // Last int read is at 396 + 1, so it includes the first byte after the fill
+        assertEquals(0x01010101 * 99 + 0x00010101, sum.invoke(inst, 0, 400))
+        assertEquals(0x01010101, sum.invoke(inst, 0, 4))
+        // The checked path still traps at the first bad access after doing the earlier ones
+        val err = assertFailsWith<InvocationTargetException> {
+            fill.invoke(inst, Mem.PAGE_SIZE - 4, Mem.PAGE_SIZE + 4, 9)
+        }
+        assertTrue(err.targetException is IndexOutOfBoundsException)
+        (Mem.PAGE_SIZE - 4 until Mem.PAGE_SIZE).forEach { assertEquals(9.toByte(), mem.get(it)) }
+        // Up to the very end is fine
+        fill.invoke(inst, Mem.PAGE_SIZE - 8, Mem.PAGE_SIZE, 3)
+        (Mem.PAGE_SIZE - 8 until Mem.PAGE_SIZE).forEach { assertEquals(3.toByte(), mem.get(it)) }
+        // Start past the bound runs once with the start and uses the checked path
+        assertEquals(0x01010101, sum.invoke(inst, 8, 0))
+    }
+}
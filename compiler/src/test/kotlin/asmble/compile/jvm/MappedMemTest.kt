@@ -0,0 +1,132 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import asmble.runtime.MappedMemFiles
+import org.junit.Test
+import java.io.File
+import java.lang.reflect.InvocationTargetException
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class MappedMemTest : TestBase() {
+    @Test
+    fun testPersistedMemory() {
+        val (_, mod) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (memory 1 3)
+                (data (i32.const 10) "\01")
+                (func (export "grow") (param i32) (result i32) (memory.grow (get_local 0)))
+                (func (export "size") (result i32) (memory.size))
+                (func (export "inc") (param i32) (result i32)
+                    (i32.store8 (get_local 0) (i32.add (i32.load8_u (get_local 0)) (i32.const 1)))
+                    (i32.load8_u (get_local 0))
+                )
+            )
+        """.trimIndent()))
+        val dir = Files.createTempDirectory("asmble-mapped-mem").toFile()
+        try {
+            // Build a fresh one each time like a restart would
+            fun newInstance() = ModuleBuilder.Compiled(logger = logger, mem = MappedMem(dir)).
+                build(ScriptContext(logger = logger), mod, "MappedMemTest", null)
+            // Closed after each so the next can open the file
+            fun invoke(name: String, vararg args: Any) = newInstance().let { built ->
+                built.exportedFunc(name)!!.invokeWithArguments(*args).also { MappedMem.close(memory(built.inst)) }
+            }
+            assertEquals(2, invoke("inc", 10))
+            assertTrue(dir.resolve("MappedMemTest.mem").exists())
+            // The data is not replayed
+            assertEquals(3, invoke("inc", 10))
+            assertEquals(1, invoke("size"))
+            // Growth persists
+            assertEquals(1, invoke("grow", 1))
+            assertEquals(2, invoke("size"))
+            assertEquals(1, invoke("inc", Mem.PAGE_SIZE + 5))
+            assertEquals(2, invoke("inc", Mem.PAGE_SIZE + 5))
+            assertEquals(-1, invoke("grow", 2))
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+
+    @Test
+    fun testInstanceFiles() {
+        val (_, mod) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (memory 1 3)
+                (data (i32.const 10) "\01")
+                (func (export "grow") (param i32) (result i32) (memory.grow (get_local 0)))
+                (func (export "inc") (param i32) (result i32)
+                    (i32.store8 (get_local 0) (i32.add (i32.load8_u (get_local 0)) (i32.const 1)))
+                    (i32.load8_u (get_local 0))
+                )
+            )
+        """.trimIndent()))
+        val dir = Files.createTempDirectory("asmble-mapped-mem").toFile()
+        try {
+            val built = ModuleBuilder.Compiled(logger = logger, mem = MappedMem(dir)).
+                build(ScriptContext(logger = logger), mod, "MappedMemInstancesTest", null)
+            assertEquals(2, built.exportedFunc("inc")!!.invokeWithArguments(10))
+            // Another instance of the same class can't share the class's file...
+            val err = assertFailsWith<InvocationTargetException> {
+                Module.Compiled(mod, built.cls, null, built.mem, ScriptContext(logger = logger))
+            }
+            assertTrue(err.cause is IllegalStateException)
+            // ...but can have its own
+            fun instance(file: File, capacity: Int) =
+                built.cls.getConstructor(ByteBuffer::class.java).newInstance(MappedMem.open(file, capacity))
+            fun invoke(inst: Any, name: String, arg: Int) =
+                built.cls.getMethod(name, Int::class.java).invoke(inst, arg)
+            val own = File(dir, "own.mem")
+            assertEquals(2, invoke(instance(own, Mem.PAGE_SIZE * 3), "inc", 10))
+            assertEquals(3, built.exportedFunc("inc")!!.invokeWithArguments(10))
+            // Files smaller than the capacity are grown, keeping the memory and limit
+            val small = File(dir, "small.mem")
+            instance(small, Mem.PAGE_SIZE).also { inst ->
+                assertEquals(2, invoke(inst, "inc", 10))
+                assertEquals(-1, invoke(inst, "grow", 1))
+                MappedMem.close(memory(inst))
+            }
+            instance(small, Mem.PAGE_SIZE * 3).also { inst ->
+                assertEquals(3, invoke(inst, "inc", 10))
+                assertEquals(1, invoke(inst, "grow", 2))
+                assertEquals(1, invoke(inst, "inc", Mem.PAGE_SIZE * 3 - 1))
+            }
+            assertEquals(Mem.PAGE_SIZE * 3L + MappedMem.TRAILER_SIZE, small.length())
+            // Growth stops at the declared max even when the file is larger
+            instance(File(dir, "large.mem"), Mem.PAGE_SIZE * 5).also { inst ->
+                assertEquals(1, invoke(inst, "grow", 2))
+                assertEquals(-1, invoke(inst, "grow", 1))
+            }
+            // The class's file is freed on close, and is in the dir from the property when it's set
+            MappedMem.close(memory(built.inst))
+            val moved = Files.createTempDirectory("asmble-mapped-mem-moved").toFile()
+            System.setProperty(MappedMemFiles.DIR_PROPERTY, moved.path)
+            try {
+                Module.Compiled(mod, built.cls, null, built.mem, ScriptContext(logger = logger)).also {
+                    assertEquals(2, it.exportedFunc("inc")!!.invokeWithArguments(10))
+                    MappedMem.close(memory(it.inst))
+                }
+                assertTrue(File(moved, "MappedMemInstancesTest.mem").exists())
+            } finally {
+                System.clearProperty(MappedMemFiles.DIR_PROPERTY)
+                moved.deleteRecursively()
+            }
+            Module.Compiled(mod, built.cls, null, built.mem, ScriptContext(logger = logger)).also {
+                assertEquals(4, it.exportedFunc("inc")!!.invokeWithArguments(10))
+                MappedMem.close(memory(it.inst))
+            }
+        } finally {
+            dir.deleteRecursively()
+        }
+    }
+
+    fun memory(inst: Any) = inst.javaClass.getDeclaredField("memory").also { it.isAccessible = true }.get(inst)
+}
@@ -0,0 +1,61 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.nio.ByteBuffer
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+
+class PagedMemTest : TestBase() {
+    @Test
+    fun testPagedMemory() {
+        val (_, mod) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (memory (export "mem") 2 1000)
+                (data (i32.const 65534) "hello")
+                (func (export "grow") (param i32) (result i32) (memory.grow (get_local 0)))
+                (func (export "size") (result i32) (memory.size))
+                (func (export "loadU8") (param i32) (result i32) (i32.load8_u (get_local 0)))
+                (func (export "storeLoadI64") (param i32) (param i64) (result i64)
+                    (i64.store (get_local 0) (get_local 1))
+                    (i64.load (get_local 0))
+                )
+                (func (export "storeLoadF32") (param i32) (param f32) (result f32)
+                    (f32.store offset=1 (get_local 0) (get_local 1))
+                    (f32.load offset=1 (get_local 0))
+                )
+            )
+        """.trimIndent()))
+        val builder = ModuleBuilder.Compiled(logger = logger, mem = PagedMem, defaultMaxMemPages = 1000)
+        val inst = builder.build(ScriptContext(logger = logger), mod, "PagedMemTest", null) as Module.Compiled
+        fun invoke(name: String, vararg args: Any) = inst.exportedFunc(name)!!.invokeWithArguments(*args)
+        // Only the initial pages are committed even though there is a large max
+        val mem = inst.exportedMemory("mem", Array<ByteBuffer>::class.java)!!
+        assertEquals(1000, mem.size)
+        assertNull(mem[2])
+        // Data across pages
+        assertEquals('l'.toInt(), invoke("loadU8", Mem.PAGE_SIZE))
+        assertFailsWith<IndexOutOfBoundsException> { invoke("loadU8", Mem.PAGE_SIZE * 2) }
+        // Grow
+        assertEquals(2, invoke("grow", 1))
+        assertEquals(3, invoke("size"))
+        assertNull(mem[3])
+        assertEquals(-1, invoke("grow", 998))
+        // Values within and straddling pages
+        assertEquals(0x0102030405060708L, invoke("storeLoadI64", 100, 0x0102030405060708L))
+        assertEquals(0x0102030405060708L, invoke("storeLoadI64", Mem.PAGE_SIZE * 2 - 3, 0x0102030405060708L))
+        assertEquals(1.5f, invoke("storeLoadF32", Mem.PAGE_SIZE - 2, 1.5f))
+        assertEquals(0xC0.toByte(), mem[1]!!.get(1))
+        // Out of bounds, including straddling the last committed page and wrapping
+        assertEquals(5L, invoke("storeLoadI64", Mem.PAGE_SIZE * 3 - 8, 5L))
+        assertFailsWith<IndexOutOfBoundsException> { invoke("storeLoadI64", Mem.PAGE_SIZE * 3 - 7, 5L) }
+        assertFailsWith<IndexOutOfBoundsException> { invoke("storeLoadI64", -4, 5L) }
+        assertEquals(3 * Mem.PAGE_SIZE to 1000 * Mem.PAGE_SIZE, PagedMem.limitAndCapacity(mem))
+    }
+}
@@ -0,0 +1,63 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.Module
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ParallelFuncsTest : TestBase() {
+    // Many funcs, some first using shared synthetic methods late in their chunk, and a couple with br_tables large
+    // enough (with the small chunk size below) to need their own synthetic methods
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (memory 1 4)
+            ${(0 until 50).joinToString("\n") { index ->
+                "(func (export \"f$index\") (param i32) (result i32) " + if (index % 25 == 24) {
+                    "(block (block (br_table 0 1 0 1 0 1 0 (get_local 0))) (return (i32.const 1))) (i32.const 2))"
+                } else when (index % 5) {
+                    0 -> "(i32.add (get_local 0) (i32.const $index)))"
+                    1 -> "(i32.div_s (get_local 0) (i32.const 2)))"
+                    2 -> "(i32.trunc_s/f32 (f32.convert_s/i32 (get_local 0))))"
+                    3 -> "(memory.grow (i32.const 0)))"
+                    else -> "(i32.load (get_local 0)))"
+                }
+            }}
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testParallelFuncsSameAsSequential() {
+        fun build(funcParallelism: Int) = ClsContext(
+            packageName = "asmble.temp",
+            className = "Temp",
+            mod = mod,
+            logger = logger,
+            funcParallelism = funcParallelism,
+            jumpTableChunkSize = 4
+        ).let { ctx ->
+            AstToAsm.fromModule(ctx)
+            AsmToBinary.fromClassNode(ctx.cls)
+        }
+        val expected = build(1)
+        listOf(2, 3, 8).forEach { assertTrue(Arrays.equals(expected, build(it)), "Differs with parallelism $it") }
+    }
+
+    @Test
+    fun testParallelFuncsRun() {
+        val builder = ModuleBuilder.Compiled(logger = logger, funcParallelism = 4)
+        val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+        val inst = builder.build(ScriptContext(logger = logger), mod, className, null) as Module.Compiled
+        fun call(index: Int, arg: Int) = inst.exportedFunc("f$index")!!.invokeWithArguments(arg) as Int
+        assertEquals(15, call(10, 5))
+        assertEquals(3, call(11, 7))
+        assertEquals(7, call(12, 7))
+        assertEquals(1, call(13, 7))
+        assertEquals(0, call(14, 8))
+    }
+}
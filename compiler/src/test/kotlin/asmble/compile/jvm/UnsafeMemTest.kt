@@ -0,0 +1,71 @@
+package asmble.compile.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.ModuleBuilder
+import org.junit.Test
+import java.lang.reflect.InvocationTargetException
+import java.nio.ByteOrder
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class UnsafeMemTest : TestBase() {
+    @Test
+    fun testLoadStoreAndBounds() {
+        val (_, mod) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (memory 1)
+                (func (export "storeLoadI64") (param i32) (param i64) (result i64)
+                    (i64.store (get_local 0) (get_local 1))
+                    (i64.load (get_local 0))
+                )
+                (func (export "storeLoadI8") (param i32) (param i32) (result i32)
+                    (i32.store8 (get_local 0) (get_local 1))
+                    (i32.load8_u (get_local 0))
+                )
+            )
+        """.trimIndent()))
+        val ctx = ClsContext(
+            packageName = "test",
+            className = "Temp" + UUID.randomUUID().toString().replace("-", ""),
+            mod = mod,
+            logger = logger,
+            mem = UnsafeMem
+        )
+        AstToAsm.fromModule(ctx)
+        val cls = ModuleBuilder.Compiled.SimpleClassLoader(javaClass.classLoader, logger).fromBuiltContext(ctx)
+        val inst = cls.getConstructor(Integer.TYPE).newInstance(Mem.PAGE_SIZE)
+        val storeLoadI64 = cls.getMethod("storeLoadI64", Integer.TYPE, java.lang.Long.TYPE)
+        val storeLoadI8 = cls.getMethod("storeLoadI8", Integer.TYPE, Integer.TYPE)
+        assertEquals(0x0102030405060708L, storeLoadI64.invoke(inst, 16, 0x0102030405060708L))
+        assertEquals(0xFF, storeLoadI8.invoke(inst, Mem.PAGE_SIZE - 1, -1))
+        // Last valid long is 8 from the end, anything after (or negative, i.e. unsigned large) must fail
+        assertEquals(5L, storeLoadI64.invoke(inst, Mem.PAGE_SIZE - 8, 5L))
+        listOf(Mem.PAGE_SIZE - 7, Mem.PAGE_SIZE, -1, Int.MIN_VALUE).forEach { index ->
+            val err = assertFailsWith<InvocationTargetException> { storeLoadI64.invoke(inst, index, 5L) }
+            assert(err.targetException is IndexOutOfBoundsException)
+        }
+    }
+
+    @Test
+    fun testBigEndianFailsCompile() {
+        val (_, mod) = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (memory 1)
+                (func (export "load") (param i32) (result i32) (i32.load (get_local 0)))
+            )
+        """.trimIndent()))
+        val ctx = ClsContext(
+            packageName = "test",
+            className = "Temp" + UUID.randomUUID().toString().replace("-", ""),
+            mod = mod,
+            logger = logger,
+            mem = object : UnsafeMem() { override val nativeOrder: ByteOrder get() = ByteOrder.BIG_ENDIAN }
+        )
+        val err = assertFailsWith<CompileErr.MemoryNotSupportedOnPlatform> { AstToAsm.fromModule(ctx) }
+        assertTrue(err.reason.contains("little endian"))
+    }
+}
@@ -0,0 +1,90 @@
+package asmble.run.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.util.Logger
+import org.junit.Test
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+import java.util.*
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertNotNull
+
+class ClassCacheTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (memory 1 1)
+            (data (i32.const 1) "hi")
+            (func (export "load") (param i32) (result i32) (i32.load8_u (get_local 0)))
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testClassCache() {
+        val dir = Files.createTempDirectory("asmble-cache")
+        try {
+            val messages = mutableListOf<String>()
+            val cache = ClassCache(dir, logger = object : Logger {
+                override val level = Logger.Level.DEBUG
+                override fun log(atLevel: Logger.Level, str: String) { messages += str }
+            })
+            val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+            fun build(exportInterface: Boolean) = ModuleBuilder.Compiled(
+                logger = logger,
+                adjustContext = { it.copy(dataAsResource = true) },
+                exportInterface = exportInterface,
+                classCache = cache
+            ).build(ScriptContext(logger = logger), mod, className, null)
+            // Built then loaded from the cache in another builder's class loader, resources and interfaces included
+            repeat(2) {
+                val inst = build(exportInterface = true)
+                assertEquals('h'.toInt(), inst.exportedFunc("load")!!.invokeWithArguments(1))
+                assertEquals(1, inst.cls.interfaces.size)
+            }
+            val cacheResults = messages.mapNotNull { Regex("cache (\\w+)").find(it)?.groupValues?.get(1) }
+            assertEquals(listOf("miss", "hit"), cacheResults)
+            assertEquals(1, entries(dir).size)
+            // Different options are a different entry
+            build(exportInterface = false)
+            val (older, newer) = entries(dir).also { assertEquals(2, it.size) }.sortedBy { Files.size(it) }.let {
+                // The one with the interface is larger
+                Files.setLastModifiedTime(it[1], FileTime.fromMillis(System.currentTimeMillis() - 10000))
+                it[1] to it[0]
+            }
+            // Over the size, the least recently used goes first
+            ClassCache(dir, maxBytes = Files.size(newer)).evict()
+            assertEquals(listOf(newer), entries(dir))
+            // Over the age, they all go
+            Files.setLastModifiedTime(newer, FileTime.fromMillis(System.currentTimeMillis() - 10000))
+            ClassCache(dir, maxAgeMillis = 5000).evict()
+            assertEquals(emptyList<Path>(), entries(dir))
+            assertEquals(false, Files.exists(older))
+        } finally {
+            dir.toFile().deleteRecursively()
+        }
+    }
+
+    @Test
+    fun testContentHash() {
+        // This build is known, and told apart by contents even if the times don't change
+        assertNotNull(ClassCache.asmbleVersion)
+        val dir = Files.createTempDirectory("asmble-build")
+        try {
+            val file = Files.write(dir.resolve("Foo.class"), byteArrayOf(1, 2, 3))
+            val time = Files.getLastModifiedTime(file)
+            val hash = ClassCache.contentHash(dir)
+            assertEquals(hash, ClassCache.contentHash(dir))
+            Files.write(file, byteArrayOf(1, 2, 4))
+            Files.setLastModifiedTime(file, time)
+            assertNotEquals(hash, ClassCache.contentHash(dir))
+            assertNotEquals(ClassCache.contentHash(dir), ClassCache.contentHash(file))
+        } finally {
+            dir.toFile().deleteRecursively()
+        }
+    }
+
+    fun entries(dir: Path) = Files.newDirectoryStream(dir).use { it.toList() }
+}
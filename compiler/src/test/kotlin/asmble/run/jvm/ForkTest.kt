@@ -0,0 +1,96 @@
+package asmble.run.jvm
+
+import asmble.TestBase
+import asmble.compile.jvm.ByteBufferMem
+import asmble.compile.jvm.Mem
+import asmble.compile.jvm.PagedMem
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import org.junit.Test
+import java.nio.ByteBuffer
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class ForkTest : TestBase() {
+    @Test
+    fun testForkByteBufferMem() {
+        testFork(ByteBufferMem)
+    }
+
+    @Test
+    fun testForkPagedMem() {
+        val template = testFork(PagedMem)
+        // The template's unwritten page is still a shared read-only view, the written one is a private copy
+        val mem = template.exportedMemory("mem", Array<ByteBuffer>::class.java)!!
+        assertTrue(mem[0]!!.isReadOnly)
+        assertFalse(mem[1]!!.isReadOnly)
+    }
+
+    @Test
+    fun testForkRequiresConstructor() {
+        val inst = ModuleBuilder.Compiled(logger = logger).
+            build(ScriptContext(logger = logger), mod, "ForkTestNoFork", null)
+        assertFailsWith<IllegalStateException> { inst.fork() }
+    }
+
+    fun testFork(mem: Mem): Module.Compiled {
+        val builder = ModuleBuilder.Compiled(logger = logger, mem = mem, includeForkConstructor = true)
+        val template = builder.build(ScriptContext(logger = logger), mod, "ForkTest" + mem::class.simpleName, null)
+        fun Module.Compiled.invoke(name: String, vararg args: Any) = exportedFunc(name)!!.invokeWithArguments(*args)
+        // The start function ran once on the template
+        assertEquals(1, template.invoke("starts"))
+        assertEquals(42, template.invoke("load", Mem.PAGE_SIZE + 4))
+        val forks = List(2) { template.fork() }
+        forks.forEach {
+            // Globals and memory come from the template and the start function is not run again
+            assertEquals(1, it.invoke("starts"))
+            assertEquals(42, it.invoke("load", Mem.PAGE_SIZE + 4))
+            assertEquals('i'.toInt(), it.invoke("load", 1) as Int and 0xFF)
+        }
+        // Writes are private to each instance, including the template
+        forks[0].invoke("store", Mem.PAGE_SIZE + 4, 1)
+        forks[1].invoke("store", Mem.PAGE_SIZE + 4, 2)
+        template.invoke("store", Mem.PAGE_SIZE + 4, 3)
+        assertEquals(1, forks[0].invoke("load", Mem.PAGE_SIZE + 4))
+        assertEquals(2, forks[1].invoke("load", Mem.PAGE_SIZE + 4))
+        assertEquals(3, template.invoke("load", Mem.PAGE_SIZE + 4))
+        // Growth is private
+        assertEquals(2, forks[0].invoke("grow", 1))
+        assertEquals(2, forks[1].invoke("size"))
+        // The table calls back into the same instance
+        forks[1].invoke("setStarts", 5)
+        assertEquals(5, forks[1].invoke("indirect", 0))
+        assertEquals(1, forks[0].invoke("indirect", 0))
+        // A fork of a fork sees the fork's state
+        val forkOfFork = forks[1].fork()
+        assertEquals(5, forkOfFork.invoke("starts"))
+        assertEquals(2, forkOfFork.invoke("load", Mem.PAGE_SIZE + 4))
+        return template
+    }
+
+    companion object {
+        val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (memory (export "mem") 2 4)
+                (data (i32.const 0) "hi")
+                (global (mut i32) (i32.const 0))
+                (type (func (result i32)))
+                (table anyfunc (elem 1))
+                (func
+                    (set_global 0 (i32.add (get_global 0) (i32.const 1)))
+                    (i32.store (i32.const 65540) (i32.const 42))
+                )
+                (start 0)
+                (func (export "starts") (result i32) (get_global 0))
+                (func (export "setStarts") (param i32) (set_global 0 (get_local 0)))
+                (func (export "indirect") (param i32) (result i32) (call_indirect (type 0) (get_local 0)))
+                (func (export "load") (param i32) (result i32) (i32.load (get_local 0)))
+                (func (export "store") (param i32) (param i32) (i32.store (get_local 0) (get_local 1)))
+                (func (export "grow") (param i32) (result i32) (memory.grow (get_local 0)))
+                (func (export "size") (result i32) (memory.size))
+            )
+        """.trimIndent())).second
+    }
+}
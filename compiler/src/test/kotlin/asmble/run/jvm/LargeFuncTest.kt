@@ -2,14 +2,25 @@ package asmble.run.jvm
 
 import asmble.TestBase
 import asmble.ast.Node
+import asmble.compile.jvm.AsmToBinary
 import asmble.compile.jvm.AstToAsm
 import asmble.compile.jvm.ClsContext
+import asmble.compile.jvm.msplit.SplitMethod
+import asmble.compile.jvm.msplit.Splitter
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
 import org.junit.Assert
 import org.junit.Test
 import org.objectweb.asm.MethodTooLargeException
+import org.objectweb.asm.Opcodes
+import org.objectweb.asm.Type
+import org.objectweb.asm.tree.JumpInsnNode
+import org.objectweb.asm.tree.LabelNode
+import org.objectweb.asm.tree.MethodInsnNode
 import java.nio.ByteBuffer
 import java.util.*
 import kotlin.test.assertEquals
+import kotlin.test.assertTrue
 
 class LargeFuncTest : TestBase() {
     @Test
@@ -66,4 +77,134 @@ class LargeFuncTest : TestBase() {
         // Read out the mem values
         (0 until numInsnChunks).forEach { assertEquals(it * (it - 1), mem.getInt(it * 4)) }
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testLargeFuncWithBlocks() {
+        val numLoops = 2000
+        val ctx = loopsContext(numLoops)
+        AstToAsm.fromModule(ctx)
+        // Everything is split before writing, so it never has to be split on write
+        val asmToBinary = AsmToBinary(logger = logger)
+        assertTrue(ctx.cls.methods.any { asmToBinary.estimateCodeSize(it) > AsmToBinary.MAX_CODE_SIZE })
+        asmToBinary.splitLargeMethods(ctx.cls)
+        assertTrue(ctx.cls.methods.all { asmToBinary.estimateCodeSize(it) <= AsmToBinary.MAX_CODE_SIZE })
+        val cls = defineClass(ctx, AsmToBinary.noSplit.fromClassNode(ctx.cls))
+        // Check it still does what we expect
+        assertEquals(loopsResult(numLoops, 5L), cls.getMethod("loops", Long::class.java).invoke(cls.newInstance(), 5L))
+    }
+
+    @Test
+    fun testLargeFuncSplitForJit() {
+        val numLoops = 300
+        val ctx = loopsContext(numLoops)
+        AstToAsm.fromModule(ctx)
+        val splits = mutableListOf<AsmToBinary.Split>()
+        val asmToBinary = AsmToBinary(logger = logger, maxCodeSize = AsmToBinary.HUGE_METHOD_SIZE, onSplit = {
+            splits += it
+        })
+        val cls = defineClass(ctx, asmToBinary.fromClassNode(ctx.cls))
+        // The func is reported as split so it can be JIT compiled, and every part can be
+        val split = splits.single()
+        assertEquals(ctx.funcName(0), split.method)
+        assertTrue(split.codeSize > AsmToBinary.HUGE_METHOD_SIZE && split.parts.size > 1)
+        assertTrue(split.reason.contains("JIT"))
+        assertTrue(ctx.cls.methods.all { asmToBinary.estimateCodeSize(it) <= AsmToBinary.HUGE_METHOD_SIZE })
+        // Every loop is whole, never calling out to a split off part
+        ctx.cls.methods.forEach { method ->
+            val insns = method.instructions.toArray().toList()
+            insns.forEachIndexed { index, insn ->
+                val loopStart = (insn as? JumpInsnNode)?.let { insns.indexOf(it.label) }
+                if (loopStart != null && loopStart < index) assertTrue(insns.subList(loopStart, index).none {
+                    it is MethodInsnNode && it.name.contains("\$split")
+                })
+            }
+        }
+        assertEquals(loopsResult(numLoops, 5L), cls.getMethod("loops", Long::class.java).invoke(cls.newInstance(), 5L))
+    }
+
+    @Test
+    fun testLargeFuncManyLocals() {
+        // More i64 locals are read than a split off method could take as params, each a few times so there are still
+        // parts small enough to split off
+        val numLocals = 300
+        val ctx = ClsContext(
+            packageName = "test",
+            className = "Temp" + UUID.randomUUID().toString().replace("-", ""),
+            logger = logger,
+            mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+                (module
+                    (func (export "sums") (param i64) (result i64) (local i64)
+                        (local ${(0 until numLocals).joinToString(" ") { "i64" }})
+                        ${(0 until numLocals).joinToString("\n") {
+                            "(set_local ${it + 2} (i64.add (get_local 0) (i64.const $it)))"
+                        }}
+                        ${(0 until 4 * numLocals).joinToString("\n") {
+                            "(set_local 1 (i64.add (i64.mul (get_local 1) (i64.const 3)) (get_local ${it / 4 + 2})))"
+                        }}
+                        (get_local 1))
+                )
+            """.trimIndent())).second
+        )
+        AstToAsm.fromModule(ctx)
+        val asmToBinary = AsmToBinary(logger = logger, maxCodeSize = AsmToBinary.HUGE_METHOD_SIZE)
+        val cls = defineClass(ctx, asmToBinary.fromClassNode(ctx.cls))
+        // It's split without any part taking more param slots than allowed
+        assertTrue(ctx.cls.methods.any { it.name.contains("\$split") })
+        ctx.cls.methods.forEach {
+            assertTrue(Type.getArgumentTypes(it.desc).sumBy { it.size } <= Splitter.MAX_PARAM_SLOTS, it.name)
+        }
+        var expected = 0L
+        repeat(4 * numLocals) { expected = expected * 3 + 5L + it / 4 }
+        assertEquals(expected, cls.getMethod("sums", Long::class.java).invoke(cls.newInstance(), 5L))
+    }
+
+    @Test
+    fun testSplitLeavesOriginal() {
+        val ctx = loopsContext(300)
+        AstToAsm.fromModule(ctx)
+        val method = ctx.cls.methods.single { it.name == ctx.funcName(0) }
+        val insns = method.instructions.toArray().toList()
+        val labels = insns.filterIsInstance<LabelNode>().map { it.label }
+        val split = SplitMethod(Opcodes.ASM6).split(ctx.cls.name, method)!!
+        // The original has the same insns and labels as before...
+        assertEquals(insns, method.instructions.toArray().toList())
+        assertEquals(labels, insns.filterIsInstance<LabelNode>().map { it.label })
+        // ...none of which are in what was split from it
+        val splitInsns = split.trimmedMethod.instructions.toArray() + split.splitOffMethod.instructions.toArray()
+        assertTrue(splitInsns.none(insns::contains))
+    }
+
+    // Loops over i64 locals, all in a block with a value already on the stack under it
+    private fun loopsContext(numLoops: Int) = ClsContext(
+        packageName = "test",
+        className = "Temp" + UUID.randomUUID().toString().replace("-", ""),
+        logger = logger,
+        mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (func (export "loops") (param ${'$'}n i64) (result i64) (local ${'$'}acc i64) (local ${'$'}i i32)
+                    (i64.add (i64.const 7) (block (result i64)
+                        ${(0 until numLoops).joinToString("\n") { """
+                            (set_local ${'$'}i (i32.const 0))
+                            (block ${'$'}done
+                                (loop ${'$'}next
+                                    (br_if ${'$'}done (i32.ge_u (get_local ${'$'}i) (i32.const 3)))
+                                    (set_local ${'$'}acc (i64.add (i64.mul (get_local ${'$'}acc) (i64.const 3))
+                                        (i64.add (get_local ${'$'}n) (i64.const $it))))
+                                    (set_local ${'$'}i (i32.add (get_local ${'$'}i) (i32.const 1)))
+                                    (br ${'$'}next)))
+                        """ }}
+                        (get_local ${'$'}acc))))
+            )
+        """.trimIndent())).second
+    )
+
+    private fun loopsResult(numLoops: Int, n: Long): Long {
+        var acc = 0L
+        (0 until numLoops).forEach { repeat(3) { _ -> acc = acc * 3 + (n + it) } }
+        return acc + 7
+    }
+
+    private fun defineClass(ctx: ClsContext, bytes: ByteArray) = object : ClassLoader(javaClass.classLoader) {
+        fun defineClass(name: String, bytes: ByteArray) = defineClass(name, bytes, 0, bytes.size)
+    }.defineClass("${ctx.packageName}.${ctx.className}", bytes)
+}
@@ -0,0 +1,130 @@
+package asmble.run.jvm
+
+import asmble.TestBase
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.interpret.RunModule
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class TieredModuleTest : TestBase() {
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (memory (export "memory") 1 3)
+            (data (i32.const 0) "ab")
+            (data "xyz")
+            (data "123")
+            (global ${'$'}count (export "count") (mut i32) (i32.const 0))
+            (start ${'$'}incr)
+            (func ${'$'}incr (export "incr") (result i32)
+                (set_global ${'$'}count (i32.add (get_global ${'$'}count) (i32.const 1)))
+                (get_global ${'$'}count))
+            (func (export "store") (param i32 i32) (i32.store8 (get_local 0) (get_local 1)))
+            (func (export "load") (param i32) (result i32) (i32.load8_u (get_local 0)))
+            (func (export "grow") (result i32) (memory.grow (i32.const 1)))
+            (func (export "init") (param i32 i32) (memory.init 2 (get_local 0) (i32.const 0) (get_local 1)))
+            (func (export "drop") (data.drop 1))
+            (func (export "initDropped") (memory.init 1 (i32.const 0) (i32.const 0) (i32.const 1)))
+        )
+    """.trimIndent())).second
+
+    @Test
+    fun testTieredModule() {
+        // Compile only when we say so
+        val tasks = mutableListOf<Runnable>()
+        val builder = TieredModule.Builder(
+            interpreted = RunModule.Builder(logger = logger),
+            compiled = ModuleBuilder.Compiled(logger = logger),
+            executor = Executor { tasks += it }
+        )
+        val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+        val tiered = builder.build(ScriptContext(logger = logger), mod, className, null)
+        val call = { field: String, args: Array<Any> -> tiered.exportedFunc(field)!!.invokeWithArguments(*args) }
+        val incr = tiered.exportedFunc("incr")!!
+        val (getCount, setCount) = tiered.exportedGlobal("count")!!
+
+        // Interpreted, with the start func already run
+        assertFalse(tiered.compiled.isDone)
+        assertEquals(2, incr.invokeWithArguments())
+        setCount!!.invokeWithArguments(10)
+        call("store", arrayOf(5, 42))
+        assertEquals(1, call("grow", arrayOf()))
+        call("drop", arrayOf())
+        assertEquals(1, tasks.size)
+
+        tasks.single().run()
+        assertTrue(tiered.compiled.isDone && !tiered.compiled.isCompletedExceptionally)
+        val compiled = tiered.compiled.get()
+        // The handles from before now go to the compiled instance, which has the interpreter's state
+        assertEquals(11, incr.invokeWithArguments())
+        assertEquals(11, compiled.exportedGlobal("count")!!.first.invokeWithArguments())
+        assertEquals(11, getCount.invokeWithArguments())
+        assertEquals('a'.toInt(), call("load", arrayOf(0)))
+        assertEquals(42, call("load", arrayOf(5)))
+        assertEquals(2, call("grow", arrayOf()))
+        assertEquals(-1, call("grow", arrayOf()))
+        // The remaining passive data is there, the dropped isn't
+        call("init", arrayOf(100, 3))
+        assertEquals('3'.toInt(), call("load", arrayOf(102)))
+        assertFailsWith<Throwable> { call("initDropped", arrayOf()) }
+        // Still the one memory
+        assertTrue(tiered.exportedMemory("memory", ByteBuffer::class.java) ===
+            compiled.exportedMemory("memory", ByteBuffer::class.java))
+    }
+
+    @Test
+    fun testSwitchDoesNotHoldUpCalls() {
+        val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+            (module
+                (import "env" "block" (func ${'$'}block))
+                (func (export "blocking") (call ${'$'}block))
+                (func (export "answer") (result i32) (i32.const 42))
+            )
+        """.trimIndent())).second
+        val env = BlockingEnv()
+        val ctx = ScriptContext(logger = logger).withModuleRegistered(Module.Native("env", env))
+        val tasks = mutableListOf<Runnable>()
+        val builder = TieredModule.Builder(
+            interpreted = RunModule.Builder(logger = logger),
+            compiled = ModuleBuilder.Compiled(logger = logger),
+            executor = Executor { tasks += it }
+        )
+        val className = "Temp" + UUID.randomUUID().toString().replace("-", "")
+        val tiered = builder.build(ctx, mod, className, null)
+        // An interpreted call that doesn't finish until we say so...
+        val blocking = CompletableFuture.runAsync { tiered.exportedFunc("blocking")!!.invokeWithArguments() }
+        env.entered.await()
+        Thread(tasks.single()).apply { isDaemon = true }.start()
+        // ...keeps it from switching, but other calls still go through while it tries
+        val answer = tiered.exportedFunc("answer")!!
+        val until = System.nanoTime() + TimeUnit.SECONDS.toNanos(1)
+        while (System.nanoTime() < until) {
+            assertEquals(42, CompletableFuture.supplyAsync { answer.invokeWithArguments() }.get(5, TimeUnit.SECONDS))
+        }
+        assertFalse(tiered.compiled.isDone)
+        // Once it finishes, the switch happens
+        env.release.countDown()
+        blocking.get(5, TimeUnit.SECONDS)
+        tiered.compiled.get(30, TimeUnit.SECONDS)
+        assertEquals(42, answer.invokeWithArguments())
+    }
+
+    class BlockingEnv {
+        val entered = CountDownLatch(1)
+        val release = CountDownLatch(1)
+
+        fun block() {
+            entered.countDown()
+            release.await()
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package asmble.runtime
+
+import asmble.TestBase
+import asmble.compile.jvm.ByteArrayMem
+import asmble.compile.jvm.ByteBufferMem
+import asmble.compile.jvm.Mem
+import asmble.io.SExprToAst
+import asmble.io.StrToSExpr
+import asmble.run.jvm.ModuleBuilder
+import asmble.run.jvm.ScriptContext
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import java.nio.ReadOnlyBufferException
+import java.nio.channels.Channels
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class MemoryRegionTest : TestBase() {
+    @Test
+    fun testMemoryRegionByteBufferMem() {
+        testMemoryRegion(ByteBufferMem)
+    }
+
+    @Test
+    fun testMemoryRegionByteArrayMem() {
+        testMemoryRegion(ByteArrayMem)
+    }
+
+    fun testMemoryRegion(mem: Mem) {
+        val inst = ModuleBuilder.Compiled(logger = logger, mem = mem).
+            build(ScriptContext(logger = logger), mod, "MemoryRegionTest" + mem::class.simpleName, null)
+        val region = inst.exportedMemoryRegion()!!
+        assertEquals(Mem.PAGE_SIZE, region.length)
+        // Reads the data without moving anything
+        assertEquals("héllo", region.slice(8, 100).decodeNullTermUtf8())
+        assertEquals("hé", region.slice(8, 3).decodeUtf8())
+        assertEquals(0x0201, region.getInt(4))
+        // Encoding and the wasm side agree on the bytes
+        val str = "wörld 😀"
+        val len = MemoryRegion.utf8Length(str)
+        assertEquals(str.toByteArray().size, len)
+        assertEquals(len, region.slice(200, len).encodeUtf8(str))
+        assertEquals(str.toByteArray()[1].toInt() and 0xFF, inst.exportedFunc("load")!!.invokeWithArguments(201))
+        assertFailsWith<BufferOverflowException> { region.slice(300, len - 1).encodeUtf8(str) }
+        // Streams and channels over a range
+        val out = ByteArrayOutputStream()
+        region.slice(200, len).transferTo(Channels.newChannel(out))
+        assertEquals(str, String(out.toByteArray()))
+        assertEquals(str, region.slice(200, len).inputStream().reader().readText())
+        region.slice(400, 4).writableChannel().apply {
+            write(ByteBuffer.wrap(byteArrayOf(1, 2)))
+            write(ByteBuffer.wrap(byteArrayOf(3)))
+            assertFailsWith<BufferOverflowException> { write(ByteBuffer.wrap(byteArrayOf(4, 5))) }
+        }
+        assertEquals(0x030201, region.getInt(400))
+        // Ranges are checked and read-only is enforced
+        assertFailsWith<IndexOutOfBoundsException> { region.slice(Mem.PAGE_SIZE - 2, 3) }
+        assertFailsWith<IndexOutOfBoundsException> { region.slice(10, 2).get(2) }
+        assertFailsWith<ReadOnlyBufferException> { region.asReadOnly().put(0, 1) }
+        assertTrue(region.slice(10, 2).asReadOnly().isReadOnly)
+        assertEquals(0x0201, region.asReadOnly().getInt(4))
+    }
+
+    val mod = SExprToAst.toModule(StrToSExpr.parseSingleMulti("""
+        (module
+            (memory (export "memory") 1)
+            (data (i32.const 4) "\01\02")
+            (data (i32.const 8) "h\c3\a9llo\00after")
+            (func (export "load") (param i32) (result i32) (i32.load8_u (get_local 0)))
+        )
+    """.trimIndent())).second
+}
@@ -0,0 +1,23 @@
+package asmble.util
+
+import org.junit.Test
+import kotlin.test.assertEquals
+
+class AppendListTest {
+    @Test
+    fun testAppendList() {
+        val first = listOf(1, 2).toAppendList()
+        val appended = first + 3
+        val shortened = appended.dropLast(2)
+        // Appending to a list that isn't the longest must not touch the others
+        val branched = shortened + listOf(4, 5)
+        val appendedAgain = appended + 6
+        assertEquals(listOf(1, 2), first)
+        assertEquals(listOf(1, 2, 3), appended)
+        assertEquals(listOf(1), shortened)
+        assertEquals(listOf(1, 4, 5), branched)
+        assertEquals(listOf(1, 2, 3, 6), appendedAgain)
+        assertEquals(listOf(1, 2, 7), first + 7)
+        assertEquals(emptyList(), first.dropLast(5))
+    }
+}
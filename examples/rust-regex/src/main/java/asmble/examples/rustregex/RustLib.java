@@ -1,9 +1,7 @@
 package asmble.examples.rustregex;
 
 import asmble.generated.RustRegex;
-
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import asmble.runtime.MemoryRegion;
 
 public class RustLib implements RegexLib<RustLib.Ptr> {
 
@@ -28,9 +26,8 @@ public class RustLib implements RegexLib<RustLib.Ptr> {
     }
 
     private Ptr ptrFromString(String str) {
-        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
-        Ptr ptr = new Ptr(bytes.length);
-        ptr.put(bytes);
+        Ptr ptr = new Ptr(MemoryRegion.utf8Length(str));
+        ptr.region().encodeUtf8(str);
         return ptr;
     }
 
@@ -68,11 +65,8 @@ public class RustLib implements RegexLib<RustLib.Ptr> {
             this(rustRegex.alloc(size), size);
         }
 
-        void put(byte[] bytes) {
-            // Yeah, yeah, not thread safe
-            ByteBuffer memory = rustRegex.getMemory();
-            memory.position(offset);
-            memory.put(bytes);
+        MemoryRegion region() {
+            return MemoryRegion.of(rustRegex.getMemory(), offset, size);
         }
 
         @Override
@@ -1,14 +1,8 @@
 package asmble.examples.ruststring;
 
 import asmble.generated.RustString;
+import asmble.runtime.MemoryRegion;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-
-// Not thread safe!
 class Lib {
     private final RustString rustString;
 
@@ -28,41 +22,22 @@ class Lib {
     }
 
     private Ptr ptrFromString(String str) {
-        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
-        Ptr ptr = new Ptr(bytes.length);
-        ptr.put(bytes);
+        Ptr ptr = new Ptr(MemoryRegion.utf8Length(str));
+        ptr.region().encodeUtf8(str);
         return ptr;
     }
 
     private String nullTermedStringFromOffset(int offset) {
-        ByteBuffer memory = rustString.getMemory();
-        memory.position(offset);
-        // We're going to turn the mem into an input stream. This is the
-        //  reasonable way to stream a UTF8 read using standard Java libs
-        //  that I could find.
-        InputStreamReader r = new InputStreamReader(new InputStream() {
-            @Override
-            public int read() throws IOException {
-                if (!memory.hasRemaining()) {
-                    return -1;
-                }
-                return memory.get() & 0xFF;
-            }
-        }, StandardCharsets.UTF_8);
-        StringBuilder builder = new StringBuilder();
-        try {
-            while (true) {
-                int c = r.read();
-                if (c <= 0) {
-                    break;
-                }
-                builder.append((char) c);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        rustString.dealloc(offset, memory.position() - offset);
-        return builder.toString();
+        // Decode straight from the memory up to the null, or to the end if there isn't one
+        MemoryRegion memory = MemoryRegion.of(rustString.getMemory());
+        MemoryRegion str = memory.slice(offset, memory.getLength() - offset);
+        int length = str.indexOf((byte) 0);
+        boolean hasNull = length != -1;
+        if (!hasNull) length = str.getLength();
+        String ret = str.slice(0, length).decodeUtf8();
+        // The null is part of the allocation, but only if there is one
+        rustString.dealloc(offset, hasNull ? length + 1 : length);
+        return ret;
     }
 
     class Ptr {
@@ -78,11 +53,8 @@ class Lib {
             this(rustString.alloc(size), size);
         }
 
-        void put(byte[] bytes) {
-            // Yeah, yeah, not thread safe
-            ByteBuffer memory = rustString.getMemory();
-            memory.position(offset);
-            memory.put(bytes);
+        MemoryRegion region() {
+            return MemoryRegion.of(rustString.getMemory(), offset, size);
         }
 
         @Override
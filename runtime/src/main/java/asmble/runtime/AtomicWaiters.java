@@ -0,0 +1,135 @@
+package asmble.runtime;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The threads waiting on memory addresses for the atomic wait and notify instructions. There is one set for the whole
+ * JVM, keyed by the memory instance (by identity) and the address, so any compiled classes or interpreters that share a
+ * memory wake each other. Memory is only referenced here while something waits on it.
+ */
+public final class AtomicWaiters {
+    /** The wait result when woken by a notify */
+    public static final int OK = 0;
+    /** The wait result when the value was not the expected one */
+    public static final int NOT_EQUAL = 1;
+    /** The wait result when the timeout passed without a notify */
+    public static final int TIMED_OUT = 2;
+
+    private static final ConcurrentHashMap<Address, ArrayDeque<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    private AtomicWaiters() { }
+
+    /**
+     * Queue the current thread as waiting on the address. This must be done before checking the value so that a notify
+     * between the check and {@link #park} is not lost.
+     *
+     * @param mem the memory instance
+     * @param index the address in the memory
+     * @return the waiter to give to {@link #park} or {@link #cancel}
+     */
+    public static Object enqueue(Object mem, int index) {
+        Waiter waiter = new Waiter(Thread.currentThread());
+        waiters.compute(new Address(mem, index), (address, queue) -> {
+            if (queue == null) queue = new ArrayDeque<>();
+            queue.add(waiter);
+            return queue;
+        });
+        return waiter;
+    }
+
+    /**
+     * Remove a waiter that was not woken.
+     *
+     * @param mem the memory instance
+     * @param index the address in the memory
+     * @param waiter the waiter from {@link #enqueue}
+     * @return false if a notify already woke the waiter
+     */
+    public static boolean cancel(Object mem, int index, Object waiter) {
+        boolean[] removed = { false };
+        waiters.computeIfPresent(new Address(mem, index), (address, queue) -> {
+            removed[0] = queue.remove(waiter);
+            return queue.isEmpty() ? null : queue;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Park the current thread until notified or until the timeout passes.
+     *
+     * @param mem the memory instance
+     * @param index the address in the memory
+     * @param waiter the waiter from {@link #enqueue}
+     * @param timeoutNanos the timeout, or negative for none
+     * @return {@link #OK} or {@link #TIMED_OUT}
+     */
+    public static int park(Object mem, int index, Object waiter, long timeoutNanos) {
+        Waiter self = (Waiter) waiter;
+        long deadline = System.nanoTime() + timeoutNanos;
+        // Spurious wakeups just loop
+        while (!self.woken) {
+            if (timeoutNanos < 0) {
+                LockSupport.park(self);
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            // If we can't cancel, a notify beat us to it
+            if (remaining <= 0) return cancel(mem, index, waiter) ? TIMED_OUT : OK;
+            LockSupport.parkNanos(self, remaining);
+        }
+        return OK;
+    }
+
+    /**
+     * Wake threads waiting on the address, oldest first.
+     *
+     * @param mem the memory instance
+     * @param index the address in the memory
+     * @param count the most to wake, as an unsigned int
+     * @return how many were woken
+     */
+    public static int notify(Object mem, int index, int count) {
+        ArrayDeque<Waiter> woken = new ArrayDeque<>();
+        waiters.computeIfPresent(new Address(mem, index), (address, queue) -> {
+            while (Integer.compareUnsigned(woken.size(), count) < 0 && !queue.isEmpty()) {
+                Waiter waiter = queue.remove();
+                waiter.woken = true;
+                woken.add(waiter);
+            }
+            return queue.isEmpty() ? null : queue;
+        });
+        woken.forEach(waiter -> LockSupport.unpark(waiter.thread));
+        return woken.size();
+    }
+
+    private static final class Address {
+        final Object mem;
+        final int index;
+
+        Address(Object mem, int index) {
+            this.mem = mem;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Address && ((Address) o).mem == mem && ((Address) o).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mem) * 31 + index;
+        }
+    }
+
+    private static final class Waiter {
+        final Thread thread;
+        volatile boolean woken;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package asmble.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The files mapped as memory for compiled classes. The mapping is the capacity plus a trailer that the compiled class
+ * uses to persist the limit and init state. Each file can only be open once at a time in the JVM, keyed by its
+ * canonical path. It is free again once {@link #close} is called on its memory or once its memory is garbage
+ * collected.
+ */
+public final class MappedMemFiles {
+    /** The system property that, if set, is the dir for files of classes compiled without their own */
+    public static final String DIR_PROPERTY = "asmble.mappedMem.dir";
+    /** The bytes after the capacity that the compiled class persists its state in */
+    public static final int TRAILER_SIZE = 12;
+
+    // Opening ones have a null referent until mapped
+    private static final ConcurrentHashMap<String, WeakReference<ByteBuffer>> open = new ConcurrentHashMap<>();
+    private static final WeakReference<ByteBuffer> OPENING = new WeakReference<>(null);
+
+    private MappedMemFiles() { }
+
+    /**
+     * The path of a class's file, resolved when the memory is created so compiled classes can move.
+     *
+     * @param dir the dir given at compile time, used if {@link #DIR_PROPERTY} is not set
+     * @param name the file name
+     * @return the path
+     */
+    public static String path(String dir, String name) {
+        return new File(System.getProperty(DIR_PROPERTY, dir), name).getPath();
+    }
+
+    /**
+     * Map the file as memory with at least the given capacity. Existing files keep their size unless they are too
+     * small, in which case they are grown with the trailer moved to the new end.
+     *
+     * @param path the file path, created if not there
+     * @param capacity the least bytes of memory, not including the trailer
+     * @return the little endian memory, including the trailer until the compiled class sets the limit
+     * @throws IOException if the file can't be mapped
+     * @throws IllegalStateException if the file is already open
+     */
+    public static ByteBuffer open(String path, int capacity) throws IOException {
+        String key = new File(path).getCanonicalPath();
+        open.compute(key, (k, existing) -> {
+            if (existing == OPENING || (existing != null && existing.get() != null))
+                throw new IllegalStateException("Mapped memory file " + key + " is already used by another " +
+                    "instance, others must be given their own memory");
+            return OPENING;
+        });
+        ByteBuffer mem = null;
+        try {
+            mem = map(path, capacity);
+        } finally {
+            if (mem == null) open.remove(key, OPENING);
+            else open.put(key, new WeakReference<>(mem));
+        }
+        return mem;
+    }
+
+    /**
+     * Write the memory's changes to its file and free the file to be opened again. The memory must not be used after.
+     *
+     * @param mem the memory from {@link #open}
+     */
+    public static void close(ByteBuffer mem) {
+        if (mem instanceof MappedByteBuffer) ((MappedByteBuffer) mem).force();
+        open.values().removeIf(ref -> ref.get() == mem);
+    }
+
+    private static ByteBuffer map(String path, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            long size = channel.size();
+            long wanted = (long) capacity + TRAILER_SIZE;
+            if (size > 0 && size < TRAILER_SIZE)
+                throw new IOException("Mapped memory file " + path + " is too small for a trailer");
+            ByteBuffer mem = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, wanted));
+            mem.order(ByteOrder.LITTLE_ENDIAN);
+            // Where the trailer was is now zeroed memory
+            if (size > 0 && size < wanted) {
+                int oldTrailer = (int) size - TRAILER_SIZE;
+                int trailer = mem.capacity() - TRAILER_SIZE;
+                for (int i = 0; i < TRAILER_SIZE; i += 4) {
+                    mem.putInt(trailer + i, mem.getInt(oldTrailer + i));
+                    mem.putInt(oldTrailer + i, 0);
+                }
+            }
+            return mem;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package asmble.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A range of linear memory addressed by absolute offsets from the start of the range. This never touches the position
+ * or limit of the underlying buffer, every access goes through its own view, so any number of regions over the same
+ * memory can be used from any number of threads (as long as the wasm side agrees on who writes what). The range is
+ * fixed when created, so regions over the whole memory should be recreated after the memory grows.
+ */
+public final class MemoryRegion {
+    /** The size of the trailing limit on byte array memory */
+    private static final int BYTE_ARRAY_LIMIT_SIZE = 4;
+
+    private final ByteBuffer buf;
+    private final int offset;
+    private final int length;
+
+    private MemoryRegion(ByteBuffer buf, int offset, int length) {
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @param mem a byte buffer memory
+     * @return the whole memory as currently limited
+     */
+    public static MemoryRegion of(ByteBuffer mem) {
+        return new MemoryRegion(mem.duplicate().order(ByteOrder.LITTLE_ENDIAN), 0, mem.limit());
+    }
+
+    /**
+     * @param mem a byte array memory, whose last four bytes are the little endian limit
+     * @return the whole memory as currently limited
+     */
+    public static MemoryRegion of(byte[] mem) {
+        ByteBuffer buf = ByteBuffer.wrap(mem).order(ByteOrder.LITTLE_ENDIAN);
+        return new MemoryRegion(buf, 0, buf.getInt(mem.length - BYTE_ARRAY_LIMIT_SIZE));
+    }
+
+    /**
+     * @param mem a byte buffer memory
+     * @param offset the start of the range
+     * @param length the length of the range
+     * @return the range of the memory
+     */
+    public static MemoryRegion of(ByteBuffer mem, int offset, int length) {
+        return of(mem).slice(offset, length);
+    }
+
+    /**
+     * @param str the string
+     * @return the bytes needed to encode the string as UTF-8, e.g. to allocate before {@link #encodeUtf8}
+     */
+    public static int utf8Length(CharSequence str) {
+        int len = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) len += 1;
+            else if (c < 0x800) len += 2;
+            else if (!Character.isHighSurrogate(c) || i + 1 >= str.length()) len += 3;
+            else if (!Character.isLowSurrogate(str.charAt(i + 1))) len += 3;
+            else {
+                len += 4;
+                i++;
+            }
+        }
+        return len;
+    }
+
+    /** @return the start of this range in the memory */
+    public int getOffset() { return offset; }
+
+    /** @return the length of this range */
+    public int getLength() { return length; }
+
+    /** @return whether writes fail */
+    public boolean isReadOnly() { return buf.isReadOnly(); }
+
+    /** @return just the range, little endian like wasm, with position 0 and a new view every call */
+    public ByteBuffer asByteBuffer() {
+        ByteBuffer view = buf.duplicate();
+        // Casts are for Java 8 compat, where ByteBuffer doesn't override these
+        ((Buffer) view).limit(offset + length).position(offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param index the start of the slice in this region
+     * @param length the length of the slice
+     * @return the region for the range within this one
+     */
+    public MemoryRegion slice(int index, int length) {
+        return new MemoryRegion(buf, offset + checkRange(index, length), length);
+    }
+
+    /** @return this region, failing on writes */
+    public MemoryRegion asReadOnly() {
+        if (isReadOnly()) return this;
+        return new MemoryRegion(buf.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN), offset, length);
+    }
+
+    public byte get(int index) { return buf.get(offset + checkRange(index, 1)); }
+    public int getInt(int index) { return buf.getInt(offset + checkRange(index, 4)); }
+    public long getLong(int index) { return buf.getLong(offset + checkRange(index, 8)); }
+
+    public void get(int index, byte[] dst) { get(index, dst, 0, dst.length); }
+
+    public void get(int index, byte[] dst, int dstOffset, int length) {
+        checkRange(index, length);
+        ByteBuffer view = buf.duplicate();
+        ((Buffer) view).position(offset + index);
+        view.get(dst, dstOffset, length);
+    }
+
+    public void put(int index, byte value) { buf.put(offset + checkRange(index, 1), value); }
+    public void putInt(int index, int value) { buf.putInt(offset + checkRange(index, 4), value); }
+    public void putLong(int index, long value) { buf.putLong(offset + checkRange(index, 8), value); }
+
+    public void put(int index, byte[] src) { put(index, src, 0, src.length); }
+
+    public void put(int index, byte[] src, int srcOffset, int length) {
+        checkRange(index, length);
+        ByteBuffer view = buf.duplicate();
+        ((Buffer) view).position(offset + index);
+        view.put(src, srcOffset, length);
+    }
+
+    /**
+     * @param value the byte to find
+     * @return the index of the first matching byte, or -1
+     */
+    public int indexOf(byte value) { return indexOf(value, 0); }
+
+    /**
+     * @param value the byte to find
+     * @param fromIndex the index to start at
+     * @return the index of the first matching byte at or after the given index, or -1
+     */
+    public int indexOf(byte value, int fromIndex) {
+        for (int i = offset + checkRange(fromIndex, 0); i < offset + length; i++) {
+            if (buf.get(i) == value) return i - offset;
+        }
+        return -1;
+    }
+
+    /** @return the whole region decoded, with malformed input replaced */
+    public String decodeUtf8() {
+        return StandardCharsets.UTF_8.decode(asByteBuffer()).toString();
+    }
+
+    /** @return the region decoded up to the first null (or the end of the region if none) which is not included */
+    public String decodeNullTermUtf8() {
+        int end = indexOf((byte) 0);
+        return (end == -1 ? this : slice(0, end)).decodeUtf8();
+    }
+
+    /**
+     * Encodes straight into the start of the region. If it doesn't fit, the region may be partially written.
+     *
+     * @param str the string to encode
+     * @return the byte count
+     * @throws BufferOverflowException if it doesn't fit
+     * @throws IllegalArgumentException on unpaired surrogates
+     */
+    public int encodeUtf8(CharSequence str) {
+        ByteBuffer out = asByteBuffer();
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        CoderResult result = encoder.encode(CharBuffer.wrap(str), out, true);
+        if (result.isUnderflow()) result = encoder.flush(out);
+        if (result.isOverflow()) throw new BufferOverflowException();
+        if (result.isError()) throw new IllegalArgumentException("Unable to encode string as UTF-8: " + result);
+        return out.position();
+    }
+
+    /** @return a stream that reads the region from start to end */
+    public InputStream inputStream() {
+        ByteBuffer view = asByteBuffer();
+        return new InputStream() {
+            private int mark;
+
+            @Override
+            public int read() { return view.hasRemaining() ? view.get() & 0xFF : -1; }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!view.hasRemaining()) return -1;
+                int count = Math.min(len, view.remaining());
+                view.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public long skip(long n) {
+                int count = (int) Math.min(Math.max(n, 0), view.remaining());
+                ((Buffer) view).position(view.position() + count);
+                return count;
+            }
+
+            @Override
+            public int available() { return view.remaining(); }
+
+            @Override
+            public boolean markSupported() { return true; }
+
+            @Override
+            public void mark(int readlimit) { mark = view.position(); }
+
+            @Override
+            public void reset() { ((Buffer) view).position(mark); }
+        };
+    }
+
+    /** @return a channel that writes into the region from start to end, failing on writes past the end */
+    public WritableByteChannel writableChannel() {
+        ByteBuffer view = asByteBuffer();
+        return new WritableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int write(ByteBuffer src) throws ClosedChannelException {
+                if (!open) throw new ClosedChannelException();
+                if (src.remaining() > view.remaining()) throw new BufferOverflowException();
+                int count = src.remaining();
+                view.put(src);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() { return open; }
+
+            @Override
+            public void close() { open = false; }
+        };
+    }
+
+    /**
+     * Writes the whole region to the channel without copying it out first.
+     *
+     * @param channel the channel to write to
+     * @return the byte count
+     * @throws IOException from the channel
+     */
+    public int transferTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer view = asByteBuffer();
+        while (view.hasRemaining()) channel.write(view);
+        return length;
+    }
+
+    private int checkRange(int index, int size) {
+        if (index < 0 || size < 0 || (long) index + size > length) {
+            throw new IndexOutOfBoundsException("Range at " + index + " of size " + size +
+                " not in region of length " + length);
+        }
+        return index;
+    }
+}